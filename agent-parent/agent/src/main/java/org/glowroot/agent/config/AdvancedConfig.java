@@ -32,6 +32,9 @@ public abstract class AdvancedConfig {
     public static final int OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER = 10;
     public static final int TRANSACTION_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER = 2;
 
+    public static final int OVERALL_AGGREGATE_LOG_EVENTS_HARD_LIMIT_MULTIPLIER = 10;
+    public static final int TRANSACTION_AGGREGATE_LOG_EVENTS_HARD_LIMIT_MULTIPLIER = 2;
+
     @Value.Default
     @JsonInclude(value = Include.NON_EMPTY)
     public boolean weavingTimer() {
@@ -75,6 +78,13 @@ public abstract class AdvancedConfig {
         return 50000;
     }
 
+    // used to limit the time spent at safepoint capturing each stack trace sample, deeper stack
+    // traces are truncated (the innermost frames are retained)
+    @Value.Default
+    public int maxStackTraceDepth() {
+        return 1000;
+    }
+
     @Value.Default
     public int mbeanGaugeNotFoundDelaySeconds() {
         return 60;
@@ -90,6 +100,7 @@ public abstract class AdvancedConfig {
                 .setMaxAggregateServiceCallsPerType(of(maxAggregateServiceCallsPerType()))
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
+                .setMaxStackTraceDepth(of(maxStackTraceDepth()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                 .build();
     }
@@ -120,6 +131,9 @@ public abstract class AdvancedConfig {
             builder.maxStackTraceSamplesPerTransaction(
                     config.getMaxStackTraceSamplesPerTransaction().getValue());
         }
+        if (config.hasMaxStackTraceDepth()) {
+            builder.maxStackTraceDepth(config.getMaxStackTraceDepth().getValue());
+        }
         if (config.hasMbeanGaugeNotFoundDelaySeconds()) {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
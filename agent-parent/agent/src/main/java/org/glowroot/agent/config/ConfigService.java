@@ -386,6 +386,17 @@ public class ConfigService {
                     .addMbeanAttributes(ImmutableMBeanAttribute.of("SystemCpuLoad", false));
         }
         defaultGaugeConfigs.add(operatingSystemMBean.build());
+        // registered by the jdbc plugin for each connection pool that is in use
+        defaultGaugeConfigs.add(ImmutableGaugeConfig.builder()
+                .mbeanObjectName("org.glowroot.jdbc:type=ConnectionPool,name=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ActiveConnections", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("IdleConnections", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("PendingThreads", false))
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("ConnectionAcquisitionCount", true))
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("ConnectionAcquisitionTimeMillis", true))
+                .build());
         return ImmutableList.copyOf(defaultGaugeConfigs);
     }
 
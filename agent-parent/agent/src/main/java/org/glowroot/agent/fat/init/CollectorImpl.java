@@ -67,7 +67,7 @@ class CollectorImpl implements Collector {
             List<String> sharedQueryTexts) throws Exception {
         aggregateRepository.store(AGENT_ID, captureTime, aggregatesByType, sharedQueryTexts);
         try {
-            alertingService.checkTransactionAlerts(AGENT_ID, captureTime, null);
+            alertingService.checkTransactionAlerts(AGENT_ID, captureTime, aggregatesByType, null);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
@@ -76,12 +76,8 @@ class CollectorImpl implements Collector {
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) throws Exception {
         gaugeValueRepository.store(AGENT_ID, gaugeValues);
-        long maxCaptureTime = 0;
-        for (GaugeValue gaugeValue : gaugeValues) {
-            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
-        }
         try {
-            alertingService.checkGaugeAlerts(AGENT_ID, maxCaptureTime, null);
+            alertingService.checkGaugeAlerts(AGENT_ID, gaugeValues, null);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
@@ -53,6 +53,7 @@ import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -95,6 +96,7 @@ class AggregateDao implements AggregateRepository {
                     ImmutableColumn.of("async_transactions", ColumnType.BOOLEAN),
                     ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("service_calls_capped_id", ColumnType.BIGINT),
+                    ImmutableColumn.of("log_events_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("aux_thread_profile_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("main_thread_root_timers", ColumnType.VARBINARY), // protobuf
@@ -121,6 +123,7 @@ class AggregateDao implements AggregateRepository {
                     ImmutableColumn.of("async_transactions", ColumnType.BOOLEAN),
                     ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("service_calls_capped_id", ColumnType.BIGINT),
+                    ImmutableColumn.of("log_events_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("aux_thread_profile_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("main_thread_root_timers", ColumnType.VARBINARY), // protobuf
@@ -325,7 +328,8 @@ class AggregateDao implements AggregateRepository {
                             Strings.emptyToNull(toBeMergedQuery.getFullQueryTextSha1()),
                             toBeMergedQuery.getTotalDurationNanos(),
                             toBeMergedQuery.getExecutionCount(), toBeMergedQuery.hasTotalRows(),
-                            toBeMergedQuery.getTotalRows().getValue());
+                            toBeMergedQuery.getTotalRows().getValue(),
+                            fromStored(toBeMergedQuery.getDurationNanosHistogram()));
                 }
             }
             collector.updateLastCaptureTime(captureTime);
@@ -354,6 +358,28 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
+    // query.from() is non-inclusive
+    @Override
+    public void mergeLogEventsInto(String agentRollup, TransactionQuery query,
+            LogEventCollector collector) throws Exception {
+        // get list of capped ids first since that is done under the data source lock
+        // then do the expensive part of reading and constructing the protobuf messages outside of
+        // the data source lock
+        List<CappedId> cappedIds =
+                dataSource.query(new CappedIdQuery("log_events_capped_id", query));
+        long captureTime = Long.MIN_VALUE;
+        for (CappedId cappedId : cappedIds) {
+            captureTime = Math.max(captureTime, cappedId.captureTime());
+            List<Aggregate.LogEvent> logEvents =
+                    rollupCappedDatabases.get(query.rollupLevel()).readMessages(cappedId.cappedId(),
+                            Aggregate.LogEvent.parser());
+            if (logEvents != null) {
+                collector.mergeLogEvents(logEvents);
+                collector.updateLastCaptureTime(captureTime);
+            }
+        }
+    }
+
     // query.from() is non-inclusive
     @Override
     public void mergeMainThreadProfilesInto(String agentRollup, TransactionQuery query,
@@ -457,6 +483,7 @@ class AggregateDao implements AggregateRepository {
         boolean asyncTransactions = resultSet.getBoolean(i++);
         Long queriesCappedId = RowMappers.getLong(resultSet, i++);
         Long serviceCallsCappedId = RowMappers.getLong(resultSet, i++);
+        Long logEventsCappedId = RowMappers.getLong(resultSet, i++);
         Long mainThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
         Long auxThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
         byte[] mainThreadRootTimers = resultSet.getBytes(i++);
@@ -507,7 +534,8 @@ class AggregateDao implements AggregateRepository {
                                 query.getTruncatedQueryText(),
                                 Strings.emptyToNull(query.getFullQueryTextSha1()),
                                 query.getTotalDurationNanos(), query.getExecutionCount(),
-                                query.hasTotalRows(), query.getTotalRows().getValue());
+                                query.hasTotalRows(), query.getTotalRows().getValue(),
+                                fromStored(query.getDurationNanosHistogram()));
                     }
                 }
             }
@@ -520,6 +548,13 @@ class AggregateDao implements AggregateRepository {
                 mergedAggregate.mergeServiceCalls(serviceCalls);
             }
         }
+        if (logEventsCappedId != null) {
+            List<Aggregate.LogEvent> logEvents = rollupCappedDatabases.get(fromRollupLevel)
+                    .readMessages(logEventsCappedId, Aggregate.LogEvent.parser());
+            if (logEvents != null) {
+                mergedAggregate.mergeLogEvents(logEvents);
+            }
+        }
         if (mainThreadProfileCappedId != null) {
             Profile mainThreadProfile = rollupCappedDatabases.get(fromRollupLevel)
                     .readMessage(mainThreadProfileCappedId, Profile.parser());
@@ -583,6 +618,13 @@ class AggregateDao implements AggregateRepository {
         return i;
     }
 
+    private static Aggregate.Histogram fromStored(Stored.Histogram histogram) {
+        return Aggregate.Histogram.newBuilder()
+                .addAllOrderedRawValue(histogram.getOrderedRawValueList())
+                .setEncodedBytes(histogram.getEncodedBytes())
+                .build();
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -1007,8 +1049,9 @@ class AggregateDao implements AggregateRepository {
         public @Untainted String getSql() {
             return "select transaction_type, total_duration_nanos, transaction_count, error_count,"
                     + " async_transactions, queries_capped_id, service_calls_capped_id,"
-                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
-                    + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
+                    + " log_events_capped_id, main_thread_profile_capped_id,"
+                    + " aux_thread_profile_capped_id, main_thread_root_timers,"
+                    + " aux_thread_root_timers, async_root_timers,"
                     + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
                     + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
                     + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
@@ -1077,8 +1120,9 @@ class AggregateDao implements AggregateRepository {
         public @Untainted String getSql() {
             return "select transaction_type, transaction_name, total_duration_nanos,"
                     + " transaction_count, error_count, async_transactions, queries_capped_id,"
-                    + " service_calls_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id, main_thread_root_timers,"
+                    + " service_calls_capped_id, log_events_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
+                    + " main_thread_root_timers,"
                     + " aux_thread_root_timers, async_root_timers, main_thread_total_cpu_nanos,"
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
@@ -61,6 +61,7 @@ class AggregateInsert implements JdbcUpdate {
     private final boolean asyncTransactions;
     private final @Nullable Long queriesCappedId;
     private final @Nullable Long serviceCallsCappedId;
+    private final @Nullable Long logEventsCappedId;
     private final @Nullable Long mainThreadProfileCappedId;
     private final @Nullable Long auxThreadProfileCappedId;
     private final byte /*@Nullable*/[] mainThreadRootTimers;
@@ -94,6 +95,7 @@ class AggregateInsert implements JdbcUpdate {
                 convertToStored(aggregate.getQueriesByTypeList(), sharedQueries));
         serviceCallsCappedId =
                 writeServiceCalls(cappedDatabase, aggregate.getServiceCallsByTypeList());
+        logEventsCappedId = writeLogEvents(cappedDatabase, aggregate.getLogEventList());
         if (aggregate.hasMainThreadProfile()) {
             mainThreadProfileCappedId =
                     writeProfile(cappedDatabase, aggregate.getMainThreadProfile());
@@ -142,8 +144,10 @@ class AggregateInsert implements JdbcUpdate {
         errorCount = aggregate.getErrorCount();
         asyncTransactions = aggregate.isAsyncTransactions();
 
-        queriesCappedId = writeQueries(cappedDatabase, convertToStored(aggregate.getQueries()));
+        queriesCappedId = writeQueries(cappedDatabase, convertToStored(aggregate.getQueries(),
+                scratchBuffer));
         serviceCallsCappedId = writeServiceCalls(cappedDatabase, aggregate.getServiceCallsProto());
+        logEventsCappedId = writeLogEvents(cappedDatabase, aggregate.getLogEventsProto());
         mainThreadProfileCappedId = writeProfile(cappedDatabase, aggregate.getMainThreadProfile());
         auxThreadProfileCappedId = writeProfile(cappedDatabase, aggregate.getAuxThreadProfile());
         mainThreadRootTimers = toByteArray(aggregate.getMainThreadRootTimersProto());
@@ -185,8 +189,9 @@ class AggregateInsert implements JdbcUpdate {
         }
         sb.append(" capture_time, total_duration_nanos, transaction_count, error_count,"
                 + " async_transactions, queries_capped_id, service_calls_capped_id,"
-                + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
-                + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
+                + " log_events_capped_id, main_thread_profile_capped_id,"
+                + " aux_thread_profile_capped_id, main_thread_root_timers,"
+                + " aux_thread_root_timers, async_root_timers,"
                 + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
                 + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
                 + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
@@ -196,7 +201,7 @@ class AggregateInsert implements JdbcUpdate {
             sb.append(", transaction_name");
         }
         sb.append(", capture_time) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                + " ?, ?, ?");
+                + " ?, ?, ?, ?");
         if (transactionName != null) {
             sb.append(", ?");
         }
@@ -219,6 +224,7 @@ class AggregateInsert implements JdbcUpdate {
         preparedStatement.setBoolean(i++, asyncTransactions);
         RowMappers.setLong(preparedStatement, i++, queriesCappedId);
         RowMappers.setLong(preparedStatement, i++, serviceCallsCappedId);
+        RowMappers.setLong(preparedStatement, i++, logEventsCappedId);
         RowMappers.setLong(preparedStatement, i++, mainThreadProfileCappedId);
         RowMappers.setLong(preparedStatement, i++, auxThreadProfileCappedId);
         RowMappers.setBytes(preparedStatement, i++, mainThreadRootTimers);
@@ -249,7 +255,9 @@ class AggregateInsert implements JdbcUpdate {
                         .setFullQueryTextSha1(
                                 Strings.nullToEmpty(sharedQueryText.fullQueryTextSha1()))
                         .setTotalDurationNanos(loopQuery.getTotalDurationNanos())
-                        .setExecutionCount(loopQuery.getExecutionCount());
+                        .setExecutionCount(loopQuery.getExecutionCount())
+                        .setDurationNanosHistogram(
+                                toStored(loopQuery.getDurationNanosHistogram()));
                 if (loopQuery.hasTotalRows()) {
                     storedQuery.setTotalRows(Stored.OptionalInt64.newBuilder()
                             .setValue(loopQuery.getTotalRows().getValue())
@@ -262,7 +270,8 @@ class AggregateInsert implements JdbcUpdate {
         return storedQueries;
     }
 
-    private static List<QueriesByType> convertToStored(@Nullable QueryCollector queries) {
+    private static List<QueriesByType> convertToStored(@Nullable QueryCollector queries,
+            ScratchBuffer scratchBuffer) {
         if (queries == null) {
             return ImmutableList.of();
         }
@@ -275,7 +284,9 @@ class AggregateInsert implements JdbcUpdate {
                         .setTruncatedQueryText(query.getTruncatedQueryText())
                         .setFullQueryTextSha1(Strings.nullToEmpty(query.getFullQueryTextSha1()))
                         .setTotalDurationNanos(query.getTotalDurationNanos())
-                        .setExecutionCount(query.getExecutionCount());
+                        .setExecutionCount(query.getExecutionCount())
+                        .setDurationNanosHistogram(toStored(
+                                query.getDurationNanosHistogram().toProto(scratchBuffer)));
                 if (query.hasTotalRows()) {
                     storedQuery.setTotalRows(Stored.OptionalInt64.newBuilder()
                             .setValue(query.getTotalRows())
@@ -288,6 +299,13 @@ class AggregateInsert implements JdbcUpdate {
         return storedQueries;
     }
 
+    private static Stored.Histogram toStored(Aggregate.Histogram histogram) {
+        return Stored.Histogram.newBuilder()
+                .addAllOrderedRawValue(histogram.getOrderedRawValueList())
+                .setEncodedBytes(histogram.getEncodedBytes())
+                .build();
+    }
+
     private static @Nullable Long writeQueries(CappedDatabase cappedDatabase,
             List<Stored.QueriesByType> queries) throws IOException {
         if (queries.isEmpty()) {
@@ -305,6 +323,15 @@ class AggregateInsert implements JdbcUpdate {
                 RollupCappedDatabaseStats.AGGREGATE_SERVICE_CALLS);
     }
 
+    private static @Nullable Long writeLogEvents(CappedDatabase cappedDatabase,
+            List<Aggregate.LogEvent> logEvents) throws IOException {
+        if (logEvents.isEmpty()) {
+            return null;
+        }
+        return cappedDatabase.writeMessages(logEvents,
+                RollupCappedDatabaseStats.AGGREGATE_LOG_EVENTS);
+    }
+
     private static @Nullable Long writeProfile(CappedDatabase cappedDatabase,
             @Nullable MutableProfile profile) throws IOException {
         if (profile == null) {
@@ -22,6 +22,7 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
 
     static final String AGGREGATE_QUERIES = "aggregate queries";
     static final String AGGREGATE_SERVICE_CALLS = "aggregate service calls";
+    static final String AGGREGATE_LOG_EVENTS = "aggregate log events";
     static final String AGGREGATE_PROFILES = "aggregate profiles";
 
     private final CappedDatabase cappedDatabase;
@@ -40,6 +41,11 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
         return cappedDatabase.getStats(AGGREGATE_SERVICE_CALLS);
     }
 
+    @Override
+    public CappedDatabaseStats getAggregateLogEvents() {
+        return cappedDatabase.getStats(AGGREGATE_LOG_EVENTS);
+    }
+
     @Override
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
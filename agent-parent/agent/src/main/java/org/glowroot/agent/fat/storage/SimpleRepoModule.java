@@ -95,8 +95,8 @@ public class SimpleRepoModule {
                 configRepository, agentDao, gaugeValueDao);
 
         TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(dataSource);
-        alertingService = new AlertingService(configRepository, triggeredAlertDao, aggregateDao,
-                gaugeValueDao, rollupLevelService, new MailService());
+        alertingService = new AlertingService(configRepository, agentDao, triggeredAlertDao,
+                aggregateDao, gaugeValueDao, rollupLevelService, new MailService());
         if (backgroundExecutor == null) {
             reaperRunnable = null;
         } else {
@@ -18,6 +18,7 @@ package org.glowroot.agent.impl;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
@@ -39,6 +40,7 @@ import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -48,6 +50,7 @@ import org.glowroot.common.model.TransactionErrorSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Styles;
+import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
@@ -73,6 +76,7 @@ class AggregateCollector {
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
+    private @MonotonicNonNull LogEventCollector logEvents;
     private @MonotonicNonNull MutableProfile mainThreadProfile;
     private @MonotonicNonNull MutableProfile auxThreadProfile;
 
@@ -149,6 +153,17 @@ class AggregateCollector {
         return serviceCalls;
     }
 
+    LogEventCollector getLogEventCollector() {
+        if (logEvents == null) {
+            int logEventsHardLimitMultiplierWhileBuilding = transactionName == null
+                    ? AdvancedConfig.OVERALL_AGGREGATE_LOG_EVENTS_HARD_LIMIT_MULTIPLIER
+                    : AdvancedConfig.TRANSACTION_AGGREGATE_LOG_EVENTS_HARD_LIMIT_MULTIPLIER;
+            logEvents = new LogEventCollector(ConfigDefaults.MAX_AGGREGATE_LOG_EVENTS,
+                    logEventsHardLimitMultiplierWhileBuilding);
+        }
+        return logEvents;
+    }
+
     Aggregate build(List<String> sharedQueryTexts, Map<String, Integer> sharedQueryTextIndexes,
             ScratchBuffer scratchBuffer) throws IOException {
         Aggregate.Builder builder = Aggregate.newBuilder()
@@ -167,11 +182,15 @@ class AggregateCollector {
             builder.setAuxThreadStats(auxThreadStats.toProto());
         }
         if (queries != null) {
-            builder.addAllQueriesByType(queries.toProto(sharedQueryTexts, sharedQueryTextIndexes));
+            builder.addAllQueriesByType(queries.toProto(sharedQueryTexts, sharedQueryTextIndexes,
+                    scratchBuffer));
         }
         if (serviceCalls != null) {
             builder.addAllServiceCallsByType(serviceCalls.toProto());
         }
+        if (logEvents != null) {
+            builder.addAllLogEvent(logEvents.toProto());
+        }
         if (mainThreadProfile != null) {
             builder.setMainThreadProfile(mainThreadProfile.toProto());
         }
@@ -240,18 +259,25 @@ class AggregateCollector {
         return queries.getFullQueryText(fullQueryTextSha1);
     }
 
-    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) throws IOException {
+    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector)
+            throws DataFormatException {
         if (queries != null) {
             queries.mergeQueriesInto(collector);
         }
     }
 
-    void mergeServiceCallsInto(ServiceCallCollector collector) throws IOException {
+    void mergeServiceCallsInto(ServiceCallCollector collector) throws DataFormatException {
         if (serviceCalls != null) {
             collector.mergeServiceCalls(serviceCalls.toProto());
         }
     }
 
+    void mergeLogEventsInto(LogEventCollector collector) {
+        if (logEvents != null) {
+            collector.mergeLogEvents(logEvents.toProto());
+        }
+    }
+
     void mergeMainThreadProfilesInto(ProfileCollector collector) {
         if (mainThreadProfile != null) {
             collector.mergeProfile(mainThreadProfile.toProto());
@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -35,6 +36,7 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -190,7 +192,7 @@ public class AggregateIntervalCollector {
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
-            @Nullable String transactionName) throws IOException {
+            @Nullable String transactionName) throws DataFormatException {
         synchronized (lock) {
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
@@ -202,7 +204,7 @@ public class AggregateIntervalCollector {
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
-            @Nullable String transactionName) throws IOException {
+            @Nullable String transactionName) throws DataFormatException {
         synchronized (lock) {
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
@@ -213,6 +215,18 @@ public class AggregateIntervalCollector {
         }
     }
 
+    public void mergeLogEventsInto(LogEventCollector collector, String transactionType,
+            @Nullable String transactionName) {
+        synchronized (lock) {
+            AggregateCollector aggregateCollector =
+                    getAggregateCollector(transactionType, transactionName);
+            if (aggregateCollector == null) {
+                return;
+            }
+            aggregateCollector.mergeLogEventsInto(collector);
+        }
+    }
+
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
@@ -353,6 +367,7 @@ public class AggregateIntervalCollector {
             transaction.mergeAsyncTimersInto(aggregateCollector.getAsyncTimers());
             transaction.mergeQueriesInto(aggregateCollector.getQueryCollector());
             transaction.mergeServiceCallsInto(aggregateCollector.getServiceCallCollector());
+            transaction.mergeLogEventsInto(aggregateCollector.getLogEventCollector());
             Profile mainThreadProfile = transaction.getMainThreadProfile();
             if (mainThreadProfile != null) {
                 aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
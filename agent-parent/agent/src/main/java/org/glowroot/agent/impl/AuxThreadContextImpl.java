@@ -74,6 +74,34 @@ public class AuxThreadContextImpl implements AuxThreadContext {
         return start(true);
     }
 
+    @Override
+    public TraceEntry startAndSuspendCurrent() {
+        Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
+                transactionRegistry.getCurrentThreadContextHolder();
+        ThreadContextImpl currentContext = threadContextHolder.get();
+        if (currentContext == null || currentContext.getTransaction() == transaction) {
+            return start(false);
+        }
+        // starting the auxiliary thread context re-binds the thread context holder, so the current
+        // thread context only needs to be suspended if this succeeds
+        ThreadContextImpl context = transactionService.startAuxThreadContextInternal(transaction,
+                parentTraceEntry, parentThreadContextPriorEntry, servletMessageSupplier,
+                threadContextHolder);
+        if (context == null) {
+            // transaction is already complete or auxiliary thread context limit exceeded
+            return NopTraceEntry.INSTANCE;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("start AUX thread context: {}, thread context: {},"
+                    + " parent thread context: {}, suspended thread context: {}, thread name: {}",
+                    hashCode(), context.hashCode(), parentTraceEntry.getThreadContext().hashCode(),
+                    currentContext.hashCode(), Thread.currentThread().getName(), new Exception());
+        }
+        // the suspended thread context is restored when this thread context ends
+        currentContext.suspend(context);
+        return context.getRootEntry();
+    }
+
     private TraceEntry start(boolean completeAsyncTransaction) {
         Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
                 transactionRegistry.getCurrentThreadContextHolder();
@@ -18,6 +18,8 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.Map;
 
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
@@ -29,6 +31,13 @@ class MutableQuery {
     private boolean hasTotalRows;
     private long totalRows;
 
+    private final LazyHistogram durationNanosHistogram = LazyHistogram.createCompact();
+
+    // totals for the transaction that is currently being merged, see endTransaction()
+    private boolean inTransaction;
+    private double transactionDurationNanos;
+    private long transactionExecutionCount;
+
     double getTotalDurationNanos() {
         return totalDurationNanos;
     }
@@ -45,6 +54,10 @@ class MutableQuery {
         return totalRows;
     }
 
+    LazyHistogram getDurationNanosHistogram() {
+        return durationNanosHistogram;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -60,8 +73,30 @@ class MutableQuery {
         }
     }
 
+    // returns true if this is the first time this query is merged for the current transaction
+    boolean addToTransactionTotals(double totalDurationNanos, long executionCount) {
+        transactionDurationNanos += totalDurationNanos;
+        transactionExecutionCount += executionCount;
+        if (inTransaction) {
+            return false;
+        }
+        inTransaction = true;
+        return true;
+    }
+
+    // the histogram tracks the average execution duration of the query in each transaction
+    void endTransaction() {
+        if (transactionExecutionCount > 0) {
+            durationNanosHistogram
+                    .add((long) (transactionDurationNanos / transactionExecutionCount));
+        }
+        inTransaction = false;
+        transactionDurationNanos = 0;
+        transactionExecutionCount = 0;
+    }
+
     Aggregate.Query toProto(String queryText, List<String> sharedQueryTexts,
-            Map<String, Integer> sharedQueryTextIndexes) {
+            Map<String, Integer> sharedQueryTextIndexes, ScratchBuffer scratchBuffer) {
         Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(queryText);
         if (sharedQueryTextIndex == null) {
             sharedQueryTextIndex = sharedQueryTexts.size();
@@ -71,7 +106,8 @@ class MutableQuery {
         Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
                 .setSharedQueryTextIndex(sharedQueryTextIndex)
                 .setTotalDurationNanos(totalDurationNanos)
-                .setExecutionCount(executionCount);
+                .setExecutionCount(executionCount)
+                .setDurationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer));
         if (hasTotalRows) {
             builder.setTotalRows(OptionalInt64.newBuilder().setValue(totalRows));
         }
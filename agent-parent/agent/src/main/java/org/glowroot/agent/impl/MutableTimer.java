@@ -53,6 +53,19 @@ public class MutableTimer {
         return extended;
     }
 
+    public static MutableTimer getOrCreate(List<MutableTimer> mutableTimers, String name,
+            boolean extended) {
+        for (MutableTimer mutableTimer : mutableTimers) {
+            if (name.equals(mutableTimer.name) && extended == mutableTimer.extended) {
+                return mutableTimer;
+            }
+        }
+        MutableTimer mutableTimer =
+                new MutableTimer(name, extended, 0, 0, new ArrayList<MutableTimer>());
+        mutableTimers.add(mutableTimer);
+        return mutableTimer;
+    }
+
     public void merge(CommonTimerImpl timer) {
         count += timer.getCount();
         totalDurationNanos += timer.getTotalNanos();
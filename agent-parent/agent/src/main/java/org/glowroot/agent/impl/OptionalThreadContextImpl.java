@@ -140,6 +140,16 @@ public class OptionalThreadContextImpl implements ThreadContextPlus {
         return threadContext.startAsyncServiceCallEntry(type, text, messageSupplier, timerName);
     }
 
+    @Override
+    public TraceEntry startAggregatedLogEntry(String level, String loggerName, String message,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        if (threadContext == null) {
+            return NopTraceEntry.INSTANCE;
+        }
+        return threadContext.startAggregatedLogEntry(level, loggerName, message, messageSupplier,
+                timerName);
+    }
+
     @Override
     public Timer startTimer(TimerName timerName) {
         if (threadContext == null) {
@@ -20,6 +20,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
@@ -32,6 +33,7 @@ import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.immutables.value.Value;
 
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.util.Styles;
 import org.glowroot.storage.config.StorageConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -57,6 +59,9 @@ public class QueryCollector {
 
     private final Map<String, MinQuery> minQueryPerType = Maps.newHashMap();
 
+    // queries that have been merged from the transaction that is currently being merged
+    private final List<MutableQuery> transactionQueries = Lists.newArrayList();
+
     // this is only used by UI
     private long lastCaptureTime;
 
@@ -74,7 +79,7 @@ public class QueryCollector {
     }
 
     List<Aggregate.QueriesByType> toProto(List<String> sharedQueryTexts,
-            Map<String, Integer> sharedQueryTextIndexes) {
+            Map<String, Integer> sharedQueryTextIndexes, ScratchBuffer scratchBuffer) {
         if (queries.isEmpty()) {
             return ImmutableList.of();
         }
@@ -84,7 +89,7 @@ public class QueryCollector {
                     Lists.newArrayListWithCapacity(outerEntry.getValue().values().size());
             for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
                 queries.add(entry.getValue().toProto(entry.getKey(), sharedQueryTexts,
-                        sharedQueryTextIndexes));
+                        sharedQueryTextIndexes, scratchBuffer));
             }
             if (queries.size() > limit) {
                 order(queries);
@@ -109,7 +114,18 @@ public class QueryCollector {
                 hasTotalRows, queriesForType);
     }
 
-    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
+    // this must be called after merging all thread contexts of a transaction, so that the
+    // histograms record a single value per transaction (instead of one per thread context)
+    public void endTransaction() {
+        for (MutableQuery query : transactionQueries) {
+            query.endTransaction();
+        }
+        transactionQueries.clear();
+    }
+
+    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector)
+            throws DataFormatException {
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
         for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
             for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
                 String fullQueryText = entry.getKey();
@@ -127,7 +143,8 @@ public class QueryCollector {
                 MutableQuery query = entry.getValue();
                 collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
                         query.getTotalDurationNanos(), query.getExecutionCount(),
-                        query.hasTotalRows(), query.getTotalRows());
+                        query.hasTotalRows(), query.getTotalRows(),
+                        query.getDurationNanosHistogram().toProto(scratchBuffer));
             }
         }
     }
@@ -168,6 +185,9 @@ public class QueryCollector {
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
+        if (aggregateQuery.addToTransactionTotals(totalDurationNanos, executionCount)) {
+            transactionQueries.add(aggregateQuery);
+        }
         if (truncateAndRecalculateMinQuery) {
             // TODO report checker framework issue that occurs without this suppression
             @SuppressWarnings("assignment.type.incompatible")
@@ -26,6 +26,7 @@ import org.glowroot.agent.api.internal.GlowrootService;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 import org.glowroot.agent.plugin.api.internal.ServiceRegistry;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
 
 public class ServiceRegistryImpl implements ServiceRegistry {
 
@@ -33,13 +34,16 @@ public class ServiceRegistryImpl implements ServiceRegistry {
 
     private final GlowrootService glowrootService;
     private final TimerNameCache timerNameCache;
+    private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
 
     private final LoadingCache<String, ConfigService> configServices;
 
     private ServiceRegistryImpl(GlowrootService glowrootService, TimerNameCache timerNameCache,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer,
             final ConfigServiceFactory configServiceFactory) {
         this.glowrootService = glowrootService;
         this.timerNameCache = timerNameCache;
+        this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
         configServices = CacheBuilder.newBuilder()
                 .build(new CacheLoader<String, ConfigService>() {
                     @Override
@@ -59,6 +63,16 @@ public class ServiceRegistryImpl implements ServiceRegistry {
         return configServices.getUnchecked(pluginId);
     }
 
+    @Override
+    public void registerMBean(Object mbean, String name) {
+        lazyPlatformMBeanServer.lazyRegisterMBean(mbean, name);
+    }
+
+    @Override
+    public void unregisterMBean(Object mbean, String name) {
+        lazyPlatformMBeanServer.lazyUnregisterMBean(mbean, name);
+    }
+
     // called via reflection from org.glowroot.agent.plugin.api.Agent
     // also called via reflection from generated pointcut config advice
     public static @Nullable ServiceRegistry getInstance() {
@@ -72,8 +86,10 @@ public class ServiceRegistryImpl implements ServiceRegistry {
     }
 
     public static void init(GlowrootService glowrootService, TimerNameCache timerNameCache,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer,
             ConfigServiceFactory configServiceFactory) throws Exception {
-        INSTANCE = new ServiceRegistryImpl(glowrootService, timerNameCache, configServiceFactory);
+        INSTANCE = new ServiceRegistryImpl(glowrootService, timerNameCache,
+                lazyPlatformMBeanServer, configServiceFactory);
     }
 
     public interface ConfigServiceFactory {
@@ -87,21 +87,41 @@ public class UserProfileScheduler {
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
+        ThreadInfo[] threadInfos = getThreadInfos(threadContexts,
+                configService.getAdvancedConfig().maxStackTraceDepth());
+        captureStackTraces(threadContexts, threadInfos, configService);
+    }
+
+    // threadContexts must not be empty
+    //
+    // this is the part of stack trace capture that pauses the JVM at safepoint
+    public static @Nullable ThreadInfo[] getThreadInfos(List<ThreadContextImpl> threadContexts,
+            int maxStackTraceDepth) {
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        return ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, maxStackTraceDepth);
+    }
+
+    // returns the number of stack frames captured
+    //
+    // ThreadInfo.getStackTrace() returns a copy of the stack trace, so it is only called once per
+    // thread info
+    public static long captureStackTraces(List<ThreadContextImpl> threadContexts,
+            @Nullable ThreadInfo[] threadInfos, ConfigService configService) {
         int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        long stackFrameCount = 0;
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo, limit);
+                StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+                threadContext.captureStackTrace(stackTrace, threadInfo.getThreadState(), limit);
+                stackFrameCount += stackTrace.length;
             }
         }
+        return stackFrameCount;
     }
 
     @VisibleForTesting
@@ -64,7 +64,6 @@ import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.agent.weaving.WeavingTimerService;
 import org.glowroot.common.live.LiveAggregateRepository;
 import org.glowroot.common.live.LiveJvmService;
-import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -104,7 +103,7 @@ public class AgentModule {
 
     private final boolean jvmRetransformClassesSupported;
 
-    private final LiveTraceRepository liveTraceRepository;
+    private final LiveTraceRepositoryImpl liveTraceRepository;
     private final LiveAggregateRepository liveAggregateRepository;
     private final LiveWeavingService liveWeavingService;
     private final LiveJvmService liveJvmService;
@@ -189,9 +188,10 @@ public class AgentModule {
                         pluginId);
             }
         };
-        ServiceRegistryImpl.init(glowrootService, timerNameCache, configServiceFactory);
-
         lazyPlatformMBeanServer = new LazyPlatformMBeanServer();
+        ServiceRegistryImpl.init(glowrootService, timerNameCache, lazyPlatformMBeanServer,
+                configServiceFactory);
+
         File[] roots = File.listRoots();
         if (roots != null) {
             for (File root : roots) {
@@ -213,6 +213,8 @@ public class AgentModule {
         gaugeCollector.scheduleWithFixedDelay(initialDelay, gaugeCollectionIntervalMillis,
                 MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -247,7 +249,7 @@ public class AgentModule {
         return lazyPlatformMBeanServer;
     }
 
-    public LiveTraceRepository getLiveTraceRepository() {
+    public LiveTraceRepositoryImpl getLiveTraceRepository() {
         return liveTraceRepository;
     }
 
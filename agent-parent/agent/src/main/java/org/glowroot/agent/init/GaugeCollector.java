@@ -24,6 +24,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -34,6 +37,8 @@ import javax.management.openmbean.CompositeData;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -62,6 +67,11 @@ class GaugeCollector extends ScheduledRunnable {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    // mbeans under these domains are only registered by plugins once the instrumented library is
+    // in use (e.g. jdbc connection pools), so it is normal for these patterns to not match anything
+    private static final ImmutableSet<String> PLUGIN_MBEAN_DOMAINS =
+            ImmutableSet.of("org.glowroot.jdbc");
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -169,9 +179,11 @@ class GaugeCollector extends ScheduledRunnable {
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.resolvePattern(objectName);
         if (matchingObjectNames.isEmpty()) {
-            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            if (!PLUGIN_MBEAN_DOMAINS.contains(objectName.getDomain())) {
+                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            }
             return ImmutableList.of();
         }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
@@ -187,6 +199,18 @@ class GaugeCollector extends ScheduledRunnable {
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
         long captureTime = clock.currentTimeMillis();
+        Map<String, /*@Nullable*/ Object> bulkAttributeValues;
+        try {
+            bulkAttributeValues = getBulkAttributeValues(objectName, mbeanAttributes);
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return ImmutableList.of();
+        } catch (Exception e) {
+            // attributes will be read individually below, which also logs the errors per attribute
+            logger.debug(e.getMessage(), e);
+            bulkAttributeValues = ImmutableMap.of();
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
@@ -194,7 +218,7 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
+                    attributeValue = getAttribute(objectName, path[0], bulkAttributeValues);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -205,7 +229,7 @@ class GaugeCollector extends ScheduledRunnable {
                     attributeValue = compositeData.get(path[1]);
                 } else {
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                            getAttribute(objectName, mbeanAttributeName, bulkAttributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -273,6 +297,41 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    // reads all of the mbean's gauge attributes in a single call, instead of one call per attribute
+    private Map<String, /*@Nullable*/ Object> getBulkAttributeValues(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws Exception {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            if (index == -1) {
+                attributeNames.add(mbeanAttributeName);
+            } else {
+                attributeNames.add(mbeanAttributeName.substring(0, index));
+            }
+        }
+        if (attributeNames.isEmpty()) {
+            return ImmutableMap.of();
+        }
+        AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                attributeNames.toArray(new String[attributeNames.size()]));
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        for (Attribute attribute : attributeList.asList()) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    // attributes that could not be read in bulk are read individually in order to get the
+    // specific exception
+    private @Nullable Object getAttribute(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> bulkAttributeValues) throws Exception {
+        if (bulkAttributeValues.containsKey(attributeName)) {
+            return bulkAttributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
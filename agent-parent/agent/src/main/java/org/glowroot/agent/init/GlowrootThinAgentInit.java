@@ -96,7 +96,7 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
             public @Nullable Void call() throws Exception {
                 Collector collector;
                 if (customCollector == null) {
-                    serverCollector = new ServerCollectorImpl(properties, collectorHost,
+                    serverCollector = new ServerCollectorImpl(properties, collectorHost, baseDir,
                             agentModule.getLiveJvmService(), agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater);
                     collector = serverCollector;
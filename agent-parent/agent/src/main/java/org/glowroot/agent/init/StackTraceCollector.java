@@ -15,10 +15,12 @@
  */
 package org.glowroot.agent.init;
 
+import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -33,11 +35,17 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-class StackTraceCollector {
+class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // the JVM is paused at safepoint while capturing stack traces, and the pause gets longer the
+    // more threads that are captured at once, so when there are many active threads, the stack
+    // traces are captured in batches that are spread across the profiling interval
+    private static final int BATCH_SIZE = 100;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -45,6 +53,14 @@ class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    // these are only written by the processing thread
+    private volatile long lastIntervalCaptureTimeNanos;
+    private volatile long lastIntervalMaxBatchCaptureTimeNanos;
+    private volatile long lastIntervalStackFrameCount;
+    private volatile long totalCaptureTimeNanos;
+    private volatile long totalStackTraceCount;
+    private volatile long totalStackFrameCount;
+
     StackTraceCollector(TransactionRegistry transactionRegistry, final ConfigService configService,
             Random random) {
         this.transactionRegistry = transactionRegistry;
@@ -73,12 +89,119 @@ class StackTraceCollector {
         });
     }
 
+    @Override
+    public double getLastIntervalCaptureTimeMillis() {
+        return lastIntervalCaptureTimeNanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getLastIntervalMaxBatchCaptureTimeMillis() {
+        return lastIntervalMaxBatchCaptureTimeNanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getLastIntervalStackFrameCount() {
+        return lastIntervalStackFrameCount;
+    }
+
+    @Override
+    public double getTotalCaptureTimeMillis() {
+        return totalCaptureTimeNanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getTotalStackTraceCount() {
+        return totalStackTraceCount;
+    }
+
+    @Override
+    public long getTotalStackFrameCount() {
+        return totalStackFrameCount;
+    }
+
     @OnlyUsedByTests
     void close() {
         runnable.closing.set(true);
         processingThread.interrupt();
     }
 
+    // returns the remaining time in the interval after capturing all batches
+    @VisibleForTesting
+    long captureStackTraces(long remainingInInterval) throws InterruptedException {
+        List<Transaction> transactions =
+                ImmutableList.copyOf(transactionRegistry.getTransactions());
+        if (transactions.isEmpty()) {
+            return remainingInInterval;
+        }
+        List<ThreadContextImpl> activeThreadContexts =
+                Lists.newArrayListWithCapacity(2 * transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+            if (!mainThreadContext.isCompleted()) {
+                activeThreadContexts.add(mainThreadContext);
+            }
+            activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+        }
+        if (activeThreadContexts.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return remainingInInterval;
+        }
+        List<List<ThreadContextImpl>> batches =
+                Lists.partition(activeThreadContexts, BATCH_SIZE);
+        long delayBetweenBatches = remainingInInterval / batches.size();
+        int maxStackTraceDepth = configService.getAdvancedConfig().maxStackTraceDepth();
+        long captureTimeNanos = 0;
+        long maxBatchCaptureTimeNanos = 0;
+        long stackTraceCount = 0;
+        long stackFrameCount = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            List<ThreadContextImpl> batch = batches.get(i);
+            if (i > 0) {
+                Thread.sleep(delayBetweenBatches);
+                remainingInInterval -= delayBetweenBatches;
+                // some of the threads may have completed while waiting
+                batch = getNotCompleted(batch);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+            long startTick = System.nanoTime();
+            ThreadInfo[] threadInfos =
+                    UserProfileScheduler.getThreadInfos(batch, maxStackTraceDepth);
+            long batchCaptureTimeNanos = System.nanoTime() - startTick;
+            captureTimeNanos += batchCaptureTimeNanos;
+            maxBatchCaptureTimeNanos = Math.max(maxBatchCaptureTimeNanos,
+                    batchCaptureTimeNanos);
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (threadInfo != null) {
+                    stackTraceCount++;
+                }
+            }
+            stackFrameCount +=
+                    UserProfileScheduler.captureStackTraces(batch, threadInfos, configService);
+        }
+        lastIntervalCaptureTimeNanos = captureTimeNanos;
+        lastIntervalMaxBatchCaptureTimeNanos = maxBatchCaptureTimeNanos;
+        lastIntervalStackFrameCount = stackFrameCount;
+        totalCaptureTimeNanos += captureTimeNanos;
+        totalStackTraceCount += stackTraceCount;
+        totalStackFrameCount += stackFrameCount;
+        return remainingInInterval;
+    }
+
+    private static List<ThreadContextImpl> getNotCompleted(List<ThreadContextImpl> threadContexts) {
+        List<ThreadContextImpl> notCompleted =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (ThreadContextImpl threadContext : threadContexts) {
+            if (!threadContext.isCompleted()) {
+                notCompleted.add(threadContext);
+            }
+        }
+        return notCompleted;
+    }
+
     private class InternalRunnable implements Runnable {
 
         private final AtomicBoolean closing = new AtomicBoolean();
@@ -118,30 +241,19 @@ class StackTraceCollector {
                 }
                 remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
                 try {
-                    runInternal();
+                    remainingInInterval = captureStackTraces(remainingInInterval);
+                } catch (InterruptedException e) {
+                    logger.debug(e.getMessage(), e);
+                    // only terminate if closing
+                    if (closing.get()) {
+                        return;
+                    }
+                    // re-start loop
+                    remainingInInterval = 0;
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
             }
         }
-
-        private void runInternal() {
-            List<Transaction> transactions =
-                    ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
-                return;
-            }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
-                ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (!mainThreadContext.isCompleted()) {
-                    activeThreadContexts.add(mainThreadContext);
-                }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
-            }
-            UserProfileScheduler.captureStackTraces(activeThreadContexts, configService);
-        }
     }
 }
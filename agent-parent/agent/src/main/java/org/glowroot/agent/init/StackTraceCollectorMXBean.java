@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+// these are exposed so that the overhead of stack trace sampling can be monitored using gauges
+public interface StackTraceCollectorMXBean {
+
+    // total time spent capturing stack traces in the last profiling interval (the JVM is paused at
+    // safepoint during this time)
+    double getLastIntervalCaptureTimeMillis();
+    // longest single capture (safepoint pause) in the last profiling interval
+    double getLastIntervalMaxBatchCaptureTimeMillis();
+    long getLastIntervalStackFrameCount();
+
+    // these are cumulative, so they can be used with the [counter] gauge suffix
+    double getTotalCaptureTimeMillis();
+    long getTotalStackTraceCount();
+    long getTotalStackFrameCount();
+}
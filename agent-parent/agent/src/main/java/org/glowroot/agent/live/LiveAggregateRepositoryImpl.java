@@ -15,8 +15,8 @@
  */
 package org.glowroot.agent.live;
 
-import java.io.IOException;
 import java.util.List;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
@@ -25,6 +25,7 @@ import com.google.common.collect.Lists;
 import org.glowroot.agent.impl.AggregateIntervalCollector;
 import org.glowroot.agent.impl.Aggregator;
 import org.glowroot.common.live.LiveAggregateRepository;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -172,7 +173,7 @@ public class LiveAggregateRepositoryImpl implements LiveAggregateRepository {
 
     @Override
     public long mergeInQueries(String agentId, TransactionQuery query, QueryCollector collector)
-            throws IOException {
+            throws DataFormatException {
         List<AggregateIntervalCollector> intervalCollectors =
                 aggregator.getOrderedIntervalCollectorsInRange(query.from(), query.to());
         long revisedTo = query.to();
@@ -187,7 +188,7 @@ public class LiveAggregateRepositoryImpl implements LiveAggregateRepository {
     @Override
     public long mergeInServiceCalls(String agentId, TransactionQuery query,
             ServiceCallCollector collector)
-            throws IOException {
+            throws DataFormatException {
         List<AggregateIntervalCollector> intervalCollectors =
                 aggregator.getOrderedIntervalCollectorsInRange(query.from(), query.to());
         long revisedTo = query.to();
@@ -199,6 +200,20 @@ public class LiveAggregateRepositoryImpl implements LiveAggregateRepository {
         return revisedTo;
     }
 
+    @Override
+    public long mergeInLogEvents(String agentId, TransactionQuery query,
+            LogEventCollector collector) {
+        List<AggregateIntervalCollector> intervalCollectors =
+                aggregator.getOrderedIntervalCollectorsInRange(query.from(), query.to());
+        long revisedTo = query.to();
+        for (AggregateIntervalCollector intervalCollector : intervalCollectors) {
+            intervalCollector.mergeLogEventsInto(collector, query.transactionType(),
+                    query.transactionName());
+            revisedTo = Math.min(revisedTo, intervalCollector.getCaptureTime() - 1);
+        }
+        return revisedTo;
+    }
+
     @Override
     public long mergeInMainThreadProfiles(String agentId, TransactionQuery query,
             ProfileCollector collector) {
@@ -24,9 +24,11 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
 import javax.management.Descriptor;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
@@ -42,6 +44,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import org.slf4j.Logger;
@@ -131,6 +134,18 @@ public class LiveJvmServiceImpl implements LiveJvmService {
                 .build();
     }
 
+    @Override
+    public HeapDumpFileInfo heapDumpAndTransfer(String agentId, String directory)
+            throws Exception {
+        // heap dump is already local to the fat agent ui, so there is nothing to transfer
+        return heapDump(agentId, directory);
+    }
+
+    @Override
+    public @Nullable File getTransferredHeapDumpFile(String agentId, String fileName) {
+        return null;
+    }
+
     @Override
     public void gc(String agentId) {
         // using MemoryMXBean.gc() instead of System.gc() in hope that it will someday bypass
@@ -237,19 +252,41 @@ public class LiveJvmServiceImpl implements LiveJvmService {
     private List<MBeanDump.MBeanAttribute> getMBeanAttributes(ObjectName objectName)
             throws Exception {
         MBeanInfo mBeanInfo = lazyPlatformMBeanServer.getMBeanInfo(objectName);
+        MBeanAttributeInfo[] attributeInfos = mBeanInfo.getAttributes();
+        String[] attributeNames = new String[attributeInfos.length];
+        for (int i = 0; i < attributeInfos.length; i++) {
+            attributeNames[i] = attributeInfos[i].getName();
+        }
+        // read all attributes in a single call, and then only read individually (in order to get
+        // the exception) the attributes that could not be read in bulk
+        Map<String, /*@Nullable*/ Object> bulkAttributeValues = Maps.newHashMap();
+        try {
+            for (Attribute attribute : lazyPlatformMBeanServer
+                    .getAttributes(objectName, attributeNames).asList()) {
+                bulkAttributeValues.put(attribute.getName(), attribute.getValue());
+            }
+        } catch (Exception e) {
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+        }
         List<MBeanDump.MBeanAttribute> attributes = Lists.newArrayList();
-        for (MBeanAttributeInfo attribute : mBeanInfo.getAttributes()) {
+        for (String attributeName : attributeNames) {
             Object value;
-            try {
-                value = lazyPlatformMBeanServer.getAttribute(objectName, attribute.getName());
-            } catch (Exception e) {
-                // log exception at debug level
-                logger.debug(e.getMessage(), e);
-                Throwable rootCause = getRootCause(e);
-                value = "<" + rootCause.getClass().getName() + ": " + rootCause.getMessage() + ">";
+            if (bulkAttributeValues.containsKey(attributeName)) {
+                value = bulkAttributeValues.get(attributeName);
+            } else {
+                try {
+                    value = lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+                } catch (Exception e) {
+                    // log exception at debug level
+                    logger.debug(e.getMessage(), e);
+                    Throwable rootCause = getRootCause(e);
+                    value = "<" + rootCause.getClass().getName() + ": " + rootCause.getMessage()
+                            + ">";
+                }
             }
             attributes.add(MBeanDump.MBeanAttribute.newBuilder()
-                    .setName(attribute.getName())
+                    .setName(attributeName)
                     .setValue(getMBeanAttributeValue(value))
                     .build());
         }
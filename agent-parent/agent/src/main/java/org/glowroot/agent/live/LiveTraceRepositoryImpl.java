@@ -34,6 +34,7 @@ import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.TraceCreator;
 import org.glowroot.agent.model.Transaction;
+import org.glowroot.agent.model.Transaction.EntryVisitor;
 import org.glowroot.common.live.ImmutableTracePoint;
 import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.util.Clock;
@@ -83,6 +84,19 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return ImmutableList.of();
     }
 
+    // same as getEntries(), but without building the full list of entries, returns false if the
+    // trace was not found
+    public boolean visitEntries(String traceId, EntryVisitor entryVisitor) {
+        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
+                transactionCollector.getPendingTransactions())) {
+            if (transaction.getTraceId().equals(traceId)) {
+                transaction.visitEntries(ticker.read(), entryVisitor);
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public @Nullable Profile getMainThreadProfile(String agentId, String traceId)
             throws IOException {
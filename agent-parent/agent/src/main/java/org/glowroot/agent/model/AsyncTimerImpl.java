@@ -33,7 +33,7 @@ class AsyncTimerImpl implements CommonTimerImpl {
 
     private volatile long totalNanos = -1;
 
-    // this is for maintaining list of async timers
+    // this is for maintaining list of async timers (see AsyncTimers)
     private volatile @Nullable AsyncTimerImpl nextAsyncTimer;
 
     AsyncTimerImpl(TimerNameImpl timerName, long startTick) {
@@ -80,6 +80,15 @@ class AsyncTimerImpl implements CommonTimerImpl {
         // async timers have no child timers
     }
 
+    @Nullable
+    AsyncTimerImpl getNextAsyncTimer() {
+        return nextAsyncTimer;
+    }
+
+    void setNextAsyncTimer(@Nullable AsyncTimerImpl nextAsyncTimer) {
+        this.nextAsyncTimer = nextAsyncTimer;
+    }
+
     boolean active() {
         return totalNanos == -1;
     }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.model.TimerImpl.TimerImplSnapshot;
+import org.glowroot.agent.model.Transaction.RootTimerCollector;
+
+// the async root timers of a single transaction, which are the root timers which do not have
+// corresponding thread context (those corresponding to async trace entries)
+//
+// adding is lock-free and allocation-free, since the async timers are kept in an intrusive linked
+// list (see AsyncTimerImpl.getNextAsyncTimer()), and a single transaction can have a large number
+// of concurrent async service calls (e.g. reactive http clients)
+//
+// once the number of individually retained async timers exceeds the threshold, completed async
+// timers are aggregated by timer name (this is just to conserve memory)
+class AsyncTimers {
+
+    private static final AtomicReferenceFieldUpdater<AsyncTimers, AsyncTimerImpl> headUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(AsyncTimers.class, AsyncTimerImpl.class,
+                    "head");
+
+    private final int aggregateThreshold;
+
+    private volatile @Nullable AsyncTimerImpl head;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // after an aggregation pass, the next pass is not attempted until another threshold's worth of
+    // async timers have been added, otherwise when lots of async timers are active at the same
+    // time, every add would walk the entire list
+    //
+    // ideally would use AtomicInteger here, but using plain volatile int as optimization since
+    // it's ok if race condition
+    private volatile int nextAggregateSize;
+
+    // readers hold this lock so that they never see an async timer both in the list and in the
+    // aggregates (or in neither)
+    private final Lock lock = new ReentrantLock();
+
+    @GuardedBy("lock")
+    private @Nullable Map<String, AggregateAsyncTimer> aggregateAsyncTimers;
+
+    AsyncTimers(int aggregateThreshold) {
+        this.aggregateThreshold = aggregateThreshold;
+        nextAggregateSize = aggregateThreshold;
+    }
+
+    void add(AsyncTimerImpl asyncTimer) {
+        push(asyncTimer, asyncTimer);
+        if (size.incrementAndGet() > nextAggregateSize) {
+            aggregateCompleted();
+        }
+    }
+
+    void mergeInto(RootTimerCollector rootTimers) {
+        lock.lock();
+        try {
+            AsyncTimerImpl asyncTimer = head;
+            while (asyncTimer != null) {
+                rootTimers.mergeRootTimer(asyncTimer);
+                asyncTimer = asyncTimer.getNextAsyncTimer();
+            }
+            if (aggregateAsyncTimers == null) {
+                return;
+            }
+            for (Entry<String, AggregateAsyncTimer> entry : aggregateAsyncTimers.entrySet()) {
+                AggregateAsyncTimer value = entry.getValue();
+                rootTimers.mergeRootTimer(
+                        new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getRetainedCount() {
+        return size.get();
+    }
+
+    private void push(AsyncTimerImpl first, AsyncTimerImpl last) {
+        AsyncTimerImpl currHead;
+        do {
+            currHead = head;
+            last.setNextAsyncTimer(currHead);
+        } while (!headUpdater.compareAndSet(this, currHead, first));
+    }
+
+    private void aggregateCompleted() {
+        if (!lock.tryLock()) {
+            // another thread is already aggregating (or reading), no need to wait on it
+            return;
+        }
+        try {
+            if (size.get() <= nextAggregateSize) {
+                // another thread just finished aggregating
+                return;
+            }
+            if (aggregateAsyncTimers == null) {
+                aggregateAsyncTimers = Maps.newHashMap();
+            }
+            // detach the entire list, concurrent adds will start a new list
+            AsyncTimerImpl asyncTimer = headUpdater.getAndSet(this, null);
+            AsyncTimerImpl activeFirst = null;
+            AsyncTimerImpl activeLast = null;
+            int aggregatedCount = 0;
+            while (asyncTimer != null) {
+                AsyncTimerImpl next = asyncTimer.getNextAsyncTimer();
+                if (asyncTimer.active()) {
+                    asyncTimer.setNextAsyncTimer(null);
+                    if (activeLast == null) {
+                        activeFirst = asyncTimer;
+                    } else {
+                        activeLast.setNextAsyncTimer(asyncTimer);
+                    }
+                    activeLast = asyncTimer;
+                } else {
+                    aggregate(asyncTimer, aggregateAsyncTimers);
+                    aggregatedCount++;
+                }
+                asyncTimer = next;
+            }
+            if (activeFirst != null) {
+                // re-attach the still active async timers
+                push(activeFirst, activeLast);
+            }
+            nextAggregateSize = size.addAndGet(-aggregatedCount) + aggregateThreshold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void aggregate(AsyncTimerImpl asyncTimer,
+            Map<String, AggregateAsyncTimer> aggregateAsyncTimers) {
+        AggregateAsyncTimer aggregateAsyncTimer = aggregateAsyncTimers.get(asyncTimer.getName());
+        if (aggregateAsyncTimer == null) {
+            aggregateAsyncTimer = new AggregateAsyncTimer();
+            aggregateAsyncTimers.put(asyncTimer.getName(), aggregateAsyncTimer);
+        }
+        aggregateAsyncTimer.totalNanos += asyncTimer.getTotalNanos();
+        aggregateAsyncTimer.count += asyncTimer.getCount();
+    }
+
+    private static class AggregateAsyncTimer {
+
+        private long totalNanos;
+        private long count;
+    }
+
+    private static class SimpleTimerImpl implements CommonTimerImpl {
+
+        private final String name;
+        private final long totalNanos;
+        private final long count;
+
+        private SimpleTimerImpl(String name, long totalNanos, long count) {
+            this.name = name;
+            this.totalNanos = totalNanos;
+            this.count = count;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isExtended() {
+            return false;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void mergeChildTimersInto(List<MutableTimer> mutableTimers) {
+            // async timers have no child timers
+        }
+
+        @Override
+        public void mergeChildTimersInto2(List<org.glowroot.agent.impl.MutableTimer> childTimers) {
+            // async timers have no child timers
+        }
+
+        @Override
+        public TimerImplSnapshot getSnapshot() {
+            return ImmutableTimerImplSnapshot.builder()
+                    .totalNanos(totalNanos)
+                    .count(count)
+                    .active(false)
+                    .build();
+        }
+    }
+}
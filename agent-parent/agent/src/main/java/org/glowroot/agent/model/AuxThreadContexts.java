@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.impl.QueryCollector;
+import org.glowroot.agent.model.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.Transaction.ThreadStatsCollector;
+import org.glowroot.common.model.LogEventCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.util.NotAvailableAware;
+
+// the auxiliary thread contexts of a single transaction
+//
+// registration is lock-free since a single transaction can fan out to a large number of auxiliary
+// threads (e.g. fork join tasks)
+//
+// once the number of individually retained auxiliary thread contexts reaches the max, coalescable
+// auxiliary thread contexts (see ThreadContextImpl.isCoalescable()) are merged into a single
+// accumulator of timers, thread stats, queries and service calls and are no longer retained
+// individually (their trace entries would not be displayed anyway since they are empty)
+class AuxThreadContexts {
+
+    // number of rejected registrations before trying to coalesce again, after a coalescing pass
+    // was not able to get below the max
+    private static final int COALESCE_BACKOFF = 100;
+
+    private final int maxRetained;
+    // registrations that arrive while the lock is held by another thread (coalescing or reading)
+    // are accepted without coalescing, but only up to this hard limit
+    private final int hardMaxRetained;
+
+    private final Queue<ThreadContextImpl> threadContexts =
+            new ConcurrentLinkedQueue<ThreadContextImpl>();
+    // ConcurrentLinkedQueue.size() is not constant time
+    private final AtomicInteger size = new AtomicInteger();
+
+    // ideally would use AtomicInteger here, but using plain volatile int as optimization since
+    // it's ok if race condition in backoff
+    private volatile int coalesceBackoffCounter;
+
+    // readers of timers, thread stats, queries and service calls hold this lock so that they never
+    // see a thread context both in threadContexts and in the accumulator (or in neither)
+    private final Lock lock = new ReentrantLock();
+
+    @GuardedBy("lock")
+    private int coalescedCount;
+    @GuardedBy("lock")
+    private final List<MutableTimer> coalescedRootTimers = Lists.newArrayList();
+    @GuardedBy("lock")
+    private long coalescedCpuNanos;
+    @GuardedBy("lock")
+    private long coalescedBlockedMillis;
+    @GuardedBy("lock")
+    private long coalescedWaitedMillis;
+    @GuardedBy("lock")
+    private long coalescedAllocatedBytes;
+    // first key is query type, second key is query text
+    @GuardedBy("lock")
+    private @Nullable Map<String, Map<String, CoalescedQuery>> coalescedQueries;
+    // first key is service call type, second key is service call text
+    @GuardedBy("lock")
+    private @Nullable Map<String, Map<String, CoalescedQuery>> coalescedServiceCalls;
+    private @Nullable LogEventCollector coalescedLogEvents;
+
+    AuxThreadContexts(int maxRetained) {
+        this.maxRetained = maxRetained;
+        hardMaxRetained = maxRetained * 2;
+    }
+
+    // returns false if the max has been reached and coalescing was not able to make room
+    boolean add(ThreadContextImpl threadContext) {
+        if (size.get() >= maxRetained && !coalesce()) {
+            return false;
+        }
+        threadContexts.add(threadContext);
+        size.incrementAndGet();
+        return true;
+    }
+
+    void remove(ThreadContextImpl threadContext) {
+        if (threadContexts.remove(threadContext)) {
+            size.decrementAndGet();
+        }
+    }
+
+    // the returned iterable is weakly consistent, which is ok for trace entries since coalesced
+    // thread contexts do not have any trace entries
+    Iterable<ThreadContextImpl> getThreadContexts() {
+        return threadContexts;
+    }
+
+    void mergeRootTimersInto(RootTimerCollector rootTimers) {
+        lock.lock();
+        try {
+            for (ThreadContextImpl threadContext : threadContexts) {
+                rootTimers.mergeRootTimer(threadContext.getRootTimer());
+            }
+            for (MutableTimer coalescedRootTimer : coalescedRootTimers) {
+                rootTimers.mergeRootTimer(coalescedRootTimer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void mergeThreadStatsInto(ThreadStatsCollector threadStats) {
+        lock.lock();
+        try {
+            for (ThreadContextImpl threadContext : threadContexts) {
+                threadStats.mergeThreadStats(threadContext.getThreadStats());
+            }
+            if (coalescedCount > 0) {
+                threadStats.mergeThreadStats(new ThreadStats(coalescedCpuNanos,
+                        coalescedBlockedMillis, coalescedWaitedMillis, coalescedAllocatedBytes));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void mergeQueriesInto(QueryCollector queries) {
+        lock.lock();
+        try {
+            for (ThreadContextImpl threadContext : threadContexts) {
+                threadContext.mergeQueriesInto(queries);
+            }
+            if (coalescedQueries != null) {
+                for (Entry<String, Map<String, CoalescedQuery>> outerEntry : coalescedQueries
+                        .entrySet()) {
+                    for (Entry<String, CoalescedQuery> entry : outerEntry.getValue().entrySet()) {
+                        CoalescedQuery query = entry.getValue();
+                        queries.mergeQuery(outerEntry.getKey(), entry.getKey(),
+                                query.totalDurationNanos, query.executionCount,
+                                query.hasTotalRows, query.totalRows);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
+        lock.lock();
+        try {
+            for (ThreadContextImpl threadContext : threadContexts) {
+                threadContext.mergeServiceCallsInto(serviceCalls);
+            }
+            if (coalescedServiceCalls != null) {
+                for (Entry<String, Map<String, CoalescedQuery>> outerEntry : coalescedServiceCalls
+                        .entrySet()) {
+                    for (Entry<String, CoalescedQuery> entry : outerEntry.getValue().entrySet()) {
+                        CoalescedQuery serviceCall = entry.getValue();
+                        serviceCalls.mergeServiceCall(outerEntry.getKey(), entry.getKey(),
+                                serviceCall.totalDurationNanos, serviceCall.executionCount);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void mergeLogEventsInto(LogEventCollector logEvents) {
+        lock.lock();
+        try {
+            for (ThreadContextImpl threadContext : threadContexts) {
+                threadContext.mergeLogEventsInto(logEvents);
+            }
+            if (coalescedLogEvents != null) {
+                logEvents.mergeLogEvents(coalescedLogEvents.toProto());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns true if coalescing got below the max (or if another thread holds the lock and the
+    // hard max has not been reached yet)
+    private boolean coalesce() {
+        if (coalesceBackoffCounter > 0) {
+            coalesceBackoffCounter--;
+            return false;
+        }
+        if (!lock.tryLock()) {
+            // another thread is already coalescing (or reading), no need to wait on it, and ok to
+            // temporarily exceed the max while it is making room (otherwise, with high fan out,
+            // lots of auxiliary thread contexts would be rejected during each coalescing pass)
+            //
+            // the hard max bounds this when the lock is held for a long time (e.g. by a reader),
+            // and since size is still above the max, the next registration after the lock is
+            // released coalesces again
+            return size.get() < hardMaxRetained;
+        }
+        try {
+            Iterator<ThreadContextImpl> i = threadContexts.iterator();
+            while (i.hasNext()) {
+                ThreadContextImpl threadContext = i.next();
+                if (threadContext.isCoalescable()) {
+                    accumulate(threadContext);
+                    i.remove();
+                    size.decrementAndGet();
+                }
+            }
+            if (size.get() >= maxRetained) {
+                coalesceBackoffCounter = COALESCE_BACKOFF;
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void accumulate(ThreadContextImpl threadContext) {
+        TimerImpl rootTimer = threadContext.getRootTimer();
+        MutableTimer coalescedRootTimer = null;
+        for (MutableTimer loopCoalescedRootTimer : coalescedRootTimers) {
+            if (rootTimer.getName().equals(loopCoalescedRootTimer.getName())) {
+                coalescedRootTimer = loopCoalescedRootTimer;
+                break;
+            }
+        }
+        if (coalescedRootTimer == null) {
+            coalescedRootTimer =
+                    MutableTimer.createRootTimer(rootTimer.getName(), rootTimer.isExtended());
+            coalescedRootTimers.add(coalescedRootTimer);
+        }
+        coalescedRootTimer.merge(rootTimer);
+        ThreadStats threadStats = threadContext.getThreadStats();
+        coalescedCpuNanos =
+                NotAvailableAware.add(coalescedCpuNanos, threadStats.getTotalCpuNanos());
+        coalescedBlockedMillis =
+                NotAvailableAware.add(coalescedBlockedMillis, threadStats.getTotalBlockedMillis());
+        coalescedWaitedMillis =
+                NotAvailableAware.add(coalescedWaitedMillis, threadStats.getTotalWaitedMillis());
+        coalescedAllocatedBytes = NotAvailableAware.add(coalescedAllocatedBytes,
+                threadStats.getTotalAllocatedBytes());
+        QueryData queryData = threadContext.getHeadQueryData();
+        if (queryData != null) {
+            if (coalescedQueries == null) {
+                coalescedQueries = Maps.newHashMap();
+            }
+            accumulate(queryData, coalescedQueries);
+        }
+        QueryData serviceCallData = threadContext.getHeadServiceCallData();
+        if (serviceCallData != null) {
+            if (coalescedServiceCalls == null) {
+                coalescedServiceCalls = Maps.newHashMap();
+            }
+            accumulate(serviceCallData, coalescedServiceCalls);
+        }
+        if (threadContext.getHeadLogEventData() != null) {
+            if (coalescedLogEvents == null) {
+                // the per transaction limit is already applied when the log events are captured
+                coalescedLogEvents = new LogEventCollector(Integer.MAX_VALUE, 0);
+            }
+            threadContext.mergeLogEventsInto(coalescedLogEvents);
+        }
+        coalescedCount++;
+    }
+
+    private static void accumulate(QueryData headQueryData,
+            Map<String, Map<String, CoalescedQuery>> coalescedQueries) {
+        QueryData curr = headQueryData;
+        while (curr != null) {
+            Map<String, CoalescedQuery> queriesForType =
+                    coalescedQueries.get(curr.getQueryType());
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                coalescedQueries.put(curr.getQueryType(), queriesForType);
+            }
+            CoalescedQuery query = queriesForType.get(curr.getQueryText());
+            if (query == null) {
+                query = new CoalescedQuery();
+                queriesForType.put(curr.getQueryText(), query);
+            }
+            query.totalDurationNanos += curr.getTotalDurationNanos();
+            query.executionCount += curr.getExecutionCount();
+            if (curr.hasTotalRows()) {
+                query.hasTotalRows = true;
+                query.totalRows += curr.getTotalRows();
+            }
+            curr = curr.getNextQueryData();
+        }
+    }
+
+    private static class CoalescedQuery {
+
+        private long totalDurationNanos;
+        private long executionCount;
+        private boolean hasTotalRows;
+        private long totalRows;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import javax.annotation.Nullable;
+
+// instances are updated by a single thread, and count is only read after transaction completion
+// (same as QueryData)
+class LogEventData {
+
+    private final String level;
+    private final String loggerName;
+    private final String message;
+    // linked list of all log event data in the thread context
+    private final @Nullable LogEventData nextLogEventData;
+    // linked list of log event data with the same message (but different level or logger name)
+    private final @Nullable LogEventData nextWithSameMessage;
+
+    private long count;
+
+    LogEventData(String level, String loggerName, String message,
+            @Nullable LogEventData nextLogEventData, @Nullable LogEventData nextWithSameMessage) {
+        this.level = level;
+        this.loggerName = loggerName;
+        this.message = message;
+        this.nextLogEventData = nextLogEventData;
+        this.nextWithSameMessage = nextWithSameMessage;
+    }
+
+    String getLevel() {
+        return level;
+    }
+
+    String getLoggerName() {
+        return loggerName;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    @Nullable
+    LogEventData getNextLogEventData() {
+        return nextLogEventData;
+    }
+
+    @Nullable
+    LogEventData getNextWithSameMessage() {
+        return nextWithSameMessage;
+    }
+
+    boolean matches(String level, String loggerName) {
+        return this.level.equals(level) && this.loggerName.equals(loggerName);
+    }
+
+    void increment() {
+        count++;
+    }
+
+    // only called after transaction completion
+    long getCount() {
+        return count;
+    }
+}
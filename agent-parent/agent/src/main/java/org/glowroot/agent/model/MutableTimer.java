@@ -23,7 +23,9 @@ import com.google.common.collect.Lists;
 import org.glowroot.agent.model.TimerImpl.TimerImplSnapshot;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-class MutableTimer {
+// also implements CommonTimerImpl so that it can be used to accumulate the root timers of
+// coalesced auxiliary thread contexts, see AuxThreadContexts
+class MutableTimer implements CommonTimerImpl {
 
     private final String name;
     private final boolean extended;
@@ -45,14 +47,60 @@ class MutableTimer {
         this.childTimers = Lists.newArrayList(nestedTimers);
     }
 
-    String getName() {
+    @Override
+    public String getName() {
         return name;
     }
 
+    @Override
     public boolean isExtended() {
         return extended;
     }
 
+    @Override
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void mergeChildTimersInto(List<MutableTimer> mutableTimers) {
+        for (MutableTimer childTimer : childTimers) {
+            getOrCreate(mutableTimers, childTimer.name, childTimer.extended).merge(childTimer);
+        }
+    }
+
+    @Override
+    public void mergeChildTimersInto2(List<org.glowroot.agent.impl.MutableTimer> mutableTimers) {
+        for (MutableTimer childTimer : childTimers) {
+            org.glowroot.agent.impl.MutableTimer
+                    .getOrCreate(mutableTimers, childTimer.name, childTimer.extended)
+                    .merge(childTimer);
+        }
+    }
+
+    @Override
+    public TimerImplSnapshot getSnapshot() {
+        return ImmutableTimerImplSnapshot.of(totalNanos, count, active);
+    }
+
+    static MutableTimer getOrCreate(List<MutableTimer> mutableTimers, String name,
+            boolean extended) {
+        for (MutableTimer mutableTimer : mutableTimers) {
+            if (name.equals(mutableTimer.name) && extended == mutableTimer.extended) {
+                return mutableTimer;
+            }
+        }
+        MutableTimer mutableTimer =
+                new MutableTimer(name, extended, 0, 0, new ArrayList<MutableTimer>());
+        mutableTimers.add(mutableTimer);
+        return mutableTimer;
+    }
+
     void merge(CommonTimerImpl timer) {
         TimerImplSnapshot snapshot = timer.getSnapshot();
         count += snapshot.count();
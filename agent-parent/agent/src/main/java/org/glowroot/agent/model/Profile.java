@@ -15,13 +15,14 @@
  */
 package org.glowroot.agent.model;
 
-import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -29,11 +30,18 @@ import org.glowroot.common.model.MutableProfile;
 
 public class Profile {
 
+    // agent-wide frame dictionary, so that identical frames (e.g. framework frames) captured across
+    // many concurrent transactions are shared instead of being retained separately by each profile
+    //
+    // weak interner so that frames are not retained after all profiles referencing them are gone
+    private static final Interner<StackTraceElement> frameInterner = Interners.newWeakInterner();
+
+    // merged stack tree takes up less memory once there are this many samples
+    private static final int MAX_UNMERGED_SAMPLES = 10;
+
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
-    @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private final List<Sample> unmergedSamples = Lists.newArrayList();
     @GuardedBy("lock")
     private @MonotonicNonNull MutableProfile profile;
     @GuardedBy("lock")
@@ -57,8 +65,7 @@ public class Profile {
             if (profile == null) {
                 profile = new MutableProfile();
                 mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
+                unmergedSamples.clear();
             }
             return profile.toProto();
         }
@@ -73,35 +80,113 @@ public class Profile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    void addStackTrace(ThreadInfo threadInfo, int limit) {
+    void addStackTrace(long threadId, StackTraceElement[] stackTrace, Thread.State threadState,
+            int limit) {
         synchronized (lock) {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
             if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
+                unmergedSamples.add(createSample(threadId, stackTrace, threadState));
+                if (unmergedSamples.size() >= MAX_UNMERGED_SAMPLES) {
                     profile = new MutableProfile();
                     mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+                    unmergedSamples.clear();
                 }
             } else {
-                profile.merge(stackTrace, threadState);
+                profile.merge(Arrays.asList(stackTrace), threadState);
             }
             sampleCount++;
         }
     }
 
+    @GuardedBy("lock")
+    private Sample createSample(long threadId, StackTraceElement[] stackTrace,
+            Thread.State threadState) {
+        int baseIndex = -1;
+        StackTraceElement/*@Nullable*/[] baseStackTrace = null;
+        for (int i = unmergedSamples.size() - 1; i >= 0; i--) {
+            Sample sample = unmergedSamples.get(i);
+            if (sample.threadId == threadId) {
+                baseIndex = i;
+                baseStackTrace = sample.fullStackTrace;
+                // only the most recent sample from each thread needs to retain its full stack trace
+                sample.fullStackTrace = null;
+                break;
+            }
+        }
+        // stack traces are ordered from innermost to outermost frame, so the frames shared with
+        // the prior sample from the same thread are at the end
+        int sharedFrameCount = 0;
+        if (baseStackTrace != null) {
+            int maxSharedFrameCount = Math.min(baseStackTrace.length, stackTrace.length);
+            while (sharedFrameCount < maxSharedFrameCount
+                    && baseStackTrace[baseStackTrace.length - sharedFrameCount - 1]
+                            .equals(stackTrace[stackTrace.length - sharedFrameCount - 1])) {
+                sharedFrameCount++;
+            }
+        }
+        StackTraceElement[] fullStackTrace = new StackTraceElement[stackTrace.length];
+        for (int i = 0; i < stackTrace.length - sharedFrameCount; i++) {
+            fullStackTrace[i] = frameInterner.intern(stackTrace[i]);
+        }
+        if (baseStackTrace != null) {
+            System.arraycopy(baseStackTrace, baseStackTrace.length - sharedFrameCount,
+                    fullStackTrace, stackTrace.length - sharedFrameCount, sharedFrameCount);
+        }
+        StackTraceElement[] innerFrames;
+        if (sharedFrameCount == 0) {
+            innerFrames = fullStackTrace;
+        } else {
+            innerFrames = Arrays.copyOf(fullStackTrace, stackTrace.length - sharedFrameCount);
+        }
+        return new Sample(threadId, threadState, baseIndex, sharedFrameCount, innerFrames,
+                fullStackTrace);
+    }
+
+    @GuardedBy("lock")
     private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+        StackTraceElement[][] stackTraces = new StackTraceElement[unmergedSamples.size()][];
+        for (int i = 0; i < unmergedSamples.size(); i++) {
+            Sample sample = unmergedSamples.get(i);
+            StackTraceElement[] stackTrace;
+            if (sample.baseIndex == -1) {
+                stackTrace = sample.innerFrames;
+            } else {
+                StackTraceElement[] baseStackTrace = stackTraces[sample.baseIndex];
+                stackTrace = Arrays.copyOf(sample.innerFrames,
+                        sample.innerFrames.length + sample.sharedFrameCount);
+                System.arraycopy(baseStackTrace, baseStackTrace.length - sample.sharedFrameCount,
+                        stackTrace, sample.innerFrames.length, sample.sharedFrameCount);
+            }
+            stackTraces[i] = stackTrace;
+            profile.merge(Arrays.asList(stackTrace), sample.threadState);
+        }
+    }
+
+    // stack trace is stored as a delta against the prior sample from the same thread, since
+    // successive samples usually share most of their outer frames
+    private static class Sample {
+
+        private final long threadId;
+        private final Thread.State threadState;
+        // index of the prior sample from the same thread, or -1 if there is none
+        private final int baseIndex;
+        // number of outermost frames that are shared with the prior sample
+        private final int sharedFrameCount;
+        private final StackTraceElement[] innerFrames;
+        // this is only retained for the most recent sample from each thread
+        private StackTraceElement/*@Nullable*/[] fullStackTrace;
+
+        private Sample(long threadId, Thread.State threadState, int baseIndex,
+                int sharedFrameCount, StackTraceElement[] innerFrames,
+                StackTraceElement[] fullStackTrace) {
+            this.threadId = threadId;
+            this.threadState = threadState;
+            this.baseIndex = baseIndex;
+            this.sharedFrameCount = sharedFrameCount;
+            this.innerFrames = innerFrames;
+            this.fullStackTrace = fullStackTrace;
         }
     }
 }
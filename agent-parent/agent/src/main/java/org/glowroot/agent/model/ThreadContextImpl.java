@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -51,6 +50,7 @@ import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
 
@@ -93,6 +93,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private @MonotonicNonNull Map<String, QueryDataMap> allQueryTypesMap;
     private @MonotonicNonNull QueryDataMap serviceCallsForFirstType;
     private @MonotonicNonNull Map<String, QueryDataMap> allServiceCallTypesMap;
+    // linked list of LogEventData instances for safe concurrent access
+    private @MonotonicNonNull LogEventData headLogEventData;
+    // this map is only accessed by the thread context's thread
+    private @MonotonicNonNull Map<String, LogEventData> logEventsByMessage;
 
     private final long threadId;
 
@@ -104,9 +108,18 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private @Nullable MessageSupplier servletMessageSupplier;
 
+    // only written by the thread context's thread, but read by other threads when coalescing
+    // auxiliary thread contexts
+    private volatile boolean hasAuxThreadContexts;
+
     // this is not used much, so overhead of Long seems good tradeoff for avoiding extra field
     private volatile @MonotonicNonNull Long detachedTime;
 
+    // the thread context (of another transaction) that was bound to this thread when this
+    // auxiliary thread context was started, and which is restored when this thread context ends,
+    // see AuxThreadContext.startAndSuspendCurrent()
+    private @Nullable ThreadContextImpl suspendedThreadContext;
+
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, MessageSupplier messageSupplier,
             TimerName rootTimerName, long startTick, boolean captureThreadStats,
@@ -161,6 +174,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.isCompleted();
     }
 
+    // completed thread contexts without any trace entries (other than the root entry) and which
+    // are not the parent of any other auxiliary thread contexts can be coalesced, see
+    // AuxThreadContexts
+    boolean isCoalescable() {
+        return traceEntryComponent.isCompleted() && traceEntryComponent.isEmpty()
+                && !hasAuxThreadContexts && detachedTime == null
+                && (threadStatsComponent == null || threadStatsComponent.isCompleted());
+    }
+
     private boolean isCompleted(long captureTick) {
         if (!traceEntryComponent.isCompleted()) {
             return false;
@@ -188,6 +210,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         this.currentNestingGroupId = nestingGroupId;
     }
 
+    @Nullable
+    QueryData getHeadQueryData() {
+        return headQueryData;
+    }
+
+    @Nullable
+    QueryData getHeadServiceCallData() {
+        return headServiceCallData;
+    }
+
     void mergeQueriesInto(QueryCollector queries) {
         QueryData curr = headQueryData;
         while (curr != null) {
@@ -198,6 +230,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
     }
 
+    @Nullable
+    LogEventData getHeadLogEventData() {
+        return headLogEventData;
+    }
+
     void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
         QueryData curr = headServiceCallData;
         while (curr != null) {
@@ -207,6 +244,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
     }
 
+    void mergeLogEventsInto(LogEventCollector logEvents) {
+        LogEventData curr = headLogEventData;
+        while (curr != null) {
+            logEvents.mergeLogEvent(curr.getLevel(), curr.getLoggerName(), curr.getMessage(),
+                    curr.getCount());
+            curr = curr.getNextLogEventData();
+        }
+    }
+
     boolean getCaptureThreadStats() {
         return threadStatsComponent != null;
     }
@@ -261,6 +307,30 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return serviceCallData;
     }
 
+    // only called by transaction thread
+    private @Nullable LogEventData getOrCreateLogEventDataIfPossible(String level,
+            String loggerName, String message) {
+        if (logEventsByMessage == null) {
+            logEventsByMessage = new HashMap<String, LogEventData>();
+        }
+        LogEventData sameMessage = logEventsByMessage.get(message);
+        LogEventData curr = sameMessage;
+        while (curr != null) {
+            if (curr.matches(level, loggerName)) {
+                return curr;
+            }
+            curr = curr.getNextWithSameMessage();
+        }
+        if (!transaction.allowAnotherAggregateLogEvent()) {
+            return null;
+        }
+        LogEventData logEventData =
+                new LogEventData(level, loggerName, message, headLogEventData, sameMessage);
+        logEventsByMessage.put(message, logEventData);
+        headLogEventData = logEventData;
+        return logEventData;
+    }
+
     private TraceEntryImpl addErrorEntry(long startTick, long endTick,
             @Nullable MessageSupplier messageSupplier, ErrorMessage errorMessage) {
         TraceEntryImpl entry = traceEntryComponent.addErrorEntry(startTick, endTick,
@@ -303,19 +373,47 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    public void captureStackTrace(ThreadInfo threadInfo, int limit) {
-        transaction.captureStackTrace(auxiliary, threadInfo, limit);
+    public void captureStackTrace(StackTraceElement[] stackTrace, Thread.State threadState,
+            int limit) {
+        transaction.captureStackTrace(auxiliary, threadId, stackTrace, threadState, limit);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
 
     @Override
     public AuxThreadContext createAuxThreadContext() {
+        if (!hasAuxThreadContexts) {
+            hasAuxThreadContexts = true;
+        }
         return new AuxThreadContextImpl(transaction, traceEntryComponent.getActiveEntry(),
                 traceEntryComponent.getTailEntry(), servletMessageSupplier,
                 transaction.getTransactionRegistry(), transaction.getTransactionService());
     }
 
+    // called when an auxiliary thread context of another transaction (suspendedBy) has been started
+    // on this thread, and has already replaced this thread context in the thread context holder
+    public void suspend(ThreadContextImpl suspendedBy) {
+        if (threadStatsComponent != null) {
+            threadStatsComponent.onSuspend(suspendedBy.threadStatsComponent);
+        }
+        // this thread context is restored when suspendedBy ends
+        suspendedBy.suspendedThreadContext = this;
+    }
+
+    // called when the auxiliary thread context that suspended this thread context ends
+    private void resume() {
+        if (threadStatsComponent != null) {
+            threadStatsComponent.onResume();
+        }
+        // see counterpart to this synchronization (and explanation) in detach()
+        synchronized (threadContextHolder) {
+            // don't re-bind if this thread context was detached while suspended
+            if (detachedTime == null) {
+                threadContextHolder.set(this);
+            }
+        }
+    }
+
     // typically pop() methods don't require the objects to pop, but for safety, the entry to pop is
     // passed in just to make sure it is the one on top (and if not, then pop until is is found,
     // preventing any nasty bugs from a missed pop, e.g. a trace never being marked as complete)
@@ -332,6 +430,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 threadStatsComponent.onComplete();
             }
             threadContextHolder.set(null);
+            if (suspendedThreadContext != null) {
+                suspendedThreadContext.resume();
+                suspendedThreadContext = null;
+            }
         }
     }
 
@@ -347,6 +449,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     // detach is called from another thread
     void detach() {
+        // detached time is set before the synchronized block so that it is visible to resume()
+        detachedTime = ticker.read();
         // this synchronization protects against clobbering valid thread context in race condition
         // where thread context ends naturally and thread re-starts a new thread context quickly
         // see counterpart to this synchronized block in startAuxThreadContext()
@@ -359,7 +463,6 @@ public class ThreadContextImpl implements ThreadContextPlus {
         // context holder has been cleared (at least after the thread completes its next trace entry
         // or profile sample, which both perform memory barrier reads)
         transaction.memoryBarrierWrite();
-        detachedTime = ticker.read();
     }
 
     private QueryDataMap getOrCreateQueriesForType(String queryType) {
@@ -621,6 +724,39 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
     }
 
+    @Override
+    public TraceEntry startAggregatedLogEntry(String level, String loggerName, String message,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        if (level == null) {
+            logger.error("startAggregatedLogEntry(): argument 'level' must be non-null");
+            return NopTraceEntry.INSTANCE;
+        }
+        if (loggerName == null) {
+            logger.error("startAggregatedLogEntry(): argument 'loggerName' must be non-null");
+            return NopTraceEntry.INSTANCE;
+        }
+        if (message == null) {
+            logger.error("startAggregatedLogEntry(): argument 'message' must be non-null");
+            return NopTraceEntry.INSTANCE;
+        }
+        if (messageSupplier == null) {
+            logger.error("startAggregatedLogEntry(): argument 'messageSupplier' must be non-null");
+            return NopTraceEntry.INSTANCE;
+        }
+        if (timerName == null) {
+            logger.error("startAggregatedLogEntry(): argument 'timerName' must be non-null");
+            return NopTraceEntry.INSTANCE;
+        }
+        long startTick = ticker.read();
+        TimerImpl timer = startTimer(timerName, startTick);
+        LogEventData logEventData = getOrCreateLogEventDataIfPossible(level, loggerName, message);
+        if (logEventData != null) {
+            logEventData.increment();
+        }
+        // always a dummy entry, which is only escalated to a real entry on endWithError()
+        return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 1);
+    }
+
     @Override
     public Timer startTimer(TimerName timerName) {
         if (timerName == null) {
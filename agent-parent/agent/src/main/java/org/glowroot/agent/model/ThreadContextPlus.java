@@ -16,8 +16,9 @@
 package org.glowroot.agent.model;
 
 import org.glowroot.agent.plugin.api.OptionalThreadContext;
+import org.glowroot.agent.plugin.api.internal.LogEventAggregator;
 
-public interface ThreadContextPlus extends OptionalThreadContext {
+public interface ThreadContextPlus extends OptionalThreadContext, LogEventAggregator {
 
     int getCurrentNestingGroupId();
 
@@ -27,8 +27,6 @@ import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 class ThreadStatsComponent {
 
     private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
@@ -38,6 +36,11 @@ class ThreadStatsComponent {
             threadMXBean.isThreadContentionMonitoringSupported();
 
     private final long threadId;
+
+    // false for threads that are not visible to ThreadMXBean (e.g. virtual threads, whose carrier
+    // thread can change over the life of the thread context)
+    private final boolean available;
+
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
     private final long startingWaitedMillis;
@@ -48,13 +51,39 @@ class ThreadStatsComponent {
     @GuardedBy("lock")
     private volatile @MonotonicNonNull ThreadStats completedThreadStats;
 
+    // the thread stats component of the auxiliary thread context (of another transaction) that is
+    // currently running on this thread, see ThreadContextImpl.suspend()
+    @GuardedBy("lock")
+    private @Nullable ThreadStatsComponent suspendedBy;
+
+    // thread stats accrued while suspended, which are excluded from the thread stats of this
+    // component
+    @GuardedBy("lock")
+    private long excludedCpuNanos;
+    @GuardedBy("lock")
+    private long excludedBlockedMillis;
+    @GuardedBy("lock")
+    private long excludedWaitedMillis;
+    @GuardedBy("lock")
+    private long excludedAllocatedBytes;
+
     private final Object lock = new Object();
 
     ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
+        this.threadAllocatedBytes = threadAllocatedBytes;
+        if (threadInfo == null) {
+            // thread info for current (platform) thread cannot be null, but it is null for virtual
+            // threads
+            available = false;
+            startingCpuNanos = -1;
+            startingBlockedMillis = -1;
+            startingWaitedMillis = -1;
+            startingAllocatedBytes = -1;
+            return;
+        }
+        available = true;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
@@ -72,7 +101,6 @@ class ThreadStatsComponent {
         } else {
             startingAllocatedBytes = -1;
         }
-        this.threadAllocatedBytes = threadAllocatedBytes;
     }
 
     // must be called from transaction thread
@@ -82,17 +110,93 @@ class ThreadStatsComponent {
         }
     }
 
+    boolean isCompleted() {
+        return completedThreadStats != null;
+    }
+
+    // must be called from transaction thread
+    //
+    // this does not capture any thread stats, instead the thread stats of the suspending component
+    // (which are captured anyways since it runs on the same thread) are excluded on resume
+    void onSuspend(@Nullable ThreadStatsComponent suspendedBy) {
+        if (!available || suspendedBy == null) {
+            // if the other transaction is not capturing thread stats, then the thread stats accrued
+            // while suspended are not excluded
+            return;
+        }
+        synchronized (lock) {
+            if (completedThreadStats == null && this.suspendedBy == null) {
+                this.suspendedBy = suspendedBy;
+            }
+        }
+    }
+
+    // must be called from transaction thread, after the suspending component has completed
+    void onResume() {
+        if (!available) {
+            return;
+        }
+        synchronized (lock) {
+            if (suspendedBy == null) {
+                return;
+            }
+            // the suspending component has already completed, so this does not need to capture
+            // thread info
+            ThreadStats suspendedThreadStats = suspendedBy.getElapsedThreadStats();
+            excludedCpuNanos = add(excludedCpuNanos, suspendedThreadStats.getTotalCpuNanos());
+            excludedBlockedMillis =
+                    add(excludedBlockedMillis, suspendedThreadStats.getTotalBlockedMillis());
+            excludedWaitedMillis =
+                    add(excludedWaitedMillis, suspendedThreadStats.getTotalWaitedMillis());
+            excludedAllocatedBytes =
+                    add(excludedAllocatedBytes, suspendedThreadStats.getTotalAllocatedBytes());
+            suspendedBy = null;
+        }
+    }
+
     // safe to be called from another thread
     ThreadStats getThreadStats() {
+        if (!available) {
+            return ThreadStats.NA;
+        }
         synchronized (lock) {
-            if (completedThreadStats == null) {
-                // transaction thread is still alive (and cannot terminate in the middle of this
-                // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
-                // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
-            } else {
+            if (completedThreadStats != null) {
                 return completedThreadStats;
             }
+            // transaction thread is still alive (and cannot terminate in the middle of this
+            // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
+            // and ThreadMXBean.getThreadCpuTime() for the transaction thread
+            ThreadStats threadStats = getThreadStatsInternal();
+            if (suspendedBy == null) {
+                return threadStats;
+            }
+            // lock ordering is always suspended component, then suspending component
+            ThreadStats suspendedThreadStats = suspendedBy.getElapsedThreadStats();
+            return new ThreadStats(
+                    subtract(threadStats.getTotalCpuNanos(),
+                            suspendedThreadStats.getTotalCpuNanos()),
+                    subtract(threadStats.getTotalBlockedMillis(),
+                            suspendedThreadStats.getTotalBlockedMillis()),
+                    subtract(threadStats.getTotalWaitedMillis(),
+                            suspendedThreadStats.getTotalWaitedMillis()),
+                    subtract(threadStats.getTotalAllocatedBytes(),
+                            suspendedThreadStats.getTotalAllocatedBytes()));
+        }
+    }
+
+    // returns the thread stats including those that were excluded, which is what needs to be
+    // excluded from the component that this component suspended (this matters when suspensions are
+    // nested)
+    private ThreadStats getElapsedThreadStats() {
+        if (!available) {
+            return ThreadStats.NA;
+        }
+        synchronized (lock) {
+            ThreadStats threadStats = getThreadStats();
+            return new ThreadStats(add(threadStats.getTotalCpuNanos(), excludedCpuNanos),
+                    add(threadStats.getTotalBlockedMillis(), excludedBlockedMillis),
+                    add(threadStats.getTotalWaitedMillis(), excludedWaitedMillis),
+                    add(threadStats.getTotalAllocatedBytes(), excludedAllocatedBytes));
         }
     }
 
@@ -132,7 +236,7 @@ class ThreadStatsComponent {
         // than whether or not it is supported)
         long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
-            return threadCpuNanos - startingCpuNanos;
+            return threadCpuNanos - startingCpuNanos - excludedCpuNanos;
         } else {
             return -1;
         }
@@ -143,7 +247,7 @@ class ThreadStatsComponent {
         // different than whether or not it is supported)
         long threadBlockedTimeMillis = threadInfo.getBlockedTime();
         if (startingBlockedMillis != -1 && threadBlockedTimeMillis != -1) {
-            return threadBlockedTimeMillis - startingBlockedMillis;
+            return threadBlockedTimeMillis - startingBlockedMillis - excludedBlockedMillis;
         } else {
             return -1;
         }
@@ -154,17 +258,31 @@ class ThreadStatsComponent {
         // different than whether or not it is supported)
         long threadWaitedTimeMillis = threadInfo.getWaitedTime();
         if (startingWaitedMillis != -1 && threadWaitedTimeMillis != -1) {
-            return threadWaitedTimeMillis - startingWaitedMillis;
+            return threadWaitedTimeMillis - startingWaitedMillis - excludedWaitedMillis;
         } else {
             return -1;
         }
     }
 
+    private static long add(long value, long excluded) {
+        if (value == -1 || excluded == -1) {
+            return value;
+        }
+        return value + excluded;
+    }
+
+    private static long subtract(long value, long excluded) {
+        if (value == -1 || excluded == -1) {
+            return value;
+        }
+        return value - excluded;
+    }
+
     @RequiresNonNull("threadAllocatedBytes")
     private long getThreadAllocatedBytes() {
         long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
-            return allocatedBytes - startingAllocatedBytes;
+            return allocatedBytes - startingAllocatedBytes - excludedAllocatedBytes;
         } else {
             return -1;
         }
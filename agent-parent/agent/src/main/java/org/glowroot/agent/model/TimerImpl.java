@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -185,21 +184,7 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     public void mergeChildTimersInto(List<MutableTimer> mutableTimers) {
         TimerImpl curr = headChild;
         while (curr != null) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            MutableTimer matchingChildTimer = null;
-            for (MutableTimer childTimer : mutableTimers) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = new MutableTimer(curr.getName(),
-                        curr.isExtended(), 0, 0, new ArrayList<MutableTimer>());
-                mutableTimers.add(matchingChildTimer);
-            }
-            matchingChildTimer.merge(curr);
+            MutableTimer.getOrCreate(mutableTimers, curr.getName(), curr.isExtended()).merge(curr);
             curr = curr.nextSibling;
         }
     }
@@ -209,22 +194,8 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     public void mergeChildTimersInto2(List<org.glowroot.agent.impl.MutableTimer> mutableTimers) {
         TimerImpl curr = headChild;
         while (curr != null) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            org.glowroot.agent.impl.MutableTimer matchingChildTimer = null;
-            for (org.glowroot.agent.impl.MutableTimer childTimer : mutableTimers) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = new org.glowroot.agent.impl.MutableTimer(curr.getName(),
-                        curr.isExtended(), 0, 0,
-                        new ArrayList<org.glowroot.agent.impl.MutableTimer>());
-                mutableTimers.add(matchingChildTimer);
-            }
-            matchingChildTimer.merge(curr);
+            org.glowroot.agent.impl.MutableTimer
+                    .getOrCreate(mutableTimers, curr.getName(), curr.isExtended()).merge(curr);
             curr = curr.nextSibling;
         }
     }
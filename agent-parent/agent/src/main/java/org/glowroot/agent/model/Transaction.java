@@ -21,7 +21,6 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -38,7 +37,6 @@ import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.TreeMultimap;
@@ -54,15 +52,16 @@ import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.impl.TransactionServiceImpl;
 import org.glowroot.agent.impl.UserProfileScheduler;
-import org.glowroot.agent.model.TimerImpl.TimerImplSnapshot;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.Cancellable;
+import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -84,6 +83,9 @@ public class Transaction {
     // this is just to limit memory (and also to limit display size of trace)
     private static final long ATTRIBUTE_VALUES_PER_KEY_LIMIT = 1000;
 
+    // this is just to limit memory (completed async timers above this are aggregated by name)
+    private static final int ASYNC_TIMER_AGGREGATE_THRESHOLD = 1000;
+
     private static final Random random = new Random();
 
     private volatile @Nullable String traceId;
@@ -152,21 +154,17 @@ public class Transaction {
     private volatile int extraErrorEntryLimitCounter;
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
+    private volatile int aggregateLogEventLimitCounter;
 
     private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
 
     private final ThreadContextImpl mainThreadContext;
 
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
+    // lazy loaded to reduce memory when auxiliary threads are not used
+    private volatile @MonotonicNonNull AuxThreadContexts auxThreadContexts;
 
-    // async root timers are the root timers which do not have corresponding thread context
-    // (those corresponding to async trace entries)
-    private final Object asyncTimerLock = new Object();
-    @GuardedBy("asyncTimerLock")
-    private @MonotonicNonNull List<AsyncTimerImpl> asyncTimers;
-    @GuardedBy("asyncTimerLock")
-    private @MonotonicNonNull Map<String, AggregateAsyncTimer> aggregateAsyncTimers;
+    // lazy loaded to reduce memory when async trace entries are not used
+    private volatile @MonotonicNonNull AsyncTimers asyncTimers;
 
     private volatile boolean completed;
     private volatile long endTick;
@@ -296,32 +294,15 @@ public class Transaction {
     }
 
     public void mergeAuxThreadTimersInto(RootTimerCollector rootTimers) {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
-                }
-            }
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeRootTimersInto(rootTimers);
         }
     }
 
     public void mergeAsyncTimersInto(RootTimerCollector rootTimers) {
         memoryBarrierRead();
-        synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                return;
-            }
-            for (AsyncTimerImpl asyncTimer : asyncTimers) {
-                rootTimers.mergeRootTimer(asyncTimer);
-            }
-            if (aggregateAsyncTimers == null) {
-                return;
-            }
-            for (Entry<String, AggregateAsyncTimer> entry : aggregateAsyncTimers.entrySet()) {
-                AggregateAsyncTimer value = entry.getValue();
-                rootTimers.mergeRootTimer(
-                        new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
-            }
+        if (asyncTimers != null) {
+            asyncTimers.mergeInto(rootTimers);
         }
     }
 
@@ -331,36 +312,34 @@ public class Transaction {
     }
 
     public void mergeAuxThreadStatsInto(ThreadStatsCollector threadStats) {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
-                }
-            }
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeThreadStatsInto(threadStats);
         }
     }
 
     public void mergeQueriesInto(QueryCollector queries) {
         memoryBarrierRead();
         mainThreadContext.mergeQueriesInto(queries);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeQueriesInto(queries);
-                }
-            }
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeQueriesInto(queries);
         }
+        queries.endTransaction();
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(serviceCalls);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeServiceCallsInto(serviceCalls);
-                }
-            }
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeServiceCallsInto(serviceCalls);
+        }
+        serviceCalls.endTransaction();
+    }
+
+    public void mergeLogEventsInto(LogEventCollector logEvents) {
+        memoryBarrierRead();
+        mainThreadContext.mergeLogEventsInto(logEvents);
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeLogEventsInto(logEvents);
         }
     }
 
@@ -384,25 +363,39 @@ public class Transaction {
                 * AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER;
     }
 
+    boolean allowAnotherAggregateLogEvent() {
+        return aggregateLogEventLimitCounter++ < ConfigDefaults.MAX_AGGREGATE_LOG_EVENTS
+                * AdvancedConfig.OVERALL_AGGREGATE_LOG_EVENTS_HARD_LIMIT_MULTIPLIER;
+    }
+
     public List<Trace.Entry> getEntriesProtobuf(long captureTick) {
+        final List<Trace.Entry> entries = Lists.newArrayList();
+        visitEntries(captureTick, new EntryVisitor() {
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    // entries are passed to the visitor one at a time as they are converted to protobuf, so that
+    // callers which stream them do not need to hold the full list in memory
+    public void visitEntries(long captureTick, EntryVisitor entryVisitor) {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
         ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap = ArrayListMultimap.create();
         mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
                 priorEntryChildThreadContextMap);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
-                            priorEntryChildThreadContextMap);
-                }
+        if (auxThreadContexts != null) {
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts.getThreadContexts()) {
+                auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
+                        priorEntryChildThreadContextMap);
             }
         }
-        List<Trace.Entry> entries = Lists.newArrayList();
         addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
-                captureTick, 0, entries, async);
-        return entries;
+                captureTick, 0, entryVisitor, async);
     }
 
     long getMainThreadProfileSampleCount() {
@@ -470,18 +463,16 @@ public class Transaction {
     }
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return ImmutableList.of();
-            }
-            List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                if (!auxThreadContext.isCompleted()) {
-                    activeAuxThreadContexts.add(auxThreadContext);
-                }
+        if (auxThreadContexts == null) {
+            return ImmutableList.of();
+        }
+        List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts.getThreadContexts()) {
+            if (!auxThreadContext.isCompleted()) {
+                activeAuxThreadContexts.add(auxThreadContext);
             }
-            return activeAuxThreadContexts;
         }
+        return activeAuxThreadContexts;
     }
 
     void setAsync() {
@@ -583,22 +574,17 @@ public class Transaction {
                 parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE, auxTimerName,
                 startTick, mainThreadContext.getCaptureThreadStats(), threadAllocatedBytes, true,
                 ticker, threadContextHolder, servletMessageSupplier);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                auxThreadContexts = Lists.newArrayList();
-            }
-            if (auxThreadContexts.size() >= maxTraceEntriesPerTransaction) {
-                // TODO try to aggregate and reduce auxiliary thread context count
-                return null;
-            }
-            auxThreadContexts.add(auxThreadContext);
+        AuxThreadContexts auxThreadContexts = getOrCreateAuxThreadContexts();
+        // memory barrier read ensures visibility of completed auxiliary thread contexts in case
+        // they are coalesced
+        memoryBarrierRead();
+        if (!auxThreadContexts.add(auxThreadContext)) {
+            return null;
         }
         if (completed) {
             // need to check after adding to auxThreadContexts to avoid race condition
             // where this thread context could be included in the transaction's trace entries
-            synchronized (mainThreadContext) {
-                auxThreadContexts.remove(auxThreadContext);
-            }
+            auxThreadContexts.remove(auxThreadContext);
             return null;
         }
         // see counterpart to this synchronization (and explanation) in detach()
@@ -608,44 +594,46 @@ public class Transaction {
         return auxThreadContext;
     }
 
+    private AuxThreadContexts getOrCreateAuxThreadContexts() {
+        AuxThreadContexts auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            return auxThreadContexts;
+        }
+        // only the first registration synchronizes
+        synchronized (mainThreadContext) {
+            if (this.auxThreadContexts == null) {
+                this.auxThreadContexts = new AuxThreadContexts(maxTraceEntriesPerTransaction);
+            }
+            return this.auxThreadContexts;
+        }
+    }
+
     AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
         AsyncTimerImpl asyncTimer = new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick);
-        synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                asyncTimers = Lists.newArrayList();
-            }
-            if (asyncTimers.size() >= 1000) {
-                // this is just to conserve memory
-                if (aggregateAsyncTimers == null) {
-                    aggregateAsyncTimers = Maps.newHashMap();
-                }
-                List<AsyncTimerImpl> activeAsyncTimers = Lists.newArrayList();
-                for (AsyncTimerImpl loopAsyncTimer : asyncTimers) {
-                    if (loopAsyncTimer.active()) {
-                        activeAsyncTimers.add(loopAsyncTimer);
-                        continue;
-                    }
-                    AggregateAsyncTimer aggregateAsyncTimer =
-                            aggregateAsyncTimers.get(loopAsyncTimer.getName());
-                    if (aggregateAsyncTimer == null) {
-                        aggregateAsyncTimer = new AggregateAsyncTimer();
-                        aggregateAsyncTimers.put(loopAsyncTimer.getName(), aggregateAsyncTimer);
-                    }
-                    aggregateAsyncTimer.totalNanos += loopAsyncTimer.getTotalNanos();
-                    aggregateAsyncTimer.count += loopAsyncTimer.getCount();
-                }
-                asyncTimers = activeAsyncTimers;
+        getOrCreateAsyncTimers().add(asyncTimer);
+        return asyncTimer;
+    }
+
+    private AsyncTimers getOrCreateAsyncTimers() {
+        AsyncTimers asyncTimers = this.asyncTimers;
+        if (asyncTimers != null) {
+            return asyncTimers;
+        }
+        // only the first async timer synchronizes
+        synchronized (mainThreadContext) {
+            if (this.asyncTimers == null) {
+                this.asyncTimers = new AsyncTimers(ASYNC_TIMER_AGGREGATE_THRESHOLD);
             }
-            asyncTimers.add(asyncTimer);
+            return this.asyncTimers;
         }
-        return asyncTimer;
     }
 
     boolean isEntryLimitExceeded() {
         return entryLimitCounter++ > maxTraceEntriesPerTransaction;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
+    void captureStackTrace(boolean auxiliary, long threadId, StackTraceElement[] stackTrace,
+            Thread.State threadState, int limit) {
         if (completed) {
             return;
         }
@@ -664,7 +652,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new Profile();
-            profile.addStackTrace(threadInfo, limit);
+            profile.addStackTrace(threadId, stackTrace, threadState, limit);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -672,7 +660,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo, limit);
+        profile.addStackTrace(threadId, stackTrace, threadState, limit);
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
@@ -742,7 +730,8 @@ public class Transaction {
 
     private static void addProtobufChildEntries(TraceEntryImpl entry,
             Multimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
-            long captureTick, int depth, List<Trace.Entry> entries, boolean removeSingleAuxEntry) {
+            long captureTick, int depth, EntryVisitor entryVisitor,
+            boolean removeSingleAuxEntry) {
         if (!parentChildMap.containsKey(entry)) {
             return;
         }
@@ -761,11 +750,12 @@ public class Transaction {
             if (singleAuxEntry
                     && (removeSingleAuxEntry || isRemovableAuxEntry(childEntry, parentChildMap))) {
                 addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth, entries, removeSingleAuxEntry);
+                        captureTick, depth, entryVisitor, removeSingleAuxEntry);
             } else {
-                entries.add(childEntry.toProto(depth, transactionStartTick, captureTick));
+                entryVisitor.visitEntry(
+                        childEntry.toProto(depth, transactionStartTick, captureTick));
                 addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth + 1, entries, false);
+                        captureTick, depth + 1, entryVisitor, false);
             }
         }
     }
@@ -797,50 +787,45 @@ public class Transaction {
     }
 
     private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return ImmutableListMultimap.of();
-            }
-            ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
-                    ArrayListMultimap.create();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                // checkNotNull is safe b/c aux thread contexts have non-null parent trace context
-                // prior entries
-                parentChildMap.put(
-                        checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
-                        auxThreadContext);
-            }
-            return parentChildMap;
+        if (auxThreadContexts == null) {
+            return ImmutableListMultimap.of();
+        }
+        ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
+                ArrayListMultimap.create();
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts.getThreadContexts()) {
+            // checkNotNull is safe b/c aux thread contexts have non-null parent trace context
+            // prior entries
+            parentChildMap.put(checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
+                    auxThreadContext);
         }
+        return parentChildMap;
     }
 
     private void checkForIncompleteAuxThreadContexts() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return;
+        if (auxThreadContexts == null) {
+            return;
+        }
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts.getThreadContexts()) {
+            if (auxThreadContext.isCompleted()) {
+                continue;
             }
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                if (auxThreadContext.isCompleted()) {
-                    continue;
-                }
-                auxThreadContext.detach();
-                if (!logger.isDebugEnabled()) {
-                    continue;
-                }
-                ThreadInfo threadInfo = ManagementFactory.getThreadMXBean()
-                        .getThreadInfo(auxThreadContext.getThreadId(), Integer.MAX_VALUE);
-                if (logger.isDebugEnabled() && !isCompleted()
-                        && threadInfo != null) {
-                    // still not complete and got a valid stack trace from auxiliary thread
-                    StringBuilder sb = new StringBuilder();
-                    for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
-                        sb.append("    ");
-                        sb.append(stackTraceElement.toString());
-                        sb.append('\n');
-                    }
-                    logger.debug("auxiliary thread extended beyond the transaction which started it"
-                            + "\n{}", sb);
+            auxThreadContext.detach();
+            if (!logger.isDebugEnabled()) {
+                continue;
+            }
+            ThreadInfo threadInfo = ManagementFactory.getThreadMXBean()
+                    .getThreadInfo(auxThreadContext.getThreadId(), Integer.MAX_VALUE);
+            if (logger.isDebugEnabled() && !isCompleted()
+                    && threadInfo != null) {
+                // still not complete and got a valid stack trace from auxiliary thread
+                StringBuilder sb = new StringBuilder();
+                for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
+                    sb.append("    ");
+                    sb.append(stackTraceElement.toString());
+                    sb.append('\n');
                 }
+                logger.debug("auxiliary thread extended beyond the transaction which started it"
+                        + "\n{}", sb);
             }
         }
     }
@@ -871,62 +856,8 @@ public class Transaction {
         void mergeThreadStats(ThreadStats threadStats);
     }
 
-    private static class AggregateAsyncTimer {
-
-        private long totalNanos;
-        private long count;
-    }
-
-    private static class SimpleTimerImpl implements CommonTimerImpl {
-
-        private final String name;
-        private final long totalNanos;
-        private final long count;
-
-        private SimpleTimerImpl(String name, long totalNanos, long count) {
-            this.name = name;
-            this.totalNanos = totalNanos;
-            this.count = count;
-        }
-
-        @Override
-        public String getName() {
-            return name;
-        }
-
-        @Override
-        public boolean isExtended() {
-            return false;
-        }
-
-        @Override
-        public long getTotalNanos() {
-            return totalNanos;
-        }
-
-        @Override
-        public long getCount() {
-            return count;
-        }
-
-        @Override
-        public void mergeChildTimersInto(List<MutableTimer> mutableTimers) {
-            // async timers have no child timers
-        }
-
-        @Override
-        public void mergeChildTimersInto2(List<org.glowroot.agent.impl.MutableTimer> childTimers) {
-            // async timers have no child timers
-        }
-
-        @Override
-        public TimerImplSnapshot getSnapshot() {
-            return ImmutableTimerImplSnapshot.builder()
-                    .totalNanos(totalNanos)
-                    .count(count)
-                    .active(false)
-                    .build();
-        }
+    public interface EntryVisitor {
+        void visitEntry(Trace.Entry entry);
     }
 
     private static class AuxThreadRootMessageSupplier extends MessageSupplier {
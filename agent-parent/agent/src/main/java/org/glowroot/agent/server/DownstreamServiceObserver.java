@@ -15,19 +15,33 @@
  */
 package org.glowroot.agent.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.live.LiveTraceRepositoryImpl;
+import org.glowroot.agent.server.ResponseChunker.EntriesChunker;
 import org.glowroot.common.live.LiveJvmService;
-import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.Collector.AgentConfigUpdater;
@@ -46,7 +60,9 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GcResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMetaResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeaderResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpChunk;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Hello;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
@@ -78,16 +94,20 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
+class DownstreamServiceObserver implements ClientResponseObserver<ClientResponse, ServerRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceObserver.class);
 
+    // large trace detail responses (e.g. an active trace with many thousands of entries) are sent
+    // in chunks, so that they don't exceed the server's max message size
+    private static final int MAX_CHUNK_SIZE_BYTES = 1024 * 1024;
+
     private final ServerConnection serverConnection;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
     private final LiveJvmService liveJvmService;
     private final LiveWeavingService liveWeavingService;
-    private final LiveTraceRepository liveTraceRepository;
+    private final LiveTraceRepositoryImpl liveTraceRepository;
     private final String agentId;
 
     private volatile @Nullable StreamObserver<ClientResponse> currResponseObserver;
@@ -97,9 +117,17 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
     private final AtomicBoolean inMaybeConnectionFailure = new AtomicBoolean();
     private final AtomicBoolean inConnectionFailure;
 
+    private volatile boolean chunkedResponsesSupported;
+
+    // heap dumps and chunked responses are sent from this executor, since flow control needs to
+    // wait for onReady notifications which are delivered on the (single) grpc executor thread
+    private final ExecutorService streamingResponseExecutor;
+
+    private final Object readyLock = new Object();
+
     DownstreamServiceObserver(ServerConnection serverConnection,
             AgentConfigUpdater agentConfigUpdater, LiveJvmService liveJvmService,
-            LiveWeavingService liveWeavingService, LiveTraceRepository liveTraceRepository,
+            LiveWeavingService liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
             String agentId, AtomicBoolean inConnectionFailure) throws Exception {
         this.serverConnection = serverConnection;
         downstreamServiceStub = DownstreamServiceGrpc.newStub(serverConnection.getChannel())
@@ -110,10 +138,25 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
         this.liveTraceRepository = liveTraceRepository;
         this.agentId = agentId;
         this.inConnectionFailure = inConnectionFailure;
+        streamingResponseExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Streaming-Response-%d")
+                        .build());
     }
 
     @Override
-    public void onNext(ServerRequest request) {
+    public void beforeStart(ClientCallStreamObserver<ClientResponse> requestStream) {
+        requestStream.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                notifyReadyWaiters();
+            }
+        });
+    }
+
+    @Override
+    public void onNext(final ServerRequest request) {
         final boolean initialConnect = !hasInitialConnection.getAndSet(true);
         inMaybeConnectionFailure.set(false);
         boolean errorFixed = inConnectionFailure.getAndSet(false);
@@ -130,6 +173,20 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             });
         }
         if (request.getMessageCase() == MessageCase.HELLO_ACK) {
+            chunkedResponsesSupported = request.getHelloAck().getChunkedResponsesSupported();
+            return;
+        }
+        if (isStreamingResponse(request.getMessageCase())) {
+            streamingResponseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onNextInternal(request);
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            });
             return;
         }
         try {
@@ -146,6 +203,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             // try immediate re-connect once in case this is just node of glowroot server cluster
             // going down
             connectAsync();
+            notifyReadyWaiters();
             return;
         }
         if (!inConnectionFailure.getAndSet(true)) {
@@ -159,6 +217,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             });
         }
         currResponseObserver = null;
+        notifyReadyWaiters();
         Executors.newSingleThreadExecutor().execute(new Runnable() {
             @Override
             public void run() {
@@ -183,18 +242,33 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
     @Override
     public void onCompleted() {
         closedByServer = true;
+        notifyReadyWaiters();
     }
 
     void connectAsync() {
         // these are async so never fail, onError() will be called on failure
         StreamObserver<ClientResponse> responseObserver = downstreamServiceStub.connect(this);
         currResponseObserver = responseObserver;
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setHello(Hello.newBuilder()
                         .setAgentId(agentId))
                 .build());
     }
 
+    private static boolean isStreamingResponse(MessageCase messageCase) {
+        switch (messageCase) {
+            case HEAP_DUMP_REQUEST:
+            case MBEAN_DUMP_REQUEST:
+            case ENTRIES_REQUEST:
+            case MAIN_THREAD_PROFILE_REQUEST:
+            case AUX_THREAD_PROFILE_REQUEST:
+            case FULL_TRACE_REQUEST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private void onNextInternal(ServerRequest request) throws Exception {
         StreamObserver<ClientResponse> responseObserver = currResponseObserver;
         while (responseObserver == null) {
@@ -263,7 +337,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                 getFullTraceAndRespond(request, responseObserver);
                 return;
             default:
-                responseObserver.onNext(ClientResponse.newBuilder()
+                sendResponse(responseObserver, ClientResponse.newBuilder()
                         .setRequestId(request.getRequestId())
                         .setUnknownRequestResponse(UnknownRequestResponse.getDefaultInstance())
                         .build());
@@ -280,7 +354,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setAgentConfigUpdateResponse(AgentConfigUpdateResponse.getDefaultInstance())
                 .build());
@@ -296,7 +370,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
                         .setThreadDump(threadDump))
@@ -314,7 +388,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setAvailableDiskSpaceResponse(AvailableDiskSpaceResponse.newBuilder()
                         .setAvailableBytes(availableDiskSpaceBytes))
@@ -323,16 +397,32 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
 
     private void heapDumpAndRespond(ServerRequest request,
             StreamObserver<ClientResponse> responseObserver) {
+        HeapDumpRequest heapDumpRequest = request.getHeapDumpRequest();
         HeapDumpFileInfo heapDumpFileInfo;
         try {
-            heapDumpFileInfo =
-                    liveJvmService.heapDump("", request.getHeapDumpRequest().getDirectory());
+            heapDumpFileInfo = liveJvmService.heapDump("", heapDumpRequest.getDirectory());
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        if (heapDumpRequest.getTransferToServer()) {
+            File file = new File(heapDumpFileInfo.getFilePath());
+            try {
+                transferHeapDump(request.getRequestId(), file, heapDumpRequest,
+                        responseObserver);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                sendExceptionResponse(request, responseObserver);
+                return;
+            } finally {
+                if (!file.delete()) {
+                    logger.warn("unable to delete heap dump file after transfer: {}",
+                            file.getAbsolutePath());
+                }
+            }
+        }
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setHeapDumpResponse(HeapDumpResponse.newBuilder()
                         .setHeapDumpFileInfo(heapDumpFileInfo))
@@ -348,14 +438,14 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setGcResponse(GcResponse.getDefaultInstance())
                 .build());
     }
 
     private void mbeanDumpAndRespond(ServerRequest request,
-            StreamObserver<ClientResponse> responseObserver) {
+            StreamObserver<ClientResponse> responseObserver) throws Exception {
         MBeanDumpRequest req = request.getMbeanDumpRequest();
         MBeanDump mbeanDump;
         try {
@@ -365,11 +455,12 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        // mbean dumps of all mbeans can be large (e.g. tens of thousands of mbeans)
+        sendPossiblyChunkedResponse(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
                         .setMbeanDump(mbeanDump))
-                .build());
+                .build(), responseObserver);
     }
 
     private void matchingMBeanObjectNamesAndRespond(ServerRequest request,
@@ -384,7 +475,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMatchingMbeanObjectNamesResponse(MatchingMBeanObjectNamesResponse.newBuilder()
                         .addAllObjectName(objectNames))
@@ -402,7 +493,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMbeanMetaResponse(MBeanMetaResponse.newBuilder()
                         .setMbeanMeta(mbeanMeta))
@@ -419,7 +510,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setCapabilitiesResponse(CapabilitiesResponse.newBuilder()
                         .setCapabilities(capabilities))
@@ -436,7 +527,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setGlobalMetaResponse(GlobalMetaResponse.newBuilder()
                         .setGlobalMeta(globalMeta))
@@ -452,7 +543,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setPreloadClasspathCacheResponse(
                         PreloadClasspathCacheResponse.getDefaultInstance())
@@ -471,7 +562,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMatchingClassNamesResponse(MatchingClassNamesResponse.newBuilder()
                         .addAllClassName(classNames))
@@ -490,7 +581,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMatchingMethodNamesResponse(MatchingMethodNamesResponse.newBuilder()
                         .addAllMethodName(methodNames))
@@ -509,7 +600,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMethodSignaturesResponse(MethodSignaturesResponse.newBuilder()
                         .addAllMethodSignature(methodSignatures))
@@ -526,7 +617,7 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setReweaveResponse(ReweaveResponse.newBuilder()
                         .setClassUpdateCount(classUpdateCount))
@@ -551,27 +642,51 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                     .setHeader(header)
                     .build();
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setHeaderResponse(response)
                 .build());
     }
 
     private void getEntriesAndRespond(ServerRequest request,
-            StreamObserver<ClientResponse> responseObserver) throws Exception {
+            final StreamObserver<ClientResponse> responseObserver) throws Exception {
+        String traceId = request.getEntriesRequest().getTraceId();
+        if (chunkedResponsesSupported) {
+            // entries are sent in chunks as they are built, instead of building the full list of
+            // entries up front and then splitting it
+            EntriesChunker entriesChunker = new EntriesChunker(request.getRequestId(),
+                    MAX_CHUNK_SIZE_BYTES, new ResponseChunker.ChunkSender() {
+                        @Override
+                        public void send(ClientResponse chunk) {
+                            if (waitForReadyUninterruptibly(responseObserver)) {
+                                sendResponse(responseObserver, chunk);
+                            }
+                        }
+                    });
+            try {
+                liveTraceRepository.visitEntries(traceId, entriesChunker);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                // the server discards any chunks already received for this request
+                sendExceptionResponse(request, responseObserver);
+                return;
+            }
+            entriesChunker.finish();
+            return;
+        }
         List<Trace.Entry> entries;
         try {
-            entries = liveTraceRepository.getEntries("", request.getEntriesRequest().getTraceId());
+            entries = liveTraceRepository.getEntries("", traceId);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendPossiblyChunkedResponse(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setEntriesResponse(EntriesResponse.newBuilder()
                         .addAllEntry(entries))
-                .build());
+                .build(), responseObserver);
     }
 
     private void getMainThreadProfileAndRespond(ServerRequest request,
@@ -593,10 +708,10 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                     .setProfile(profile)
                     .build();
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendPossiblyChunkedResponse(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMainThreadProfileResponse(response)
-                .build());
+                .build(), responseObserver);
     }
 
     private void getAuxThreadProfileAndRespond(ServerRequest request,
@@ -618,10 +733,10 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                     .setProfile(profile)
                     .build();
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendPossiblyChunkedResponse(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setAuxThreadProfileResponse(response)
-                .build());
+                .build(), responseObserver);
     }
 
     private void getFullTraceAndRespond(ServerRequest request,
@@ -643,15 +758,117 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                     .setTrace(trace)
                     .build();
         }
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendPossiblyChunkedResponse(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setFullTraceResponse(response)
-                .build());
+                .build(), responseObserver);
+    }
+
+    private void sendPossiblyChunkedResponse(ClientResponse response,
+            StreamObserver<ClientResponse> responseObserver) throws InterruptedException {
+        if (!chunkedResponsesSupported) {
+            sendResponse(responseObserver, response);
+            return;
+        }
+        for (ClientResponse chunk : ResponseChunker.split(response, MAX_CHUNK_SIZE_BYTES)) {
+            if (!waitForReady(responseObserver)) {
+                return;
+            }
+            sendResponse(responseObserver, chunk);
+        }
+    }
+
+    // the heap dump file is streamed (gzipped) from disk, so at most one chunk of it is in memory
+    // at a time
+    private void transferHeapDump(long requestId, File file,
+            HeapDumpRequest heapDumpRequest, StreamObserver<ClientResponse> responseObserver)
+            throws IOException {
+        int chunkSizeBytes = heapDumpRequest.getTransferChunkSizeBytes();
+        if (chunkSizeBytes <= 0) {
+            chunkSizeBytes = MAX_CHUNK_SIZE_BYTES;
+        }
+        int compressionLevel = heapDumpRequest.getTransferCompressionLevel();
+        if (compressionLevel <= 0) {
+            compressionLevel = Deflater.BEST_SPEED;
+        }
+        // the chunks are already compressed, so no point in compressing them again at grpc level
+        setMessageCompression(responseObserver, false);
+        try {
+            OutputStream out = new HeapDumpGzipOutputStream(
+                    new HeapDumpChunkOutputStream(requestId, chunkSizeBytes, responseObserver),
+                    compressionLevel);
+            try {
+                Files.copy(file, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            setMessageCompression(responseObserver, true);
+        }
+    }
+
+    // flow control, so that chunks are not buffered up faster than they can be sent
+    //
+    // this must not be called from the grpc executor thread, since that is the thread that delivers
+    // the onReady notification
+    //
+    // returns false if the stream has been closed in the meantime
+    private boolean waitForReady(StreamObserver<ClientResponse> responseObserver)
+            throws InterruptedException {
+        if (!(responseObserver instanceof CallStreamObserver)) {
+            return true;
+        }
+        CallStreamObserver<ClientResponse> callStreamObserver =
+                (CallStreamObserver<ClientResponse>) responseObserver;
+        synchronized (readyLock) {
+            while (!callStreamObserver.isReady()) {
+                if (responseObserver != currResponseObserver || closedByServer) {
+                    return false;
+                }
+                readyLock.wait();
+            }
+        }
+        return true;
+    }
+
+    private boolean waitForReadyUninterruptibly(StreamObserver<ClientResponse> responseObserver) {
+        try {
+            return waitForReady(responseObserver);
+        } catch (InterruptedException e) {
+            // restore interrupt status and give up on the response
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void notifyReadyWaiters() {
+        synchronized (readyLock) {
+            readyLock.notifyAll();
+        }
+    }
+
+    private static void setMessageCompression(StreamObserver<ClientResponse> responseObserver,
+            boolean enable) {
+        if (responseObserver instanceof CallStreamObserver) {
+            synchronized (responseObserver) {
+                ((CallStreamObserver<ClientResponse>) responseObserver)
+                        .setMessageCompression(enable);
+            }
+        }
+    }
+
+    // synchronization required since individual StreamObservers are not thread-safe, and responses
+    // are sent from both the grpc executor thread and the streaming response executor
+    private static void sendResponse(StreamObserver<ClientResponse> responseObserver,
+            ClientResponse response) {
+        synchronized (responseObserver) {
+            responseObserver.onNext(response);
+        }
     }
 
     private void sendExceptionResponse(ServerRequest request,
             StreamObserver<ClientResponse> responseObserver) {
-        responseObserver.onNext(ClientResponse.newBuilder()
+        sendResponse(responseObserver, ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setExceptionResponse(ExceptionResponse.getDefaultInstance())
                 .build());
@@ -665,10 +882,85 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             responseObserver = currResponseObserver;
         }
         responseObserver.onCompleted();
+        streamingResponseExecutor.shutdown();
         Stopwatch stopwatch = Stopwatch.createStarted();
         while (stopwatch.elapsed(SECONDS) < 10 && !closedByServer) {
             Thread.sleep(10);
         }
         checkState(closedByServer);
     }
+
+    private static class HeapDumpGzipOutputStream extends GZIPOutputStream {
+
+        private HeapDumpGzipOutputStream(OutputStream out, int compressionLevel)
+                throws IOException {
+            super(out, 65536);
+            def.setLevel(compressionLevel);
+        }
+    }
+
+    private class HeapDumpChunkOutputStream extends OutputStream {
+
+        private final long requestId;
+        private final byte[] buffer;
+        private final StreamObserver<ClientResponse> responseObserver;
+
+        private int count;
+
+        private HeapDumpChunkOutputStream(long requestId, int chunkSizeBytes,
+                StreamObserver<ClientResponse> responseObserver) {
+            this.requestId = requestId;
+            buffer = new byte[chunkSizeBytes];
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                sendChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (count == buffer.length) {
+                    sendChunk();
+                }
+                int n = Math.min(remaining, buffer.length - count);
+                System.arraycopy(b, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                sendChunk();
+            }
+        }
+
+        private void sendChunk() throws IOException {
+            try {
+                if (!waitForReady(responseObserver)) {
+                    throw new IOException("Connection to the server was closed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            sendResponse(responseObserver, ClientResponse.newBuilder()
+                    .setRequestId(requestId)
+                    .setMoreChunks(true)
+                    .setHeapDumpChunk(HeapDumpChunk.newBuilder()
+                            .setData(ByteString.copyFrom(buffer, 0, count)))
+                    .build());
+            count = 0;
+        }
+    }
 }
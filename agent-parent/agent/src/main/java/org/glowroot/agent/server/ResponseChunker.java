@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+
+import org.glowroot.agent.model.Transaction.EntryVisitor;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AuxThreadProfileResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.FullTraceResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MainThreadProfileResponse;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// splits large trace detail and mbean dump responses into chunks that are each (approximately) no
+// larger than the max chunk size
+//
+// entries responses are not split after the fact, but are built up chunk by chunk as the entries
+// are visited (see EntriesChunker), since they are the responses that can get really large
+//
+// the chunks are constructed so that the original response is re-assembled by simply merging the
+// chunks in order (protobuf merge concatenates repeated fields), e.g. profile name tables are only
+// sent in the first chunk, and subsequent chunks only contain profile nodes
+class ResponseChunker {
+
+    private ResponseChunker() {}
+
+    static List<ClientResponse> split(ClientResponse response, int maxChunkSizeBytes) {
+        if (response.getSerializedSize() <= maxChunkSizeBytes) {
+            return ImmutableList.of(response);
+        }
+        List<ClientResponse.Builder> chunks = Lists.newArrayList();
+        switch (response.getMessageCase()) {
+            case MAIN_THREAD_PROFILE_RESPONSE:
+                for (Profile profile : splitProfile(
+                        response.getMainThreadProfileResponse().getProfile(),
+                        maxChunkSizeBytes)) {
+                    chunks.add(ClientResponse.newBuilder()
+                            .setMainThreadProfileResponse(MainThreadProfileResponse.newBuilder()
+                                    .setProfile(profile)));
+                }
+                break;
+            case AUX_THREAD_PROFILE_RESPONSE:
+                for (Profile profile : splitProfile(
+                        response.getAuxThreadProfileResponse().getProfile(),
+                        maxChunkSizeBytes)) {
+                    chunks.add(ClientResponse.newBuilder()
+                            .setAuxThreadProfileResponse(AuxThreadProfileResponse.newBuilder()
+                                    .setProfile(profile)));
+                }
+                break;
+            case MBEAN_DUMP_RESPONSE:
+                for (List<MBeanDump.MBeanInfo> mbeanInfos : splitMessages(
+                        response.getMbeanDumpResponse().getMbeanDump().getMbeanInfoList(),
+                        maxChunkSizeBytes)) {
+                    chunks.add(ClientResponse.newBuilder()
+                            .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
+                                    .setMbeanDump(MBeanDump.newBuilder()
+                                            .addAllMbeanInfo(mbeanInfos))));
+                }
+                break;
+            case FULL_TRACE_RESPONSE:
+                for (Trace trace : splitTrace(response.getFullTraceResponse().getTrace(),
+                        maxChunkSizeBytes)) {
+                    chunks.add(ClientResponse.newBuilder()
+                            .setFullTraceResponse(FullTraceResponse.newBuilder()
+                                    .setTrace(trace)));
+                }
+                break;
+            default:
+                return ImmutableList.of(response);
+        }
+        List<ClientResponse> responses = Lists.newArrayList();
+        for (int i = 0; i < chunks.size(); i++) {
+            responses.add(chunks.get(i)
+                    .setRequestId(response.getRequestId())
+                    .setMoreChunks(i < chunks.size() - 1)
+                    .build());
+        }
+        return responses;
+    }
+
+    private static List<Trace> splitTrace(Trace trace, int maxChunkSizeBytes) {
+        List<Trace> chunks = Lists.newArrayList();
+        // first chunk is everything except for entries and profile nodes
+        Trace.Builder firstChunk = trace.toBuilder()
+                .clearEntry();
+        if (trace.hasMainThreadProfile()) {
+            firstChunk.getMainThreadProfileBuilder().clearNode();
+        }
+        if (trace.hasAuxThreadProfile()) {
+            firstChunk.getAuxThreadProfileBuilder().clearNode();
+        }
+        chunks.add(firstChunk.build());
+        for (List<Trace.Entry> entries : splitMessages(trace.getEntryList(),
+                maxChunkSizeBytes)) {
+            chunks.add(Trace.newBuilder()
+                    .addAllEntry(entries)
+                    .build());
+        }
+        if (trace.hasMainThreadProfile()) {
+            for (List<Profile.ProfileNode> nodes : splitMessages(
+                    trace.getMainThreadProfile().getNodeList(), maxChunkSizeBytes)) {
+                chunks.add(Trace.newBuilder()
+                        .setMainThreadProfile(Profile.newBuilder()
+                                .addAllNode(nodes))
+                        .build());
+            }
+        }
+        if (trace.hasAuxThreadProfile()) {
+            for (List<Profile.ProfileNode> nodes : splitMessages(
+                    trace.getAuxThreadProfile().getNodeList(), maxChunkSizeBytes)) {
+                chunks.add(Trace.newBuilder()
+                        .setAuxThreadProfile(Profile.newBuilder()
+                                .addAllNode(nodes))
+                        .build());
+            }
+        }
+        return chunks;
+    }
+
+    private static List<Profile> splitProfile(Profile profile, int maxChunkSizeBytes) {
+        List<Profile> chunks = Lists.newArrayList();
+        // first chunk is the name tables
+        chunks.add(profile.toBuilder()
+                .clearNode()
+                .build());
+        for (List<Profile.ProfileNode> nodes : splitMessages(profile.getNodeList(),
+                maxChunkSizeBytes)) {
+            chunks.add(Profile.newBuilder()
+                    .addAllNode(nodes)
+                    .build());
+        }
+        return chunks;
+    }
+
+    interface ChunkSender {
+        void send(ClientResponse chunk);
+    }
+
+    static class EntriesChunker implements EntryVisitor {
+
+        private final long requestId;
+        private final int maxChunkSizeBytes;
+        private final ChunkSender chunkSender;
+
+        private EntriesResponse.Builder currChunk = EntriesResponse.newBuilder();
+        private int currChunkSizeBytes;
+
+        EntriesChunker(long requestId, int maxChunkSizeBytes, ChunkSender chunkSender) {
+            this.requestId = requestId;
+            this.maxChunkSizeBytes = maxChunkSizeBytes;
+            this.chunkSender = chunkSender;
+        }
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            int entrySizeBytes = entry.getSerializedSize();
+            if (currChunk.getEntryCount() > 0
+                    && currChunkSizeBytes + entrySizeBytes > maxChunkSizeBytes) {
+                send(true);
+                currChunk = EntriesResponse.newBuilder();
+                currChunkSizeBytes = 0;
+            }
+            currChunk.addEntry(entry);
+            currChunkSizeBytes += entrySizeBytes;
+        }
+
+        // sends the last chunk (which is empty if there were no entries)
+        void finish() {
+            send(false);
+        }
+
+        private void send(boolean moreChunks) {
+            chunkSender.send(ClientResponse.newBuilder()
+                    .setRequestId(requestId)
+                    .setEntriesResponse(currChunk)
+                    .setMoreChunks(moreChunks)
+                    .build());
+        }
+    }
+
+    private static <T extends MessageLite> List<List<T>> splitMessages(List<T> messages,
+            int maxChunkSizeBytes) {
+        List<List<T>> chunks = Lists.newArrayList();
+        List<T> currChunk = Lists.newArrayList();
+        int currChunkSizeBytes = 0;
+        for (T message : messages) {
+            int messageSizeBytes = message.getSerializedSize();
+            if (!currChunk.isEmpty()
+                    && currChunkSizeBytes + messageSizeBytes > maxChunkSizeBytes) {
+                chunks.add(currChunk);
+                currChunk = Lists.newArrayList();
+                currChunkSizeBytes = 0;
+            }
+            currChunk.add(message);
+            currChunkSizeBytes += messageSizeBytes;
+        }
+        if (!currChunk.isEmpty()) {
+            chunks.add(currChunk);
+        }
+        return chunks;
+    }
+}
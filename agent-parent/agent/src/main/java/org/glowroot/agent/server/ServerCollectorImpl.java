@@ -21,18 +21,29 @@ import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.server.ServerConnection.GrpcCall;
+import org.glowroot.agent.server.ServerSpool.Message;
+import org.glowroot.agent.server.ServerSpool.Segment;
 import org.glowroot.common.live.LiveJvmService;
-import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
+import org.glowroot.common.model.AggregateDeltaEncoding;
+import org.glowroot.common.model.TraceStringDictionary;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -40,6 +51,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceGrpc;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
@@ -57,14 +69,52 @@ public class ServerCollectorImpl implements Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(ServerCollectorImpl.class);
 
+    // aggregates, gauge values and traces that cannot be sent to the server are spooled to disk (up
+    // to this size) and replayed once the connection is re-established
+    private static final long MAX_SPOOL_SIZE_BYTES = 50 * 1024 * 1024;
+
+    private static final int SPOOLED_AGGREGATE_MESSAGE = 1;
+    private static final int SPOOLED_BATCH_MESSAGE = 2;
+
+    // gauge values and traces are batched over this window, so that bursts of traces (e.g. during
+    // an error burst) are sent to the server in one rpc and compressed together
+    private static final long BATCH_WINDOW_MILLIS = 1000;
+
+    // large batches are split across multiple messages in the same (client streaming) rpc
+    private static final int MAX_BATCH_MESSAGE_SIZE_BYTES = 1024 * 1024;
+
     private final String agentId;
     private final ServerConnection serverConnection;
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
+    private final ServerSpool spool;
+    private final AtomicBoolean replayingSpool = new AtomicBoolean();
+
+    // aggregate messages are delta encoded against the last aggregate message acknowledged by the
+    // server, which is opt-in (glowroot.collector.aggregateDeltaEncoding=true) and only used if
+    // the server supports it
+    private final boolean aggregateDeltaEncodingEnabled;
+    private volatile boolean aggregateDeltaEncoding;
+    private final AtomicReference</*@Nullable*/ AggregateMessage> aggregateDeltaBase =
+            new AtomicReference</*@Nullable*/ AggregateMessage>();
+
+    // collectBatch() is only used once the server has indicated that it supports it (older servers
+    // respond to it with UNIMPLEMENTED), until then the unary collectGaugeValues() and
+    // collectTrace() are used instead
+    private volatile boolean batchSupported;
+
+    private final Object batchLock = new Object();
+    @GuardedBy("batchLock")
+    private List<GaugeValue> batchGaugeValues = Lists.newArrayList();
+    @GuardedBy("batchLock")
+    private List<Trace> batchTraces = Lists.newArrayList();
+    @GuardedBy("batchLock")
+    private boolean batchFlushScheduled;
+
     public ServerCollectorImpl(Map<String, String> properties, @Nullable String collectorHost,
-            LiveJvmService liveJvmService, LiveWeavingService liveWeavingService,
-            LiveTraceRepository liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
+            File baseDir, LiveJvmService liveJvmService, LiveWeavingService liveWeavingService,
+            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
             throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
@@ -81,8 +131,15 @@ public class ServerCollectorImpl implements Collector {
         } else {
             collectorPort = Integer.parseInt(collectorPortStr);
         }
+        String aggregateDeltaEncodingStr =
+                properties.get("glowroot.collector.aggregateDeltaEncoding");
+        if (Strings.isNullOrEmpty(aggregateDeltaEncodingStr)) {
+            aggregateDeltaEncodingStr =
+                    System.getProperty("glowroot.collector.aggregateDeltaEncoding");
+        }
         checkNotNull(collectorHost);
         this.agentId = agentId;
+        aggregateDeltaEncodingEnabled = Boolean.parseBoolean(aggregateDeltaEncodingStr);
 
         AtomicBoolean inConnectionFailure = new AtomicBoolean();
         serverConnection = new ServerConnection(collectorHost, collectorPort, inConnectionFailure);
@@ -91,6 +148,7 @@ public class ServerCollectorImpl implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(serverConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure);
+        spool = new ServerSpool(new File(baseDir, "spool"), MAX_SPOOL_SIZE_BYTES);
         downstreamServiceObserver.connectAsync();
     }
 
@@ -116,6 +174,9 @@ public class ServerCollectorImpl implements Collector {
                         logger.error(e.getMessage(), e);
                     }
                 }
+                aggregateDeltaEncoding = aggregateDeltaEncodingEnabled
+                        && response.getAggregateDeltaEncodingSupported();
+                batchSupported = response.getBatchSupported();
             }
         });
     }
@@ -128,41 +189,51 @@ public class ServerCollectorImpl implements Collector {
                 .setCaptureTime(captureTime)
                 .addAllAggregatesByType(aggregatesByType)
                 .addAllSharedQueryText(sharedQueryTexts)
+                .setRetainAsDeltaBase(aggregateDeltaEncoding)
                 .build();
-        serverConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
-            @Override
-            public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.collectAggregates(aggregateMessage, responseObserver);
-            }
-        });
+        // the full (not delta encoded) message is spooled if it cannot be sent
+        serverConnection.callWithAFewRetries(
+                new SpoolableGrpcCall(SPOOLED_AGGREGATE_MESSAGE, aggregateMessage) {
+                    private volatile boolean retry;
+                    @Override
+                    public void call(StreamObserver<EmptyMessage> responseObserver) {
+                        // retries are sent in full, since the failure may be that the server no
+                        // longer has the delta base (e.g. after server restart)
+                        AggregateMessage base = retry ? null : aggregateDeltaBase.get();
+                        retry = true;
+                        if (base == null) {
+                            collectorServiceStub.collectAggregates(aggregateMessage,
+                                    responseObserver);
+                        } else {
+                            collectorServiceStub.collectAggregates(
+                                    AggregateDeltaEncoding.encode(aggregateMessage, base),
+                                    responseObserver);
+                        }
+                    }
+                    @Override
+                    void doWithResponse(EmptyMessage response) {
+                        if (aggregateMessage.getRetainAsDeltaBase()) {
+                            updateAggregateDeltaBase(aggregateMessage);
+                        }
+                        super.doWithResponse(response);
+                    }
+                });
     }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
-        final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
-                .setAgentId(agentId)
-                .addAllGaugeValues(gaugeValues)
-                .build();
-        serverConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
-            @Override
-            public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
-            }
-        });
+        synchronized (batchLock) {
+            batchGaugeValues.addAll(gaugeValues);
+            scheduleBatchFlushIfNeeded();
+        }
     }
 
     @Override
     public void collectTrace(Trace trace) {
-        final TraceMessage traceMessage = TraceMessage.newBuilder()
-                .setAgentId(agentId)
-                .setTrace(trace)
-                .build();
-        serverConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
-            @Override
-            public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.collectTrace(traceMessage, responseObserver);
-            }
-        });
+        synchronized (batchLock) {
+            batchTraces.add(trace);
+            scheduleBatchFlushIfNeeded();
+        }
     }
 
     @Override
@@ -182,14 +253,292 @@ public class ServerCollectorImpl implements Collector {
         });
     }
 
+    @GuardedBy("batchLock")
+    private void scheduleBatchFlushIfNeeded() {
+        if (batchFlushScheduled) {
+            return;
+        }
+        serverConnection.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushBatch();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, BATCH_WINDOW_MILLIS);
+        batchFlushScheduled = true;
+    }
+
+    private void flushBatch() {
+        List<GaugeValue> gaugeValues;
+        List<Trace> traces;
+        synchronized (batchLock) {
+            gaugeValues = batchGaugeValues;
+            traces = batchTraces;
+            batchGaugeValues = Lists.newArrayList();
+            batchTraces = Lists.newArrayList();
+            batchFlushScheduled = false;
+        }
+        final List<BatchMessage> batchMessages = Lists.newArrayList();
+        BatchMessage.Builder builder = BatchMessage.newBuilder()
+                .setAgentId(agentId)
+                .addAllGaugeValue(gaugeValues);
+        TraceStringDictionary dictionary = new TraceStringDictionary();
+        int sizeBytes = 0;
+        for (Trace trace : traces) {
+            int traceSizeBytes = trace.getSerializedSize();
+            if (sizeBytes > 0 && sizeBytes + traceSizeBytes > MAX_BATCH_MESSAGE_SIZE_BYTES) {
+                batchMessages.add(builder.addAllSharedString(dictionary.getStrings()).build());
+                builder = BatchMessage.newBuilder()
+                        .setAgentId(agentId);
+                dictionary = new TraceStringDictionary();
+                sizeBytes = 0;
+            }
+            builder.addTrace(dictionary.encode(trace));
+            sizeBytes += traceSizeBytes;
+        }
+        batchMessages.add(builder.addAllSharedString(dictionary.getStrings()).build());
+        serverConnection.callWithAFewRetries(
+                new SpoolableGrpcCall(SPOOLED_BATCH_MESSAGE, batchMessages) {
+                    @Override
+                    public void call(StreamObserver<EmptyMessage> responseObserver) {
+                        collectBatch(batchMessages, responseObserver);
+                    }
+                });
+    }
+
+    private void collectBatch(List<BatchMessage> batchMessages,
+            StreamObserver<EmptyMessage> responseObserver) {
+        if (!batchSupported) {
+            new UnaryBatchCalls(batchMessages, responseObserver).callNext();
+            return;
+        }
+        StreamObserver<BatchMessage> requestObserver = collectorServiceStub
+                .collectBatch(new BatchResponseObserver(responseObserver));
+        for (BatchMessage batchMessage : batchMessages) {
+            requestObserver.onNext(batchMessage);
+        }
+        requestObserver.onCompleted();
+    }
+
+    // mirrors the server, which only retains the message if it is newer than its current base
+    private void updateAggregateDeltaBase(AggregateMessage aggregateMessage) {
+        while (true) {
+            AggregateMessage base = aggregateDeltaBase.get();
+            if (base != null && base.getCaptureTime() >= aggregateMessage.getCaptureTime()) {
+                return;
+            }
+            if (aggregateDeltaBase.compareAndSet(base, aggregateMessage)) {
+                return;
+            }
+        }
+    }
+
+    private void replaySpoolIfNeeded() {
+        if (spool.isEmpty() || !replayingSpool.compareAndSet(false, true)) {
+            return;
+        }
+        replayNextSegment();
+    }
+
+    private void replayNextSegment() {
+        Segment segment;
+        try {
+            segment = spool.readOldestSegment();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            replayingSpool.set(false);
+            return;
+        }
+        if (segment == null) {
+            replayingSpool.set(false);
+            return;
+        }
+        replay(segment, 0);
+    }
+
+    // messages are replayed one at a time, in the order that they were spooled
+    private void replay(final Segment segment, final int index) {
+        if (index == segment.getMessages().size()) {
+            spool.remove(segment);
+            replayNextSegment();
+            return;
+        }
+        Message message = segment.getMessages().get(index);
+        StreamObserver<EmptyMessage> responseObserver = new StreamObserver<EmptyMessage>() {
+            @Override
+            public void onNext(EmptyMessage value) {}
+            @Override
+            public void onError(final Throwable t) {
+                serverConnection.suppressLogCollector(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.debug(t.getMessage(), t);
+                    }
+                });
+                // remaining messages stay in the spool until the next successful request
+                replayingSpool.set(false);
+            }
+            @Override
+            public void onCompleted() {
+                replay(segment, index + 1);
+            }
+        };
+        try {
+            switch (message.getMessageType()) {
+                case SPOOLED_AGGREGATE_MESSAGE:
+                    collectorServiceStub.collectAggregates(
+                            AggregateMessage.parseFrom(message.getMessage()), responseObserver);
+                    break;
+                case SPOOLED_BATCH_MESSAGE:
+                    collectBatch(ImmutableList.of(BatchMessage.parseFrom(message.getMessage())),
+                            responseObserver);
+                    break;
+                default:
+                    logger.warn("unexpected spooled message type: {}", message.getMessageType());
+                    replay(segment, index + 1);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            logger.warn("unable to parse spooled message: {}", e.getMessage(), e);
+            replay(segment, index + 1);
+        }
+    }
+
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
         downstreamServiceObserver.close();
         serverConnection.close();
+        spool.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
         serverConnection.awaitClose();
     }
+
+    // falls back to the unary rpcs if the server turns out not to support collectBatch() (e.g. the
+    // agent was connected to a newer server during init, and then to an older one)
+    private class BatchResponseObserver implements StreamObserver<EmptyMessage> {
+
+        private final StreamObserver<EmptyMessage> responseObserver;
+
+        private BatchResponseObserver(StreamObserver<EmptyMessage> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(EmptyMessage value) {
+            responseObserver.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                // the retry (or the next spool replay) will use the unary rpcs
+                batchSupported = false;
+            }
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            responseObserver.onCompleted();
+        }
+    }
+
+    // sends the contents of the batch messages one at a time over the unary collectGaugeValues()
+    // and collectTrace() rpcs, completing the response observer once all of them have completed
+    private class UnaryBatchCalls implements StreamObserver<EmptyMessage> {
+
+        private final List<AbstractMessage> messages = Lists.newArrayList();
+        private final StreamObserver<EmptyMessage> responseObserver;
+
+        private volatile int index;
+
+        private UnaryBatchCalls(List<BatchMessage> batchMessages,
+                StreamObserver<EmptyMessage> responseObserver) {
+            for (BatchMessage batchMessage : batchMessages) {
+                if (batchMessage.getGaugeValueCount() > 0) {
+                    messages.add(GaugeValueMessage.newBuilder()
+                            .setAgentId(batchMessage.getAgentId())
+                            .addAllGaugeValues(batchMessage.getGaugeValueList())
+                            .build());
+                }
+                for (Trace trace : batchMessage.getTraceList()) {
+                    messages.add(TraceMessage.newBuilder()
+                            .setAgentId(batchMessage.getAgentId())
+                            .setTrace(TraceStringDictionary.decode(trace,
+                                    batchMessage.getSharedStringList()))
+                            .build());
+                }
+            }
+            this.responseObserver = responseObserver;
+        }
+
+        private void callNext() {
+            if (index == messages.size()) {
+                responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                responseObserver.onCompleted();
+                return;
+            }
+            AbstractMessage message = messages.get(index++);
+            if (message instanceof GaugeValueMessage) {
+                collectorServiceStub.collectGaugeValues((GaugeValueMessage) message, this);
+            } else {
+                collectorServiceStub.collectTrace((TraceMessage) message, this);
+            }
+        }
+
+        @Override
+        public void onNext(EmptyMessage value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            callNext();
+        }
+    }
+
+    private abstract class SpoolableGrpcCall extends GrpcCall<EmptyMessage> {
+
+        private final int messageType;
+        private final List<? extends AbstractMessage> messages;
+
+        private SpoolableGrpcCall(int messageType, AbstractMessage message) {
+            this(messageType, ImmutableList.of(message));
+        }
+
+        private SpoolableGrpcCall(int messageType, List<? extends AbstractMessage> messages) {
+            this.messageType = messageType;
+            this.messages = messages;
+        }
+
+        @Override
+        void doWithResponse(EmptyMessage response) {
+            // connection is healthy, so good time to replay anything that was spooled
+            replaySpoolIfNeeded();
+        }
+
+        @Override
+        void doWithUnsentRequest() {
+            try {
+                for (AbstractMessage message : messages) {
+                    spool.append(messageType, message.toByteArray());
+                }
+            } catch (final IOException e) {
+                serverConnection.suppressLogCollector(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.error(e.getMessage(), e);
+                    }
+                });
+            }
+        }
+    }
 }
@@ -36,6 +36,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.OnlyUsedByTests;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class ServerConnection {
@@ -106,12 +107,14 @@ class ServerConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.doWithUnsentRequest();
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
                 backPressureLogger.warn("not sending data to server because of an excessive backlog"
                         + " of {} requests in progress", PENDING_LIMIT);
+                call.doWithUnsentRequest();
                 return;
             }
             pendingRequestCount++;
@@ -136,6 +139,13 @@ class ServerConnection {
         call.call(new RetryingStreamObserver<T>(call, 15, -1));
     }
 
+    void schedule(Runnable command, long delayMillis) {
+        if (closed) {
+            return;
+        }
+        retryExecutor.schedule(command, delayMillis, MILLISECONDS);
+    }
+
     void suppressLogCollector(Runnable runnable) {
         boolean priorValue = suppressLogCollector.get();
         suppressLogCollector.set(true);
@@ -173,6 +183,9 @@ class ServerConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when the request is given up on (other than during close), either without being
+        // sent or after exhausting retries
+        void doWithUnsentRequest() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -203,6 +216,7 @@ class ServerConnection {
                 return;
             }
             if (inConnectionFailure.get()) {
+                grpcCall.doWithUnsentRequest();
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -216,6 +230,7 @@ class ServerConnection {
                 synchronized (backPressureLogger) {
                     pendingRequestCount--;
                 }
+                grpcCall.doWithUnsentRequest();
                 return;
             }
             // TODO revisit retry/backoff after next grpc version
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// bounded, append-only on-disk spool of messages that could not be sent to the server (e.g. while
+// the server is down for an upgrade), so that they can be replayed in order once the connection is
+// re-established
+//
+// messages are appended to segment files, and the oldest segment files are deleted once the total
+// size exceeds the max size, so that it is the oldest data that is lost during a long outage
+class ServerSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerSpool.class);
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final long maxSegmentSizeBytes;
+
+    @GuardedBy("this")
+    private final Deque<File> segmentFiles = Queues.newArrayDeque();
+    @GuardedBy("this")
+    private long totalSizeBytes;
+    @GuardedBy("this")
+    private long nextSegmentNum;
+    @GuardedBy("this")
+    private @Nullable DataOutputStream currentOut;
+    @GuardedBy("this")
+    private long currentSizeBytes;
+
+    ServerSpool(File dir, long maxSizeBytes) {
+        this(dir, maxSizeBytes, Math.max(maxSizeBytes / 16, 1));
+    }
+
+    ServerSpool(File dir, long maxSizeBytes, long maxSegmentSizeBytes) {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxSegmentSizeBytes = maxSegmentSizeBytes;
+        // pick up segments that were spooled prior to jvm restart
+        File[] files = dir.listFiles();
+        if (files != null) {
+            List<Long> segmentNums = Lists.newArrayList();
+            for (File file : files) {
+                Long segmentNum = getSegmentNum(file);
+                if (segmentNum != null) {
+                    segmentNums.add(segmentNum);
+                }
+            }
+            Collections.sort(segmentNums);
+            synchronized (this) {
+                for (long segmentNum : segmentNums) {
+                    File segmentFile = getSegmentFile(segmentNum);
+                    segmentFiles.add(segmentFile);
+                    totalSizeBytes += segmentFile.length();
+                    nextSegmentNum = segmentNum + 1;
+                }
+            }
+        }
+    }
+
+    synchronized void append(int messageType, byte[] message) throws IOException {
+        DataOutputStream out = currentOut;
+        if (out == null || currentSizeBytes >= maxSegmentSizeBytes) {
+            if (out != null) {
+                out.close();
+            }
+            out = openNewSegment();
+        }
+        out.writeByte(messageType);
+        out.writeInt(message.length);
+        out.write(message);
+        // flush each message so that it is durable across jvm restart
+        out.flush();
+        int recordSizeBytes = 5 + message.length;
+        currentSizeBytes += recordSizeBytes;
+        totalSizeBytes += recordSizeBytes;
+        while (totalSizeBytes > maxSizeBytes && segmentFiles.size() > 1) {
+            File oldestSegmentFile = segmentFiles.removeFirst();
+            totalSizeBytes -= oldestSegmentFile.length();
+            deleteSegmentFile(oldestSegmentFile);
+            logger.warn("server spool exceeded max size, discarded oldest spooled data");
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return segmentFiles.isEmpty();
+    }
+
+    // returns null if spool is empty
+    synchronized @Nullable Segment readOldestSegment() throws IOException {
+        File segmentFile = segmentFiles.peekFirst();
+        if (segmentFile == null) {
+            return null;
+        }
+        if (segmentFiles.size() == 1 && currentOut != null) {
+            // close the current segment so that subsequent messages are appended to a new segment
+            currentOut.close();
+            currentOut = null;
+        }
+        List<Message> messages = Lists.newArrayList();
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+        try {
+            while (true) {
+                int messageType = in.read();
+                if (messageType == -1) {
+                    break;
+                }
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                messages.add(new Message(messageType, message));
+            }
+        } catch (EOFException e) {
+            // last message was only partially written, e.g. jvm terminated during append
+            logger.debug(e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+        return new Segment(segmentFile, messages);
+    }
+
+    synchronized void remove(Segment segment) {
+        if (segmentFiles.remove(segment.file)) {
+            totalSizeBytes -= segment.file.length();
+            deleteSegmentFile(segment.file);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (currentOut != null) {
+            currentOut.close();
+            currentOut = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private DataOutputStream openNewSegment() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File segmentFile = getSegmentFile(nextSegmentNum++);
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile)));
+        segmentFiles.add(segmentFile);
+        currentOut = out;
+        currentSizeBytes = 0;
+        return out;
+    }
+
+    private File getSegmentFile(long segmentNum) {
+        return new File(dir, SEGMENT_FILE_PREFIX + segmentNum);
+    }
+
+    private static @Nullable Long getSegmentNum(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static void deleteSegmentFile(File segmentFile) {
+        if (!segmentFile.delete() && segmentFile.exists()) {
+            logger.warn("unable to delete server spool file: {}", segmentFile.getAbsolutePath());
+        }
+    }
+
+    static class Segment {
+
+        private final File file;
+        private final ImmutableList<Message> messages;
+
+        private Segment(File file, List<Message> messages) {
+            this.file = file;
+            this.messages = ImmutableList.copyOf(messages);
+        }
+
+        ImmutableList<Message> getMessages() {
+            return messages;
+        }
+    }
+
+    static class Message {
+
+        private final int messageType;
+        private final byte[] message;
+
+        private Message(int messageType, byte[] message) {
+            this.messageType = messageType;
+            this.message = message;
+        }
+
+        int getMessageType() {
+            return messageType;
+        }
+
+        byte[] getMessage() {
+            return message;
+        }
+    }
+}
@@ -17,22 +17,32 @@ package org.glowroot.agent.util;
 
 import java.lang.management.ManagementFactory;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.management.AttributeList;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
 import javax.management.MBeanServerFactory;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.QueryExp;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -67,6 +77,20 @@ public class LazyPlatformMBeanServer {
     private final List<ObjectNamePair> toBeRegistered = Lists.newCopyOnWriteArrayList();
     private final List<ObjectName> toBeUnregistered = Lists.newCopyOnWriteArrayList();
 
+    // objects successfully registered via lazyRegisterMBean(), used by lazyUnregisterMBean() so
+    // that it does not unregister a different object that is registered under the same name
+    private final ConcurrentMap<ObjectName, Object> registeredObjects = Maps.newConcurrentMap();
+
+    // resolved object name patterns (e.g. from gauge configs), kept up to date via mbean server
+    // registration and unregistration notifications, so that the patterns do not need to be
+    // re-resolved against every registered mbean on every gauge collection
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> resolvedPatterns =
+            Maps.newConcurrentMap();
+    private final Object resolvedPatternsLock = new Object();
+    @GuardedBy("resolvedPatternsLock")
+    private long registrationChangeCount;
+    private volatile boolean registrationListenerAdded;
+
     private volatile @MonotonicNonNull MBeanServer mbeanServer;
 
     public LazyPlatformMBeanServer() {
@@ -98,6 +122,36 @@ public class LazyPlatformMBeanServer {
         }
     }
 
+    // only unregisters the mbean if it was registered (or is pending registration) via
+    // lazyRegisterMBean() using the same object
+    public void lazyUnregisterMBean(Object object, String name) {
+        ObjectName objectName;
+        try {
+            objectName = ObjectName.getInstance(name);
+        } catch (MalformedObjectNameException e) {
+            logger.warn(e.getMessage(), e);
+            return;
+        }
+        synchronized (initListeners) {
+            if (mbeanServer == null) {
+                for (ObjectNamePair objectNamePair : toBeRegistered) {
+                    if (objectNamePair.object() == object
+                            && objectNamePair.name().equals(objectName)) {
+                        toBeRegistered.remove(objectNamePair);
+                        toBeUnregistered.remove(objectName);
+                    }
+                }
+            } else if (registeredObjects.remove(objectName, object)) {
+                toBeUnregistered.remove(objectName);
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (Throwable t) {
+                    logger.debug(t.getMessage(), t);
+                }
+            }
+        }
+    }
+
     public void invoke(ObjectName name, String operationName, Object[] params, String[] signature)
             throws Exception {
         ensureInit();
@@ -114,6 +168,34 @@ public class LazyPlatformMBeanServer {
         }
     }
 
+    // same as queryNames(pattern, null), except that the result is cached and kept up to date as
+    // mbeans are registered and unregistered
+    public Set<ObjectName> resolvePattern(ObjectName pattern) throws InterruptedException {
+        ensureInit();
+        if (!registrationListenerAdded) {
+            return queryNames(pattern, null);
+        }
+        Set<ObjectName> names = resolvedPatterns.get(pattern);
+        if (names != null) {
+            return ImmutableSet.copyOf(names);
+        }
+        long changeCount;
+        synchronized (resolvedPatternsLock) {
+            changeCount = registrationChangeCount;
+        }
+        Set<ObjectName> resolved = queryNames(pattern, null);
+        synchronized (resolvedPatternsLock) {
+            // only cache if no mbeans were registered or unregistered during the query, since
+            // those notifications could have been missed
+            if (changeCount == registrationChangeCount) {
+                Set<ObjectName> cached = Sets.newConcurrentHashSet();
+                cached.addAll(resolved);
+                resolvedPatterns.put(pattern, cached);
+            }
+        }
+        return resolved;
+    }
+
     public MBeanInfo getMBeanInfo(ObjectName name) throws Exception {
         ensureInit();
         return mbeanServer.getMBeanInfo(name);
@@ -124,6 +206,12 @@ public class LazyPlatformMBeanServer {
         return mbeanServer.getAttribute(name, attribute);
     }
 
+    // attributes that cannot be read are omitted from the returned list
+    public AttributeList getAttributes(ObjectName name, String[] attributes) throws Exception {
+        ensureInit();
+        return mbeanServer.getAttributes(name, attributes);
+    }
+
     public void addInitListener(InitListener initListener) {
         synchronized (initListeners) {
             if (mbeanServer == null) {
@@ -142,6 +230,7 @@ public class LazyPlatformMBeanServer {
     private void safeRegisterMBean(Object object, ObjectName name) {
         try {
             mbeanServer.registerMBean(object, name);
+            registeredObjects.put(name, object);
         } catch (InstanceAlreadyExistsException e) {
             // this happens during unit tests when a non-shared local container is used
             // (so that then there are two local containers in the same jvm)
@@ -196,10 +285,22 @@ public class LazyPlatformMBeanServer {
                     safeRegisterMBean(objectNamePair.object(), objectNamePair.name());
                 }
                 toBeRegistered.clear();
+                addRegistrationListener(mbeanServer);
             }
         }
     }
 
+    private void addRegistrationListener(MBeanServer mbeanServer) {
+        try {
+            mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                    new RegistrationListener(), null, null);
+            registrationListenerAdded = true;
+        } catch (Throwable t) {
+            // patterns will be resolved on every call instead
+            logger.debug(t.getMessage(), t);
+        }
+    }
+
     @VisibleForTesting
     public static void waitForMBeanServer(Stopwatch stopwatch) throws InterruptedException {
         stopwatch.start();
@@ -223,6 +324,31 @@ public class LazyPlatformMBeanServer {
         ObjectName name();
     }
 
+    private class RegistrationListener implements NotificationListener {
+
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            String type = notification.getType();
+            synchronized (resolvedPatternsLock) {
+                registrationChangeCount++;
+                for (Map.Entry<ObjectName, Set<ObjectName>> entry : resolvedPatterns.entrySet()) {
+                    if (!entry.getKey().apply(name)) {
+                        continue;
+                    }
+                    if (type.equals(MBeanServerNotification.REGISTRATION_NOTIFICATION)) {
+                        entry.getValue().add(name);
+                    } else if (type.equals(MBeanServerNotification.UNREGISTRATION_NOTIFICATION)) {
+                        entry.getValue().remove(name);
+                    }
+                }
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class ObjectNamePatternQueryExp implements QueryExp {
 
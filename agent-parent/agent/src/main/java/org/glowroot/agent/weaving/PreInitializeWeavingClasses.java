@@ -264,6 +264,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.plugin.api.Timer");
         types.add("org.glowroot.agent.plugin.api.TimerName");
         types.add("org.glowroot.agent.plugin.api.config.ConfigListener");
+        types.add("org.glowroot.agent.plugin.api.internal.LogEventAggregator");
         types.add("org.glowroot.agent.plugin.api.util.FastThreadLocal");
         types.add("org.glowroot.agent.plugin.api.util.FastThreadLocal$Holder");
         types.add("org.glowroot.agent.plugin.api.weaving.BindClassMeta");
@@ -543,6 +544,26 @@ public class PreInitializeWeavingClasses {
         // java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:617)[na:1.8.0_20]
         // java.lang.Thread.run(Thread.java:745)[na:1.8.0_20]
         types.add("java.util.concurrent.ThreadLocalRandom");
+        // pre-initialize LinkedHashMap$LinkedKeyIterator to avoid this error that occurred during
+        // integration tests (QueryNormalizationIT), where reading a plugin class resource during
+        // weaving triggers java.io.ExpiringCache.cleanup(), which iterates a LinkedHashMap:
+        //
+        // java.lang.ClassCircularityError: java/util/LinkedHashMap$LinkedKeyIterator
+        //
+        // java.util.LinkedHashMap$LinkedKeySet.iterator(LinkedHashMap.java:539)
+        // java.io.ExpiringCache.cleanup(ExpiringCache.java:117)
+        // java.io.ExpiringCache.get(ExpiringCache.java:76)
+        // java.io.UnixFileSystem.canonicalize(UnixFileSystem.java:152)
+        // java.io.File.getCanonicalPath(File.java:618)
+        // ...
+        // org.glowroot.agent.weaving.AnalyzedWorld.createAnalyzedClass(AnalyzedWorld.java)
+        // ...
+        // org.glowroot.agent.weaving.WeavingClassFileTransformer.transform(WeavingClassFileTransformer.java)
+        // sun.instrument.TransformerManager.transform(TransformerManager.java:188)
+        // sun.instrument.InstrumentationImpl.transform(InstrumentationImpl.java:428)
+        // java.util.LinkedHashMap$LinkedKeySet.iterator(LinkedHashMap.java:539)
+        // java.io.ExpiringCache.cleanup(ExpiringCache.java:117)
+        types.add("java.util.LinkedHashMap$LinkedKeyIterator");
         return types;
     }
 }
@@ -22,6 +22,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.junit.Test;
 
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -39,7 +41,7 @@ public class QueryCollectorTest {
         List<String> sharedQueryTexts = Lists.newArrayList();
         Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
         List<QueriesByType> queriesByTypeList =
-                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes);
+                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes, new ScratchBuffer());
         // then
         assertThat(queriesByTypeList).hasSize(1);
         QueriesByType queriesByType = queriesByTypeList.get(0);
@@ -59,7 +61,7 @@ public class QueryCollectorTest {
         List<String> sharedQueryTexts = Lists.newArrayList();
         Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
         List<QueriesByType> queriesByTypeList =
-                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes);
+                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes, new ScratchBuffer());
         // then
         assertThat(queriesByTypeList).hasSize(1);
         QueriesByType queriesByType = queriesByTypeList.get(0);
@@ -67,4 +69,47 @@ public class QueryCollectorTest {
         assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
         assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
     }
+
+    @Test
+    public void testDurationHistogram() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2);
+        for (int i = 0; i < 99; i++) {
+            queries.mergeQuery("SQL", "select 1", 2000000, 2, true, 1);
+            queries.endTransaction();
+        }
+        queries.mergeQuery("SQL", "select 1", 100000000, 1, true, 1);
+        queries.endTransaction();
+        // when
+        List<String> sharedQueryTexts = Lists.newArrayList();
+        Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        List<QueriesByType> queriesByTypeList =
+                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes, new ScratchBuffer());
+        // then
+        LazyHistogram histogram = new LazyHistogram(
+                queriesByTypeList.get(0).getQuery(0).getDurationNanosHistogram());
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(990000L, 1010000L);
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(99000000L, 101000000L);
+    }
+
+    @Test
+    public void testDurationHistogramAcrossThreadContexts() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2);
+        // main thread context and two aux thread contexts of the same transaction
+        queries.mergeQuery("SQL", "select 1", 1000000, 1, true, 1);
+        queries.mergeQuery("SQL", "select 1", 2000000, 1, true, 1);
+        queries.mergeQuery("SQL", "select 1", 6000000, 2, true, 1);
+        queries.endTransaction();
+        // when
+        List<String> sharedQueryTexts = Lists.newArrayList();
+        Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        List<QueriesByType> queriesByTypeList =
+                queries.toProto(sharedQueryTexts, sharedQueryTextIndexes, new ScratchBuffer());
+        // then
+        LazyHistogram histogram = new LazyHistogram(
+                queriesByTypeList.get(0).getQuery(0).getDurationNanosHistogram());
+        assertThat(histogram.getCount()).isEqualTo(1);
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(2250000L, 2270000L);
+    }
 }
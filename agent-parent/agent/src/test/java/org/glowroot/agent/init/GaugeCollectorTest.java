@@ -19,6 +19,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MalformedObjectNameException;
@@ -68,6 +70,8 @@ public class GaugeCollectorTest {
 
         Collector collector = mock(Collector.class);
         lazyPlatformMBeanServer = mock(LazyPlatformMBeanServer.class);
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList());
         clock = mock(Clock.class);
         ticker = mock(Ticker.class);
         logger = mock(Logger.class);
@@ -208,6 +212,33 @@ public class GaugeCollectorTest {
                 eq("ddd"), any(RuntimeException.class));
     }
 
+    @Test
+    public void shouldReadMBeanAttributesInBulk() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        attributeList.add(new Attribute("ddd", 2.5));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(1);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2.5);
+        verify(lazyPlatformMBeanServer).getAttributes(ObjectName.getInstance("xyz:aaa=bbb"),
+                new String[] {"ccc", "ddd"});
+        verify(lazyPlatformMBeanServer, times(0)).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
     @Test
     public void shouldHandleMBeanAttributeNotANumber() throws Exception {
         // given
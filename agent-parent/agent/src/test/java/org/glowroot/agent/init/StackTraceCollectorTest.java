@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.config.ImmutableTransactionConfig;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.model.ThreadContextImpl;
+import org.glowroot.agent.model.Transaction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    private TransactionRegistry transactionRegistry;
+    private StackTraceCollector stackTraceCollector;
+
+    @Before
+    public void beforeEachTest() {
+        transactionRegistry = mock(TransactionRegistry.class);
+        ConfigService configService = mock(ConfigService.class);
+        // profiling interval 0 keeps the processing thread idle, so that the test can drive the
+        // stack trace capture directly
+        when(configService.getTransactionConfig()).thenReturn(
+                ImmutableTransactionConfig.builder().profilingIntervalMillis(0).build());
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, new Random());
+    }
+
+    @After
+    public void afterEachTest() {
+        stackTraceCollector.close();
+    }
+
+    @Test
+    public void shouldSpreadBatchesAcrossRemainingInterval() throws Exception {
+        // given
+        List<ThreadContextImpl> threadContexts = setupThreadContexts(250);
+        // when
+        long startMillis = System.currentTimeMillis();
+        long remainingInInterval = stackTraceCollector.captureStackTraces(300);
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        // then
+        // 3 batches, with 100 milliseconds between each
+        assertThat(remainingInInterval).isEqualTo(100);
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(200);
+        for (ThreadContextImpl threadContext : threadContexts) {
+            verify(threadContext).captureStackTrace(any(StackTraceElement[].class),
+                    any(Thread.State.class), anyInt());
+        }
+        assertThat(stackTraceCollector.getTotalStackTraceCount()).isEqualTo(250);
+        assertThat(stackTraceCollector.getLastIntervalStackFrameCount()).isPositive();
+        assertThat(stackTraceCollector.getTotalStackFrameCount())
+                .isEqualTo(stackTraceCollector.getLastIntervalStackFrameCount());
+    }
+
+    @Test
+    public void shouldSkipThreadsCompletedBeforeTheirBatch() throws Exception {
+        // given
+        List<ThreadContextImpl> threadContexts = setupThreadContexts(150);
+        for (ThreadContextImpl threadContext : threadContexts.subList(100, 150)) {
+            when(threadContext.isCompleted()).thenReturn(true);
+        }
+        // when
+        long remainingInInterval = stackTraceCollector.captureStackTraces(20);
+        // then
+        assertThat(remainingInInterval).isEqualTo(10);
+        for (ThreadContextImpl threadContext : threadContexts.subList(0, 100)) {
+            verify(threadContext).captureStackTrace(any(StackTraceElement[].class),
+                    any(Thread.State.class), anyInt());
+        }
+        for (ThreadContextImpl threadContext : threadContexts.subList(100, 150)) {
+            verify(threadContext, never()).captureStackTrace(any(StackTraceElement[].class),
+                    any(Thread.State.class), anyInt());
+        }
+        assertThat(stackTraceCollector.getTotalStackTraceCount()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNotCaptureWhenNoActiveThreads() throws Exception {
+        // given
+        List<ThreadContextImpl> threadContexts = setupThreadContexts(1);
+        when(threadContexts.get(0).isCompleted()).thenReturn(true);
+        // when
+        long remainingInInterval = stackTraceCollector.captureStackTraces(300);
+        // then
+        assertThat(remainingInInterval).isEqualTo(300);
+        verify(threadContexts.get(0), never()).captureStackTrace(any(StackTraceElement[].class),
+                any(Thread.State.class), anyInt());
+        assertThat(stackTraceCollector.getTotalStackTraceCount()).isZero();
+    }
+
+    // a single transaction with a main thread context and (count - 1) auxiliary thread contexts,
+    // all of which point to the current thread so that there is a live stack trace to capture
+    private List<ThreadContextImpl> setupThreadContexts(int count) {
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+            when(threadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+            threadContexts.add(threadContext);
+        }
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getMainThreadContext()).thenReturn(threadContexts.get(0));
+        when(transaction.getActiveAuxThreadContexts())
+                .thenReturn(threadContexts.subList(1, count));
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.of(transaction));
+        return threadContexts;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.Transaction.RootTimerCollector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncTimersTest {
+
+    private static final TimerNameImpl timerName = ImmutableTimerNameImpl.of("http client", false);
+
+    @Test
+    public void shouldNotAggregateActiveTimers() {
+        // given
+        AsyncTimers asyncTimers = new AsyncTimers(2);
+        // when
+        for (int i = 0; i < 5; i++) {
+            asyncTimers.add(new AsyncTimerImpl(timerName, 0));
+        }
+        // then
+        assertThat(asyncTimers.getRetainedCount()).isEqualTo(5);
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        asyncTimers.mergeInto(rootTimers);
+        assertThat(rootTimers.rootTimers).hasSize(5);
+    }
+
+    @Test
+    public void shouldAggregateCompletedTimersWhenThresholdExceeded() {
+        // given
+        AsyncTimers asyncTimers = new AsyncTimers(2);
+        AsyncTimerImpl activeAsyncTimer = new AsyncTimerImpl(timerName, 0);
+        asyncTimers.add(completedAsyncTimer());
+        asyncTimers.add(completedAsyncTimer());
+        // when
+        asyncTimers.add(activeAsyncTimer);
+        // then
+        assertThat(asyncTimers.getRetainedCount()).isEqualTo(1);
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        asyncTimers.mergeInto(rootTimers);
+        assertThat(rootTimers.rootTimers).hasSize(2);
+        assertThat(rootTimers.rootTimers.get(0)).isSameAs(activeAsyncTimer);
+        CommonTimerImpl aggregateTimer = rootTimers.rootTimers.get(1);
+        assertThat(aggregateTimer.getName()).isEqualTo("http client");
+        assertThat(aggregateTimer.getTotalNanos()).isEqualTo(20);
+        assertThat(aggregateTimer.getCount()).isEqualTo(2);
+    }
+
+    private static AsyncTimerImpl completedAsyncTimer() {
+        AsyncTimerImpl asyncTimer = new AsyncTimerImpl(timerName, 0);
+        asyncTimer.end(10);
+        return asyncTimer;
+    }
+
+    private static class RootTimerCollectorImpl implements RootTimerCollector {
+
+        private final List<CommonTimerImpl> rootTimers = Lists.newArrayList();
+
+        @Override
+        public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            rootTimers.add(rootTimer);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.Transaction.RootTimerCollector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuxThreadContextsTest {
+
+    @Test
+    public void shouldRejectWhenMaxReachedAndNothingToCoalesce() {
+        // given
+        AuxThreadContexts auxThreadContexts = new AuxThreadContexts(2);
+        // when
+        boolean added1 = auxThreadContexts.add(mockThreadContext(false));
+        boolean added2 = auxThreadContexts.add(mockThreadContext(false));
+        boolean added3 = auxThreadContexts.add(mockThreadContext(false));
+        // then
+        assertThat(added1).isTrue();
+        assertThat(added2).isTrue();
+        assertThat(added3).isFalse();
+        assertThat(auxThreadContexts.getThreadContexts()).hasSize(2);
+    }
+
+    @Test
+    public void shouldCoalesceWhenMaxReached() {
+        // given
+        AuxThreadContexts auxThreadContexts = new AuxThreadContexts(2);
+        ThreadContextImpl activeThreadContext = mockThreadContext(false);
+        ThreadContextImpl newThreadContext = mockThreadContext(false);
+        auxThreadContexts.add(mockThreadContext(true));
+        auxThreadContexts.add(activeThreadContext);
+        // when
+        boolean added = auxThreadContexts.add(newThreadContext);
+        // then
+        assertThat(added).isTrue();
+        assertThat(auxThreadContexts.getThreadContexts()).containsExactly(activeThreadContext,
+                newThreadContext);
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        auxThreadContexts.mergeRootTimersInto(rootTimers);
+        long totalNanos = 0;
+        long count = 0;
+        for (CommonTimerImpl rootTimer : rootTimers.rootTimers) {
+            totalNanos += rootTimer.getTotalNanos();
+            count += rootTimer.getCount();
+        }
+        assertThat(rootTimers.rootTimers).hasSize(3);
+        assertThat(totalNanos).isEqualTo(30);
+        assertThat(count).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldBoundGrowthWhileLockIsHeld() throws Exception {
+        // given
+        final AuxThreadContexts auxThreadContexts = new AuxThreadContexts(2);
+        auxThreadContexts.add(mockThreadContext(false));
+        auxThreadContexts.add(mockThreadContext(false));
+        final CountDownLatch readerHoldsLock = new CountDownLatch(1);
+        final CountDownLatch releaseReader = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                auxThreadContexts.mergeRootTimersInto(new RootTimerCollector() {
+                    @Override
+                    public void mergeRootTimer(CommonTimerImpl rootTimer) {
+                        readerHoldsLock.countDown();
+                        try {
+                            releaseReader.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        });
+        reader.start();
+        readerHoldsLock.await();
+        // when
+        int added = 0;
+        for (int i = 0; i < 10; i++) {
+            if (auxThreadContexts.add(mockThreadContext(false))) {
+                added++;
+            }
+        }
+        releaseReader.countDown();
+        reader.join();
+        // then
+        assertThat(added).isEqualTo(2);
+        assertThat(auxThreadContexts.getThreadContexts()).hasSize(4);
+    }
+
+    private static ThreadContextImpl mockThreadContext(boolean coalescable) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("auxiliary thread");
+        when(rootTimer.getSnapshot()).thenReturn(ImmutableTimerImplSnapshot.of(10, 1, false));
+        when(rootTimer.getTotalNanos()).thenReturn(10L);
+        when(rootTimer.getCount()).thenReturn(1L);
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.isCoalescable()).thenReturn(coalescable);
+        when(threadContext.getRootTimer()).thenReturn(rootTimer);
+        when(threadContext.getThreadStats()).thenReturn(ThreadStats.NA);
+        return threadContext;
+    }
+
+    private static class RootTimerCollectorImpl implements RootTimerCollector {
+
+        private final List<CommonTimerImpl> rootTimers = Lists.newArrayList();
+
+        @Override
+        public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            rootTimers.add(rootTimer);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProfileTest {
+
+    @Test
+    public void shouldMergeDeltaEncodedSamplesFromMultipleThreads() throws Exception {
+        // given
+        Profile profile = new Profile();
+        MutableProfile expected = new MutableProfile();
+        // when
+        add(profile, expected, 1, stackTrace("c", "b", "a"), Thread.State.RUNNABLE);
+        add(profile, expected, 2, stackTrace("z", "y", "a"), Thread.State.BLOCKED);
+        add(profile, expected, 1, stackTrace("d", "b", "a"), Thread.State.RUNNABLE);
+        add(profile, expected, 1, stackTrace("b", "a"), Thread.State.WAITING);
+        add(profile, expected, 2, stackTrace("x", "z", "y", "a"), Thread.State.RUNNABLE);
+        add(profile, expected, 1, stackTrace("e"), Thread.State.RUNNABLE);
+        // then
+        MutableProfile merged = new MutableProfile();
+        profile.mergeInto(merged);
+        assertThat(merged.toJson()).isEqualTo(expected.toJson());
+        assertThat(profile.getSampleCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldMergeAfterExceedingUnmergedSamples() throws Exception {
+        // given
+        Profile profile = new Profile();
+        MutableProfile expected = new MutableProfile();
+        // when
+        for (int i = 0; i < 25; i++) {
+            add(profile, expected, i % 3, stackTrace("m" + (i % 4), "b", "a"),
+                    Thread.State.RUNNABLE);
+        }
+        // then
+        MutableProfile merged = new MutableProfile();
+        profile.mergeInto(merged);
+        assertThat(merged.toJson()).isEqualTo(expected.toJson());
+        assertThat(profile.getSampleCount()).isEqualTo(25);
+    }
+
+    private static void add(Profile profile, MutableProfile expected, long threadId,
+            StackTraceElement[] stackTrace, Thread.State threadState) {
+        profile.addStackTrace(threadId, stackTrace, threadState, Integer.MAX_VALUE);
+        expected.merge(Arrays.asList(stackTrace), threadState);
+    }
+
+    private static StackTraceElement[] stackTrace(String... methodNames) {
+        StackTraceElement[] stackTrace = new StackTraceElement[methodNames.length];
+        for (int i = 0; i < methodNames.length; i++) {
+            // new instances each time, same as ThreadMXBean.getThreadInfo()
+            stackTrace[i] = new StackTraceElement("org.example.Example", methodNames[i],
+                    "Example.java", 10 + i);
+        }
+        return stackTrace;
+    }
+}
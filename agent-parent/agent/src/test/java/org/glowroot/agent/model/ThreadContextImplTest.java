@@ -30,6 +30,8 @@ import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 public class ThreadContextImplTest {
 
@@ -37,6 +39,8 @@ public class ThreadContextImplTest {
 
     private MessageSupplier messageSupplier = mock(MessageSupplier.class);
     private TimerNameImpl timerName = mock(TimerNameImpl.class);
+    @SuppressWarnings("unchecked")
+    private Holder<ThreadContextImpl> threadContextHolder = mock(Holder.class);
 
     @Before
     public void beforeEachTest() {
@@ -44,8 +48,6 @@ public class ThreadContextImplTest {
         MessageSupplier messageSupplier = mock(MessageSupplier.class);
         TimerNameImpl rootTimerName = mock(TimerNameImpl.class);
         Ticker ticker = mock(Ticker.class);
-        @SuppressWarnings("unchecked")
-        Holder<ThreadContextImpl> threadContextHolder = mock(Holder.class);
         threadContext = new ThreadContextImpl(transaction, null, null, messageSupplier,
                 rootTimerName, 0, false, null, false, ticker, threadContextHolder, null);
     }
@@ -155,6 +157,23 @@ public class ThreadContextImplTest {
                         .getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
     }
 
+    @Test
+    public void testStartAggregatedLogEntry() {
+        assertThat(threadContext.startAggregatedLogEntry(null, "logger", "message",
+                messageSupplier, timerName)).isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(threadContext.startAggregatedLogEntry("info", null, "message", messageSupplier,
+                timerName)).isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(threadContext.startAggregatedLogEntry("info", "logger", null, messageSupplier,
+                timerName)).isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(threadContext.startAggregatedLogEntry("info", "logger", "message", null,
+                timerName)).isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(threadContext.startAggregatedLogEntry("info", "logger", "message",
+                messageSupplier, null)).isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(threadContext.startAggregatedLogEntry("info", "logger", "message",
+                messageSupplier, timerName).getClass().getName())
+                        .endsWith("$DummyTraceEntryOrQuery");
+    }
+
     @Test
     public void testStartTimer() {
         assertThat(threadContext.startTimer(null)).isEqualTo(NopTimer.INSTANCE);
@@ -163,6 +182,23 @@ public class ThreadContextImplTest {
         assertThat(threadContext.startTimer(timerName)).isEqualTo(NopTimer.INSTANCE);
     }
 
+    @Test
+    public void testRestoreSuspendedThreadContext() {
+        ThreadContextImpl auxThreadContext = newAuxThreadContext();
+        threadContext.suspend(auxThreadContext);
+        auxThreadContext.getRootEntry().end();
+        verify(threadContextHolder).set(threadContext);
+    }
+
+    @Test
+    public void testDoNotRestoreDetachedThreadContext() {
+        ThreadContextImpl auxThreadContext = newAuxThreadContext();
+        threadContext.suspend(auxThreadContext);
+        threadContext.detach();
+        auxThreadContext.getRootEntry().end();
+        verify(threadContextHolder, never()).set(threadContext);
+    }
+
     @Test
     public void testSetters() {
         threadContext.setTransactionType(null, 0);
@@ -173,4 +209,14 @@ public class ThreadContextImplTest {
         threadContext.setTransactionSlowThreshold(0, null, 0);
         threadContext.setTransactionError((String) null);
     }
+
+    private ThreadContextImpl newAuxThreadContext() {
+        // auxiliary thread context of another transaction
+        Transaction transaction = mock(Transaction.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerNameImpl rootTimerName = mock(TimerNameImpl.class);
+        Ticker ticker = mock(Ticker.class);
+        return new ThreadContextImpl(transaction, null, null, messageSupplier, rootTimerName, 0,
+                false, null, true, ticker, threadContextHolder, null);
+    }
 }
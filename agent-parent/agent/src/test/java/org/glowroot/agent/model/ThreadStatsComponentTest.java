@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @BeforeClass
+    public static void setUp() {
+        assumeTrue(threadMXBean.isThreadCpuTimeSupported());
+        assumeTrue(threadMXBean.isThreadCpuTimeEnabled());
+    }
+
+    @Test
+    public void shouldExcludeSuspendedCpuTimeOnResume() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        ThreadStatsComponent suspendedBy = new ThreadStatsComponent(null);
+        threadStatsComponent.onSuspend(suspendedBy);
+        burnCpu(100);
+        suspendedBy.onComplete();
+        // when
+        threadStatsComponent.onResume();
+        // then
+        assertThat(suspendedBy.getThreadStats().getTotalCpuNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(100));
+        assertThat(threadStatsComponent.getThreadStats().getTotalCpuNanos())
+                .isLessThan(MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void shouldExcludeSuspendedCpuTimeWhileSuspended() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        ThreadStatsComponent suspendedBy = new ThreadStatsComponent(null);
+        threadStatsComponent.onSuspend(suspendedBy);
+        // when
+        burnCpu(100);
+        // then
+        assertThat(threadStatsComponent.getThreadStats().getTotalCpuNanos())
+                .isLessThan(MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void shouldExcludeNestedSuspendedCpuTime() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        ThreadStatsComponent suspendedBy = new ThreadStatsComponent(null);
+        threadStatsComponent.onSuspend(suspendedBy);
+        ThreadStatsComponent nestedSuspendedBy = new ThreadStatsComponent(null);
+        suspendedBy.onSuspend(nestedSuspendedBy);
+        burnCpu(100);
+        nestedSuspendedBy.onComplete();
+        suspendedBy.onResume();
+        suspendedBy.onComplete();
+        // when
+        threadStatsComponent.onResume();
+        // then
+        assertThat(suspendedBy.getThreadStats().getTotalCpuNanos())
+                .isLessThan(MILLISECONDS.toNanos(50));
+        assertThat(threadStatsComponent.getThreadStats().getTotalCpuNanos())
+                .isLessThan(MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void shouldNotExcludeWhenSuspendedByNull() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        threadStatsComponent.onSuspend(null);
+        burnCpu(100);
+        // when
+        threadStatsComponent.onResume();
+        // then
+        assertThat(threadStatsComponent.getThreadStats().getTotalCpuNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(100));
+    }
+
+    private static void burnCpu(long millis) {
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        long endCpuNanos = startCpuNanos + MILLISECONDS.toNanos(millis);
+        double x = 0;
+        while (threadMXBean.getCurrentThreadCpuTime() < endCpuNanos) {
+            for (int i = 0; i < 10000; i++) {
+                x += Math.sqrt(i);
+            }
+        }
+        if (x == 0) {
+            throw new AssertionError();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.server.ResponseChunker.ChunkSender;
+import org.glowroot.agent.server.ResponseChunker.EntriesChunker;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.FullTraceResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpResponse;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseChunkerTest {
+
+    @Test
+    public void shouldNotSplitSmallResponse() {
+        // given
+        ClientResponse response = ClientResponse.newBuilder()
+                .setRequestId(1)
+                .setEntriesResponse(EntriesResponse.newBuilder()
+                        .addEntry(entry(0)))
+                .build();
+        // when
+        List<ClientResponse> chunks = ResponseChunker.split(response, 1000);
+        // then
+        assertThat(chunks).containsExactly(response);
+    }
+
+    @Test
+    public void shouldChunkEntriesAsTheyAreVisited() {
+        // given
+        final List<ClientResponse> chunks = Lists.newArrayList();
+        EntriesChunker entriesChunker = new EntriesChunker(1, 1000, new ChunkSender() {
+            @Override
+            public void send(ClientResponse chunk) {
+                chunks.add(chunk);
+            }
+        });
+        EntriesResponse.Builder entriesResponse = EntriesResponse.newBuilder();
+        // when
+        for (int i = 0; i < 100; i++) {
+            entriesChunker.visitEntry(entry(i));
+            entriesResponse.addEntry(entry(i));
+        }
+        // chunks are sent along the way, not only at the end
+        int chunkCountBeforeFinish = chunks.size();
+        entriesChunker.finish();
+        // then
+        assertThat(chunkCountBeforeFinish).isGreaterThan(1);
+        for (int i = 0; i < chunks.size(); i++) {
+            assertThat(chunks.get(i).getSerializedSize()).isLessThan(1100);
+            assertThat(chunks.get(i).getMoreChunks()).isEqualTo(i < chunks.size() - 1);
+        }
+        assertThat(merge(chunks)).isEqualTo(ClientResponse.newBuilder()
+                .setRequestId(1)
+                .setEntriesResponse(entriesResponse)
+                .build());
+    }
+
+    @Test
+    public void shouldSendEmptyChunkWhenNoEntries() {
+        // given
+        final List<ClientResponse> chunks = Lists.newArrayList();
+        EntriesChunker entriesChunker = new EntriesChunker(1, 1000, new ChunkSender() {
+            @Override
+            public void send(ClientResponse chunk) {
+                chunks.add(chunk);
+            }
+        });
+        // when
+        entriesChunker.finish();
+        // then
+        assertThat(chunks).containsExactly(ClientResponse.newBuilder()
+                .setRequestId(1)
+                .setEntriesResponse(EntriesResponse.getDefaultInstance())
+                .build());
+    }
+
+    @Test
+    public void shouldSplitFullTraceResponse() {
+        // given
+        Trace.Builder trace = Trace.newBuilder()
+                .setId("abc")
+                .setHeader(Trace.Header.newBuilder()
+                        .setTransactionType("Web")
+                        .setTransactionName("/abc"));
+        for (int i = 0; i < 100; i++) {
+            trace.addEntry(entry(i));
+        }
+        Profile.Builder profile = Profile.newBuilder()
+                .addPackageName("org.glowroot")
+                .addClassName("Abc")
+                .addMethodName("xyz")
+                .addFileName("Abc.java");
+        for (int i = 0; i < 100; i++) {
+            profile.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(i)
+                    .setLineNumber(i)
+                    .setSampleCount(i));
+        }
+        trace.setMainThreadProfile(profile);
+        ClientResponse response = ClientResponse.newBuilder()
+                .setRequestId(1)
+                .setFullTraceResponse(FullTraceResponse.newBuilder()
+                        .setTrace(trace))
+                .build();
+        // when
+        List<ClientResponse> chunks = ResponseChunker.split(response, 500);
+        // then
+        assertThat(chunks.size()).isGreaterThan(2);
+        assertThat(merge(chunks)).isEqualTo(response);
+    }
+
+    @Test
+    public void shouldSplitMBeanDumpResponse() {
+        // given
+        MBeanDump.Builder mbeanDump = MBeanDump.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            mbeanDump.addMbeanInfo(MBeanDump.MBeanInfo.newBuilder()
+                    .setObjectName("org.glowroot:type=Abc,name=abc" + i));
+        }
+        ClientResponse response = ClientResponse.newBuilder()
+                .setRequestId(1)
+                .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
+                        .setMbeanDump(mbeanDump))
+                .build();
+        // when
+        List<ClientResponse> chunks = ResponseChunker.split(response, 1000);
+        // then
+        assertThat(chunks.size()).isGreaterThan(1);
+        assertThat(merge(chunks)).isEqualTo(response);
+    }
+
+    private static Trace.Entry entry(int i) {
+        return Trace.Entry.newBuilder()
+                .setDepth(1)
+                .setStartOffsetNanos(i)
+                .setDurationNanos(1)
+                .setMessage("select * from abc where xyz = " + i)
+                .build();
+    }
+
+    private static ClientResponse merge(List<ClientResponse> chunks) {
+        ClientResponse.Builder builder = ClientResponse.newBuilder();
+        for (int i = 0; i < chunks.size(); i++) {
+            ClientResponse chunk = chunks.get(i);
+            assertThat(chunk.getMoreChunks()).isEqualTo(i < chunks.size() - 1);
+            builder.mergeFrom(chunk);
+        }
+        return builder.setMoreChunks(false).build();
+    }
+}
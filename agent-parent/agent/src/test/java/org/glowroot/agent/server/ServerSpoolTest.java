@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.server.ServerSpool.Message;
+import org.glowroot.agent.server.ServerSpool.Segment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ServerSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEach() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        ServerSpool spool = new ServerSpool(dir, 1000, 100);
+        for (int i = 0; i < 20; i++) {
+            spool.append(i % 3, new byte[] {(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        }
+        // when
+        List<Message> messages = readAll(spool);
+        // then
+        assertThat(messages).hasSize(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(messages.get(i).getMessageType()).isEqualTo(i % 3);
+            assertThat(messages.get(i).getMessage()[0]).isEqualTo((byte) i);
+        }
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void shouldDiscardOldestWhenExceedingMaxSize() throws Exception {
+        // given
+        ServerSpool spool = new ServerSpool(dir, 100, 30);
+        // when
+        for (int i = 0; i < 20; i++) {
+            spool.append(0, new byte[] {(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        }
+        // then
+        List<Message> messages = readAll(spool);
+        assertThat(messages.size()).isLessThan(20);
+        assertThat(messages.get(messages.size() - 1).getMessage()[0]).isEqualTo((byte) 19);
+        for (int i = 1; i < messages.size(); i++) {
+            assertThat(messages.get(i).getMessage()[0])
+                    .isEqualTo((byte) (messages.get(i - 1).getMessage()[0] + 1));
+        }
+        spool.close();
+    }
+
+    @Test
+    public void shouldPickUpSpoolAfterRestart() throws Exception {
+        // given
+        ServerSpool spool = new ServerSpool(dir, 1000, 30);
+        for (int i = 0; i < 5; i++) {
+            spool.append(0, new byte[] {(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        }
+        spool.close();
+        // when
+        spool = new ServerSpool(dir, 1000, 30);
+        spool.append(0, new byte[] {5});
+        // then
+        List<Message> messages = readAll(spool);
+        assertThat(messages).hasSize(6);
+        for (int i = 0; i < 6; i++) {
+            assertThat(messages.get(i).getMessage()[0]).isEqualTo((byte) i);
+        }
+        spool.close();
+    }
+
+    private static List<Message> readAll(ServerSpool spool) throws IOException {
+        List<Message> messages = Lists.newArrayList();
+        Segment segment;
+        while ((segment = spool.readOldestSegment()) != null) {
+            messages.addAll(segment.getMessages());
+            spool.remove(segment);
+        }
+        return messages;
+    }
+}
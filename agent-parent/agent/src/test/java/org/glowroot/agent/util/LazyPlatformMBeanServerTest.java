@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LazyPlatformMBeanServerTest {
+
+    private LazyPlatformMBeanServer lazyPlatformMBeanServer;
+    private MBeanServer mbeanServer;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        lazyPlatformMBeanServer = new LazyPlatformMBeanServer();
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        for (ObjectName name : mbeanServer.queryNames(ObjectName.getInstance("test:*"), null)) {
+            mbeanServer.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void shouldKeepResolvedPatternUpToDate() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Abc,*");
+        ObjectName name1 = ObjectName.getInstance("test:type=Abc,name=one");
+        ObjectName name2 = ObjectName.getInstance("test:type=Abc,name=two");
+        ObjectName name3 = ObjectName.getInstance("test:type=Xyz,name=three");
+        mbeanServer.registerMBean(new Test1(), name1);
+        // when
+        assertThat(lazyPlatformMBeanServer.resolvePattern(pattern)).containsOnly(name1);
+        mbeanServer.registerMBean(new Test1(), name2);
+        mbeanServer.registerMBean(new Test1(), name3);
+        assertThat(lazyPlatformMBeanServer.resolvePattern(pattern)).containsOnly(name1, name2);
+        mbeanServer.unregisterMBean(name1);
+        // then
+        assertThat(lazyPlatformMBeanServer.resolvePattern(pattern)).containsOnly(name2);
+    }
+
+    public interface Test1MBean {
+        int getValue();
+    }
+
+    public static class Test1 implements Test1MBean {
+        @Override
+        public int getValue() {
+            return 1;
+        }
+    }
+}
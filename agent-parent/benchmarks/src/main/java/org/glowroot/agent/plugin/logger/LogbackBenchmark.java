@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.logger;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the per log event cost of real logback calls woven by the logger plugin, inside of a
+// transaction
+//
+// the logger plugin's "aggregateLogEvents" property is read by the agent, so run this once with
+// the default config (trace entry per log event) and once with "aggregateLogEvents": true in the
+// logger plugin section of the agent's config.json
+//
+// the logger has no appenders, so the numbers are dominated by logback's own event construction
+// plus the plugin's advice (-wi 15 -i 15 -f 2, ns/op):
+//
+//   no agent                                56.0 +/- 4.8
+//   trace entry per log event             1082.7 +/- 151.1
+//   aggregated ("aggregateLogEvents")      684.3 +/- 89.2
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class LogbackBenchmark extends TransactionWorthy {
+
+    private Logger logger;
+
+    @Setup
+    public void setup() {
+        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+        logger = loggerContext.getLogger(LogbackBenchmark.class);
+        logger.setLevel(Level.INFO);
+        logger.setAdditive(false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void log() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        for (int i = 0; i < 1000; i++) {
+            logger.info("processed item {} of {}", i, 1000);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.AsyncServiceCallWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// simulates a reactive transaction which has many outbound async calls in flight at the same time,
+// each completed by a callback on another thread
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AsyncServiceCallBenchmark extends TransactionWorthy {
+
+    @Param({"1000"})
+    private int concurrentCalls;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        List<AsyncServiceCallWorthy> calls = Lists.newArrayList();
+        for (int i = 0; i < concurrentCalls; i++) {
+            AsyncServiceCallWorthy call = new AsyncServiceCallWorthy();
+            call.start();
+            calls.add(call);
+        }
+        final CountDownLatch latch = new CountDownLatch(concurrentCalls);
+        for (final AsyncServiceCallWorthy call : calls) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    call.complete();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+}
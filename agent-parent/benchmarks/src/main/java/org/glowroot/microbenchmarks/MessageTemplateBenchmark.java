@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.advicegen.GenericMessageSupplier;
+import org.glowroot.agent.advicegen.MessageTemplate;
+import org.glowroot.microbenchmarks.support.Customer;
+import org.glowroot.microbenchmarks.support.Order;
+import org.glowroot.microbenchmarks.support.OrderDao;
+
+// measures message template evaluation, which uses reflection to evaluate each path
+//
+// generating accessor classes per path (direct getter calls instead of Method.invoke()) was tried
+// and measured with this benchmark (agent attached, -wi 15 -i 15 -f 3, ns/op):
+//
+//            generated        reflection
+//   MIXED    345.8 +/- 28.2   344.9 +/- 39.8
+//   STRINGS  128.8 +/- 15.4   118.4 +/- 14.7
+//
+// there was no measurable win, since the jvm already replaces Method.invoke() with generated
+// bytecode accessors once a method has been invoked reflectively a few times
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    @Param
+    private TemplateType templateType;
+
+    private MessageTemplate messageTemplate;
+    private OrderDao orderDao;
+    private Order order;
+
+    @Setup
+    public void setup() throws Exception {
+        messageTemplate = MessageTemplate.create(templateType.template,
+                OrderDao.class.getMethod("save", Order.class));
+        orderDao = new OrderDao();
+        order = new Order(123, "ord-123", new Customer(456, "cus-456", "abc"), 78.9);
+    }
+
+    @Benchmark
+    public GenericMessageSupplier execute() {
+        return GenericMessageSupplier.create(messageTemplate, orderDao, "save", order);
+    }
+
+    public enum TemplateType {
+
+        // the cost of this template is dominated by converting the numbers to strings
+        MIXED("save order {{0.id}} for {{0.customer.name}} ({{0.customer.id}}): {{0.total}}"),
+        // this template only has string values, so the cost is mostly evaluating the paths
+        STRINGS("save order {{0.code}} for {{0.customer.name}} ({{0.customer.code}})");
+
+        private final String template;
+
+        private TemplateType(String template) {
+            this.template = template;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// simulates aggregating the profiles of many transaction names into a single profile, which is
+// what happens on every aggregate flush
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    @Param({"300"})
+    private int transactionNameCount;
+
+    @Param({"50"})
+    private int stackTraceDepth;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private List<MutableProfile> profiles;
+    private List<Profile> protobufProfiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        stackTraces = Lists.newArrayList();
+        profiles = Lists.newArrayList();
+        protobufProfiles = Lists.newArrayList();
+        for (int i = 0; i < transactionNameCount; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 10; j++) {
+                List<StackTraceElement> stackTrace = createStackTrace(i, random);
+                stackTraces.add(stackTrace);
+                profile.merge(stackTrace, Thread.State.RUNNABLE);
+            }
+            profiles.add(profile);
+            protobufProfiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        MutableProfile profile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            profile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (MutableProfile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProtobufProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMerged : protobufProfiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public Profile toProto() {
+        return profiles.get(0).toProto();
+    }
+
+    // stack traces share a common base (e.g. servlet container frames), then diverge per
+    // transaction name, with some variation in the leaf frames
+    private List<StackTraceElement> createStackTrace(int transactionNameIndex, Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        int leafDepth = stackTraceDepth / 5;
+        for (int i = 0; i < leafDepth; i++) {
+            stackTrace.add(new StackTraceElement("org.example.dao.Dao" + random.nextInt(20),
+                    "method" + random.nextInt(5), "Dao.java", random.nextInt(200)));
+        }
+        int transactionDepth = stackTraceDepth / 2;
+        for (int i = 0; i < transactionDepth; i++) {
+            stackTrace.add(new StackTraceElement(
+                    "org.example.web.Controller" + transactionNameIndex, "method" + i,
+                    "Controller" + transactionNameIndex + ".java", i + 10));
+        }
+        for (int i = stackTrace.size(); i < stackTraceDepth; i++) {
+            stackTrace.add(new StackTraceElement("org.apache.catalina.core.Container" + i,
+                    "invoke", "Container" + i + ".java", 100));
+        }
+        return stackTrace;
+    }
+}
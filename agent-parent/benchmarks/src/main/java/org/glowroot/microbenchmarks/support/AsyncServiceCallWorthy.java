@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.AsyncTraceEntry;
+
+// simulates an async http client call, which is started in the transaction thread and completed
+// by a callback on another thread
+public class AsyncServiceCallWorthy {
+
+    private volatile AsyncTraceEntry asyncTraceEntry;
+
+    public void start() {}
+
+    public void complete() {}
+
+    public AsyncTraceEntry getAsyncTraceEntry() {
+        return asyncTraceEntry;
+    }
+
+    public void setAsyncTraceEntry(AsyncTraceEntry asyncTraceEntry) {
+        this.asyncTraceEntry = asyncTraceEntry;
+    }
+}
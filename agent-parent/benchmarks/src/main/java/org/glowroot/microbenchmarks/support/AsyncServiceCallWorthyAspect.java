@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.AsyncTraceEntry;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.weaving.BindReceiver;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class AsyncServiceCallWorthyAspect {
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncServiceCallWorthy",
+            methodName = "start", methodParameterTypes = {},
+            timerName = "async service call worthy")
+    public static class StartAdvice {
+
+        private static final TimerName timerName = Agent.getTimerName(StartAdvice.class);
+
+        @OnBefore
+        public static void onBefore(ThreadContext context,
+                @BindReceiver AsyncServiceCallWorthy asyncServiceCallWorthy) {
+            AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
+                    "GET http://example.org/", MessageSupplier.from("async service call worthy"),
+                    timerName);
+            // stop the sync timer immediately, the async timer is stopped by the callback
+            asyncTraceEntry.stopSyncTimer();
+            asyncServiceCallWorthy.setAsyncTraceEntry(asyncTraceEntry);
+        }
+    }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncServiceCallWorthy",
+            methodName = "complete", methodParameterTypes = {})
+    public static class CompleteAdvice {
+
+        @OnBefore
+        public static void onBefore(@BindReceiver AsyncServiceCallWorthy asyncServiceCallWorthy) {
+            AsyncTraceEntry asyncTraceEntry = asyncServiceCallWorthy.getAsyncTraceEntry();
+            if (asyncTraceEntry != null) {
+                asyncTraceEntry.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+public class Order {
+
+    private final long id;
+    private final String code;
+    private final Customer customer;
+    private final double total;
+
+    public Order(long id, String code, Customer customer, double total) {
+        this.id = id;
+        this.code = code;
+        this.customer = customer;
+        this.total = total;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+}
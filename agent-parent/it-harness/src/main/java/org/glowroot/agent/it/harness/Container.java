@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.it.harness;
 
+import java.util.List;
+
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 public interface Container {
@@ -31,6 +33,10 @@ public interface Container {
 
     Trace getCollectedPartialTrace() throws Exception;
 
+    // query texts from the collected overall aggregates (aggregates are only collected once per
+    // aggregate interval, see glowroot.internal.rollup.0.intervalMillis)
+    List<String> getCollectedAggregateQueryTexts() throws Exception;
+
     // checks no unexpected log messages
     // checks no active traces
     // resets Glowroot back to square one (including re-weaving instrumentation configs if needed)
@@ -201,6 +201,7 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxAggregateQueriesPerType(of(500))
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxStackTraceSamplesPerTransaction(of(10000))
+                .setMaxStackTraceDepth(of(1000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
                 .build();
     }
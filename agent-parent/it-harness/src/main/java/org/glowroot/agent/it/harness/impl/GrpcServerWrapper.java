@@ -34,10 +34,12 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.model.TraceStringDictionary;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
@@ -50,6 +52,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse.MessageCase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ServerRequest;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -143,7 +146,9 @@ class GrpcServerWrapper {
         public void collectInit(InitMessage request,
                 StreamObserver<InitResponse> responseObserver) {
             agentConfig = request.getAgentConfig();
-            responseObserver.onNext(InitResponse.getDefaultInstance());
+            responseObserver.onNext(InitResponse.newBuilder()
+                    .setBatchSupported(true)
+                    .build());
             responseObserver.onCompleted();
         }
 
@@ -187,6 +192,36 @@ class GrpcServerWrapper {
             responseObserver.onCompleted();
         }
 
+        @Override
+        public StreamObserver<BatchMessage> collectBatch(
+                final StreamObserver<EmptyMessage> responseObserver) {
+            return new StreamObserver<BatchMessage>() {
+                @Override
+                public void onNext(BatchMessage value) {
+                    try {
+                        if (value.getGaugeValueCount() > 0) {
+                            collector.collectGaugeValues(value.getGaugeValueList());
+                        }
+                        for (Trace trace : value.getTraceList()) {
+                            collector.collectTrace(TraceStringDictionary.decode(trace,
+                                    value.getSharedStringList()));
+                        }
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+                @Override
+                public void onError(Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+                @Override
+                public void onCompleted() {
+                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
         @Override
         public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
             try {
@@ -242,6 +242,12 @@ public class JavaagentContainer implements Container {
         return traceCollector.getPartialTrace(10, SECONDS);
     }
 
+    @Override
+    public List<String> getCollectedAggregateQueryTexts() throws InterruptedException {
+        checkNotNull(traceCollector);
+        return traceCollector.getAggregateQueryTexts(10, SECONDS);
+    }
+
     @Override
     public void checkAndReset() throws Exception {
         if (configService == null) {
@@ -251,6 +257,7 @@ public class JavaagentContainer implements Container {
         }
         if (traceCollector != null) {
             traceCollector.checkAndResetLogMessages();
+            traceCollector.clearAggregateQueryTexts();
         }
     }
 
@@ -17,6 +17,7 @@ package org.glowroot.agent.it.harness.impl;
 
 import java.io.File;
 import java.net.ServerSocket;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -154,6 +155,12 @@ public class LocalContainer implements Container {
         return traceCollector.getPartialTrace(10, SECONDS);
     }
 
+    @Override
+    public List<String> getCollectedAggregateQueryTexts() throws InterruptedException {
+        checkNotNull(traceCollector);
+        return traceCollector.getAggregateQueryTexts(10, SECONDS);
+    }
+
     @Override
     public void checkAndReset() throws Exception {
         if (glowrootAgentInit instanceof GlowrootFatAgentInit) {
@@ -165,6 +172,7 @@ public class LocalContainer implements Container {
         }
         if (traceCollector != null) {
             traceCollector.checkAndResetLogMessages();
+            traceCollector.clearAggregateQueryTexts();
         }
     }
 
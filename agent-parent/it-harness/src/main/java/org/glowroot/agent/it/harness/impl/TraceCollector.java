@@ -23,12 +23,15 @@ import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.immutables.value.Value;
 
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
@@ -41,6 +44,8 @@ class TraceCollector implements Collector {
 
     private volatile @Nullable Trace trace;
 
+    private final List<String> aggregateQueryTexts = Lists.newCopyOnWriteArrayList();
+
     private final List<ExpectedLogMessage> expectedMessages = Lists.newCopyOnWriteArrayList();
     private final List<LogEvent> unexpectedMessages = Lists.newCopyOnWriteArrayList();
 
@@ -71,6 +76,21 @@ class TraceCollector implements Collector {
         throw new IllegalStateException("No trace was collected");
     }
 
+    List<String> getAggregateQueryTexts(int timeout, TimeUnit unit) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(unit) < timeout) {
+            if (!aggregateQueryTexts.isEmpty()) {
+                return ImmutableList.copyOf(aggregateQueryTexts);
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("No aggregate queries were collected");
+    }
+
+    void clearAggregateQueryTexts() {
+        aggregateQueryTexts.clear();
+    }
+
     boolean hasTrace() {
         return trace != null;
     }
@@ -108,8 +128,18 @@ class TraceCollector implements Collector {
             AgentConfigUpdater agentConfigUpdater) {}
 
     @Override
-    public void collectAggregates(long captureTime, List<AggregatesByType> aggregatesByType,
-            List<String> sharedQueryTexts) {}
+    public void collectAggregates(long captureTime, List<AggregatesByType> aggregatesByTypeList,
+            List<String> sharedQueryTexts) {
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            for (QueriesByType queriesByType : aggregatesByType.getOverallAggregate()
+                    .getQueriesByTypeList()) {
+                for (Aggregate.Query query : queriesByType.getQueryList()) {
+                    aggregateQueryTexts
+                            .add(sharedQueryTexts.get(query.getSharedQueryTextIndex()));
+                }
+            }
+        }
+    }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
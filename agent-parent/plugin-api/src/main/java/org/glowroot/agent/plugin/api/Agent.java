@@ -83,6 +83,34 @@ public class Agent {
         }
     }
 
+    /**
+     * Registers the {@code mbean} under the specified object {@code name}.
+     * 
+     * The agent defers the registration until it has initialized the platform MBean server, which
+     * on some application servers (e.g. JBoss and Glassfish) must not be accessed until the
+     * application server has configured it. So plugins should use this instead of registering
+     * directly with {@code ManagementFactory.getPlatformMBeanServer()}.
+     */
+    public static void registerMBean(Object mbean, String name) {
+        ServiceRegistry serviceRegistry = getServiceRegistry();
+        if (serviceRegistry != null) {
+            serviceRegistry.registerMBean(mbean, name);
+        }
+    }
+
+    /**
+     * Unregisters the {@code mbean} that was previously registered under the specified object
+     * {@code name} using {@link #registerMBean(Object, String)}.
+     * 
+     * Nothing is unregistered if a different object is registered under that name.
+     */
+    public static void unregisterMBean(Object mbean, String name) {
+        ServiceRegistry serviceRegistry = getServiceRegistry();
+        if (serviceRegistry != null) {
+            serviceRegistry.unregisterMBean(mbean, name);
+        }
+    }
+
     public static Logger getLogger(Class<?> clazz) {
         return new LoggerImpl(LoggerFactory.getLogger(clazz));
     }
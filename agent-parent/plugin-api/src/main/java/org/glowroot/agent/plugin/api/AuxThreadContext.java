@@ -20,4 +20,20 @@ public interface AuxThreadContext {
     TraceEntry start();
 
     TraceEntry startAndMarkAsyncTransactionComplete();
+
+    /**
+     * Same as {@link #start()}, except that if the current thread is already bound to a thread
+     * context of a different transaction, that thread context is suspended (including its thread
+     * stats) while the returned trace entry is active, and is restored when the returned trace
+     * entry ends.
+     * 
+     * This is intended for threads that run tasks or continuations on behalf of many transactions,
+     * e.g. event loop threads that run completion callbacks inline, where {@link #start()} would
+     * attribute the work (and its thread stats) to whichever transaction is already bound to the
+     * thread.
+     * 
+     * If the current thread is already bound to a thread context of the same transaction, then
+     * this method does nothing, and returns a no-op instance of {@link TraceEntry}.
+     */
+    TraceEntry startAndSuspendCurrent();
 }
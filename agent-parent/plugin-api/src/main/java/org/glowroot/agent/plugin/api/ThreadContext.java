@@ -80,7 +80,12 @@ public interface ThreadContext {
     Timer startTimer(TimerName timerName);
 
     /**
-     * TODO
+     * Captures the current position in the trace, so that work performed later in a different
+     * thread (or in a continuation) can be attached to this transaction by calling one of the
+     * {@link AuxThreadContext} start methods.
+     * 
+     * If there is no current transaction then this method does nothing, and returns a no-op
+     * instance of {@link AuxThreadContext}.
      */
     AuxThreadContext createAuxThreadContext();
 
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.api.internal;
+
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+
+// this interface exists to provide the logger plugin access to the transaction's log event
+// aggregate without making it part of the plugin api (at least not through the
+// org.glowroot.agent.plugin.api package)
+public interface LogEventAggregator {
+
+    // the log event is only counted in the transaction aggregate (keyed by level, logger name and
+    // unformatted message), it is only captured as a trace entry if endWithError() is called on
+    // the returned entry, so the messageSupplier is only called in that case
+    TraceEntry startAggregatedLogEntry(String level, String loggerName, String message,
+            MessageSupplier messageSupplier, TimerName timerName);
+}
@@ -129,6 +129,11 @@ public class NopTransactionService {
         public TraceEntry startAndMarkAsyncTransactionComplete() {
             return NopTraceEntry.INSTANCE;
         }
+
+        @Override
+        public TraceEntry startAndSuspendCurrent() {
+            return NopTraceEntry.INSTANCE;
+        }
     }
 
     public static class NopTimer implements Timer {
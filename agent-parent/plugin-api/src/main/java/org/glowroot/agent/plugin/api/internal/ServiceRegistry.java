@@ -23,4 +23,8 @@ public interface ServiceRegistry {
     TimerName getTimerName(Class<?> adviceClass);
 
     ConfigService getConfigService(String pluginId);
+
+    void registerMBean(Object mbean, String name);
+
+    void unregisterMBean(Object mbean, String name);
 }
@@ -66,6 +66,8 @@ public class NopTransactionServiceTest {
         assertThat(NopAuxThreadContext.INSTANCE.start()).isEqualTo(NopTraceEntry.INSTANCE);
         assertThat(NopAuxThreadContext.INSTANCE.startAndMarkAsyncTransactionComplete())
                 .isEqualTo(NopTraceEntry.INSTANCE);
+        assertThat(NopAuxThreadContext.INSTANCE.startAndSuspendCurrent())
+                .isEqualTo(NopTraceEntry.INSTANCE);
     }
 
     @Test
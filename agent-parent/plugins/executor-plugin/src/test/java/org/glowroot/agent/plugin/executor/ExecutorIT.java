@@ -109,6 +109,21 @@ public class ExecutorIT {
         assertThat(header.getEntryCount()).isZero();
     }
 
+    @Test
+    public void shouldCaptureAuxThreadTimersForHighFanOut() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoHighFanOutSubmitRunnableWork.class);
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        // more than maxTraceEntriesPerTransaction (2000), so some of the auxiliary thread
+        // contexts must have been coalesced
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(5000);
+        assertThat(header.getEntryCount()).isZero();
+    }
+
     @Test
     public void shouldNotCaptureAlreadyCompletedFutureGet() throws Exception {
         // given
@@ -366,6 +381,32 @@ public class ExecutorIT {
         }
     }
 
+    public static class DoHighFanOutSubmitRunnableWork
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int i = 0; i < 5000; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {}
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
     public static class DoSimpleSubmitRunnableWork implements AppUnderTest, TransactionMarker {
 
         @Override
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.config.BooleanProperty;
+import org.glowroot.agent.plugin.api.config.ConfigService;
+import org.glowroot.agent.plugin.api.weaving.BindClassMeta;
+import org.glowroot.agent.plugin.api.weaving.BindReceiver;
+import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.IsEnabled;
+import org.glowroot.agent.plugin.api.weaving.Mixin;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.OnReturn;
+import org.glowroot.agent.plugin.api.weaving.OnThrow;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// connection pool exhaustion is not visible from DataSource.getConnection() timings alone, so the
+// common connection pools are instrumented to expose their active/idle/pending counts and
+// connection acquisition counters as gauges
+public class ConnectionPoolAspect {
+
+    private static final String POOL_DATA_SOURCE_CLASS_NAMES = "com.zaxxer.hikari.HikariDataSource"
+            + "|org.apache.tomcat.jdbc.pool.DataSourceProxy"
+            + "|org.apache.commons.dbcp.BasicDataSource"
+            + "|org.apache.commons.dbcp2.BasicDataSource"
+            + "|com.mchange.v2.c3p0.impl.AbstractPoolBackedDataSource";
+
+    private static final ConfigService configService = Agent.getConfigService("jdbc");
+
+    private static final BooleanProperty captureConnectionPoolGauges =
+            configService.getBooleanProperty("captureConnectionPoolGauges");
+
+    private static final Object lock = new Object();
+
+    // the field and method names are verbose to avoid conflict since they will become fields
+    // and methods in all classes that extend the connection pool data sources
+    @Mixin({"com.zaxxer.hikari.HikariDataSource", "org.apache.tomcat.jdbc.pool.DataSourceProxy",
+            "org.apache.commons.dbcp.BasicDataSource", "org.apache.commons.dbcp2.BasicDataSource",
+            "com.mchange.v2.c3p0.impl.AbstractPoolBackedDataSource"})
+    public static class HasConnectionPoolGaugesImpl implements HasConnectionPoolGauges {
+        private volatile @Nullable ConnectionPoolGauges glowroot$connectionPoolGauges;
+        @Override
+        public @Nullable ConnectionPoolGauges glowroot$getConnectionPoolGauges() {
+            return glowroot$connectionPoolGauges;
+        }
+        @Override
+        public void glowroot$setConnectionPoolGauges(
+                @Nullable ConnectionPoolGauges connectionPoolGauges) {
+            this.glowroot$connectionPoolGauges = connectionPoolGauges;
+        }
+    }
+
+    // the method names are verbose to avoid conflict since they will become methods in all classes
+    // that extend the connection pool data sources
+    public interface HasConnectionPoolGauges {
+        @Nullable
+        ConnectionPoolGauges glowroot$getConnectionPoolGauges();
+        void glowroot$setConnectionPoolGauges(@Nullable ConnectionPoolGauges connectionPoolGauges);
+    }
+
+    @Pointcut(className = POOL_DATA_SOURCE_CLASS_NAMES, methodName = "getConnection",
+            methodParameterTypes = {})
+    public static class GetConnectionAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureConnectionPoolGauges.value();
+        }
+        @OnBefore
+        public static long onBefore(@BindReceiver HasConnectionPoolGauges dataSource,
+                @BindClassMeta ConnectionPoolInvoker invoker) {
+            getOrCreateGauges(dataSource, invoker).onAcquisitionStart();
+            return System.nanoTime();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasConnectionPoolGauges dataSource,
+                @BindTraveler long startTick) {
+            onAcquisitionEnd(dataSource, startTick, true);
+        }
+        @OnThrow
+        public static void onThrow(@BindReceiver HasConnectionPoolGauges dataSource,
+                @BindTraveler long startTick) {
+            onAcquisitionEnd(dataSource, startTick, false);
+        }
+        private static ConnectionPoolGauges getOrCreateGauges(HasConnectionPoolGauges dataSource,
+                ConnectionPoolInvoker invoker) {
+            ConnectionPoolGauges gauges = dataSource.glowroot$getConnectionPoolGauges();
+            if (gauges != null) {
+                return gauges;
+            }
+            // synchronized so that the acquisition start and end are always recorded against the
+            // same gauges instance
+            synchronized (lock) {
+                gauges = dataSource.glowroot$getConnectionPoolGauges();
+                if (gauges == null) {
+                    gauges = new ConnectionPoolGauges(dataSource, invoker);
+                    dataSource.glowroot$setConnectionPoolGauges(gauges);
+                }
+                return gauges;
+            }
+        }
+        private static void onAcquisitionEnd(HasConnectionPoolGauges dataSource, long startTick,
+                boolean success) {
+            ConnectionPoolGauges gauges = dataSource.glowroot$getConnectionPoolGauges();
+            if (gauges != null) {
+                gauges.onAcquisitionEnd(System.nanoTime() - startTick, success);
+            }
+        }
+    }
+
+    @Pointcut(className = POOL_DATA_SOURCE_CLASS_NAMES, methodName = "close",
+            methodParameterTypes = {})
+    public static class CloseAdvice {
+        @OnReturn
+        public static void onReturn(@BindReceiver HasConnectionPoolGauges dataSource) {
+            ConnectionPoolGauges gauges = dataSource.glowroot$getConnectionPoolGauges();
+            if (gauges != null) {
+                gauges.unregister();
+            }
+        }
+    }
+}
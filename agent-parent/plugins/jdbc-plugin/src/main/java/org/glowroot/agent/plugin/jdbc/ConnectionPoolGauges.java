@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.Logger;
+
+// registered as an mbean (via the agent, which defers registration until the platform mbean server
+// can be safely accessed) so that the connection pool counts are captured by the built-in
+// "org.glowroot.jdbc:type=ConnectionPool,name=*" gauge
+//
+// the active/idle/pending counts are read from the pool itself when the mbean attributes are read,
+// so the only work done on each DataSource.getConnection() is updating the acquisition counters
+class ConnectionPoolGauges implements ConnectionPoolMXBean {
+
+    private static final Logger logger = Agent.getLogger(ConnectionPoolGauges.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.glowroot.jdbc:type=ConnectionPool,name=";
+
+    // weak reference so that the mbean does not prevent the data source from being collected if
+    // the application never closes it (e.g. on redeploy)
+    private final WeakReference<Object> dataSourceRef;
+    private final ConnectionPoolInvoker invoker;
+
+    private final AtomicLong acquisitionCount = new AtomicLong();
+    private final AtomicLong acquisitionNanos = new AtomicLong();
+    // only used for pools that do not expose the number of threads waiting for a connection
+    private final AtomicInteger acquiringThreads = new AtomicInteger();
+
+    private volatile boolean registrationAttempted;
+    private volatile @Nullable ObjectName objectName;
+
+    ConnectionPoolGauges(Object dataSource, ConnectionPoolInvoker invoker) {
+        dataSourceRef = new WeakReference<Object>(dataSource);
+        this.invoker = invoker;
+    }
+
+    void onAcquisitionStart() {
+        if (!invoker.hasPendingThreads()) {
+            acquiringThreads.getAndIncrement();
+        }
+    }
+
+    void onAcquisitionEnd(long durationNanos, boolean success) {
+        if (!invoker.hasPendingThreads()) {
+            acquiringThreads.getAndDecrement();
+        }
+        if (!success) {
+            return;
+        }
+        acquisitionCount.getAndIncrement();
+        acquisitionNanos.getAndAdd(durationNanos);
+        if (!registrationAttempted) {
+            // registration is delayed until the first connection is acquired since some pools
+            // (e.g. HikariCP) do not assign the pool name until the pool is started
+            register();
+        }
+    }
+
+    @Override
+    public long getActiveConnections() {
+        Object dataSource = dataSourceRef.get();
+        return dataSource == null ? 0 : invoker.getActiveConnections(dataSource);
+    }
+
+    @Override
+    public long getIdleConnections() {
+        Object dataSource = dataSourceRef.get();
+        return dataSource == null ? 0 : invoker.getIdleConnections(dataSource);
+    }
+
+    @Override
+    public long getPendingThreads() {
+        if (!invoker.hasPendingThreads()) {
+            return acquiringThreads.get();
+        }
+        Object dataSource = dataSourceRef.get();
+        return dataSource == null ? 0 : invoker.getPendingThreads(dataSource);
+    }
+
+    @Override
+    public long getConnectionAcquisitionCount() {
+        return acquisitionCount.get();
+    }
+
+    @Override
+    public double getConnectionAcquisitionTimeMillis() {
+        return acquisitionNanos.get() / 1000000.0;
+    }
+
+    void unregister() {
+        ObjectName localObjectName = objectName;
+        if (localObjectName == null) {
+            return;
+        }
+        Agent.unregisterMBean(this, localObjectName.toString());
+        objectName = null;
+    }
+
+    private synchronized void register() {
+        if (registrationAttempted) {
+            return;
+        }
+        registrationAttempted = true;
+        Object dataSource = dataSourceRef.get();
+        if (dataSource == null) {
+            return;
+        }
+        String poolName = invoker.getPoolName(dataSource);
+        if (poolName.isEmpty()) {
+            poolName = getDefaultPoolName(dataSource);
+        }
+        try {
+            ObjectName localObjectName = getObjectName(poolName);
+            // if another pool has already been registered under the same name, the agent logs
+            // this at debug level, and will not unregister the other pool's mbean in unregister()
+            Agent.registerMBean(this, localObjectName.toString());
+            objectName = localObjectName;
+        } catch (MalformedObjectNameException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private static String getDefaultPoolName(Object dataSource) {
+        Class<?> dataSourceClass = dataSource.getClass();
+        String className = dataSourceClass.getSimpleName();
+        if (className.isEmpty()) {
+            // anonymous subclass
+            className = dataSourceClass.getName();
+        }
+        return className + '@' + Integer.toHexString(System.identityHashCode(dataSource));
+    }
+
+    private static ObjectName getObjectName(String poolName) throws MalformedObjectNameException {
+        try {
+            return new ObjectName(OBJECT_NAME_PREFIX + poolName);
+        } catch (MalformedObjectNameException e) {
+            // pool name contains characters that are not allowed in unquoted values
+            logger.debug(e.getMessage(), e);
+            return new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(poolName));
+        }
+    }
+}
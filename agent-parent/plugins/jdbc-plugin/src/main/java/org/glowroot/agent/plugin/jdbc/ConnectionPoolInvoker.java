@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.lang.reflect.Method;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.plugin.api.util.Reflection;
+
+// reads the active/idle/pending counts that each of the supported connection pools already
+// maintains, so these are only read when the gauges are collected
+public class ConnectionPoolInvoker {
+
+    // only used by HikariCP, where the counts are exposed by the pool and not the data source
+    private final @Nullable Method getHikariPoolMXBeanMethod;
+
+    private final @Nullable Method getPoolNameMethod;
+    private final @Nullable Method getActiveConnectionsMethod;
+    private final @Nullable Method getIdleConnectionsMethod;
+    // null if the pool does not expose the number of threads waiting for a connection
+    private final @Nullable Method getPendingThreadsMethod;
+
+    public ConnectionPoolInvoker(Class<?> clazz) {
+        getHikariPoolMXBeanMethod = Reflection.getMethod(clazz, "getHikariPoolMXBean");
+        if (getHikariPoolMXBeanMethod != null) {
+            // HikariCP
+            Class<?> poolClass = getHikariPoolMXBeanMethod.getReturnType();
+            getPoolNameMethod = Reflection.getMethod(clazz, "getPoolName");
+            getActiveConnectionsMethod = Reflection.getMethod(poolClass, "getActiveConnections");
+            getIdleConnectionsMethod = Reflection.getMethod(poolClass, "getIdleConnections");
+            getPendingThreadsMethod =
+                    Reflection.getMethod(poolClass, "getThreadsAwaitingConnection");
+        } else if (hasMethod(clazz, "getNumBusyConnectionsDefaultUser")) {
+            // C3P0
+            getPoolNameMethod = Reflection.getMethod(clazz, "getDataSourceName");
+            getActiveConnectionsMethod =
+                    Reflection.getMethod(clazz, "getNumBusyConnectionsDefaultUser");
+            getIdleConnectionsMethod =
+                    Reflection.getMethod(clazz, "getNumIdleConnectionsDefaultUser");
+            getPendingThreadsMethod =
+                    Reflection.getMethod(clazz, "getNumThreadsAwaitingCheckoutDefaultUser");
+        } else if (hasMethod(clazz, "getWaitCount")) {
+            // Tomcat JDBC
+            getPoolNameMethod = Reflection.getMethod(clazz, "getPoolName");
+            getActiveConnectionsMethod = Reflection.getMethod(clazz, "getActive");
+            getIdleConnectionsMethod = Reflection.getMethod(clazz, "getIdle");
+            getPendingThreadsMethod = Reflection.getMethod(clazz, "getWaitCount");
+        } else {
+            // Commons DBCP and DBCP2
+            getPoolNameMethod = null;
+            getActiveConnectionsMethod = Reflection.getMethod(clazz, "getNumActive");
+            getIdleConnectionsMethod = Reflection.getMethod(clazz, "getNumIdle");
+            getPendingThreadsMethod = null;
+        }
+    }
+
+    String getPoolName(Object dataSource) {
+        return Reflection.invokeWithDefault(getPoolNameMethod, dataSource, "");
+    }
+
+    long getActiveConnections(Object dataSource) {
+        return getCount(getActiveConnectionsMethod, dataSource);
+    }
+
+    long getIdleConnections(Object dataSource) {
+        return getCount(getIdleConnectionsMethod, dataSource);
+    }
+
+    boolean hasPendingThreads() {
+        return getPendingThreadsMethod != null;
+    }
+
+    long getPendingThreads(Object dataSource) {
+        return getCount(getPendingThreadsMethod, dataSource);
+    }
+
+    private long getCount(@Nullable Method method, Object dataSource) {
+        Object target = dataSource;
+        if (getHikariPoolMXBeanMethod != null) {
+            target = Reflection.invoke(getHikariPoolMXBeanMethod, dataSource);
+            if (target == null) {
+                // pool has not been started yet
+                return 0;
+            }
+        }
+        return Reflection.invokeWithDefault(method, target, (Number) 0).longValue();
+    }
+
+    private static boolean hasMethod(Class<?> clazz, String methodName) {
+        return Reflection.getMethod(clazz, methodName) != null;
+    }
+}
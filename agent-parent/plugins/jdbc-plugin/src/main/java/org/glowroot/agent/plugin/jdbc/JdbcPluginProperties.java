@@ -22,6 +22,9 @@ import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 // this is public so it can be called from other plugins
 public class JdbcPluginProperties {
 
@@ -29,6 +32,8 @@ public class JdbcPluginProperties {
 
     // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
     private static int stackTraceThresholdMillis;
+    // zero means bind parameters are captured for every execution
+    private static long captureBindParametersThresholdNanos;
 
     private static volatile ImmutableMultimap<String, Integer> displayBinaryParameterAsHex =
             ImmutableMultimap.of();
@@ -39,6 +44,16 @@ public class JdbcPluginProperties {
             public void onChange() {
                 Double value = configService.getDoubleProperty("stackTraceThresholdMillis").value();
                 stackTraceThresholdMillis = value == null ? Integer.MAX_VALUE : value.intValue();
+                value = configService.getDoubleProperty("captureBindParametersThresholdMillis")
+                        .value();
+                captureBindParametersThresholdNanos =
+                        value == null ? 0 : (long) (value * NANOSECONDS.convert(1, MILLISECONDS));
+                value = configService.getDoubleProperty("normalizeQueryTextCacheMaxChars")
+                        .value();
+                SqlNormalizer.configure(
+                        value == null ? SqlNormalizer.DEFAULT_CACHE_MAX_CHARS : value.intValue(),
+                        configService.getBooleanProperty("normalizeQueryTextBackslashEscapes")
+                                .value());
             }
         });
     }
@@ -60,6 +75,10 @@ public class JdbcPluginProperties {
         return stackTraceThresholdMillis;
     }
 
+    static long captureBindParametersThresholdNanos() {
+        return captureBindParametersThresholdNanos;
+    }
+
     static boolean displayBinaryParameterAsHex(String sql, int parameterIndex) {
         return displayBinaryParameterAsHex.containsEntry(sql, parameterIndex);
     }
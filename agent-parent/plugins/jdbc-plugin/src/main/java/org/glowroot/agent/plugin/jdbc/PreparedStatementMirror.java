@@ -24,6 +24,7 @@ import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
+import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
 
 // used to capture and mirror the state of prepared statements since the underlying
 // PreparedStatement values cannot be inspected after they have been set
@@ -39,6 +40,10 @@ class PreparedStatementMirror extends StatementMirror {
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private @Nullable Collection<BindParameterList> batchedParameters;
+    // ok for these fields to be non-volatile since they are only temporary storage for a single
+    // thread while that thread is executing the prepared statement
+    private @Nullable PreparedStatementMessageSupplier deferredMessageSupplier;
+    private long deferredStartNanos;
 
     public PreparedStatementMirror(String sql) {
         this.sql = sql;
@@ -68,6 +73,24 @@ class PreparedStatementMirror extends StatementMirror {
         return parameters;
     }
 
+    // bind parameters are captured into the message supplier at the end of the execution, and only
+    // if the execution exceeds the capture threshold, to avoid copying bind parameters on every
+    // execution
+    void deferParameters(PreparedStatementMessageSupplier messageSupplier, long startNanos) {
+        deferredMessageSupplier = messageSupplier;
+        deferredStartNanos = startNanos;
+    }
+
+    void captureDeferredParameters(long thresholdNanos, boolean force) {
+        if (deferredMessageSupplier == null) {
+            return;
+        }
+        if (force || System.nanoTime() - deferredStartNanos >= thresholdNanos) {
+            deferredMessageSupplier.setParameters(getParametersCopy());
+        }
+        deferredMessageSupplier = null;
+    }
+
     public String getSql() {
         return sql;
     }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+// normalizes sql for use as the query aggregation key, replacing string and numeric literals with
+// "?" and collapsing "in" lists of only literals and bind parameters down to a single "?", so that
+// sql that is built with inline literals does not create a separate query aggregate per literal
+//
+// quoted identifiers and comments are passed through unchanged
+class SqlNormalizer {
+
+    static final int DEFAULT_CACHE_MAX_CHARS = 1024 * 1024;
+
+    // these are only accessed under the class lock, see configure()
+    private static int cacheMaxChars = DEFAULT_CACHE_MAX_CHARS;
+    private static boolean backslashEscapes;
+
+    private static volatile LoadingCache<String, String> cache =
+            createCache(DEFAULT_CACHE_MAX_CHARS, false);
+
+    private SqlNormalizer() {}
+
+    static String getNormalizedSql(String sql) {
+        return cache.getUnchecked(sql);
+    }
+
+    // called from the jdbc plugin config listener, the cache is only re-created (and so cleared)
+    // when one of the settings changes
+    static synchronized void configure(int cacheMaxChars, boolean backslashEscapes) {
+        if (cacheMaxChars == SqlNormalizer.cacheMaxChars
+                && backslashEscapes == SqlNormalizer.backslashEscapes) {
+            return;
+        }
+        SqlNormalizer.cacheMaxChars = cacheMaxChars;
+        SqlNormalizer.backslashEscapes = backslashEscapes;
+        cache = createCache(cacheMaxChars, backslashEscapes);
+    }
+
+    // most applications have a relatively small number of distinct sql strings, so this avoids
+    // re-normalizing on every execution, while being bounded by size (total chars of raw sql plus
+    // normalized sql, not just by entry count) for applications that build very large sql strings
+    // with inline literals
+    private static LoadingCache<String, String> createCache(int maxChars,
+            final boolean backslashEscapes) {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, String>() {
+                    @Override
+                    public int weigh(String sql, String normalizedSql) {
+                        return sql.length() + normalizedSql.length();
+                    }
+                })
+                .build(new CacheLoader<String, String>() {
+                    @Override
+                    public String load(String sql) {
+                        return normalize(sql, backslashEscapes);
+                    }
+                });
+    }
+
+    // backslashEscapes is for databases that treat backslash as an escape character in all string
+    // literals (e.g. mysql by default), otherwise backslash is only an escape character in
+    // postgresql style E'...' literals, and is a regular character in standard sql literals
+    static String normalize(String sql, boolean backslashEscapes) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        // start index in sb of the "(" following "in", or -1 if not currently in an "in" list
+        int inListStart = -1;
+        // whether the most recent identifier (ignoring whitespace) was "in"
+        boolean afterIn = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = skipQuoted(sql, i, '\'', backslashEscapes);
+                sb.append('?');
+                afterIn = false;
+            } else if (c == '"' || c == '`') {
+                int end = skipQuoted(sql, i, c, false);
+                sb.append(sql, i, end);
+                i = end;
+                inListStart = -1;
+                afterIn = false;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                end = end == -1 ? length : end;
+                sb.append(sql, i, end);
+                i = end;
+                inListStart = -1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+                sb.append(sql, i, end);
+                i = end;
+                inListStart = -1;
+            } else if (isIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                if (end - i == 1 && (c == 'e' || c == 'E') && end < length
+                        && sql.charAt(end) == '\'') {
+                    // E'...' string literal
+                    i = skipQuoted(sql, end, '\'', true);
+                    sb.append('?');
+                    afterIn = false;
+                    continue;
+                }
+                afterIn = end - i == 2 && sql.regionMatches(true, i, "in", 0, 2);
+                sb.append(sql, i, end);
+                i = end;
+                inListStart = -1;
+            } else if (isDigit(c) || c == '.' && i + 1 < length && isDigit(sql.charAt(i + 1))) {
+                i = skipNumber(sql, i);
+                sb.append('?');
+                afterIn = false;
+            } else if (c == '(') {
+                sb.append(c);
+                i++;
+                inListStart = afterIn ? sb.length() - 1 : -1;
+                afterIn = false;
+            } else if (c == ')') {
+                if (inListStart != -1 && sb.indexOf("?", inListStart) != -1) {
+                    sb.setLength(inListStart);
+                    sb.append("(?");
+                }
+                sb.append(c);
+                inListStart = -1;
+                i++;
+                afterIn = false;
+            } else {
+                if (c != '?' && c != ',' && !Character.isWhitespace(c)) {
+                    inListStart = -1;
+                    afterIn = false;
+                }
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    // returns the index after the closing quote (a doubled quote is an escaped quote, and when
+    // backslashEscapes is true, so is a quote preceded by a backslash)
+    private static int skipQuoted(String sql, int start, char quote, boolean backslashEscapes) {
+        int i = start + 1;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\\' && backslashEscapes) {
+                i += 2;
+                continue;
+            }
+            if (c == quote) {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    private static int skipNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        if (sql.charAt(i) == '0' && i + 1 < length
+                && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(sql.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length && (isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                j++;
+            }
+            if (j < length && isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '#' || c == '@' || c == ':';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
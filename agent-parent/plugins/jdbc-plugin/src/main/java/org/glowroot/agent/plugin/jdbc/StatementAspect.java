@@ -62,6 +62,8 @@ public class StatementAspect {
             configService.getBooleanProperty("captureBindParameters");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
+    private static final BooleanProperty normalizeQueryText =
+            configService.getBooleanProperty("normalizeQueryText");
 
     // ===================== Mixin =====================
 
@@ -299,7 +301,8 @@ public class StatementAspect {
                 return null;
             }
             MessageSupplier messageSupplier = new StatementMessageSupplier(sql);
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql, messageSupplier, timerName);
+            QueryEntry query = context.startQueryEntry(QUERY_TYPE, getQueryText(sql),
+                    messageSupplier, timerName);
             mirror.setLastQuery(query);
             return query;
         }
@@ -408,24 +411,36 @@ public class StatementAspect {
             MessageSupplier messageSupplier;
             String queryText = mirror.getSql();
             if (captureBindParameters.value()) {
-                messageSupplier =
-                        new PreparedStatementMessageSupplier(queryText, mirror.getParametersCopy());
+                long thresholdNanos = JdbcPluginProperties.captureBindParametersThresholdNanos();
+                if (thresholdNanos == 0) {
+                    messageSupplier = new PreparedStatementMessageSupplier(queryText,
+                            mirror.getParametersCopy());
+                } else {
+                    PreparedStatementMessageSupplier deferredMessageSupplier =
+                            new PreparedStatementMessageSupplier(queryText, null);
+                    mirror.deferParameters(deferredMessageSupplier, System.nanoTime());
+                    messageSupplier = deferredMessageSupplier;
+                }
             } else {
                 messageSupplier = new StatementMessageSupplier(queryText);
             }
-            QueryEntry queryEntry =
-                    context.startQueryEntry(QUERY_TYPE, queryText, messageSupplier, timerName);
+            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, getQueryText(queryText),
+                    messageSupplier, timerName);
             mirror.setLastQuery(queryEntry);
             return queryEntry;
         }
         @OnReturn
-        public static void onReturn(@BindTraveler QueryEntry queryEntry) {
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindTraveler QueryEntry queryEntry) {
+            captureDeferredBindParameters(preparedStatement, false);
             queryEntry.endWithStackTrace(JdbcPluginProperties.stackTraceThresholdMillis(),
                     MILLISECONDS);
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
+            captureDeferredBindParameters(preparedStatement, true);
             queryEntry.endWithError(t);
         }
     }
@@ -455,12 +470,15 @@ public class StatementAspect {
                 StatementMirror mirror = preparedStatement.glowroot$getStatementMirror();
                 resultSet.glowroot$setStatementMirror(mirror);
             }
+            captureDeferredBindParameters(preparedStatement, false);
             queryEntry.endWithStackTrace(JdbcPluginProperties.stackTraceThresholdMillis(),
                     MILLISECONDS);
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
+            captureDeferredBindParameters(preparedStatement, true);
             queryEntry.endWithError(t);
         }
     }
@@ -480,14 +498,18 @@ public class StatementAspect {
         }
         @OnReturn
         public static void onReturn(@BindReturn int rowCount,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
+            captureDeferredBindParameters(preparedStatement, false);
             queryEntry.setCurrRow(rowCount);
             queryEntry.endWithStackTrace(JdbcPluginProperties.stackTraceThresholdMillis(),
                     MILLISECONDS);
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
+            captureDeferredBindParameters(preparedStatement, true);
             queryEntry.endWithError(t);
         }
     }
@@ -540,8 +562,8 @@ public class StatementAspect {
             } else {
                 messageSupplier = new BatchPreparedStatementMessageSupplier2(queryText, batchSize);
             }
-            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, queryText, batchSize,
-                    messageSupplier, timerName);
+            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, getQueryText(queryText),
+                    batchSize, messageSupplier, timerName);
             mirror.setLastQuery(queryEntry);
             mirror.clearBatch();
             return queryEntry;
@@ -608,4 +630,26 @@ public class StatementAspect {
             }
         }
     }
+
+    // bind parameters are always captured when the execution ends with an error, since the trace
+    // will be stored in that case
+    private static void captureDeferredBindParameters(HasStatementMirror preparedStatement,
+            boolean error) {
+        PreparedStatementMirror mirror =
+                (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+        if (mirror != null) {
+            mirror.captureDeferredParameters(
+                    JdbcPluginProperties.captureBindParametersThresholdNanos(), error);
+        }
+    }
+
+    // the normalized query text is only used as the query aggregation key, the trace entry message
+    // still contains the original sql
+    private static String getQueryText(String sql) {
+        if (normalizeQueryText.value()) {
+            return SqlNormalizer.getNormalizedSql(sql);
+        } else {
+            return sql;
+        }
+    }
 }
@@ -25,18 +25,26 @@ public class PreparedStatementMessageSupplier extends MessageSupplier {
     private final String sql;
 
     // cannot use ImmutableList for parameters since it can contain null elements
-    private final @Nullable BindParameterList parameters;
+    //
+    // volatile since parameters can be set after the trace entry has started (when the capture of
+    // bind parameters is deferred until the end of the execution), and read by a different thread
+    private volatile @Nullable BindParameterList parameters;
 
     public PreparedStatementMessageSupplier(String sql, @Nullable BindParameterList parameters) {
         this.sql = sql;
         this.parameters = parameters;
     }
 
+    public void setParameters(@Nullable BindParameterList parameters) {
+        this.parameters = parameters;
+    }
+
     @Override
     public Message get() {
         StringBuilder sb = new StringBuilder();
         sb.append("jdbc execution: ");
         sb.append(sql);
+        BindParameterList parameters = this.parameters;
         if (parameters != null && !parameters.isEmpty()) {
             appendParameters(sb, parameters);
         }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConnectionPoolIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        container = Containers.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void testCommonsDbcp() throws Exception {
+        container.execute(GetConnectionFromCommonsDbcp.class);
+    }
+
+    @Test
+    public void testTomcatJdbc() throws Exception {
+        container.execute(GetConnectionFromTomcatJdbc.class);
+    }
+
+    @Test
+    public void testC3p0() throws Exception {
+        container.execute(GetConnectionFromC3p0.class);
+    }
+
+    private static ObjectName getObjectName(String poolName) throws Exception {
+        return new ObjectName("org.glowroot.jdbc:type=ConnectionPool,name=" + poolName);
+    }
+
+    private static void checkGauges(String poolName, long acquisitionCount) throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName(poolName);
+        assertThat(mbeanServer.getAttribute(objectName, "ActiveConnections")).isEqualTo(1L);
+        assertThat(mbeanServer.getAttribute(objectName, "PendingThreads")).isEqualTo(0L);
+        assertThat(mbeanServer.getAttribute(objectName, "ConnectionAcquisitionCount"))
+                .isEqualTo(acquisitionCount);
+        assertThat((Double) mbeanServer.getAttribute(objectName,
+                "ConnectionAcquisitionTimeMillis")).isGreaterThan(0);
+    }
+
+    private static void checkIdleConnections(String poolName, long idleConnections)
+            throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertThat(mbeanServer.getAttribute(getObjectName(poolName), "IdleConnections"))
+                .isEqualTo(idleConnections);
+    }
+
+    private static void checkUnregistered(String poolName) throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertThat(mbeanServer.isRegistered(getObjectName(poolName))).isFalse();
+    }
+
+    public static class GetConnectionFromCommonsDbcp implements AppUnderTest, TransactionMarker {
+        private BasicDataSource dataSource;
+        @Override
+        public void executeApp() throws Exception {
+            dataSource = new BasicDataSource();
+            dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+            dataSource.setUrl("jdbc:hsqldb:mem:test");
+            try {
+                transactionMarker();
+            } finally {
+                dataSource.close();
+            }
+            checkUnregistered(getPoolName());
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            dataSource.getConnection().close();
+            Connection connection = dataSource.getConnection();
+            try {
+                checkGauges(getPoolName(), 2);
+                checkIdleConnections(getPoolName(), 0);
+            } finally {
+                connection.close();
+            }
+        }
+        private String getPoolName() {
+            return "BasicDataSource@" + Integer.toHexString(System.identityHashCode(dataSource));
+        }
+    }
+
+    public static class GetConnectionFromTomcatJdbc implements AppUnderTest, TransactionMarker {
+        private org.apache.tomcat.jdbc.pool.DataSource dataSource;
+        private String poolName;
+        @Override
+        public void executeApp() throws Exception {
+            dataSource = new org.apache.tomcat.jdbc.pool.DataSource();
+            dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+            dataSource.setUrl("jdbc:hsqldb:mem:test");
+            dataSource.setInitialSize(2);
+            try {
+                transactionMarker();
+            } finally {
+                dataSource.close();
+            }
+            checkUnregistered(poolName);
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Connection connection = dataSource.getConnection();
+            try {
+                poolName = dataSource.getPoolName();
+                checkGauges(poolName, 1);
+                checkIdleConnections(poolName, 1);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    public static class GetConnectionFromC3p0 implements AppUnderTest, TransactionMarker {
+        private ComboPooledDataSource dataSource;
+        @Override
+        public void executeApp() throws Exception {
+            dataSource = new ComboPooledDataSource();
+            dataSource.setDriverClass("org.hsqldb.jdbc.JDBCDriver");
+            dataSource.setJdbcUrl("jdbc:hsqldb:mem:test");
+            try {
+                transactionMarker();
+            } finally {
+                dataSource.close();
+            }
+            checkUnregistered(dataSource.getDataSourceName());
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Connection connection = dataSource.getConnection();
+            try {
+                // c3p0 acquires idle connections asynchronously, so idle count is not checked
+                checkGauges(dataSource.getDataSourceName(), 1);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}
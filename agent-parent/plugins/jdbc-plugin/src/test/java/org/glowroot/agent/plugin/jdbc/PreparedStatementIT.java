@@ -180,6 +180,38 @@ public class PreparedStatementIT {
                 .isEqualTo("jdbc execution: select * from employee where name like ? => 1 row");
     }
 
+    @Test
+    public void testPreparedStatementUnderBindParametersThreshold() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "captureBindParametersThresholdMillis", 60000.0);
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementAndIterateOverResults.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getMessage())
+                .isEqualTo("jdbc execution: select * from employee where name like ? => 1 row");
+    }
+
+    @Test
+    public void testPreparedStatementOverBindParametersThreshold() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "captureBindParametersThresholdMillis", 0.000001);
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementAndIterateOverResults.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getMessage()).isEqualTo(
+                "jdbc execution: select * from employee where name like ? ['john%'] => 1 row");
+    }
+
     @Test
     public void testPreparedStatementWithSetNull() throws Exception {
         // given
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryNormalizationIT {
+
+    private static final String PLUGIN_ID = "jdbc";
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // javaagent container is used so that the shortened aggregate interval is picked up
+        // regardless of whether the agent has already been initialized in this jvm
+        container = JavaagentContainer.createWithExtraJvmArgs(
+                ImmutableList.of("-Dglowroot.internal.rollup.0.intervalMillis=1000"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldNormalizeAggregateQueryTextButNotTraceEntry() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeQueryText", true);
+        // when
+        Trace trace = container.execute(ExecuteStatementWithLiterals.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getMessage()).isEqualTo("jdbc execution: select * from employee"
+                + " where name = 'john doe' or name in ('jane doe', 'it''s') => 2 rows");
+        assertThat(container.getCollectedAggregateQueryTexts()).containsExactly(
+                "select * from employee where name = ? or name in (?)");
+    }
+
+    public static class ExecuteStatementWithLiterals implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("select * from employee where name = 'john doe'"
+                        + " or name in ('jane doe', 'it''s')");
+                ResultSet rs = statement.getResultSet();
+                while (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceStringLiteral() {
+        String sql = SqlNormalizer.normalize("select * from employee where name = 'it''s'", false);
+        assertThat(sql).isEqualTo("select * from employee where name = ?");
+    }
+
+    @Test
+    public void shouldReplaceStringLiteralWithBackslashEscapedQuote() {
+        String sql = SqlNormalizer.normalize("select * from employee where name = 'it\\'s'"
+                + " and id = 1", true);
+        assertThat(sql).isEqualTo("select * from employee where name = ? and id = ?");
+    }
+
+    @Test
+    public void shouldNotTreatBackslashAsEscapeInStandardStringLiteral() {
+        String sql = SqlNormalizer.normalize("select * from file where path = 'C:\\'"
+                + " and id = 1 and name = 'abc'", false);
+        assertThat(sql).isEqualTo("select * from file where path = ? and id = ? and name = ?");
+    }
+
+    @Test
+    public void shouldNotCollapseStatementsAfterStandardStringLiteralEndingInBackslash() {
+        String sql1 =
+                SqlNormalizer.normalize("update file set path = 'C:\\' where id = 1", false);
+        String sql2 =
+                SqlNormalizer.normalize("update file set path = 'D:\\' where name = 'x'", false);
+        assertThat(sql1).isEqualTo("update file set path = ? where id = ?");
+        assertThat(sql2).isEqualTo("update file set path = ? where name = ?");
+    }
+
+    @Test
+    public void shouldTreatBackslashAsEscapeInEscapeStringLiteral() {
+        String sql = SqlNormalizer.normalize("select * from employee where name = E'it\\'s'"
+                + " and id = 1", false);
+        assertThat(sql).isEqualTo("select * from employee where name = ? and id = ?");
+    }
+
+    @Test
+    public void shouldNotTreatIdentifierEAsEscapeStringPrefix() {
+        String sql = SqlNormalizer.normalize("select e.name from employee e where e.path = 'C:\\'"
+                + " and e.id = 1", false);
+        assertThat(sql).isEqualTo("select e.name from employee e where e.path = ? and e.id = ?");
+    }
+
+    @Test
+    public void shouldReplaceNumericLiterals() {
+        String sql = SqlNormalizer.normalize("select * from t1 where a = 1234 and b > 1.5e-3"
+                + " and c < .5 and d = 0x1F", false);
+        assertThat(sql).isEqualTo("select * from t1 where a = ? and b > ? and c < ? and d = ?");
+    }
+
+    @Test
+    public void shouldCollapseInList() {
+        String sql = SqlNormalizer.normalize("select * from employee where id in (1, 2, ?, 'x')"
+                + " and name IN ('a')", false);
+        assertThat(sql).isEqualTo("select * from employee where id in (?) and name IN (?)");
+    }
+
+    @Test
+    public void shouldNotCollapseInSubquery() {
+        String sql = SqlNormalizer.normalize(
+                "select * from employee where id in (select id from t2 where x = 5)", false);
+        assertThat(sql)
+                .isEqualTo("select * from employee where id in (select id from t2 where x = ?)");
+    }
+
+    @Test
+    public void shouldNotCollapseNonInParentheses() {
+        String sql = SqlNormalizer
+                .normalize("insert into employee (id, name) values (1, 'abc')", false);
+        assertThat(sql).isEqualTo("insert into employee (id, name) values (?, ?)");
+    }
+
+    @Test
+    public void shouldNotChangeQuotedIdentifiersOrComments() {
+        String sql = SqlNormalizer.normalize("select \"col 1\", `col2` from t /* 123 */ where"
+                + " x = 'a' -- 'b'\nand y = 2", false);
+        assertThat(sql).isEqualTo("select \"col 1\", `col2` from t /* 123 */ where"
+                + " x = ? -- 'b'\nand y = ?");
+    }
+
+    @Test
+    public void shouldNotChangeIdentifiersWithDigitsOrNamedParameters() {
+        String sql = SqlNormalizer.normalize("select a1.x from table2 a1 where a1.y = :y1", false);
+        assertThat(sql).isEqualTo("select a1.x from table2 a1 where a1.y = :y1");
+    }
+
+    @Test
+    public void shouldHandleUnterminatedLiteral() {
+        String sql = SqlNormalizer.normalize("select * from employee where name = 'abc", false);
+        assertThat(sql).isEqualTo("select * from employee where name = ?");
+    }
+
+    @Test
+    public void shouldCacheNormalizedSql() {
+        String sql = "select * from employee where id = 1";
+        assertThat(SqlNormalizer.getNormalizedSql(sql))
+                .isSameAs(SqlNormalizer.getNormalizedSql(sql));
+    }
+
+    @Test
+    public void shouldApplyBackslashEscapesSetting() {
+        String sql = "select * from employee where name = 'it\\'s' and id = 1";
+        try {
+            SqlNormalizer.configure(SqlNormalizer.DEFAULT_CACHE_MAX_CHARS, true);
+            assertThat(SqlNormalizer.getNormalizedSql(sql))
+                    .isEqualTo("select * from employee where name = ? and id = ?");
+        } finally {
+            SqlNormalizer.configure(SqlNormalizer.DEFAULT_CACHE_MAX_CHARS, false);
+        }
+        // standard sql: 'it\' is the literal, and the remaining quote is unterminated
+        assertThat(SqlNormalizer.getNormalizedSql(sql))
+                .isEqualTo("select * from employee where name = ?s?");
+    }
+}
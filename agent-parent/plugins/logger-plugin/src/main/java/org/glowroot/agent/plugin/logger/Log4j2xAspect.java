@@ -18,7 +18,6 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -57,6 +56,8 @@ public class Log4j2xAspect {
 
     @Shim("org.apache.logging.log4j.message.Message")
     public interface Message {
+        @Nullable
+        String getFormat();
         @Nullable
         String getFormattedMessage();
     }
@@ -75,15 +76,25 @@ public class Log4j2xAspect {
                 @BindParameter @Nullable Level level,
                 @SuppressWarnings("unused") @BindParameter @Nullable Object marker,
                 @BindParameter @Nullable Message message, @BindParameter @Nullable Throwable t) {
-            String formattedMessage =
-                    message == null ? "" : nullToEmpty(message.getFormattedMessage());
             int lvl = level == null ? 0 : level.intLevel();
+            boolean aggregate = LoggerPlugin.aggregateLogEvents();
+            String messagePattern =
+                    aggregate && message != null ? nullToEmpty(message.getFormat()) : "";
+            String formattedMessage;
+            if (aggregate && lvl > WARN) {
+                // aggregated log events below warning are never captured in the trace, so no need
+                // to pay the cost of formatting the message
+                formattedMessage = messagePattern;
+            } else {
+                formattedMessage =
+                        message == null ? "" : nullToEmpty(message.getFormattedMessage());
+            }
             if (LoggerPlugin.markTraceAsError(lvl <= ERROR, lvl <= WARN, t != null)) {
                 context.setTransactionError(formattedMessage, t);
             }
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
-            TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, formattedMessage), timerName);
+            TraceEntry traceEntry = LoggerPlugin.startTraceEntry(context, aggregate,
+                    getLevelStr(lvl), loggerName, messagePattern, formattedMessage, timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
         }
         @OnAfter
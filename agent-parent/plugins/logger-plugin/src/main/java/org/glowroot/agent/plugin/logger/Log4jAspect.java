@@ -20,7 +20,6 @@ import java.util.Enumeration;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -99,8 +98,9 @@ public class Log4jAspect {
                 context.setTransactionError(messageText, t);
             }
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
-            return context.startTraceEntry(MessageSupplier.from("log {}: {} - {}", getLevelStr(lvl),
-                    loggerName, messageText), timerName);
+            // log4j 1.x has no parameterized messages, so the message text is also the pattern
+            return LoggerPlugin.startTraceEntry(context, LoggerPlugin.aggregateLogEvents(),
+                    getLevelStr(lvl), loggerName, messageText, messageText, timerName);
         }
         @OnAfter
         @SuppressWarnings("unused")
@@ -18,7 +18,6 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -50,6 +49,8 @@ public class LogbackAspect {
         @Nullable
         Level glowroot$getLevel();
         @Nullable
+        String getMessage();
+        @Nullable
         String getFormattedMessage();
         @Nullable
         String getLoggerName();
@@ -80,9 +81,18 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
             Level level = loggingEvent.glowroot$getLevel();
             int lvl = level == null ? 0 : level.toInt();
+            boolean aggregate = LoggerPlugin.aggregateLogEvents();
+            String messagePattern = aggregate ? nullToEmpty(loggingEvent.getMessage()) : "";
+            String formattedMessage;
+            if (aggregate && lvl < WARN_INT) {
+                // aggregated log events below warning are never captured in the trace, so no need
+                // to pay the cost of formatting the message
+                formattedMessage = messagePattern;
+            } else {
+                formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
+            }
             Object throwableProxy = loggingEvent.glowroot$getThrowableProxy();
             Throwable t = null;
             if (throwableProxy instanceof ThrowableProxy) {
@@ -93,10 +103,9 @@ public class LogbackAspect {
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
                 context.setTransactionError(formattedMessage, t);
             }
-            TraceEntry traceEntry;
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(loggingEvent.getLoggerName());
-            traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, formattedMessage), timerName);
+            TraceEntry traceEntry = LoggerPlugin.startTraceEntry(context, aggregate,
+                    getLevelStr(lvl), loggerName, messagePattern, formattedMessage, timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
         }
         @OnAfter
@@ -133,16 +142,23 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = invoker.getFormattedMessage(loggingEvent);
             int lvl = invoker.getLevel(loggingEvent);
+            boolean aggregate = LoggerPlugin.aggregateLogEvents();
+            String messagePattern = aggregate ? invoker.getMessage(loggingEvent) : "";
+            String formattedMessage;
+            if (aggregate && lvl < WARN_INT) {
+                formattedMessage = messagePattern;
+            } else {
+                formattedMessage = invoker.getFormattedMessage(loggingEvent);
+            }
             Throwable t = invoker.getThrowable(loggingEvent);
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
                 context.setTransactionError(formattedMessage, t);
             }
             String loggerName =
                     LoggerPlugin.getAbbreviatedLoggerName(invoker.getLoggerName(logger));
-            TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, formattedMessage), timerName);
+            TraceEntry traceEntry = LoggerPlugin.startTraceEntry(context, aggregate,
+                    getLevelStr(lvl), loggerName, messagePattern, formattedMessage, timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
         }
         @OnAfter
@@ -18,8 +18,13 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.config.BooleanProperty;
 import org.glowroot.agent.plugin.api.config.ConfigService;
+import org.glowroot.agent.plugin.api.internal.LogEventAggregator;
 
 class LoggerPlugin {
 
@@ -33,6 +38,8 @@ class LoggerPlugin {
             configService.getBooleanProperty("traceErrorOnErrorWithThrowable");
     private static final BooleanProperty traceErrorOnErrorWithoutThrowable =
             configService.getBooleanProperty("traceErrorOnErrorWithoutThrowable");
+    private static final BooleanProperty aggregateLogEvents =
+            configService.getBooleanProperty("aggregateLogEvents");
 
     // TODO expose targetLength as plugin property
     private static final LoggerNameAbbreviator loggerNameAbbreviator =
@@ -53,6 +60,25 @@ class LoggerPlugin {
         return false;
     }
 
+    static boolean aggregateLogEvents() {
+        return aggregateLogEvents.value();
+    }
+
+    // when aggregating log events, the log event is counted in the transaction's log event
+    // aggregate, keyed by level, logger name and (unformatted) message pattern, and is only
+    // captured as a trace entry if it is escalated via endWithError()
+    static TraceEntry startTraceEntry(ThreadContext context, boolean aggregate, String levelStr,
+            String loggerName, String messagePattern, String formattedMessage,
+            TimerName timerName) {
+        MessageSupplier messageSupplier =
+                MessageSupplier.from("log {}: {} - {}", levelStr, loggerName, formattedMessage);
+        if (aggregate && context instanceof LogEventAggregator) {
+            return ((LogEventAggregator) context).startAggregatedLogEntry(levelStr, loggerName,
+                    messagePattern, messageSupplier, timerName);
+        }
+        return context.startTraceEntry(messageSupplier, timerName);
+    }
+
     static String getAbbreviatedLoggerName(@Nullable String loggerName) {
         if (loggerName == null) {
             return "null";
@@ -29,6 +29,7 @@ public class LoggingEventInvoker {
 
     private final @Nullable Method getLoggerNameMethod;
 
+    private final @Nullable Method getMessageMethod;
     private final @Nullable Method getFormattedMessageMethod;
     private final @Nullable Method getLevelMethod;
 
@@ -41,6 +42,7 @@ public class LoggingEventInvoker {
         Class<?> loggerClass = getLoggerClass(clazz);
         getLoggerNameMethod = Reflection.getMethod(loggerClass, "getName");
         Class<?> loggingEventClass = getLoggingEventClass(clazz);
+        getMessageMethod = Reflection.getMethod(loggingEventClass, "getMessage");
         getFormattedMessageMethod = Reflection.getMethod(loggingEventClass, "getFormattedMessage");
         getLevelMethod = Reflection.getMethod(loggingEventClass, "getLevel");
         if (loggingEventClass == null) {
@@ -78,6 +80,10 @@ public class LoggingEventInvoker {
         toIntMethod = Reflection.getMethod(getLevelClass(clazz), "toInt");
     }
 
+    String getMessage(Object loggingEvent) {
+        return Reflection.invokeWithDefault(getMessageMethod, loggingEvent, "");
+    }
+
     String getFormattedMessage(Object loggingEvent) {
         return Reflection.invokeWithDefault(getFormattedMessageMethod, loggingEvent, "");
     }
@@ -70,6 +70,24 @@ public class Log4j2xIT {
                 .isEqualTo("log error: o.g.a.p.logger.Log4j2xIT$ShouldLog - efg");
     }
 
+    @Test
+    public void testAggregatedLog() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnErrorWithoutThrowable", true);
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "aggregateLogEvents", true);
+        // when
+        Trace trace = container.execute(ShouldLog.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(trace.getHeader().getError().getMessage()).isEqualTo("efg");
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getMessage())
+                .isEqualTo("log warn: o.g.a.p.logger.Log4j2xIT$ShouldLog - def");
+        assertThat(entries.get(1).getMessage())
+                .isEqualTo("log error: o.g.a.p.logger.Log4j2xIT$ShouldLog - efg");
+    }
+
     @Test
     public void testLogWithThrowable() throws Exception {
         // given
@@ -84,6 +84,37 @@ public class LogbackIT {
                 .isEqualTo("log error: o.g.a.p.logger.LogbackIT$ShouldLog - efg");
     }
 
+    @Test
+    public void testAggregatedLog() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnErrorWithoutThrowable", true);
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "aggregateLogEvents", true);
+        // when
+        Trace trace = container.execute(ShouldLog.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(trace.getHeader().getError().getMessage()).isEqualTo("efg");
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getMessage())
+                .isEqualTo("log warn: o.g.a.p.logger.LogbackIT$ShouldLog - def");
+        assertThat(entries.get(1).getMessage())
+                .isEqualTo("log error: o.g.a.p.logger.LogbackIT$ShouldLog - efg");
+    }
+
+    @Test
+    public void testAggregatedLogBelowWarning() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "aggregateLogEvents", true);
+        // when
+        Trace trace = container.execute(ShouldLogInfoWithParameters.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getMessage())
+                .isEqualTo("log warn: o.g.a.p.l.LogbackIT$ShouldLogInfoWithParameters - def_1 d");
+    }
+
     @Test
     public void testLogWithThrowable() throws Exception {
         // given
@@ -275,6 +306,23 @@ public class LogbackIT {
         }
     }
 
+    public static class ShouldLogInfoWithParameters implements AppUnderTest, TransactionMarker {
+        private static final Logger logger =
+                LoggerFactory.getLogger(ShouldLogInfoWithParameters.class);
+        @Override
+        public void executeApp() {
+            ((ch.qos.logback.classic.Logger) logger).setLevel(ch.qos.logback.classic.Level.INFO);
+            transactionMarker();
+        }
+        @Override
+        public void transactionMarker() {
+            for (int i = 0; i < 100; i++) {
+                logger.info("cde_1 {}", i);
+            }
+            logger.warn("def_1 {}", "d");
+        }
+    }
+
     public static class ShouldLogWithThrowable implements AppUnderTest, TransactionMarker {
         private static final Logger logger = LoggerFactory.getLogger(ShouldLogWithThrowable.class);
         @Override
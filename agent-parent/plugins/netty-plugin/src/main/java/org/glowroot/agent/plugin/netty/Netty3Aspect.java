@@ -270,7 +270,8 @@ public class Netty3Aspect {
             @Nonnull
             AuxThreadContext auxContext = listener.glowroot$getAuxContext();
             listener.glowroot$setAuxContext(null);
-            return auxContext.start();
+            // listeners can be called inline from a thread that is bound to another transaction
+            return auxContext.startAndSuspendCurrent();
         }
         @OnReturn
         public static void onReturn(@BindTraveler TraceEntry traceEntry) {
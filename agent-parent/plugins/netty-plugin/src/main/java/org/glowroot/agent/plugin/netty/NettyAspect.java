@@ -124,7 +124,9 @@ public class NettyAspect {
             }
             AuxThreadContext auxContext = channel.glowroot$getAuxContext();
             if (auxContext != null) {
-                return auxContext.start();
+                // the event loop thread can be bound to another transaction, e.g. when the channel
+                // read is triggered inline by another channel
+                return auxContext.startAndSuspendCurrent();
             }
             if (!(msg instanceof HttpRequest)) {
                 return null;
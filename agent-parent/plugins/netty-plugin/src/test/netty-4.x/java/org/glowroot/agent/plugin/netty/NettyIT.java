@@ -17,6 +17,16 @@ package org.glowroot.agent.plugin.netty;
 
 import java.net.ServerSocket;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -29,8 +39,13 @@ import org.junit.Test;
 import org.glowroot.agent.it.harness.AppUnderTest;
 import org.glowroot.agent.it.harness.Container;
 import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.TransactionConfig;
+import org.glowroot.wire.api.model.Proto.OptionalInt32;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class NettyIT {
@@ -74,6 +89,23 @@ public class NettyIT {
         assertThat(trace.getHeader().getPartial()).isFalse();
     }
 
+    @Test
+    public void shouldCaptureInlineChannelReadInItsOwnTransaction() throws Exception {
+        // given
+        // only capture the (slow) async transaction, not the transaction that triggers the inline
+        // channel read
+        container.getConfigService().updateTransactionConfig(
+                TransactionConfig.newBuilder()
+                        .setSlowThresholdMillis(OptionalInt32.newBuilder().setValue(500))
+                        .build());
+        // when
+        Trace trace = container.execute(ExecuteInlineChannelRead.class);
+        // then
+        assertThat(trace.getHeader().getTransactionName()).isEqualTo("/abc");
+        assertThat(trace.getHeader().getHeadline()).isEqualTo("POST /abc");
+        assertThat(trace.getHeader().getPartial()).isFalse();
+    }
+
     private static int getAvailablePort() throws Exception {
         ServerSocket serverSocket = new ServerSocket(0);
         int port = serverSocket.getLocalPort();
@@ -112,4 +144,40 @@ public class NettyIT {
             server.close();
         }
     }
+
+    public static class ExecuteInlineChannelRead implements AppUnderTest, TransactionMarker {
+
+        private EmbeddedChannel channel;
+
+        @Override
+        public void executeApp() throws Exception {
+            channel = new EmbeddedChannel(new HttpServerCodec(), new RespondOnLastContent());
+            // the request header starts the async transaction
+            channel.writeInbound(Unpooled.copiedBuffer(
+                    "POST /abc HTTP/1.1\r\nContent-Length: 3\r\n\r\n", CharsetUtil.US_ASCII));
+            Thread.sleep(1000);
+            transactionMarker();
+            channel.finish();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            // the request content is read inline while this thread is bound to this transaction,
+            // and the response completes the async transaction
+            channel.writeInbound(Unpooled.copiedBuffer("xyz", CharsetUtil.US_ASCII));
+        }
+    }
+
+    private static class RespondOnLastContent extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof LastHttpContent) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+                response.headers().set("Content-Length", 0);
+                ctx.writeAndFlush(response);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
 }
@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
@@ -27,12 +26,13 @@ import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.glowroot.agent.plugin.servlet.ServletAspect.HttpServletRequest;
+import org.glowroot.agent.plugin.servlet.ServletPluginProperties.NameDecision;
+import org.glowroot.agent.plugin.servlet.ServletPluginProperties.NameDecisions;
 
 // shallow copies are necessary because request may not be thread safe, which may affect ability
 // to see detail from active traces
@@ -41,47 +41,56 @@ import org.glowroot.agent.plugin.servlet.ServletAspect.HttpServletRequest;
 // request is complete (e.g. tomcat does this) in order to reuse them, in which case this detail
 // would need to be captured synchronously at end of request anyways (although then it could be
 // captured only if trace met threshold for storage...)
+//
+// the shallow copies are captured as compact name/value arrays (value is either a String or a
+// String[]), and are only materialized into maps (see toMap()) when the trace detail is actually
+// needed, which is only for traces that are stored or viewed while active
 class DetailCapture {
 
+    static final Object[] EMPTY = new Object[0];
+
     private DetailCapture() {}
 
-    static ImmutableMap<String, Object> captureRequestParameters(
+    static Object[] captureRequestParameters(
             Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> requestParameters) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
-        ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
+        NameDecisions decisions = ServletPluginProperties.requestParameterDecisions();
+        if (decisions.isEmpty()) {
+            return EMPTY;
+        }
+        List<Object> nameValues = Lists.newArrayList();
         for (Entry</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> entry : requestParameters
                 .entrySet()) {
             String name = entry.getKey();
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            NameDecision decision = decisions.get(name);
+            if (decision == NameDecision.SKIP) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
-                map.put(name, "****");
+            if (decision == NameDecision.MASK) {
+                add(nameValues, name, "****");
                 continue;
             }
             @Nullable
             String[] values = entry.getValue();
             if (values != null) {
-                set(map, name, values);
+                addParameter(nameValues, name, values);
             }
         }
-        return map.build();
+        return nameValues.toArray();
     }
 
-    static ImmutableMap<String, Object> captureRequestParameters(HttpServletRequest request) {
+    static Object[] captureRequestParameters(HttpServletRequest request) {
         Enumeration<? extends /*@Nullable*/Object> e = request.getParameterNames();
         if (e == null) {
-            return ImmutableMap.of();
+            return EMPTY;
+        }
+        NameDecisions decisions = ServletPluginProperties.requestParameterDecisions();
+        if (decisions.isEmpty()) {
+            return EMPTY;
         }
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
-        ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
+        List<Object> nameValues = Lists.newArrayList();
         while (e.hasMoreElements()) {
             Object nameObj = e.nextElement();
             if (nameObj == null) {
@@ -91,68 +100,70 @@ class DetailCapture {
                 continue;
             }
             String name = (String) nameObj;
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            NameDecision decision = decisions.get(name);
+            if (decision == NameDecision.SKIP) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
-                map.put(name, "****");
+            if (decision == NameDecision.MASK) {
+                add(nameValues, name, "****");
                 continue;
             }
             @Nullable
             String[] values = request.getParameterValues(name);
             if (values != null) {
-                set(map, name, values);
-            }
-        }
-        return map.build();
-    }
-
-    private static void set(ImmutableMap.Builder<String, Object> map, String name,
-            @Nullable String[] values) {
-        if (values == null) {
-            return;
-        }
-        if (values.length == 1) {
-            String value = values[0];
-            if (value != null) {
-                map.put(name, value);
+                addParameter(nameValues, name, values);
             }
-        } else {
-            List</*@Nullable*/ String> list =
-                    new ArrayList</*@Nullable*/ String>(values.length);
-            Collections.addAll(list, values);
-            map.put(name, list);
         }
+        return nameValues.toArray();
     }
 
-    static ImmutableMap<String, Object> captureRequestHeaders(HttpServletRequest request) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestHeaders();
-        if (capturePatterns.isEmpty()) {
-            return ImmutableMap.of();
+    static Object[] captureRequestHeaders(HttpServletRequest request) {
+        NameDecisions decisions = ServletPluginProperties.requestHeaderDecisions();
+        if (decisions.isEmpty()) {
+            return EMPTY;
         }
-        Map<String, Object> requestHeaders = Maps.newHashMap();
         Enumeration</*@Nullable*/ String> headerNames = request.getHeaderNames();
         if (headerNames == null) {
-            return ImmutableMap.of();
+            return EMPTY;
         }
+        List<Object> nameValues = Lists.newArrayList();
         for (Enumeration</*@Nullable*/ String> e = headerNames; e.hasMoreElements();) {
             String name = e.nextElement();
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (decisions.get(name) == NameDecision.SKIP) {
                 continue;
             }
             Enumeration</*@Nullable*/ String> values = request.getHeaders(name);
             if (values != null) {
-                captureRequestHeader(name, values, requestHeaders);
+                addHeader(nameValues, name, values);
             }
         }
-        return ImmutableMap.copyOf(requestHeaders);
+        return nameValues.toArray();
+    }
+
+    static ImmutableMap<String, Object> toMap(Object[] nameValues) {
+        if (nameValues.length == 0) {
+            return ImmutableMap.of();
+        }
+        // using linked hash map (instead of ImmutableMap.Builder) since header names can repeat
+        // with different case, in which case the last one wins
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            String name = (String) nameValues[i];
+            Object value = nameValues[i + 1];
+            if (value instanceof String[]) {
+                String[] values = (String[]) value;
+                List</*@Nullable*/ String> list =
+                        new ArrayList</*@Nullable*/ String>(values.length);
+                Collections.addAll(list, values);
+                map.put(name, list);
+            } else {
+                map.put(name, value);
+            }
+        }
+        return ImmutableMap.copyOf(map);
     }
 
     static boolean matchesOneOf(String key, List<Pattern> patterns) {
@@ -164,22 +175,39 @@ class DetailCapture {
         return false;
     }
 
-    private static void captureRequestHeader(String name, Enumeration</*@Nullable*/ String> values,
-            Map<String, Object> requestHeaders) {
+    private static void addParameter(List<Object> nameValues, String name, String[] values) {
+        if (values.length == 1) {
+            String value = values[0];
+            if (value != null) {
+                add(nameValues, name, value);
+            }
+        } else {
+            // copy since servlet container may reuse the array
+            add(nameValues, name, values.clone());
+        }
+    }
+
+    private static void addHeader(List<Object> nameValues, String name,
+            Enumeration</*@Nullable*/ String> values) {
         if (!values.hasMoreElements()) {
-            requestHeaders.put(name, "");
+            add(nameValues, name, "");
         } else {
             String value = values.nextElement();
             if (!values.hasMoreElements()) {
-                requestHeaders.put(name, Strings.nullToEmpty(value));
+                add(nameValues, name, Strings.nullToEmpty(value));
             } else {
                 List<String> list = Lists.newArrayList();
                 list.add(Strings.nullToEmpty(value));
                 while (values.hasMoreElements()) {
                     list.add(Strings.nullToEmpty(values.nextElement()));
                 }
-                requestHeaders.put(name, ImmutableList.copyOf(list));
+                add(nameValues, name, list.toArray(new String[list.size()]));
             }
         }
     }
+
+    private static void add(List<Object> nameValues, String name, Object value) {
+        nameValues.add(name);
+        nameValues.add(value);
+    }
 }
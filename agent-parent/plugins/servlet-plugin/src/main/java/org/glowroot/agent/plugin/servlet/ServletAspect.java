@@ -143,8 +143,7 @@ public class ServletAspect {
             // url ended with ? but nothing after that
             String requestQueryString = request.getQueryString();
             String requestMethod = Strings.nullToEmpty(request.getMethod());
-            ImmutableMap<String, Object> requestHeaders =
-                    DetailCapture.captureRequestHeaders(request);
+            Object[] requestHeaders = DetailCapture.captureRequestHeaders(request);
             if (session == null) {
                 messageSupplier = new ServletMessageSupplier(requestMethod, requestUri,
                         requestQueryString, requestHeaders, ImmutableMap.<String, String>of());
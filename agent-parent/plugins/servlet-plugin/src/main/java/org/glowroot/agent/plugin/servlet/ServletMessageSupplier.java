@@ -38,9 +38,11 @@ class ServletMessageSupplier extends MessageSupplier {
     private final String requestUri;
     private final @Nullable String requestQueryString;
 
-    private volatile @MonotonicNonNull ImmutableMap<String, Object> requestParameters;
+    // request parameters and request headers are held as compact name/value arrays (see
+    // DetailCapture) and only materialized into maps in get()
+    private volatile Object /*@MonotonicNonNull*/[] requestParameters;
 
-    private final ImmutableMap<String, Object> requestHeaders;
+    private final Object[] requestHeaders;
 
     private final ResponseHeaderComponent responseHeaderComponent = new ResponseHeaderComponent();
 
@@ -55,7 +57,7 @@ class ServletMessageSupplier extends MessageSupplier {
     private volatile @MonotonicNonNull ConcurrentMap<String, Optional<String>> sessionAttributeUpdatedValueMap;
 
     ServletMessageSupplier(String requestMethod, String requestUri,
-            @Nullable String requestQueryString, ImmutableMap<String, Object> requestHeaders,
+            @Nullable String requestQueryString, Object[] requestHeaders,
             ImmutableMap<String, String> sessionAttributeMap) {
         this.requestMethod = requestMethod;
         this.requestUri = requestUri;
@@ -72,11 +74,12 @@ class ServletMessageSupplier extends MessageSupplier {
             // including empty query string since that means request ended with ?
             detail.put("Request query string", requestQueryString);
         }
-        if (requestParameters != null && !requestParameters.isEmpty()) {
-            detail.put("Request parameters", requestParameters);
+        Object[] requestParameters = this.requestParameters;
+        if (requestParameters != null && requestParameters.length != 0) {
+            detail.put("Request parameters", DetailCapture.toMap(requestParameters));
         }
-        if (!requestHeaders.isEmpty()) {
-            detail.put("Request headers", requestHeaders);
+        if (requestHeaders.length != 0) {
+            detail.put("Request headers", DetailCapture.toMap(requestHeaders));
         }
         Map<String, Object> responseHeaderStrings = responseHeaderComponent.getMapOfStrings();
         if (!responseHeaderStrings.isEmpty()) {
@@ -90,7 +93,7 @@ class ServletMessageSupplier extends MessageSupplier {
         return requestParameters != null;
     }
 
-    void setCaptureRequestParameters(ImmutableMap<String, Object> requestParameters) {
+    void setCaptureRequestParameters(Object[] requestParameters) {
         this.requestParameters = requestParameters;
     }
 
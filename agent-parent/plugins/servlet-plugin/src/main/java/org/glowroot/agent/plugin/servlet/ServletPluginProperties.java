@@ -20,6 +20,9 @@ import java.util.Locale;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -44,9 +47,15 @@ class ServletPluginProperties {
 
     private static final Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    private static ImmutableList<Pattern> captureRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> maskRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> captureRequestHeaders = ImmutableList.of();
+    // request parameter and request header names come from the client, so the number of cached
+    // name decisions needs to be bounded (least recently used names are evicted first, so that a
+    // burst of one-off names does not permanently crowd out the common names)
+    static final int MAX_CACHED_NAME_DECISIONS = 1000;
+
+    private static volatile NameDecisions requestParameterDecisions =
+            new NameDecisions(ImmutableList.<Pattern>of(), ImmutableList.<Pattern>of());
+    private static volatile NameDecisions requestHeaderDecisions =
+            new NameDecisions(ImmutableList.<Pattern>of(), ImmutableList.<Pattern>of());
     private static ImmutableList<Pattern> captureResponseHeaders = ImmutableList.of();
 
     private static boolean captureResponseHeadersNonEmpty;
@@ -69,16 +78,12 @@ class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    static ImmutableList<Pattern> captureRequestParameters() {
-        return captureRequestParameters;
-    }
-
-    static ImmutableList<Pattern> maskRequestParameters() {
-        return maskRequestParameters;
+    static NameDecisions requestParameterDecisions() {
+        return requestParameterDecisions;
     }
 
-    static ImmutableList<Pattern> captureRequestHeaders() {
-        return captureRequestHeaders;
+    static NameDecisions requestHeaderDecisions() {
+        return requestHeaderDecisions;
     }
 
     static ImmutableList<Pattern> captureResponseHeaders() {
@@ -112,9 +117,13 @@ class ServletPluginProperties {
     }
 
     private static void updateCache() {
-        captureRequestParameters = buildPatternList(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
-        maskRequestParameters = buildPatternList(MASK_REQUEST_PARAMS_PROPERTY_NAME);
-        captureRequestHeaders = buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
+        // new instances so that decisions cached under the prior config are discarded
+        requestParameterDecisions =
+                new NameDecisions(buildPatternList(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME),
+                        buildPatternList(MASK_REQUEST_PARAMS_PROPERTY_NAME));
+        requestHeaderDecisions =
+                new NameDecisions(buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME),
+                        ImmutableList.<Pattern>of());
         captureResponseHeaders = buildPatternList(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
         captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
         sessionUserAttributePath =
@@ -159,4 +168,57 @@ class ServletPluginProperties {
         regex = regex.replace("\\Q\\E", "");
         return Pattern.compile(regex);
     }
+
+    enum NameDecision {
+        SKIP, CAPTURE, MASK
+    }
+
+    // caches the capture/mask decision per (case-sensitive) name, since the same small set of
+    // request parameter and request header names are seen over and over, and this avoids lower
+    // casing and regex matching every name on every request
+    static class NameDecisions {
+
+        private final ImmutableList<Pattern> capturePatterns;
+        private final ImmutableList<Pattern> maskPatterns;
+
+        private final LoadingCache<String, NameDecision> decisions;
+
+        NameDecisions(ImmutableList<Pattern> capturePatterns,
+                ImmutableList<Pattern> maskPatterns) {
+            this.capturePatterns = capturePatterns;
+            this.maskPatterns = maskPatterns;
+            decisions = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_CACHED_NAME_DECISIONS)
+                    .build(new CacheLoader<String, NameDecision>() {
+                        @Override
+                        public NameDecision load(String name) {
+                            return calculate(name);
+                        }
+                    });
+        }
+
+        boolean isEmpty() {
+            return capturePatterns.isEmpty();
+        }
+
+        NameDecision get(String name) {
+            return decisions.getUnchecked(name);
+        }
+
+        long size() {
+            return decisions.size();
+        }
+
+        private NameDecision calculate(String name) {
+            // converted to lower case for case-insensitive matching (patterns are lower case)
+            String nameLowerCase = name.toLowerCase(Locale.ENGLISH);
+            if (!DetailCapture.matchesOneOf(nameLowerCase, capturePatterns)) {
+                return NameDecision.SKIP;
+            }
+            if (DetailCapture.matchesOneOf(nameLowerCase, maskPatterns)) {
+                return NameDecision.MASK;
+            }
+            return NameDecision.CAPTURE;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DetailCaptureTest {
+
+    @Test
+    public void shouldMaterializeEmpty() {
+        // when
+        Map<String, Object> map = DetailCapture.toMap(DetailCapture.EMPTY);
+        // then
+        assertThat(map).isEmpty();
+    }
+
+    @Test
+    public void shouldMaterializeSingleAndMultipleValues() {
+        // given
+        Object[] nameValues = new Object[] {"one", "1", "two", new String[] {"2", null}};
+        // when
+        Map<String, Object> map = DetailCapture.toMap(nameValues);
+        // then
+        assertThat(map).hasSize(2);
+        assertThat(map.get("one")).isEqualTo("1");
+        assertThat(map.get("two")).isEqualTo(Arrays.asList("2", null));
+        assertThat(map.keySet()).containsExactly("one", "two");
+    }
+
+    @Test
+    public void shouldMaterializeRepeatedNameWithLastOneWinning() {
+        // given
+        Object[] nameValues = new Object[] {"Accept", "a", "accept", "b", "Accept", "c"};
+        // when
+        Map<String, Object> map = DetailCapture.toMap(nameValues);
+        // then
+        assertThat(map).hasSize(2);
+        assertThat(map.get("Accept")).isEqualTo("c");
+        assertThat(map.get("accept")).isEqualTo("b");
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.servlet.ServletPluginProperties.NameDecision;
+import org.glowroot.agent.plugin.servlet.ServletPluginProperties.NameDecisions;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameDecisionsTest {
+
+    @Test
+    public void shouldDecideCaseInsensitive() {
+        // given
+        NameDecisions decisions = new NameDecisions(
+                ImmutableList.of(Pattern.compile("user.*"), Pattern.compile("password")),
+                ImmutableList.of(Pattern.compile("password")));
+        // when
+        NameDecision userId = decisions.get("userId");
+        NameDecision password = decisions.get("PASSWORD");
+        NameDecision other = decisions.get("other");
+        // then
+        assertThat(userId).isEqualTo(NameDecision.CAPTURE);
+        assertThat(password).isEqualTo(NameDecision.MASK);
+        assertThat(other).isEqualTo(NameDecision.SKIP);
+    }
+
+    @Test
+    public void shouldBeEmptyWithoutCapturePatterns() {
+        // given
+        NameDecisions decisions = new NameDecisions(ImmutableList.<Pattern>of(),
+                ImmutableList.of(Pattern.compile("password")));
+        // when
+        boolean empty = decisions.isEmpty();
+        // then
+        assertThat(empty).isTrue();
+        assertThat(decisions.get("password")).isEqualTo(NameDecision.SKIP);
+    }
+
+    @Test
+    public void shouldBoundCachedDecisions() {
+        // given
+        NameDecisions decisions =
+                new NameDecisions(ImmutableList.of(Pattern.compile(".*")),
+                        ImmutableList.<Pattern>of());
+        // when
+        for (int i = 0; i < ServletPluginProperties.MAX_CACHED_NAME_DECISIONS * 2; i++) {
+            decisions.get("name" + i);
+        }
+        // then
+        assertThat(decisions.size())
+                .isLessThanOrEqualTo(ServletPluginProperties.MAX_CACHED_NAME_DECISIONS);
+        assertThat(decisions.get("another")).isEqualTo(NameDecision.CAPTURE);
+    }
+}
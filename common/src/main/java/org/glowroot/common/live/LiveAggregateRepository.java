@@ -15,13 +15,14 @@
  */
 package org.glowroot.common.live;
 
-import java.io.IOException;
 import java.util.List;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
 import org.immutables.value.Value;
 
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -59,10 +60,12 @@ public interface LiveAggregateRepository {
     String getFullQueryText(String agentRollup, String fullQueryTextSha1);
 
     long mergeInQueries(String agentId, TransactionQuery query, QueryCollector collector)
-            throws IOException;
+            throws DataFormatException;
 
     long mergeInServiceCalls(String agentId, TransactionQuery query, ServiceCallCollector collector)
-            throws IOException;
+            throws DataFormatException;
+
+    long mergeInLogEvents(String agentId, TransactionQuery query, LogEventCollector collector);
 
     long mergeInMainThreadProfiles(String agentId, TransactionQuery query,
             ProfileCollector collector);
@@ -202,6 +205,12 @@ public interface LiveAggregateRepository {
             return query.to();
         }
 
+        @Override
+        public long mergeInLogEvents(String agentId, TransactionQuery query,
+                LogEventCollector collector) {
+            return query.to();
+        }
+
         @Override
         public long mergeInMainThreadProfiles(String agentId, TransactionQuery query,
                 ProfileCollector collector) {
@@ -15,8 +15,11 @@
  */
 package org.glowroot.common.live;
 
+import java.io.File;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
@@ -34,6 +37,14 @@ public interface LiveJvmService {
 
     HeapDumpFileInfo heapDump(String agentId, String directory) throws Exception;
 
+    // only supported by glowroot server, the heap dump is transferred (gzipped) from the agent's
+    // directory to the server's disk so that it can be downloaded from the server
+    HeapDumpFileInfo heapDumpAndTransfer(String agentId, String directory) throws Exception;
+
+    // returns null if there is no such transferred heap dump for the agent
+    @Nullable
+    File getTransferredHeapDumpFile(String agentId, String fileName);
+
     void gc(String agentId) throws Exception;
 
     MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames)
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// encodes aggregate messages as a delta against the previous aggregate message, which for steady
+// state services mostly contains the same query text and the same profile tree structure
+//
+// query text that is also in the base message is referenced by its index in the base message, and
+// profiles with the same names and nodes as the corresponding base profile are sent as just the
+// node sample counts
+//
+// profiles that differ from the corresponding base profile (e.g. a few new leaf nodes) are encoded
+// node by node, where each node that matches a base profile node is sent as just the base node
+// index and sample count, and only the remaining nodes are sent in full
+public class AggregateDeltaEncoding {
+
+    private AggregateDeltaEncoding() {}
+
+    public static AggregateMessage encode(AggregateMessage message, AggregateMessage base) {
+        AggregateMessage.Builder builder = message.toBuilder()
+                .setDeltaBaseCaptureTime(base.getCaptureTime())
+                .clearSharedQueryText();
+        Map<String, Integer> baseIndexes = Maps.newHashMap();
+        List<String> baseSharedQueryTexts = base.getSharedQueryTextList();
+        for (int i = 0; i < baseSharedQueryTexts.size(); i++) {
+            baseIndexes.put(baseSharedQueryTexts.get(i), i);
+        }
+        for (String sharedQueryText : message.getSharedQueryTextList()) {
+            Integer baseIndex = baseIndexes.get(sharedQueryText);
+            if (baseIndex == null) {
+                builder.addSharedQueryTextBaseIndex(-1);
+                builder.addSharedQueryText(sharedQueryText);
+            } else {
+                builder.addSharedQueryTextBaseIndex(baseIndex);
+            }
+        }
+        Map<List<String>, Aggregate> baseAggregates = getAggregates(base);
+        for (AggregatesByType.Builder aggregatesByType : builder
+                .getAggregatesByTypeBuilderList()) {
+            String transactionType = aggregatesByType.getTransactionType();
+            encode(aggregatesByType.getOverallAggregateBuilder(),
+                    baseAggregates.get(ImmutableList.of(transactionType)));
+            for (TransactionAggregate.Builder transactionAggregate : aggregatesByType
+                    .getTransactionAggregateBuilderList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                encode(transactionAggregate.getAggregateBuilder(),
+                        baseAggregates.get(ImmutableList.of(transactionType, transactionName)));
+            }
+        }
+        return builder.build();
+    }
+
+    public static AggregateMessage decode(AggregateMessage delta, AggregateMessage base) {
+        AggregateMessage.Builder builder = delta.toBuilder()
+                .setDeltaBaseCaptureTime(0)
+                .clearSharedQueryTextBaseIndex()
+                .clearSharedQueryText();
+        Iterator<String> sharedQueryTexts = delta.getSharedQueryTextList().iterator();
+        for (int baseIndex : delta.getSharedQueryTextBaseIndexList()) {
+            if (baseIndex == -1) {
+                builder.addSharedQueryText(sharedQueryTexts.next());
+            } else {
+                builder.addSharedQueryText(base.getSharedQueryText(baseIndex));
+            }
+        }
+        Map<List<String>, Aggregate> baseAggregates = getAggregates(base);
+        for (AggregatesByType.Builder aggregatesByType : builder
+                .getAggregatesByTypeBuilderList()) {
+            String transactionType = aggregatesByType.getTransactionType();
+            decode(aggregatesByType.getOverallAggregateBuilder(),
+                    baseAggregates.get(ImmutableList.of(transactionType)));
+            for (TransactionAggregate.Builder transactionAggregate : aggregatesByType
+                    .getTransactionAggregateBuilderList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                decode(transactionAggregate.getAggregateBuilder(),
+                        baseAggregates.get(ImmutableList.of(transactionType, transactionName)));
+            }
+        }
+        return builder.build();
+    }
+
+    private static void encode(Aggregate.Builder aggregate, @Nullable Aggregate baseAggregate) {
+        if (baseAggregate == null) {
+            return;
+        }
+        if (aggregate.hasMainThreadProfile() && baseAggregate.hasMainThreadProfile()) {
+            Profile profile = encode(aggregate.getMainThreadProfile(),
+                    baseAggregate.getMainThreadProfile());
+            if (profile != null) {
+                aggregate.setMainThreadProfile(profile);
+            }
+        }
+        if (aggregate.hasAuxThreadProfile() && baseAggregate.hasAuxThreadProfile()) {
+            Profile profile = encode(aggregate.getAuxThreadProfile(),
+                    baseAggregate.getAuxThreadProfile());
+            if (profile != null) {
+                aggregate.setAuxThreadProfile(profile);
+            }
+        }
+    }
+
+    // returns null if the profile cannot be delta encoded against the base profile
+    private static @Nullable Profile encode(Profile profile, Profile baseProfile) {
+        if (!isSameStructure(profile, baseProfile)) {
+            return encodeNodeByNode(profile, baseProfile);
+        }
+        Profile.Builder builder = Profile.newBuilder()
+                .setSameStructureAsBase(true);
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            builder.addSampleCount(node.getSampleCount());
+        }
+        return builder.build();
+    }
+
+    // returns null if none of the nodes match the base profile
+    private static @Nullable Profile encodeNodeByNode(Profile profile, Profile baseProfile) {
+        Map<List<Object>, Integer> baseNodeIndexes = getNodeIndexes(baseProfile);
+        Profile.Builder builder = Profile.newBuilder()
+                .setDeltaEncoded(true);
+        // base node index (or -1 if no match) of the most recent node at each depth
+        List<Integer> baseIndexPath = Lists.newArrayList();
+        boolean matched = false;
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            int depth = node.getDepth();
+            Integer baseIndex = null;
+            if (depth == 0) {
+                baseIndex = baseNodeIndexes.get(getNodeKey(profile, node, -1));
+            } else {
+                int parentBaseIndex = baseIndexPath.get(depth - 1);
+                if (parentBaseIndex != -1) {
+                    baseIndex = baseNodeIndexes.get(getNodeKey(profile, node, parentBaseIndex));
+                }
+            }
+            if (baseIndex == null) {
+                builder.addNodeBaseIndex(-1);
+                builder.addNode(node);
+                setAtDepth(baseIndexPath, depth, -1);
+            } else {
+                builder.addNodeBaseIndex(baseIndex);
+                builder.addSampleCount(node.getSampleCount());
+                setAtDepth(baseIndexPath, depth, baseIndex);
+                matched = true;
+            }
+        }
+        if (!matched) {
+            return null;
+        }
+        EncodedNames packageNames =
+                encodeNames(profile.getPackageNameList(), baseProfile.getPackageNameList());
+        EncodedNames classNames =
+                encodeNames(profile.getClassNameList(), baseProfile.getClassNameList());
+        EncodedNames methodNames =
+                encodeNames(profile.getMethodNameList(), baseProfile.getMethodNameList());
+        EncodedNames fileNames =
+                encodeNames(profile.getFileNameList(), baseProfile.getFileNameList());
+        return builder.addAllPackageNameBaseIndex(packageNames.baseIndexes)
+                .addAllPackageName(packageNames.names)
+                .addAllClassNameBaseIndex(classNames.baseIndexes)
+                .addAllClassName(classNames.names)
+                .addAllMethodNameBaseIndex(methodNames.baseIndexes)
+                .addAllMethodName(methodNames.names)
+                .addAllFileNameBaseIndex(fileNames.baseIndexes)
+                .addAllFileName(fileNames.names)
+                .build();
+    }
+
+    private static EncodedNames encodeNames(List<String> names, List<String> baseNames) {
+        Map<String, Integer> baseIndexes = Maps.newHashMap();
+        for (int i = 0; i < baseNames.size(); i++) {
+            baseIndexes.put(baseNames.get(i), i);
+        }
+        EncodedNames encodedNames = new EncodedNames();
+        for (String name : names) {
+            Integer baseIndex = baseIndexes.get(name);
+            if (baseIndex == null) {
+                encodedNames.baseIndexes.add(-1);
+                encodedNames.names.add(name);
+            } else {
+                encodedNames.baseIndexes.add(baseIndex);
+            }
+        }
+        return encodedNames;
+    }
+
+    private static void decode(Aggregate.Builder aggregate, @Nullable Aggregate baseAggregate) {
+        if (isDeltaEncoded(aggregate.getMainThreadProfile())) {
+            checkNotNull(baseAggregate, "Delta encoded aggregate has no base aggregate");
+            aggregate.setMainThreadProfile(decode(aggregate.getMainThreadProfile(),
+                    baseAggregate.getMainThreadProfile()));
+        }
+        if (isDeltaEncoded(aggregate.getAuxThreadProfile())) {
+            checkNotNull(baseAggregate, "Delta encoded aggregate has no base aggregate");
+            aggregate.setAuxThreadProfile(decode(aggregate.getAuxThreadProfile(),
+                    baseAggregate.getAuxThreadProfile()));
+        }
+    }
+
+    private static boolean isDeltaEncoded(Profile profile) {
+        return profile.getSameStructureAsBase() || profile.getDeltaEncoded();
+    }
+
+    private static Profile decode(Profile profile, Profile baseProfile) {
+        if (profile.getDeltaEncoded()) {
+            return decodeNodeByNode(profile, baseProfile);
+        }
+        if (profile.getSampleCountCount() != baseProfile.getNodeCount()) {
+            throw new IllegalStateException("Delta encoded profile does not match base profile");
+        }
+        Profile.Builder builder = baseProfile.toBuilder();
+        for (int i = 0; i < profile.getSampleCountCount(); i++) {
+            builder.getNodeBuilder(i).setSampleCount(profile.getSampleCount(i));
+        }
+        return builder.build();
+    }
+
+    private static Profile decodeNodeByNode(Profile profile, Profile baseProfile) {
+        List<String> packageNames = Lists.newArrayList();
+        int[] packageNameIndexes = decodeNames(profile.getPackageNameBaseIndexList(),
+                profile.getPackageNameList(), baseProfile.getPackageNameList(), packageNames);
+        List<String> classNames = Lists.newArrayList();
+        int[] classNameIndexes = decodeNames(profile.getClassNameBaseIndexList(),
+                profile.getClassNameList(), baseProfile.getClassNameList(), classNames);
+        List<String> methodNames = Lists.newArrayList();
+        int[] methodNameIndexes = decodeNames(profile.getMethodNameBaseIndexList(),
+                profile.getMethodNameList(), baseProfile.getMethodNameList(), methodNames);
+        List<String> fileNames = Lists.newArrayList();
+        int[] fileNameIndexes = decodeNames(profile.getFileNameBaseIndexList(),
+                profile.getFileNameList(), baseProfile.getFileNameList(), fileNames);
+        Profile.Builder builder = Profile.newBuilder()
+                .addAllPackageName(packageNames)
+                .addAllClassName(classNames)
+                .addAllMethodName(methodNames)
+                .addAllFileName(fileNames);
+        Iterator<Profile.ProfileNode> nodes = profile.getNodeList().iterator();
+        Iterator<Long> sampleCounts = profile.getSampleCountList().iterator();
+        for (int baseIndex : profile.getNodeBaseIndexList()) {
+            if (baseIndex == -1) {
+                builder.addNode(nodes.next());
+                continue;
+            }
+            Profile.ProfileNode baseNode = baseProfile.getNode(baseIndex);
+            builder.addNode(baseNode.toBuilder()
+                    .setPackageNameIndex(
+                            remap(packageNameIndexes, baseNode.getPackageNameIndex()))
+                    .setClassNameIndex(remap(classNameIndexes, baseNode.getClassNameIndex()))
+                    .setMethodNameIndex(remap(methodNameIndexes, baseNode.getMethodNameIndex()))
+                    .setFileNameIndex(remap(fileNameIndexes, baseNode.getFileNameIndex()))
+                    .setSampleCount(sampleCounts.next()));
+        }
+        return builder.build();
+    }
+
+    // returns the name index for each base name index (or -1 if the base name is not used)
+    private static int[] decodeNames(List<Integer> baseIndexes, List<String> names,
+            List<String> baseNames, List<String> decodedNames) {
+        int[] indexes = new int[baseNames.size()];
+        Arrays.fill(indexes, -1);
+        Iterator<String> i = names.iterator();
+        for (int baseIndex : baseIndexes) {
+            if (baseIndex == -1) {
+                decodedNames.add(i.next());
+            } else {
+                indexes[baseIndex] = decodedNames.size();
+                decodedNames.add(baseNames.get(baseIndex));
+            }
+        }
+        return indexes;
+    }
+
+    private static int remap(int[] indexes, int baseIndex) {
+        if (baseIndex >= indexes.length) {
+            // name index was already out of range in the base profile
+            return baseIndex;
+        }
+        int index = indexes[baseIndex];
+        if (index == -1) {
+            throw new IllegalStateException("Delta encoded profile does not match base profile");
+        }
+        return index;
+    }
+
+    private static boolean isSameStructure(Profile profile, Profile baseProfile) {
+        if (profile.getNodeCount() != baseProfile.getNodeCount()
+                || !profile.getPackageNameList().equals(baseProfile.getPackageNameList())
+                || !profile.getClassNameList().equals(baseProfile.getClassNameList())
+                || !profile.getMethodNameList().equals(baseProfile.getMethodNameList())
+                || !profile.getFileNameList().equals(baseProfile.getFileNameList())) {
+            return false;
+        }
+        for (int i = 0; i < profile.getNodeCount(); i++) {
+            Profile.ProfileNode node = profile.getNode(i);
+            Profile.ProfileNode baseNode = baseProfile.getNode(i);
+            if (node.getDepth() != baseNode.getDepth()
+                    || node.getPackageNameIndex() != baseNode.getPackageNameIndex()
+                    || node.getClassNameIndex() != baseNode.getClassNameIndex()
+                    || node.getMethodNameIndex() != baseNode.getMethodNameIndex()
+                    || node.getFileNameIndex() != baseNode.getFileNameIndex()
+                    || node.getLineNumber() != baseNode.getLineNumber()
+                    || node.getLeafThreadState() != baseNode.getLeafThreadState()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // keyed by parent node index and frame (with names resolved, since the name indexes are not
+    // comparable across profiles)
+    private static Map<List<Object>, Integer> getNodeIndexes(Profile profile) {
+        Map<List<Object>, Integer> nodeIndexes = Maps.newHashMap();
+        // index of the most recent node at each depth
+        List<Integer> indexPath = Lists.newArrayList();
+        for (int i = 0; i < profile.getNodeCount(); i++) {
+            Profile.ProfileNode node = profile.getNode(i);
+            int depth = node.getDepth();
+            int parentIndex = depth == 0 ? -1 : indexPath.get(depth - 1);
+            nodeIndexes.put(getNodeKey(profile, node, parentIndex), i);
+            setAtDepth(indexPath, depth, i);
+        }
+        return nodeIndexes;
+    }
+
+    private static List<Object> getNodeKey(Profile profile, Profile.ProfileNode node,
+            int parentIndex) {
+        return ImmutableList.<Object>of(parentIndex,
+                getName(profile.getPackageNameList(), node.getPackageNameIndex()),
+                getName(profile.getClassNameList(), node.getClassNameIndex()),
+                getName(profile.getMethodNameList(), node.getMethodNameIndex()),
+                getName(profile.getFileNameList(), node.getFileNameIndex()),
+                node.getLineNumber(), node.getLeafThreadState());
+    }
+
+    private static String getName(List<String> names, int index) {
+        return index < names.size() ? names.get(index) : "";
+    }
+
+    // pre-order traversal, so depth is never more than one greater than the previous node's depth
+    private static void setAtDepth(List<Integer> path, int depth, int value) {
+        while (path.size() > depth) {
+            path.remove(path.size() - 1);
+        }
+        path.add(value);
+    }
+
+    // keyed by transaction type for overall aggregates, and by transaction type and transaction
+    // name for transaction aggregates
+    private static Map<List<String>, Aggregate> getAggregates(AggregateMessage message) {
+        Map<List<String>, Aggregate> aggregates = Maps.newHashMap();
+        for (AggregatesByType aggregatesByType : message.getAggregatesByTypeList()) {
+            String transactionType = aggregatesByType.getTransactionType();
+            aggregates.put(ImmutableList.of(transactionType),
+                    aggregatesByType.getOverallAggregate());
+            for (TransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                aggregates.put(ImmutableList.of(transactionType,
+                        transactionAggregate.getTransactionName()),
+                        transactionAggregate.getAggregate());
+            }
+        }
+        return aggregates;
+    }
+
+    private static class EncodedNames {
+        private final List<Integer> baseIndexes = Lists.newArrayList();
+        private final List<String> names = Lists.newArrayList();
+    }
+}
@@ -33,16 +33,37 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    private static final int COMPACT_HISTOGRAM_SIGNIFICANT_DIGITS = 2;
+    private static final int COMPACT_MAX_VALUES = 64;
+
+    private final int maxValues;
+    private final int significantDigits;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
     private @MonotonicNonNull Histogram histogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(MAX_VALUES, HISTOGRAM_SIGNIFICANT_DIGITS);
+    }
+
+    private LazyHistogram(int maxValues, int significantDigits) {
+        this.maxValues = maxValues;
+        this.significantDigits = significantDigits;
+    }
+
+    // used for the per query and per service call histograms, which need to be much more compact
+    // since there can be up to max aggregate queries (or service calls) per type of them in each
+    // aggregate
+    public static LazyHistogram createCompact() {
+        return new LazyHistogram(COMPACT_MAX_VALUES, COMPACT_HISTOGRAM_SIGNIFICANT_DIGITS);
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        this();
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
@@ -105,6 +126,10 @@ public class LazyHistogram {
         }
     }
 
+    public long getCount() {
+        return histogram == null ? size : histogram.getTotalCount();
+    }
+
     public long getValueAtPercentile(double percentile) {
         if (histogram == null) {
             if (size == 0) {
@@ -138,7 +163,7 @@ public class LazyHistogram {
         if (histogram != null) {
             return;
         }
-        if (capacity > MAX_VALUES) {
+        if (capacity > maxValues) {
             convertValuesToHistogram();
             return;
         }
@@ -153,7 +178,7 @@ public class LazyHistogram {
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        histogram = new Histogram(1000, 2000, significantDigits);
         histogram.setAutoResize(true);
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+public class LogEventCollector {
+
+    private final Map<LogEventKey, MutableLogEvent> logEvents = Maps.newHashMap();
+    private final int limit;
+    private final int maxMultiplierWhileBuilding;
+
+    // this is only used by UI
+    private long lastCaptureTime;
+
+    public LogEventCollector(int limit, int maxMultiplierWhileBuilding) {
+        this.limit = limit;
+        this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
+    }
+
+    public void updateLastCaptureTime(long captureTime) {
+        lastCaptureTime = Math.max(lastCaptureTime, captureTime);
+    }
+
+    public long getLastCaptureTime() {
+        return lastCaptureTime;
+    }
+
+    public List<Aggregate.LogEvent> toProto() {
+        if (logEvents.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<Aggregate.LogEvent> protos = Lists.newArrayListWithCapacity(logEvents.size());
+        for (MutableLogEvent logEvent : logEvents.values()) {
+            protos.add(logEvent.toProto());
+        }
+        if (protos.size() > limit) {
+            order(protos);
+            protos = protos.subList(0, limit);
+        }
+        return protos;
+    }
+
+    public void mergeLogEvents(List<Aggregate.LogEvent> toBeMergedLogEvents) {
+        for (Aggregate.LogEvent logEvent : toBeMergedLogEvents) {
+            mergeLogEvent(logEvent.getLevel(), logEvent.getLoggerName(), logEvent.getMessage(),
+                    logEvent.getCount());
+        }
+    }
+
+    public void mergeLogEvent(String level, String loggerName, String message, long count) {
+        MutableLogEvent aggregateLogEvent = getOrCreateLogEvent(level, loggerName, message);
+        if (aggregateLogEvent != null) {
+            aggregateLogEvent.count += count;
+        }
+    }
+
+    private @Nullable MutableLogEvent getOrCreateLogEvent(String level, String loggerName,
+            String message) {
+        LogEventKey key = new LogEventKey(level, loggerName, message);
+        MutableLogEvent aggregateLogEvent = logEvents.get(key);
+        if (aggregateLogEvent == null) {
+            if (maxMultiplierWhileBuilding != 0
+                    && logEvents.size() >= limit * maxMultiplierWhileBuilding) {
+                return null;
+            }
+            aggregateLogEvent = new MutableLogEvent(key);
+            logEvents.put(key, aggregateLogEvent);
+        }
+        return aggregateLogEvent;
+    }
+
+    private void order(List<Aggregate.LogEvent> logEvents) {
+        // reverse sort by count
+        Collections.sort(logEvents, new Comparator<Aggregate.LogEvent>() {
+            @Override
+            public int compare(Aggregate.LogEvent left, Aggregate.LogEvent right) {
+                return Longs.compare(right.getCount(), left.getCount());
+            }
+        });
+    }
+
+    private static class LogEventKey {
+
+        private final String level;
+        private final String loggerName;
+        private final String message;
+
+        private LogEventKey(String level, String loggerName, String message) {
+            this.level = level;
+            this.loggerName = loggerName;
+            this.message = message;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof LogEventKey)) {
+                return false;
+            }
+            LogEventKey that = (LogEventKey) obj;
+            return level.equals(that.level) && loggerName.equals(that.loggerName)
+                    && message.equals(that.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * level.hashCode() + loggerName.hashCode()) + message.hashCode();
+        }
+    }
+
+    private static class MutableLogEvent {
+
+        private final LogEventKey key;
+        private long count;
+
+        private MutableLogEvent(LogEventKey key) {
+            this.key = key;
+        }
+
+        private Aggregate.LogEvent toProto() {
+            return Aggregate.LogEvent.newBuilder()
+                    .setLevel(key.level)
+                    .setLoggerName(key.loggerName)
+                    .setMessage(key.message)
+                    .setCount(count)
+                    .build();
+        }
+    }
+}
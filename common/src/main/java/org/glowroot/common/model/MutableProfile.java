@@ -17,6 +17,7 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
@@ -58,15 +59,28 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // this is only used when merging stack traces, to avoid splitting the same full class name into
+    // package name and class name (and looking up both) over and over
+    private final Map<String, int[]> fullClassNameIndexes = Maps.newHashMap();
+
+    private final ProfileNodes rootNodes = new ProfileNodes();
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.packageNames, packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.classNames, classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.methodNames, methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.fileNames, fileNameIndexes, fileNames);
+        for (ProfileNode toBeMergedRootNode : profile.rootNodes) {
+            new ProfileMerger(toBeMergedRootNode, packageNameIndexMapping, classNameIndexMapping,
+                    methodNameIndexMapping, fileNameIndexMapping).traverse();
+        }
     }
 
     public void merge(Profile profile) {
@@ -83,55 +97,22 @@ public class MutableProfile {
                 return;
             }
         }
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
-        boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+        ProfileNodes mergeIntoNodes = rootNodes;
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
+            int[] fullClassNameIndex = getFullClassNameIndex(stackTraceElement.getClassName());
             int methodNameIndex =
                     getNameIndex(Strings.nullToEmpty(stackTraceElement.getMethodName()),
                             methodNameIndexes, methodNames);
             int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
                     fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
-            if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
-            }
-            if (node == null) {
-                lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
-            }
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            ProfileNode node = mergeIntoNodes.getOrAdd(fullClassNameIndex[0],
+                    fullClassNameIndex[1], methodNameIndex, fileNameIndex,
+                    stackTraceElement.getLineNumber(), leafThreadState);
             node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            mergeIntoNodes = node.childNodes;
         }
     }
 
@@ -251,6 +232,28 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    // returns package name index and class name index
+    private int[] getFullClassNameIndex(String fullClassName) {
+        int[] fullClassNameIndex = fullClassNameIndexes.get(fullClassName);
+        if (fullClassNameIndex == null) {
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            fullClassNameIndex = new int[] {
+                    getNameIndex(packageName, packageNameIndexes, packageNames),
+                    getNameIndex(className, classNameIndexes, classNames)};
+            fullClassNameIndexes.put(fullClassName, fullClassNameIndex);
+        }
+        return fullClassNameIndex;
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -285,18 +288,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -315,6 +306,117 @@ public class MutableProfile {
         return indexMapping;
     }
 
+    @SuppressWarnings("serial")
+    private class ProfileNodes extends ArrayList<ProfileNode> {
+
+        // most nodes only have one or two child nodes, in which case a linear scan is fastest, but
+        // nodes where many different code paths diverge (e.g. the servlet dispatch frame in a
+        // profile aggregated across many transaction names) can have hundreds of child nodes
+        private static final int INDEX_THRESHOLD = 8;
+
+        private @Nullable Map<FrameKey, ProfileNode> index;
+        // the index is only valid as long as there have been no structural modifications to this
+        // list other than through getOrAdd() (e.g. child nodes are removed during filtering and
+        // truncation), ArrayList.modCount is incremented on every structural modification, so it
+        // is used to detect when the index is out of date and must be re-built on next access
+        private int indexedModCount;
+
+        private ProfileNodes() {
+            super(2);
+        }
+
+        private ProfileNode getOrAdd(int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber,
+                Profile.LeafThreadState leafThreadState) {
+            if (size() < INDEX_THRESHOLD) {
+                for (int i = 0; i < size(); i++) {
+                    ProfileNode node = get(i);
+                    if (node.isMatch(packageNameIndex, classNameIndex, methodNameIndex,
+                            fileNameIndex, lineNumber, leafThreadState)) {
+                        return node;
+                    }
+                }
+                ProfileNode node = new ProfileNode(packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+                add(node);
+                return node;
+            }
+            Map<FrameKey, ProfileNode> index = getIndex();
+            FrameKey frameKey = new FrameKey(packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            ProfileNode node = index.get(frameKey);
+            if (node == null) {
+                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
+                add(node);
+                index.put(frameKey, node);
+                indexedModCount = modCount;
+            }
+            return node;
+        }
+
+        private Map<FrameKey, ProfileNode> getIndex() {
+            Map<FrameKey, ProfileNode> index = this.index;
+            if (index != null && indexedModCount == modCount) {
+                return index;
+            }
+            index = Maps.newHashMapWithExpectedSize(size());
+            for (ProfileNode node : this) {
+                index.put(new FrameKey(node.packageNameIndex, node.classNameIndex,
+                        node.methodNameIndex, node.fileNameIndex, node.lineNumber,
+                        node.leafThreadState), node);
+            }
+            this.index = index;
+            indexedModCount = modCount;
+            return index;
+        }
+    }
+
+    private static class FrameKey {
+
+        private final int packageNameIndex;
+        private final int classNameIndex;
+        private final int methodNameIndex;
+        private final int fileNameIndex;
+        private final int lineNumber;
+        private final Profile.LeafThreadState leafThreadState;
+
+        private FrameKey(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+            this.packageNameIndex = packageNameIndex;
+            this.classNameIndex = classNameIndex;
+            this.methodNameIndex = methodNameIndex;
+            this.fileNameIndex = fileNameIndex;
+            this.lineNumber = lineNumber;
+            this.leafThreadState = leafThreadState;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof FrameKey)) {
+                return false;
+            }
+            FrameKey that = (FrameKey) obj;
+            // checking line number first since most likely to be different
+            return lineNumber == that.lineNumber
+                    && methodNameIndex == that.methodNameIndex
+                    && leafThreadState == that.leafThreadState
+                    && classNameIndex == that.classNameIndex
+                    && packageNameIndex == that.packageNameIndex
+                    && fileNameIndex == that.fileNameIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = lineNumber;
+            hashCode = 31 * hashCode + methodNameIndex;
+            hashCode = 31 * hashCode + classNameIndex;
+            hashCode = 31 * hashCode + packageNameIndex;
+            hashCode = 31 * hashCode + fileNameIndex;
+            return 31 * hashCode + leafThreadState.ordinal();
+        }
+    }
+
     private class ProfileNode {
 
         private final int packageNameIndex;
@@ -326,7 +428,7 @@ public class MutableProfile {
 
         private long sampleCount;
 
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        private final ProfileNodes childNodes = new ProfileNodes();
 
         // these fields are only used for filtering
         private @Nullable String text;
@@ -344,6 +446,17 @@ public class MutableProfile {
             this.leafThreadState = leafThreadState;
         }
 
+        private boolean isMatch(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+            // checking line number first since most likely to be different
+            return lineNumber == this.lineNumber
+                    && fileNameIndex == this.fileNameIndex
+                    && leafThreadState == this.leafThreadState
+                    && methodNameIndex == this.methodNameIndex
+                    && classNameIndex == this.classNameIndex
+                    && packageNameIndex == this.packageNameIndex;
+        }
+
         private String getText() {
             if (text == null) {
                 String packageName = packageNames.get(packageNameIndex);
@@ -375,7 +488,7 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private final Deque<ProfileNodes> destinationStack = Queues.newArrayDeque();
 
         private Merger(Profile toBeMergedProfile) {
             packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
@@ -389,7 +502,7 @@ public class MutableProfile {
         }
 
         private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
+                ProfileNodes destinationRootNodes) {
             destinationStack.push(destinationRootNodes);
             PeekingIterator<Profile.ProfileNode> i =
                     Iterators.peekingIterator(flatNodes.iterator());
@@ -400,43 +513,59 @@ public class MutableProfile {
                     // TODO optimize: faster way to pop multiple elements at once
                     destinationStack.pop();
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
+                ProfileNode destinationNode = destinationStack.getFirst().getOrAdd(
+                        packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                        classNameIndexMapping[flatNode.getClassNameIndex()],
+                        methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                        fileNameIndexMapping[flatNode.getFileNameIndex()],
+                        flatNode.getLineNumber(), flatNode.getLeafThreadState());
+                destinationNode.sampleCount += flatNode.getSampleCount();
                 if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
                     destinationStack.push(destinationNode.childNodes);
                 }
             }
         }
+    }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
-            }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
+    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
+    private class ProfileMerger extends Traverser<ProfileNode, RuntimeException> {
+
+        private final int[] packageNameIndexMapping;
+        private final int[] classNameIndexMapping;
+        private final int[] methodNameIndexMapping;
+        private final int[] fileNameIndexMapping;
+
+        // destination nodes by depth
+        private final List<ProfileNodes> destinationNodesStack = Lists.newArrayList();
+
+        private ProfileMerger(ProfileNode toBeMergedRootNode, int[] packageNameIndexMapping,
+                int[] classNameIndexMapping, int[] methodNameIndexMapping,
+                int[] fileNameIndexMapping) {
+            super(toBeMergedRootNode);
+            this.packageNameIndexMapping = packageNameIndexMapping;
+            this.classNameIndexMapping = classNameIndexMapping;
+            this.methodNameIndexMapping = methodNameIndexMapping;
+            this.fileNameIndexMapping = fileNameIndexMapping;
+            destinationNodesStack.add(rootNodes);
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+        @Override
+        public List<ProfileNode> visit(ProfileNode toBeMergedNode, int depth) {
+            ProfileNode destinationNode = destinationNodesStack.get(depth).getOrAdd(
+                    packageNameIndexMapping[toBeMergedNode.packageNameIndex],
+                    classNameIndexMapping[toBeMergedNode.classNameIndex],
+                    methodNameIndexMapping[toBeMergedNode.methodNameIndex],
+                    fileNameIndexMapping[toBeMergedNode.fileNameIndex],
+                    toBeMergedNode.lineNumber, toBeMergedNode.leafThreadState);
+            destinationNode.sampleCount += toBeMergedNode.sampleCount;
+            if (!toBeMergedNode.childNodes.isEmpty()) {
+                if (destinationNodesStack.size() == depth + 1) {
+                    destinationNodesStack.add(destinationNode.childNodes);
+                } else {
+                    destinationNodesStack.set(depth + 1, destinationNode.childNodes);
+                }
+            }
+            return toBeMergedNode.childNodes;
         }
     }
 
@@ -15,11 +15,15 @@
  */
 package org.glowroot.common.model;
 
+import java.util.zip.DataFormatException;
+
 import javax.annotation.Nullable;
 
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Doubles;
 
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
 public class MutableQuery {
 
     public static final Ordering<MutableQuery> byTotalDurationDesc = new Ordering<MutableQuery>() {
@@ -38,6 +42,11 @@ public class MutableQuery {
     private boolean hasTotalRows;
     private long totalRows;
 
+    // one value per transaction, which is the average duration per execution of the query within
+    // that transaction (the agent does not record individual executions), so percentiles of this
+    // histogram are percentiles across transactions, not across executions
+    private final LazyHistogram durationNanosHistogram = LazyHistogram.createCompact();
+
     MutableQuery(String truncatedQueryText, @Nullable String fullQueryTextSha1) {
         this.truncatedQueryText = truncatedQueryText;
         this.fullQueryTextSha1 = fullQueryTextSha1;
@@ -67,6 +76,10 @@ public class MutableQuery {
         return totalRows;
     }
 
+    public LazyHistogram getDurationNanosHistogram() {
+        return durationNanosHistogram;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -81,4 +94,9 @@ public class MutableQuery {
             this.totalRows += totalRows;
         }
     }
+
+    void mergeDurationNanosHistogram(Aggregate.Histogram toBeMergedDurationNanosHistogram)
+            throws DataFormatException {
+        durationNanosHistogram.merge(toBeMergedDurationNanosHistogram);
+    }
 }
@@ -15,6 +15,9 @@
  */
 package org.glowroot.common.model;
 
+import java.util.zip.DataFormatException;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 class MutableServiceCall {
@@ -24,6 +27,13 @@ class MutableServiceCall {
     private double totalDurationNanos;
     private long executionCount;
 
+    private final LazyHistogram durationNanosHistogram = LazyHistogram.createCompact();
+
+    // totals for the transaction that is currently being merged, see endTransaction()
+    private boolean inTransaction;
+    private double transactionDurationNanos;
+    private long transactionExecutionCount;
+
     MutableServiceCall(String serviceCallText) {
         this.serviceCallText = serviceCallText;
     }
@@ -36,11 +46,40 @@ class MutableServiceCall {
         this.executionCount += executionCount;
     }
 
-    Aggregate.ServiceCall toProto() {
+    // returns true if this is the first time this service call is merged for the current
+    // transaction
+    boolean addToTransactionTotals(double totalDurationNanos, long executionCount) {
+        transactionDurationNanos += totalDurationNanos;
+        transactionExecutionCount += executionCount;
+        if (inTransaction) {
+            return false;
+        }
+        inTransaction = true;
+        return true;
+    }
+
+    // the histogram tracks the average execution duration of the service call in each transaction
+    void endTransaction() {
+        if (transactionExecutionCount > 0) {
+            durationNanosHistogram
+                    .add((long) (transactionDurationNanos / transactionExecutionCount));
+        }
+        inTransaction = false;
+        transactionDurationNanos = 0;
+        transactionExecutionCount = 0;
+    }
+
+    void mergeDurationNanosHistogram(Aggregate.Histogram toBeMergedDurationNanosHistogram)
+            throws DataFormatException {
+        durationNanosHistogram.merge(toBeMergedDurationNanosHistogram);
+    }
+
+    Aggregate.ServiceCall toProto(ScratchBuffer scratchBuffer) {
         return Aggregate.ServiceCall.newBuilder()
                 .setText(serviceCallText)
                 .setTotalDurationNanos(totalDurationNanos)
                 .setExecutionCount(executionCount)
+                .setDurationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer))
                 .build();
     }
 }
@@ -18,12 +18,15 @@ package org.glowroot.common.model;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.Maps;
 
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
 public class QueryCollector {
 
     // first key is query type, second key is either full query text (if query text is relatively
@@ -63,19 +66,21 @@ public class QueryCollector {
 
     public void mergeQuery(String queryType, String truncatedQueryText,
             @Nullable String fullQueryTextSha1, double totalDurationNanos, long executionCount,
-            boolean hasRows, long totalRows) {
+            boolean hasRows, long totalRows, Aggregate.Histogram durationNanosHistogram)
+            throws DataFormatException {
         Map<String, MutableQuery> queriesForType = queries.get(queryType);
         if (queriesForType == null) {
             queriesForType = Maps.newHashMap();
             queries.put(queryType, queriesForType);
         }
         mergeQuery(truncatedQueryText, fullQueryTextSha1, totalDurationNanos, executionCount,
-                hasRows, totalRows, queriesForType);
+                hasRows, totalRows, durationNanosHistogram, queriesForType);
     }
 
     private void mergeQuery(String truncatedQueryText, @Nullable String fullQueryTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
-            Map<String, MutableQuery> queriesForType) {
+            Aggregate.Histogram durationNanosHistogram, Map<String, MutableQuery> queriesForType)
+            throws DataFormatException {
         String queryKey = MoreObjects.firstNonNull(fullQueryTextSha1, truncatedQueryText);
         MutableQuery aggregateQuery = queriesForType.get(queryKey);
         if (aggregateQuery == null) {
@@ -89,5 +94,6 @@ public class QueryCollector {
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasRows, totalRows);
+        aggregateQuery.mergeDurationNanosHistogram(durationNanosHistogram);
     }
 }
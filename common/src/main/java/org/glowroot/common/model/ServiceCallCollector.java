@@ -15,18 +15,21 @@
  */
 package org.glowroot.common.model;
 
-import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Doubles;
 
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class ServiceCallCollector {
@@ -35,6 +38,9 @@ public class ServiceCallCollector {
     private final int limit;
     private final int maxMultiplierWhileBuilding;
 
+    // service calls that have been merged from the transaction that is currently being merged
+    private final List<MutableServiceCall> transactionServiceCalls = Lists.newArrayList();
+
     // this is only used by UI
     private long lastCaptureTime;
 
@@ -56,11 +62,12 @@ public class ServiceCallCollector {
             return ImmutableList.of();
         }
         List<Aggregate.ServiceCallsByType> serviceCallsByType = Lists.newArrayList();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
         for (Entry<String, Map<String, MutableServiceCall>> entry : serviceCalls.entrySet()) {
             List<Aggregate.ServiceCall> serviceCalls =
                     Lists.newArrayListWithCapacity(entry.getValue().values().size());
             for (MutableServiceCall serviceCall : entry.getValue().values()) {
-                serviceCalls.add(serviceCall.toProto());
+                serviceCalls.add(serviceCall.toProto(scratchBuffer));
             }
             if (serviceCalls.size() > limit) {
                 order(serviceCalls);
@@ -75,62 +82,91 @@ public class ServiceCallCollector {
     }
 
     public void mergeServiceCalls(List<Aggregate.ServiceCallsByType> toBeMergedServiceCalls)
-            throws IOException {
+            throws DataFormatException {
         for (Aggregate.ServiceCallsByType toBeMergedServiceCallsByType : toBeMergedServiceCalls) {
             mergeQueries(toBeMergedServiceCallsByType);
         }
     }
 
-    public void mergeQueries(Aggregate.ServiceCallsByType toBeMergedServiceCalls) {
-        String type = toBeMergedServiceCalls.getType();
-        Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(type);
-        if (serviceCallsForType == null) {
-            serviceCallsForType = Maps.newHashMap();
-            serviceCalls.put(type, serviceCallsForType);
-        }
+    public void mergeQueries(Aggregate.ServiceCallsByType toBeMergedServiceCalls)
+            throws DataFormatException {
+        Map<String, MutableServiceCall> serviceCallsForType =
+                getServiceCallsForType(toBeMergedServiceCalls.getType());
         for (Aggregate.ServiceCall serviceCall : toBeMergedServiceCalls.getServiceCallList()) {
             mergeServiceCall(serviceCall, serviceCallsForType);
         }
     }
 
+    // this is used to merge the service calls from a single transaction (possibly from multiple
+    // thread contexts), endTransaction() must be called afterwards to record the average execution
+    // duration of each service call in that transaction into its histogram
     public void mergeServiceCall(String type, String text, double totalDurationNanos,
             long executionCount) {
+        MutableServiceCall aggregateServiceCall =
+                getOrCreateServiceCall(getServiceCallsForType(type), text);
+        if (aggregateServiceCall == null) {
+            return;
+        }
+        aggregateServiceCall.addToTotalDurationNanos(totalDurationNanos);
+        aggregateServiceCall.addToExecutionCount(executionCount);
+        if (aggregateServiceCall.addToTransactionTotals(totalDurationNanos, executionCount)) {
+            transactionServiceCalls.add(aggregateServiceCall);
+        }
+    }
+
+    public void endTransaction() {
+        for (MutableServiceCall serviceCall : transactionServiceCalls) {
+            serviceCall.endTransaction();
+        }
+        transactionServiceCalls.clear();
+    }
+
+    public void mergeServiceCall(String type, String text, double totalDurationNanos,
+            long executionCount, Aggregate.Histogram durationNanosHistogram)
+            throws DataFormatException {
+        MutableServiceCall aggregateServiceCall =
+                getOrCreateServiceCall(getServiceCallsForType(type), text);
+        if (aggregateServiceCall == null) {
+            return;
+        }
+        aggregateServiceCall.addToTotalDurationNanos(totalDurationNanos);
+        aggregateServiceCall.addToExecutionCount(executionCount);
+        aggregateServiceCall.mergeDurationNanosHistogram(durationNanosHistogram);
+    }
+
+    private Map<String, MutableServiceCall> getServiceCallsForType(String type) {
         Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(type);
         if (serviceCallsForType == null) {
             serviceCallsForType = Maps.newHashMap();
             serviceCalls.put(type, serviceCallsForType);
         }
-        mergeServiceCall(text, totalDurationNanos, executionCount, serviceCallsForType);
+        return serviceCallsForType;
     }
 
     private void mergeServiceCall(Aggregate.ServiceCall serviceCall,
-            Map<String, MutableServiceCall> serviceCallsForType) {
-        MutableServiceCall aggregateServiceCall = serviceCallsForType.get(serviceCall.getText());
+            Map<String, MutableServiceCall> serviceCallsForType) throws DataFormatException {
+        MutableServiceCall aggregateServiceCall =
+                getOrCreateServiceCall(serviceCallsForType, serviceCall.getText());
         if (aggregateServiceCall == null) {
-            if (maxMultiplierWhileBuilding != 0
-                    && serviceCallsForType.size() >= limit * maxMultiplierWhileBuilding) {
-                return;
-            }
-            aggregateServiceCall = new MutableServiceCall(serviceCall.getText());
-            serviceCallsForType.put(serviceCall.getText(), aggregateServiceCall);
+            return;
         }
         aggregateServiceCall.addToTotalDurationNanos(serviceCall.getTotalDurationNanos());
         aggregateServiceCall.addToExecutionCount(serviceCall.getExecutionCount());
+        aggregateServiceCall.mergeDurationNanosHistogram(serviceCall.getDurationNanosHistogram());
     }
 
-    private void mergeServiceCall(String text, double totalDurationNanos, long executionCount,
-            Map<String, MutableServiceCall> serviceCallsForType) {
+    private @Nullable MutableServiceCall getOrCreateServiceCall(
+            Map<String, MutableServiceCall> serviceCallsForType, String text) {
         MutableServiceCall aggregateServiceCall = serviceCallsForType.get(text);
         if (aggregateServiceCall == null) {
             if (maxMultiplierWhileBuilding != 0
                     && serviceCallsForType.size() >= limit * maxMultiplierWhileBuilding) {
-                return;
+                return null;
             }
             aggregateServiceCall = new MutableServiceCall(text);
             serviceCallsForType.put(text, aggregateServiceCall);
         }
-        aggregateServiceCall.addToTotalDurationNanos(totalDurationNanos);
-        aggregateServiceCall.addToExecutionCount(executionCount);
+        return aggregateServiceCall;
     }
 
     private void order(List<Aggregate.ServiceCall> queries) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// dictionary of the strings that are repeated across the traces in a single batch message (query
+// text in trace entry messages, timer names, transaction types and names), so that each of these
+// strings is only sent (and parsed) once per batch message
+//
+// the dictionary is scoped to a single batch message (as opposed to the connection) so that batch
+// messages remain self-contained when they are retried or spooled and replayed later
+public class TraceStringDictionary {
+
+    private final Map<String, Integer> indexes = Maps.newHashMap();
+    private final List<String> strings = Lists.newArrayList();
+
+    public Trace encode(Trace trace) {
+        Trace.Builder builder = trace.toBuilder();
+        Trace.Header.Builder header = builder.getHeaderBuilder();
+        if (!header.getTransactionType().isEmpty()) {
+            header.setSharedTransactionTypeIndex(getIndex(header.getTransactionType()));
+        }
+        if (!header.getTransactionName().isEmpty()) {
+            header.setSharedTransactionNameIndex(getIndex(header.getTransactionName()));
+        }
+        if (header.hasMainThreadRootTimer()) {
+            encode(header.getMainThreadRootTimerBuilder());
+        }
+        for (Trace.Timer.Builder timer : header.getAuxThreadRootTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Trace.Timer.Builder timer : header.getAsyncTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Trace.Entry.Builder entry : builder.getEntryBuilderList()) {
+            if (!entry.getMessage().isEmpty()) {
+                entry.setSharedMessageIndex(getIndex(entry.getMessage()));
+            }
+        }
+        return builder.build();
+    }
+
+    public List<String> getStrings() {
+        return ImmutableList.copyOf(strings);
+    }
+
+    private void encode(Trace.Timer.Builder timer) {
+        if (!timer.getName().isEmpty()) {
+            timer.setSharedNameIndex(getIndex(timer.getName()));
+        }
+        for (Trace.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+            encode(childTimer);
+        }
+    }
+
+    private int getIndex(String string) {
+        Integer index = indexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            indexes.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    public static Trace decode(Trace trace, List<String> strings) {
+        Trace.Builder builder = trace.toBuilder();
+        Trace.Header.Builder header = builder.getHeaderBuilder();
+        if (header.getTransactionTypeOneofCase()
+                == Trace.Header.TransactionTypeOneofCase.SHARED_TRANSACTION_TYPE_INDEX) {
+            header.setTransactionType(strings.get(header.getSharedTransactionTypeIndex()));
+        }
+        if (header.getTransactionNameOneofCase()
+                == Trace.Header.TransactionNameOneofCase.SHARED_TRANSACTION_NAME_INDEX) {
+            header.setTransactionName(strings.get(header.getSharedTransactionNameIndex()));
+        }
+        if (header.hasMainThreadRootTimer()) {
+            decode(header.getMainThreadRootTimerBuilder(), strings);
+        }
+        for (Trace.Timer.Builder timer : header.getAuxThreadRootTimerBuilderList()) {
+            decode(timer, strings);
+        }
+        for (Trace.Timer.Builder timer : header.getAsyncTimerBuilderList()) {
+            decode(timer, strings);
+        }
+        for (Trace.Entry.Builder entry : builder.getEntryBuilderList()) {
+            if (entry.getMessageOneofCase()
+                    == Trace.Entry.MessageOneofCase.SHARED_MESSAGE_INDEX) {
+                entry.setMessage(strings.get(entry.getSharedMessageIndex()));
+            }
+        }
+        return builder.build();
+    }
+
+    private static void decode(Trace.Timer.Builder timer, List<String> strings) {
+        if (timer.getNameOneofCase() == Trace.Timer.NameOneofCase.SHARED_NAME_INDEX) {
+            timer.setName(strings.get(timer.getSharedNameIndex()));
+        }
+        for (Trace.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+            decode(childTimer, strings);
+        }
+    }
+}
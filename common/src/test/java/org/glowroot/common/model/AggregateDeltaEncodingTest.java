@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDeltaEncodingTest {
+
+    @Test
+    public void shouldRoundTrip() {
+        // given
+        AggregateMessage base = createAggregateMessage(60000, 1, "select 1", "select 2");
+        AggregateMessage message = createAggregateMessage(120000, 2, "select 2", "select 3");
+        // when
+        AggregateMessage delta = AggregateDeltaEncoding.encode(message, base);
+        // then
+        assertThat(delta.getDeltaBaseCaptureTime()).isEqualTo(60000);
+        assertThat(delta.getSharedQueryTextBaseIndexList()).containsExactly(1, -1);
+        assertThat(delta.getSharedQueryTextList()).containsExactly("select 3");
+        Profile profile = delta.getAggregatesByType(0).getOverallAggregate()
+                .getMainThreadProfile();
+        assertThat(profile.getSameStructureAsBase()).isTrue();
+        assertThat(profile.getNodeCount()).isZero();
+        assertThat(profile.getSampleCountList()).containsExactly(2L, 2L);
+        assertThat(delta.getSerializedSize()).isLessThan(message.getSerializedSize());
+        assertThat(AggregateDeltaEncoding.decode(delta, base)).isEqualTo(message);
+    }
+
+    @Test
+    public void shouldNotDeltaEncodeProfileWithDifferentStructure() {
+        // given
+        AggregateMessage base = createAggregateMessage(60000, 1, "select 1");
+        AggregateMessage message = createAggregateMessage(120000, 1, "select 1").toBuilder()
+                .setAggregatesByType(0, createAggregatesByType(1, createProfile(1, "def")))
+                .build();
+        // when
+        AggregateMessage delta = AggregateDeltaEncoding.encode(message, base);
+        // then
+        Profile profile = delta.getAggregatesByType(0).getOverallAggregate()
+                .getMainThreadProfile();
+        assertThat(profile.getSameStructureAsBase()).isFalse();
+        assertThat(profile.getNodeCount()).isEqualTo(2);
+        assertThat(AggregateDeltaEncoding.decode(delta, base)).isEqualTo(message);
+    }
+
+    @Test
+    public void shouldDeltaEncodeProfileWithNewLeafNodeByNode() {
+        // given
+        AggregateMessage base = createAggregateMessage(60000, 1, "select 1");
+        Profile profile = createProfile(2, "abc").toBuilder()
+                .addMethodName("xyz")
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(2)
+                        .setMethodNameIndex(1)
+                        .setLineNumber(20)
+                        .setLeafThreadState(Profile.LeafThreadState.RUNNABLE)
+                        .setSampleCount(2))
+                .build();
+        AggregateMessage message = createAggregateMessage(120000, 2, "select 1").toBuilder()
+                .setAggregatesByType(0, createAggregatesByType(2, profile))
+                .build();
+        // when
+        AggregateMessage delta = AggregateDeltaEncoding.encode(message, base);
+        // then
+        Profile deltaProfile = delta.getAggregatesByType(0).getOverallAggregate()
+                .getMainThreadProfile();
+        assertThat(deltaProfile.getSameStructureAsBase()).isFalse();
+        assertThat(deltaProfile.getDeltaEncoded()).isTrue();
+        assertThat(deltaProfile.getNodeBaseIndexList()).containsExactly(0, 1, -1);
+        assertThat(deltaProfile.getSampleCountList()).containsExactly(2L, 2L);
+        assertThat(deltaProfile.getNodeCount()).isEqualTo(1);
+        assertThat(deltaProfile.getMethodNameBaseIndexList()).containsExactly(0, -1);
+        assertThat(deltaProfile.getMethodNameList()).containsExactly("xyz");
+        assertThat(AggregateDeltaEncoding.decode(delta, base)).isEqualTo(message);
+    }
+
+    @Test
+    public void shouldDeltaEncodeProfileWithReorderedNamesNodeByNode() {
+        // given
+        AggregateMessage base = createAggregateMessage(60000, 1, "select 1");
+        Profile profile = Profile.newBuilder()
+                .addPackageName("org.glowroot")
+                .addClassName("Abc")
+                .addMethodName("xyz")
+                .addMethodName("abc")
+                .addFileName("Abc.java")
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(0)
+                        .setMethodNameIndex(1)
+                        .setSampleCount(3))
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(1)
+                        .setMethodNameIndex(0)
+                        .setLineNumber(10)
+                        .setSampleCount(1))
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(1)
+                        .setMethodNameIndex(1)
+                        .setLineNumber(10)
+                        .setSampleCount(2))
+                .build();
+        AggregateMessage message = createAggregateMessage(120000, 3, "select 1").toBuilder()
+                .setAggregatesByType(0, createAggregatesByType(3, profile))
+                .build();
+        // when
+        AggregateMessage delta = AggregateDeltaEncoding.encode(message, base);
+        // then
+        Profile deltaProfile = delta.getAggregatesByType(0).getOverallAggregate()
+                .getMainThreadProfile();
+        assertThat(deltaProfile.getDeltaEncoded()).isTrue();
+        assertThat(deltaProfile.getNodeBaseIndexList()).containsExactly(0, -1, 1);
+        assertThat(AggregateDeltaEncoding.decode(delta, base)).isEqualTo(message);
+    }
+
+    @Test
+    public void shouldRoundTripNewTransaction() {
+        // given
+        AggregateMessage base = createAggregateMessage(60000, 1, "select 1");
+        AggregateMessage message = createAggregateMessage(120000, 1, "select 1").toBuilder()
+                .addAggregatesByType(AggregatesByType.newBuilder()
+                        .setTransactionType("Background")
+                        .setOverallAggregate(Aggregate.newBuilder()
+                                .setMainThreadProfile(createProfile(1, "xyz"))))
+                .build();
+        // when
+        AggregateMessage delta = AggregateDeltaEncoding.encode(message, base);
+        // then
+        Profile profile = delta.getAggregatesByType(1).getOverallAggregate()
+                .getMainThreadProfile();
+        assertThat(profile.getSameStructureAsBase()).isFalse();
+        assertThat(AggregateDeltaEncoding.decode(delta, base)).isEqualTo(message);
+    }
+
+    private static AggregateMessage createAggregateMessage(long captureTime, int sampleCount,
+            String... sharedQueryTexts) {
+        AggregateMessage.Builder builder = AggregateMessage.newBuilder()
+                .setAgentId("abc")
+                .setCaptureTime(captureTime)
+                .addAggregatesByType(
+                        createAggregatesByType(sampleCount, createProfile(sampleCount, "abc")));
+        for (String sharedQueryText : sharedQueryTexts) {
+            builder.addSharedQueryText(sharedQueryText);
+        }
+        return builder.build();
+    }
+
+    private static AggregatesByType createAggregatesByType(int sampleCount, Profile profile) {
+        return AggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(sampleCount)
+                        .setMainThreadProfile(profile))
+                .addTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(Aggregate.newBuilder()
+                                .setTransactionCount(sampleCount)
+                                .setMainThreadProfile(profile)))
+                .build();
+    }
+
+    private static Profile createProfile(int sampleCount, String methodName) {
+        return Profile.newBuilder()
+                .addPackageName("org.glowroot")
+                .addClassName("Abc")
+                .addMethodName(methodName)
+                .addFileName("Abc.java")
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(0)
+                        .setSampleCount(sampleCount))
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(1)
+                        .setLineNumber(10)
+                        .setSampleCount(sampleCount))
+                .build();
+    }
+}
@@ -23,10 +23,13 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +167,105 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingProfiles() throws IOException {
+        // given
+        MutableProfile profile1 = new MutableProfile();
+        MutableProfile profile2 = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile1.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile2.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile2.merge(stackTraceElements, Thread.State.BLOCKED);
+        MutableProfile expected = new MutableProfile();
+        expected.merge(profile1.toProto());
+        expected.merge(profile2.toProto());
+        // when
+        profile1.merge(profile2);
+        // then
+        assertThat(profile1.getSampleCount()).isEqualTo(3);
+        assertThat(profile1.toJson()).isEqualTo(expected.toJson());
+        assertThat(profile1.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void testManyChildNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        StackTraceElement main = new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789);
+        // when
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 20; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(
+                        new StackTraceElement("aa.bb.cc.Def", "ghi" + j, "Def.java", 123));
+                stackTraceElements.add(
+                        new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 100 + j));
+                stackTraceElements.add(main);
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        // then
+        Profile proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(41);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(60);
+        for (int i = 1; i < 41; i++) {
+            assertThat(proto.getNode(i).getSampleCount()).isEqualTo(3);
+        }
+        // and after filtering removes some of the indexed child nodes
+        profile.filter(ImmutableList.<String>of(), ImmutableList.of("Def.java:100"));
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi0", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 100));
+        stackTraceElements.add(main);
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(41);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(58);
+        assertThat(proto.getNode(39).getLineNumber()).isEqualTo(100);
+        assertThat(proto.getNode(39).getSampleCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testIndexedChildNodesAfterRemovalAndReAdd() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 8; i++) {
+            merge(profile, 100 + i);
+        }
+        // this builds the child node index (since there are now 8 child nodes)
+        merge(profile, 100);
+        // filtering removes 2 of the indexed child nodes, then 2 other child nodes are added back
+        // (without using the index since there are fewer than 8 child nodes at that point)
+        profile.filter(ImmutableList.<String>of(), ImmutableList.of("Def.java:100"));
+        profile.filter(ImmutableList.<String>of(), ImmutableList.of("Def.java:101"));
+        merge(profile, 200);
+        merge(profile, 201);
+        // when
+        merge(profile, 100);
+        // then
+        Profile proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(10);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(9);
+        long lineNumber100SampleCount = 0;
+        for (Profile.ProfileNode node : proto.getNodeList()) {
+            if (node.getLineNumber() == 100) {
+                lineNumber100SampleCount += node.getSampleCount();
+            }
+        }
+        assertThat(lineNumber100SampleCount).isEqualTo(1);
+    }
+
+    private static void merge(MutableProfile profile, int lineNumber) {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(
+                new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", lineNumber));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceStringDictionaryTest {
+
+    @Test
+    public void shouldRoundTrip() {
+        // given
+        Trace trace1 = createTrace("abc", "select 1");
+        Trace trace2 = createTrace("xyz", "select 1");
+        TraceStringDictionary dictionary = new TraceStringDictionary();
+        // when
+        Trace encoded1 = dictionary.encode(trace1);
+        Trace encoded2 = dictionary.encode(trace2);
+        List<String> strings = dictionary.getStrings();
+        // then
+        assertThat(strings).containsExactly("Web", "abc", "http request", "jdbc query",
+                "select 1", "xyz");
+        assertThat(encoded1.getEntry(0).getMessage()).isEmpty();
+        assertThat(encoded2.getEntry(0).getSharedMessageIndex()).isEqualTo(4);
+        assertThat(TraceStringDictionary.decode(encoded1, strings)).isEqualTo(trace1);
+        assertThat(TraceStringDictionary.decode(encoded2, strings)).isEqualTo(trace2);
+    }
+
+    @Test
+    public void shouldNotEncodeEmptyStrings() {
+        // given
+        Trace trace = Trace.newBuilder()
+                .setHeader(Trace.Header.newBuilder()
+                        .setTransactionType("Web"))
+                .addEntry(Trace.Entry.newBuilder()
+                        .setDepth(0))
+                .build();
+        TraceStringDictionary dictionary = new TraceStringDictionary();
+        // when
+        Trace encoded = dictionary.encode(trace);
+        // then
+        assertThat(dictionary.getStrings()).containsExactly("Web");
+        assertThat(encoded.getEntry(0).getMessageOneofCase())
+                .isEqualTo(Trace.Entry.MessageOneofCase.MESSAGEONEOF_NOT_SET);
+        assertThat(TraceStringDictionary.decode(encoded, dictionary.getStrings()))
+                .isEqualTo(trace);
+    }
+
+    private static Trace createTrace(String transactionName, String query) {
+        return Trace.newBuilder()
+                .setId(transactionName)
+                .setHeader(Trace.Header.newBuilder()
+                        .setTransactionType("Web")
+                        .setTransactionName(transactionName)
+                        .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                                .setName("http request")
+                                .addChildTimer(Trace.Timer.newBuilder()
+                                        .setName("jdbc query")))
+                        .addAsyncTimer(Trace.Timer.newBuilder()
+                                .setName("http request")))
+                .addEntry(Trace.Entry.newBuilder()
+                        .setMessage(query))
+                .addEntry(Trace.Entry.newBuilder()
+                        .setMessage(query))
+                .build();
+    }
+}
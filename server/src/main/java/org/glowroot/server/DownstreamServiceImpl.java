@@ -15,6 +15,10 @@
  */
 package org.glowroot.server;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Exchanger;
@@ -22,10 +26,12 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -119,6 +125,15 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return connectedAgent.heapDump(directory);
     }
 
+    HeapDumpFileInfo heapDumpAndTransfer(String agentId, HeapDumpRequest request, File file,
+            int timeoutMinutes) throws Exception {
+        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
+        if (connectedAgent == null) {
+            throw new AgentNotConnectedException();
+        }
+        return connectedAgent.heapDumpAndTransfer(request, file, timeoutMinutes);
+    }
+
     void gc(String agentId) throws Exception {
         ConnectedAgent connectedAgent = connectedAgents.get(agentId);
         if (connectedAgent == null) {
@@ -265,6 +280,16 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 .expireAfterWrite(1, HOURS)
                 .build();
 
+        // chunked responses that are still being received
+        //
+        // (concurrent since entries are also purged by the requesting thread on timeout)
+        private final Map<Long, ClientResponse.Builder> partialResponses =
+                Maps.newConcurrentMap();
+
+        // heap dump chunks are written directly to disk as they are received instead of being
+        // merged into partial responses
+        private final Map<Long, HeapDumpTransfer> heapDumpTransfers = Maps.newConcurrentMap();
+
         private volatile @MonotonicNonNull String agentId;
 
         private final StreamObserver<ServerRequest> requestObserver;
@@ -280,12 +305,48 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 connectedAgents.put(agentId, ConnectedAgent.this);
                 synchronized (requestObserver) {
                     requestObserver.onNext(ServerRequest.newBuilder()
-                            .setHelloAck(HelloAck.getDefaultInstance())
+                            .setHelloAck(HelloAck.newBuilder()
+                                    .setChunkedResponsesSupported(true))
                             .build());
                 }
                 return;
             }
             long requestId = value.getRequestId();
+            if (value.getMessageCase() == MessageCase.HEAP_DUMP_CHUNK) {
+                HeapDumpTransfer heapDumpTransfer = heapDumpTransfers.get(requestId);
+                if (heapDumpTransfer == null) {
+                    logger.error("no heap dump transfer for request id: {}", requestId);
+                    return;
+                }
+                heapDumpTransfer.write(value.getHeapDumpChunk().getData());
+                return;
+            }
+            if (value.getMoreChunks()) {
+                if (responseHolders.getIfPresent(requestId) == null) {
+                    // request has already timed out, no point in holding onto the chunk
+                    return;
+                }
+                ClientResponse.Builder partialResponse = partialResponses.get(requestId);
+                if (partialResponse == null) {
+                    partialResponses.put(requestId, value.toBuilder());
+                } else {
+                    partialResponse.mergeFrom(value);
+                }
+                return;
+            }
+            ClientResponse response = value;
+            ClientResponse.Builder partialResponse = partialResponses.remove(requestId);
+            if (partialResponse != null
+                    && partialResponse.getMessageCase() == value.getMessageCase()) {
+                // this is the last chunk
+                response = partialResponse.mergeFrom(value)
+                        .setMoreChunks(false)
+                        .build();
+            }
+            HeapDumpTransfer heapDumpTransfer = heapDumpTransfers.remove(requestId);
+            if (heapDumpTransfer != null) {
+                heapDumpTransfer.close();
+            }
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
             responseHolders.invalidate(requestId);
             if (responseHolder == null) {
@@ -294,7 +355,7 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
             try {
                 // this shouldn't timeout since it is the other side of the exchange that is waiting
-                responseHolder.response.exchange(value, 1, MINUTES);
+                responseHolder.response.exchange(response, 1, MINUTES);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 logger.error(e.getMessage(), e);
@@ -309,6 +370,7 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
             if (agentId != null) {
                 connectedAgents.remove(agentId, ConnectedAgent.this);
             }
+            purgePartialResponses();
         }
 
         @Override
@@ -319,6 +381,16 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
             if (agentId != null) {
                 connectedAgents.remove(agentId, ConnectedAgent.this);
             }
+            purgePartialResponses();
+        }
+
+        // the remaining chunks will never be received once the stream is closed
+        private void purgePartialResponses() {
+            partialResponses.clear();
+            for (HeapDumpTransfer heapDumpTransfer : heapDumpTransfers.values()) {
+                heapDumpTransfer.close();
+            }
+            heapDumpTransfers.clear();
         }
 
         private void updateAgentConfig(AgentConfig agentConfig) throws Exception {
@@ -355,6 +427,42 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
             return response.getHeapDumpResponse().getHeapDumpFileInfo();
         }
 
+        private HeapDumpFileInfo heapDumpAndTransfer(HeapDumpRequest request, File file,
+                int timeoutMinutes) throws Exception {
+            long requestId = nextRequestId.getAndIncrement();
+            HeapDumpTransfer heapDumpTransfer = new HeapDumpTransfer(file);
+            heapDumpTransfers.put(requestId, heapDumpTransfer);
+            ClientResponse response;
+            try {
+                // timeout includes both writing and transferring the heap dump, so it is
+                // configurable (heap.dump.transfer.timeout.minutes) for large heaps and slow links
+                response = sendRequest(ServerRequest.newBuilder()
+                        .setRequestId(requestId)
+                        .setHeapDumpRequest(request.toBuilder()
+                                .setTransferToServer(true))
+                        .build(), timeoutMinutes);
+            } catch (Exception e) {
+                // not removing from heapDumpTransfers so that any remaining chunks are ignored
+                heapDumpTransfer.closeAndDelete();
+                throw e;
+            }
+            HeapDumpFileInfo heapDumpFileInfo =
+                    response.getHeapDumpResponse().getHeapDumpFileInfo();
+            if (!heapDumpTransfer.isReceived()) {
+                // agent does not support heap dump transfer
+                return heapDumpFileInfo;
+            }
+            if (heapDumpTransfer.isFailed()) {
+                heapDumpTransfer.closeAndDelete();
+                throw new IOException(
+                        "Heap dump could not be written to " + file.getAbsolutePath());
+            }
+            return heapDumpFileInfo.toBuilder()
+                    .setTransferredFileName(file.getName())
+                    .setTransferredFileSizeBytes(file.length())
+                    .build();
+        }
+
         private void gc() throws Exception {
             sendRequest(ServerRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
@@ -521,6 +629,11 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
 
         private ClientResponse sendRequest(ServerRequest request) throws Exception {
+            return sendRequest(request, 1);
+        }
+
+        private ClientResponse sendRequest(ServerRequest request, int timeoutMinutes)
+                throws Exception {
             ResponseHolder responseHolder = new ResponseHolder();
             responseHolders.put(request.getRequestId(), responseHolder);
             // synchronization required since individual StreamObservers are not thread-safe
@@ -529,8 +642,15 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
             // timeout is in case agent never responds
             // passing ClientResponse.getDefaultInstance() is just dummy (non-null) value
-            ClientResponse response = responseHolder.response
-                    .exchange(ClientResponse.getDefaultInstance(), 1, MINUTES);
+            ClientResponse response;
+            try {
+                response = responseHolder.response
+                        .exchange(ClientResponse.getDefaultInstance(), timeoutMinutes, MINUTES);
+            } catch (TimeoutException e) {
+                responseHolders.invalidate(request.getRequestId());
+                partialResponses.remove(request.getRequestId());
+                throw e;
+            }
             if (response.getMessageCase() == MessageCase.UNKNOWN_REQUEST_RESPONSE) {
                 throw new OutdatedAgentException();
             }
@@ -541,6 +661,70 @@ public class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static class HeapDumpTransfer {
+
+        private final File file;
+
+        @GuardedBy("this")
+        private @Nullable OutputStream out;
+        @GuardedBy("this")
+        private boolean received;
+        @GuardedBy("this")
+        private boolean failed;
+        @GuardedBy("this")
+        private boolean closed;
+
+        private HeapDumpTransfer(File file) {
+            this.file = file;
+        }
+
+        private synchronized void write(ByteString data) {
+            received = true;
+            if (failed || closed) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    out = new FileOutputStream(file);
+                }
+                data.writeTo(out);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                failed = true;
+            }
+        }
+
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                    failed = true;
+                }
+            }
+        }
+
+        private synchronized void closeAndDelete() {
+            close();
+            if (file.exists() && !file.delete()) {
+                logger.warn("unable to delete heap dump file: {}", file.getAbsolutePath());
+            }
+        }
+
+        private synchronized boolean isReceived() {
+            return received;
+        }
+
+        private synchronized boolean isFailed() {
+            return failed;
+        }
+    }
+
     private static class ResponseHolder {
         private final Exchanger<ClientResponse> response = new Exchanger<>();
     }
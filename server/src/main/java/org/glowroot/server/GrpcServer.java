@@ -17,14 +17,34 @@ package org.glowroot.server;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nullable;
 
 import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Status;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.model.AggregateDeltaEncoding;
+import org.glowroot.common.model.TraceStringDictionary;
 import org.glowroot.server.storage.AgentDao;
 import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
@@ -34,6 +54,7 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
@@ -43,6 +64,10 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
 import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class GrpcServer {
 
@@ -51,6 +76,15 @@ class GrpcServer {
 
     private static final Logger logger = LoggerFactory.getLogger(GrpcServer.class);
 
+    private static final int BATCH_STORE_THREADS =
+            Integer.getInteger("glowroot.batch.store.threads", 16);
+
+    private static final int BATCH_STORE_QUEUE_SIZE =
+            Integer.getInteger("glowroot.batch.store.queue.size", 10000);
+
+    private static final long AGGREGATE_DELTA_BASE_CACHE_MAX_BYTES =
+            Long.getLong("glowroot.aggregate.deltaBaseCacheMaxBytes", 256 * 1024 * 1024);
+
     private final AgentDao agentDao;
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
@@ -59,6 +93,30 @@ class GrpcServer {
 
     private final DownstreamServiceImpl downstreamService;
 
+    // last aggregate message from each agent that requested it to be retained, so that the agent's
+    // next aggregate message can be delta encoded against it
+    //
+    // if the base is not here (e.g. after server restart, or after being evicted to stay under the
+    // max cache size), the agent falls back to sending the full aggregate message
+    private final Cache<String, AggregateMessage> aggregateDeltaBases = CacheBuilder.newBuilder()
+            .maximumWeight(AGGREGATE_DELTA_BASE_CACHE_MAX_BYTES)
+            .weigher(new Weigher<String, AggregateMessage>() {
+                @Override
+                public int weigh(String agentId, AggregateMessage message) {
+                    return message.getSerializedSize();
+                }
+            })
+            .expireAfterWrite(1, HOURS)
+            .build();
+
+    // the contents of batch messages are stored asynchronously (and concurrently), so that the
+    // stream is not held up while each trace is stored one after another
+    //
+    // the queue is bounded so that a backlog (e.g. slow storage) does not build up in server
+    // memory, instead batches are rejected with RESOURCE_EXHAUSTED and the agents spool them and
+    // retry later
+    private final ListeningExecutorService batchStoreExecutor;
+
     private final ServerImpl server;
 
     GrpcServer(int port, AgentDao agentDao, AggregateRepository aggregateRepository,
@@ -71,6 +129,12 @@ class GrpcServer {
         this.alertingService = alertingService;
 
         downstreamService = new DownstreamServiceImpl();
+        batchStoreExecutor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                BATCH_STORE_THREADS, BATCH_STORE_THREADS, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(BATCH_STORE_QUEUE_SIZE), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Batch-Store-%d")
+                        .build()));
 
         server = NettyServerBuilder.forPort(port)
                 .addService(new CollectorServiceImpl().bindService())
@@ -86,6 +150,7 @@ class GrpcServer {
 
     void close() {
         server.shutdown();
+        batchStoreExecutor.shutdown();
     }
 
     private class CollectorServiceImpl extends CollectorServiceImplBase {
@@ -102,33 +167,55 @@ class GrpcServer {
                 responseObserver.onError(t);
                 return;
             }
-            if (updatedAgentConfig.equals(request.getAgentConfig())) {
-                responseObserver.onNext(InitResponse.getDefaultInstance());
-            } else {
-                responseObserver.onNext(InitResponse.newBuilder()
-                        .setAgentConfig(updatedAgentConfig)
-                        .build());
+            InitResponse.Builder response = InitResponse.newBuilder()
+                    .setAggregateDeltaEncodingSupported(true)
+                    .setBatchSupported(true);
+            if (!updatedAgentConfig.equals(request.getAgentConfig())) {
+                response.setAgentConfig(updatedAgentConfig);
             }
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
         @Override
         public void collectAggregates(AggregateMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
-            List<AggregatesByType> aggregatesByTypeList = request.getAggregatesByTypeList();
+            AggregateMessage message;
+            try {
+                message = decodeIfNeeded(request);
+            } catch (Throwable t) {
+                logger.debug(t.getMessage(), t);
+                responseObserver.onError(Status.FAILED_PRECONDITION
+                        .withDescription("Unable to decode delta encoded aggregate message")
+                        .asRuntimeException());
+                return;
+            }
+            if (message == null) {
+                responseObserver.onError(Status.FAILED_PRECONDITION
+                        .withDescription("Delta base not found for aggregate message")
+                        .asRuntimeException());
+                return;
+            }
+            List<AggregatesByType> aggregatesByTypeList = message.getAggregatesByTypeList();
             if (!aggregatesByTypeList.isEmpty()) {
                 try {
-                    aggregateRepository.store(request.getAgentId(), request.getCaptureTime(),
-                            aggregatesByTypeList, request.getSharedQueryTextList());
+                    aggregateRepository.store(message.getAgentId(), message.getCaptureTime(),
+                            aggregatesByTypeList, message.getSharedQueryTextList());
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                     responseObserver.onError(t);
                     return;
                 }
             }
+            // only retained after it has been stored, since the agent only uses it as the base for
+            // its next message if this call succeeds
+            if (message.getRetainAsDeltaBase()) {
+                retainAsDeltaBase(message);
+            }
             try {
-                alertingService.checkTransactionAlerts(request.getAgentId(),
-                        request.getCaptureTime(), ReadTimeoutException.class);
+                alertingService.checkTransactionAlerts(message.getAgentId(),
+                        message.getCaptureTime(), aggregatesByTypeList,
+                        ReadTimeoutException.class);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 // don't fail collectAggregates()
@@ -140,24 +227,13 @@ class GrpcServer {
         @Override
         public void collectGaugeValues(GaugeValueMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
-            long maxCaptureTime = 0;
             try {
-                gaugeValueRepository.store(request.getAgentId(), request.getGaugeValuesList());
-                for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
-                    maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
-                }
+                storeGaugeValues(request.getAgentId(), request.getGaugeValuesList());
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
-            try {
-                alertingService.checkGaugeAlerts(request.getAgentId(), maxCaptureTime,
-                        ReadTimeoutException.class);
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                // don't fail collectGaugeValues()
-            }
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
@@ -176,6 +252,87 @@ class GrpcServer {
             responseObserver.onCompleted();
         }
 
+        @Override
+        public StreamObserver<BatchMessage> collectBatch(
+                final StreamObserver<EmptyMessage> responseObserver) {
+            return new StreamObserver<BatchMessage>() {
+
+                // grpc does not call onNext()/onCompleted() concurrently for the same call
+                private final List<ListenableFuture<?>> futures = Lists.newArrayList();
+                private boolean rejected;
+
+                @Override
+                public void onNext(BatchMessage value) {
+                    if (rejected) {
+                        return;
+                    }
+                    try {
+                        submit(value);
+                    } catch (RejectedExecutionException e) {
+                        logger.debug(e.getMessage(), e);
+                        rejected = true;
+                    }
+                }
+
+                private void submit(BatchMessage value) {
+                    final String agentId = value.getAgentId();
+                    final List<GaugeValue> gaugeValues = value.getGaugeValueList();
+                    if (!gaugeValues.isEmpty()) {
+                        futures.add(batchStoreExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                storeGaugeValues(agentId, gaugeValues);
+                                return null;
+                            }
+                        }));
+                    }
+                    final List<String> sharedStrings = value.getSharedStringList();
+                    for (final Trace trace : value.getTraceList()) {
+                        futures.add(batchStoreExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                traceRepository.store(agentId,
+                                        TraceStringDictionary.decode(trace, sharedStrings));
+                                return null;
+                            }
+                        }));
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    // anything already submitted is still stored, which is ok since storing is
+                    // idempotent and the agent will retry
+                    logger.debug(t.getMessage(), t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (rejected) {
+                        // anything already submitted is still stored, which is ok since storing is
+                        // idempotent and the agent will spool the batch and retry
+                        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                                .withDescription("Batch store queue is full")
+                                .asRuntimeException());
+                        return;
+                    }
+                    // the response is only sent once everything in the batch has been stored
+                    Futures.addCallback(Futures.allAsList(futures), new FutureCallback<Object>() {
+                        @Override
+                        public void onSuccess(@Nullable Object result) {
+                            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                            responseObserver.onCompleted();
+                        }
+                        @Override
+                        public void onFailure(Throwable t) {
+                            logger.error(t.getMessage(), t);
+                            responseObserver.onError(t);
+                        }
+                    }, MoreExecutors.directExecutor());
+                }
+            };
+        }
+
         @Override
         public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
             try {
@@ -196,5 +353,48 @@ class GrpcServer {
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
+
+        // returns null if the delta base is not found
+        private @Nullable AggregateMessage decodeIfNeeded(AggregateMessage request) {
+            if (request.getDeltaBaseCaptureTime() == 0) {
+                return request;
+            }
+            AggregateMessage base = aggregateDeltaBases.getIfPresent(request.getAgentId());
+            if (base == null || base.getCaptureTime() != request.getDeltaBaseCaptureTime()) {
+                return null;
+            }
+            return AggregateDeltaEncoding.decode(request, base);
+        }
+
+        private void retainAsDeltaBase(AggregateMessage message) {
+            String agentId = message.getAgentId();
+            ConcurrentMap<String, AggregateMessage> bases = aggregateDeltaBases.asMap();
+            while (true) {
+                AggregateMessage base = bases.get(agentId);
+                if (base == null) {
+                    if (bases.putIfAbsent(agentId, message) == null) {
+                        return;
+                    }
+                } else if (base.getCaptureTime() >= message.getCaptureTime()) {
+                    // don't replace with older message, e.g. when agent replays spooled aggregate
+                    // messages concurrently with new aggregate messages
+                    return;
+                } else if (bases.replace(agentId, base, message)) {
+                    return;
+                }
+            }
+        }
+
+        private void storeGaugeValues(String agentId, List<GaugeValue> gaugeValues)
+                throws Exception {
+            gaugeValueRepository.store(agentId, gaugeValues);
+            try {
+                alertingService.checkGaugeAlerts(agentId, gaugeValues,
+                        ReadTimeoutException.class);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                // don't fail storing the gauge values
+            }
+        }
     }
 }
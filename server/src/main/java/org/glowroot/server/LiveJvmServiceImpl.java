@@ -15,11 +15,27 @@
  */
 package org.glowroot.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.live.LiveJvmService;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpRequest.MBeanDumpKind;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMeta;
@@ -27,10 +43,27 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 
 class LiveJvmServiceImpl implements LiveJvmService {
 
+    private static final Logger logger = LoggerFactory.getLogger(LiveJvmServiceImpl.class);
+
+    private static final Pattern TRANSFERRED_HEAP_DUMP_FILE_NAME =
+            Pattern.compile("heap-dump-[0-9-]+\\.hprof\\.gz");
+
     private final DownstreamServiceImpl downstreamService;
+    private final File heapDumpDir;
+    private final int heapDumpTransferChunkSizeBytes;
+    private final int heapDumpTransferCompressionLevel;
+    private final int heapDumpTransferTimeoutMinutes;
+    private final long heapDumpMaxTotalSizeBytes;
 
-    LiveJvmServiceImpl(DownstreamServiceImpl downstreamService) {
+    LiveJvmServiceImpl(DownstreamServiceImpl downstreamService, File heapDumpDir,
+            int heapDumpTransferChunkSizeBytes, int heapDumpTransferCompressionLevel,
+            int heapDumpTransferTimeoutMinutes, long heapDumpMaxTotalSizeBytes) {
         this.downstreamService = downstreamService;
+        this.heapDumpDir = heapDumpDir;
+        this.heapDumpTransferChunkSizeBytes = heapDumpTransferChunkSizeBytes;
+        this.heapDumpTransferCompressionLevel = heapDumpTransferCompressionLevel;
+        this.heapDumpTransferTimeoutMinutes = heapDumpTransferTimeoutMinutes;
+        this.heapDumpMaxTotalSizeBytes = heapDumpMaxTotalSizeBytes;
     }
 
     @Override
@@ -53,6 +86,43 @@ class LiveJvmServiceImpl implements LiveJvmService {
         return downstreamService.heapDump(agentId, directory);
     }
 
+    @Override
+    public HeapDumpFileInfo heapDumpAndTransfer(String agentId, String directory)
+            throws Exception {
+        File dir = getAgentHeapDumpDir(agentId);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File file = new File(dir, "heap-dump-" + timestamp + ".hprof.gz");
+        int i = 1;
+        while (file.exists()) {
+            i++;
+            file = new File(dir, "heap-dump-" + timestamp + "-" + i + ".hprof.gz");
+        }
+        HeapDumpFileInfo heapDumpFileInfo = downstreamService.heapDumpAndTransfer(agentId,
+                HeapDumpRequest.newBuilder()
+                        .setDirectory(directory)
+                        .setTransferChunkSizeBytes(heapDumpTransferChunkSizeBytes)
+                        .setTransferCompressionLevel(heapDumpTransferCompressionLevel)
+                        .build(),
+                file, heapDumpTransferTimeoutMinutes);
+        if (!heapDumpFileInfo.getTransferredFileName().isEmpty()) {
+            deleteOldestTransferredHeapDumps(heapDumpDir, heapDumpMaxTotalSizeBytes, file);
+        }
+        return heapDumpFileInfo;
+    }
+
+    @Override
+    public @Nullable File getTransferredHeapDumpFile(String agentId, String fileName) {
+        // validating file name since it comes from the url
+        if (!TRANSFERRED_HEAP_DUMP_FILE_NAME.matcher(fileName).matches()) {
+            return null;
+        }
+        File file = new File(getAgentHeapDumpDir(agentId), fileName);
+        return file.isFile() ? file : null;
+    }
+
     @Override
     public void gc(String agentId) throws Exception {
         downstreamService.gc(agentId);
@@ -79,4 +149,52 @@ class LiveJvmServiceImpl implements LiveJvmService {
     public Capabilities getCapabilities(String agentId) throws Exception {
         return downstreamService.capabilities(agentId);
     }
+
+    // agent id is hashed since it can contain characters that are not valid in file names, and
+    // transferred heap dumps are stored per agent so they can only be downloaded by users that
+    // have heap dump permission for that agent
+    private File getAgentHeapDumpDir(String agentId) {
+        return new File(heapDumpDir, Hashing.sha1().hashString(agentId, Charsets.UTF_8).toString());
+    }
+
+    // deletes transferred heap dumps (across all agents), oldest first, until their total size is
+    // under the limit, but never deletes the heap dump that was just transferred
+    @VisibleForTesting
+    static void deleteOldestTransferredHeapDumps(File heapDumpDir, long maxTotalSizeBytes,
+            File justTransferred) {
+        File[] agentDirs = heapDumpDir.listFiles();
+        if (agentDirs == null) {
+            return;
+        }
+        List<File> files = Lists.newArrayList();
+        long totalSizeBytes = 0;
+        for (File agentDir : agentDirs) {
+            File[] agentFiles = agentDir.listFiles();
+            if (agentFiles == null) {
+                continue;
+            }
+            for (File file : agentFiles) {
+                if (file.isFile()
+                        && TRANSFERRED_HEAP_DUMP_FILE_NAME.matcher(file.getName()).matches()) {
+                    files.add(file);
+                    totalSizeBytes += file.length();
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (totalSizeBytes <= maxTotalSizeBytes) {
+                return;
+            }
+            if (file.equals(justTransferred)) {
+                continue;
+            }
+            long sizeBytes = file.length();
+            if (file.delete()) {
+                totalSizeBytes -= sizeBytes;
+            } else {
+                logger.warn("unable to delete heap dump file: {}", file.getAbsolutePath());
+            }
+        }
+    }
 }
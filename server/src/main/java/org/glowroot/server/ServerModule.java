@@ -121,13 +121,13 @@ class ServerModule {
 
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
-            AggregateDao aggregateDao =
-                    new AggregateDao(session, transactionTypeDao, configRepository);
-            TraceDao traceDao = new TraceDao(session, configRepository);
+            AggregateDao aggregateDao = new AggregateDao(session, keyspace, serverConfigDao,
+                    transactionTypeDao, configRepository);
+            TraceDao traceDao = new TraceDao(session, agentDao, configRepository);
             GaugeValueDao gaugeValueDao = new GaugeValueDao(session, configRepository);
             TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session, configRepository);
             RollupLevelService rollupLevelService = new RollupLevelService(configRepository, clock);
-            AlertingService alertingService = new AlertingService(configRepository,
+            AlertingService alertingService = new AlertingService(configRepository, agentDao,
                     triggeredAlertDao, aggregateDao, gaugeValueDao, rollupLevelService,
                     new MailService());
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao, clock);
@@ -146,7 +146,12 @@ class ServerModule {
                     .fat(false)
                     .clock(clock)
                     .logDir(new File("."))
-                    .liveJvmService(new LiveJvmServiceImpl(downstreamService))
+                    .liveJvmService(new LiveJvmServiceImpl(downstreamService,
+                            new File(serverConfig.heapDumpDir()),
+                            serverConfig.heapDumpTransferChunkSizeKb() * 1024,
+                            serverConfig.heapDumpTransferCompressionLevel(),
+                            serverConfig.heapDumpTransferTimeoutMinutes(),
+                            serverConfig.heapDumpMaxTotalSizeMb() * 1024L * 1024))
                     .configRepository(configRepository)
                     .agentRepository(agentDao)
                     .transactionTypeRepository(transactionTypeDao)
@@ -255,6 +260,31 @@ class ServerModule {
         if (!Strings.isNullOrEmpty(uiPortText)) {
             builder.uiPortOverride(Integer.parseInt(uiPortText));
         }
+        String heapDumpDir = props.getProperty("heap.dump.dir");
+        if (!Strings.isNullOrEmpty(heapDumpDir)) {
+            builder.heapDumpDir(heapDumpDir);
+        }
+        String heapDumpTransferChunkSizeKbText =
+                props.getProperty("heap.dump.transfer.chunk.size.kb");
+        if (!Strings.isNullOrEmpty(heapDumpTransferChunkSizeKbText)) {
+            builder.heapDumpTransferChunkSizeKb(Integer.parseInt(heapDumpTransferChunkSizeKbText));
+        }
+        String heapDumpTransferCompressionLevelText =
+                props.getProperty("heap.dump.transfer.compression.level");
+        if (!Strings.isNullOrEmpty(heapDumpTransferCompressionLevelText)) {
+            builder.heapDumpTransferCompressionLevel(
+                    Integer.parseInt(heapDumpTransferCompressionLevelText));
+        }
+        String heapDumpTransferTimeoutMinutesText =
+                props.getProperty("heap.dump.transfer.timeout.minutes");
+        if (!Strings.isNullOrEmpty(heapDumpTransferTimeoutMinutesText)) {
+            builder.heapDumpTransferTimeoutMinutes(
+                    Integer.parseInt(heapDumpTransferTimeoutMinutesText));
+        }
+        String heapDumpMaxTotalSizeMbText = props.getProperty("heap.dump.max.total.size.mb");
+        if (!Strings.isNullOrEmpty(heapDumpMaxTotalSizeMbText)) {
+            builder.heapDumpMaxTotalSizeMb(Integer.parseInt(heapDumpMaxTotalSizeMbText));
+        }
         return builder.build();
     }
 
@@ -274,6 +304,26 @@ class ServerModule {
             return 8181;
         }
         abstract @Nullable Integer uiPortOverride();
+        @Value.Default
+        String heapDumpDir() {
+            return "heap-dumps";
+        }
+        @Value.Default
+        int heapDumpTransferChunkSizeKb() {
+            return 1024;
+        }
+        @Value.Default
+        int heapDumpTransferCompressionLevel() {
+            return 1;
+        }
+        @Value.Default
+        int heapDumpTransferTimeoutMinutes() {
+            return 30;
+        }
+        @Value.Default
+        int heapDumpMaxTotalSizeMb() {
+            return 10240;
+        }
     }
 
     private static class NopRepoAdmin implements RepoAdmin {
@@ -22,24 +22,23 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.UUID;
-import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
 import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.utils.UUIDs;
+import com.datastax.driver.core.TableMetadata;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.AbstractMessage;
@@ -58,6 +57,7 @@ import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
@@ -71,6 +71,8 @@ import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
+import org.glowroot.server.storage.NeedsRollupIndex.NeedsRollup;
+import org.glowroot.server.storage.PendingAggregateRollups.TransactionTypeRollup;
 import org.glowroot.server.util.Messages;
 import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.storage.config.StorageConfig;
@@ -79,7 +81,6 @@ import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.MutableAggregate;
 import org.glowroot.storage.repo.MutableThreadStats;
-import org.glowroot.storage.repo.MutableTimer;
 import org.glowroot.storage.repo.Utils;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -100,8 +101,9 @@ public class AggregateDao implements AggregateRepository {
     private static final String WITH_DTCS =
             "with compaction = { 'class' : 'DateTieredCompactionStrategy' }";
 
-    private static final String WITH_LCS =
-            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+    // version 1 added duration_nanos_histogram to the query and service_call tables
+    private static final int SCHEMA_VERSION = 1;
+    private static final String SCHEMA_VERSION_KEY = "aggregateSchemaVersion";
 
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
@@ -165,6 +167,7 @@ public class AggregateDao implements AggregateRepository {
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
             .addColumns(ImmutableColumn.of("execution_count", "bigint"))
             .addColumns(ImmutableColumn.of("total_rows", "bigint"))
+            .addColumns(ImmutableColumn.of("duration_nanos_histogram", "blob")) // nullable
             .addClusterKey("query_type")
             .addClusterKey("truncated_query_text")
             .addClusterKey("full_query_text_sha1") // need this for uniqueness
@@ -178,12 +181,26 @@ public class AggregateDao implements AggregateRepository {
             .addColumns(ImmutableColumn.of("service_call_text", "varchar"))
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
             .addColumns(ImmutableColumn.of("execution_count", "bigint"))
+            .addColumns(ImmutableColumn.of("duration_nanos_histogram", "blob")) // nullable
             .addClusterKey("service_call_type")
             .addClusterKey("service_call_text")
             .summary(false)
             .fromInclusive(false)
             .build();
 
+    private static final Table logEventTable = ImmutableTable.builder()
+            .partialName("log_event")
+            .addColumns(ImmutableColumn.of("level", "varchar"))
+            .addColumns(ImmutableColumn.of("logger_name", "varchar"))
+            .addColumns(ImmutableColumn.of("message", "varchar"))
+            .addColumns(ImmutableColumn.of("count", "bigint"))
+            .addClusterKey("level")
+            .addClusterKey("logger_name")
+            .addClusterKey("message")
+            .summary(false)
+            .fromInclusive(false)
+            .build();
+
     private static final Table mainThreadProfileTable = ImmutableTable.builder()
             .partialName("main_thread_profile")
             .addColumns(ImmutableColumn.of("main_thread_profile", "blob"))
@@ -217,14 +234,15 @@ public class AggregateDao implements AggregateRepository {
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
     private final List<PreparedStatement> existsAuxThreadProfileTransactionPS;
 
-    private final List<PreparedStatement> insertNeedsRollup;
-    private final List<PreparedStatement> readNeedsRollup;
-    private final List<PreparedStatement> deleteNeedsRollup;
+    private final NeedsRollupIndex needsRollupIndex;
 
     private final ImmutableList<Table> allTables;
 
-    public AggregateDao(Session session, TransactionTypeDao transactionTypeDao,
-            ConfigRepository configRepository) {
+    private final PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+
+    public AggregateDao(Session session, KeyspaceMetadata keyspaceMetadata,
+            ServerConfigDao serverConfigDao, TransactionTypeDao transactionTypeDao,
+            ConfigRepository configRepository) throws JsonProcessingException {
         this.session = session;
         this.transactionTypeDao = transactionTypeDao;
         this.configRepository = configRepository;
@@ -232,8 +250,11 @@ public class AggregateDao implements AggregateRepository {
 
         int count = configRepository.getRollupConfigs().size();
 
+        // this needs to be done before preparing statements against the upgraded tables
+        upgradeSchemaIfNeeded(session, keyspaceMetadata, serverConfigDao, count);
+
         allTables = ImmutableList.of(summaryTable, errorSummaryTable, overviewTable,
-                histogramTable, throughputTable, queryTable, serviceCallTable,
+                histogramTable, throughputTable, queryTable, serviceCallTable, logEventTable,
                 mainThreadProfileTable, auxThreadProfileTable);
         Map<Table, List<PreparedStatement>> insertOverallMap = Maps.newHashMap();
         Map<Table, List<PreparedStatement>> insertTransactionMap = Maps.newHashMap();
@@ -306,25 +327,14 @@ public class AggregateDao implements AggregateRepository {
         this.existsAuxThreadProfileOverallPS = existsAuxThreadProfileOverallPS;
         this.existsAuxThreadProfileTransactionPS = existsAuxThreadProfileTransactionPS;
 
-        List<PreparedStatement> insertNeedsRollup = Lists.newArrayList();
-        List<PreparedStatement> readNeedsRollup = Lists.newArrayList();
-        List<PreparedStatement> deleteNeedsRollup = Lists.newArrayList();
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<Long> needsRollupIntervalMillis = Lists.newArrayList();
         for (int i = 1; i < count; i++) {
-            session.execute("create table if not exists aggregate_needs_rollup_" + i
-                    + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
-                    + " transaction_types set<varchar>, primary key (agent_rollup, capture_time,"
-                    + " uniqueness)) " + WITH_LCS);
-            insertNeedsRollup.add(session.prepare("insert into aggregate_needs_rollup_" + i
-                    + " (agent_rollup, capture_time, uniqueness, transaction_types) values"
-                    + " (?, ?, ?, ?)"));
-            readNeedsRollup.add(session.prepare("select capture_time, uniqueness, transaction_types"
-                    + " from aggregate_needs_rollup_" + i + " where agent_rollup = ?"));
-            deleteNeedsRollup.add(session.prepare("delete from aggregate_needs_rollup_" + i
-                    + " where agent_rollup = ? and capture_time = ? and uniqueness = ?"));
-        }
-        this.insertNeedsRollup = insertNeedsRollup;
-        this.readNeedsRollup = readNeedsRollup;
-        this.deleteNeedsRollup = deleteNeedsRollup;
+            needsRollupIntervalMillis.add(rollupConfigs.get(i).intervalMillis());
+        }
+        List<Integer> ttls = getTTLs();
+        needsRollupIndex = new NeedsRollupIndex(session, "aggregate", "transaction_types",
+                needsRollupIntervalMillis, ttls.subList(0, count - 1));
     }
 
     @Override
@@ -347,6 +357,7 @@ public class AggregateDao implements AggregateRepository {
             sharedQueries
                     .add(ImmutableSharedQueryTextAndSha1.of(truncatedQueryText, fullQueryTextSha1));
         }
+        Map<String, AggregatesByType> aggregatesByTransactionType = Maps.newLinkedHashMap();
         for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             // TEMPORARY UNTIL ROLL OUT AGENT 0.9.0
@@ -354,6 +365,11 @@ public class AggregateDao implements AggregateRepository {
                 transactionType = "Web";
             }
             // END TEMPORARY
+            aggregatesByTransactionType.put(transactionType, aggregatesByType);
+        }
+        for (Entry<String, AggregatesByType> entry : aggregatesByTransactionType.entrySet()) {
+            String transactionType = entry.getKey();
+            AggregatesByType aggregatesByType = entry.getValue();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
             futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
                     overallAggregate, sharedQueries, adjustedTTL));
@@ -365,27 +381,29 @@ public class AggregateDao implements AggregateRepository {
             }
             transactionTypeDao.maybeUpdateLastCaptureTime(agentId, transactionType, futures);
         }
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-        // TODO report checker framework issue that occurs without this suppression
-        @SuppressWarnings("assignment.type.incompatible")
-        Set<String> transactionTypes = aggregatesByTypeList.stream()
-                .map(AggregatesByType::getTransactionType).collect(Collectors.toSet());
-        // TEMPORARY UNTIL ROLL OUT AGENT 0.9.0
-        if (transactionTypes.remove("Servlet")) {
-            transactionTypes.add("Web");
-        }
-        // END TEMPORARY
-        for (int i = 1; i < rollupConfigs.size(); i++) {
-            long intervalMillis = rollupConfigs.get(i).intervalMillis();
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
-            BoundStatement boundStatement = insertNeedsRollup.get(i - 1).bind();
-            boundStatement.setString(0, agentId);
-            boundStatement.setTimestamp(1, new Date(rollupCaptureTime));
-            boundStatement.setUUID(2, UUIDs.timeBased());
-            boundStatement.setSet(3, transactionTypes);
-            futures.add(session.executeAsync(boundStatement));
+        Set<String> transactionTypes = aggregatesByTransactionType.keySet();
+        long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime,
+                configRepository.getRollupConfigs().get(1).intervalMillis());
+        AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(agentId);
+        PendingAggregateRollups.Bucket bucket = pendingRollups.getOrCreateBucket(agentId,
+                rollupCaptureTime, getMaxAggregateQueriesPerType(advancedConfig),
+                getMaxAggregateServiceCallsPerType(advancedConfig));
+        try {
+            if (bucket != null) {
+                bucket.merge(captureTime, aggregatesByTransactionType, sharedQueries);
+            }
+            // the records for the higher rollup levels are inserted by postRollup()
+            needsRollupIndex.insert(agentId, 1, rollupCaptureTime, transactionTypes,
+                    getTTLs().get(0), futures);
+            Futures.allAsList(futures).get();
+        } catch (Exception e) {
+            if (bucket != null) {
+                // the agent will retry sending these aggregates, so fall back to rolling up this
+                // bucket from the level 0 aggregates
+                bucket.invalidate();
+            }
+            throw e;
         }
-        Futures.allAsList(futures).get();
     }
 
     // query.from() is non-inclusive
@@ -565,7 +583,7 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeQueriesInto(String agentRollup, TransactionQuery query,
-            QueryCollector collector) throws IOException {
+            QueryCollector collector) throws Exception {
         ResultSet results = executeQuery(agentRollup, query, queryTable);
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
@@ -578,8 +596,10 @@ public class AggregateDao implements AggregateRepository {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
+            Aggregate.Histogram durationNanosHistogram = readHistogram(row, i++);
             collector.mergeQuery(queryType, truncatedQueryText, fullQueryTextSha1,
-                    totalDurationNanos, executionCount, hasTotalRows, totalRows);
+                    totalDurationNanos, executionCount, hasTotalRows, totalRows,
+                    durationNanosHistogram);
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -587,7 +607,7 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeServiceCallsInto(String agentRollup, TransactionQuery query,
-            ServiceCallCollector collector) throws IOException {
+            ServiceCallCollector collector) throws Exception {
         ResultSet results = executeQuery(agentRollup, query, serviceCallTable);
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
@@ -597,8 +617,27 @@ public class AggregateDao implements AggregateRepository {
             String serviceCallText = checkNotNull(row.getString(i++));
             double totalDurationNanos = row.getDouble(i++);
             long executionCount = row.getLong(i++);
+            Aggregate.Histogram durationNanosHistogram = readHistogram(row, i++);
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
-                    executionCount);
+                    executionCount, durationNanosHistogram);
+            collector.updateLastCaptureTime(captureTime);
+        }
+    }
+
+    // query.from() is non-inclusive
+    @Override
+    public void mergeLogEventsInto(String agentRollup, TransactionQuery query,
+            LogEventCollector collector) throws Exception {
+        ResultSet results = executeQuery(agentRollup, query, logEventTable);
+        long captureTime = Long.MIN_VALUE;
+        for (Row row : results) {
+            int i = 0;
+            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            String level = checkNotNull(row.getString(i++));
+            String loggerName = checkNotNull(row.getString(i++));
+            String message = checkNotNull(row.getString(i++));
+            long count = row.getLong(i++);
+            collector.mergeLogEvent(level, loggerName, message, count);
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -677,9 +716,7 @@ public class AggregateDao implements AggregateRepository {
                 session.execute("truncate " + getTableName(table.partialName(), true, i));
             }
         }
-        for (int i = 1; i < configRepository.getRollupConfigs().size(); i++) {
-            session.execute("truncate aggregate_needs_rollup_" + i);
-        }
+        needsRollupIndex.truncateAll();
     }
 
     void rollup(String agentRollup) throws Exception {
@@ -687,13 +724,14 @@ public class AggregateDao implements AggregateRepository {
         for (int rollupLevel = 1; rollupLevel < configRepository.getRollupConfigs()
                 .size(); rollupLevel++) {
             int ttl = ttls.get(rollupLevel);
-            rollupLevel(agentRollup, rollupLevel, ttl);
+            rollupLevel(agentRollup, rollupLevel, ttl, ttls);
         }
     }
 
-    private void rollupLevel(String agentRollup, int rollupLevel, int ttl) throws Exception {
+    private void rollupLevel(String agentRollup, int rollupLevel, int ttl, List<Integer> ttls)
+            throws Exception {
         List<NeedsRollup> needsRollupList =
-                getNeedsRollupList(agentRollup, rollupLevel, readNeedsRollup, session);
+                needsRollupIndex.getNeedsRollupList(agentRollup, rollupLevel);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
         Long nextRollupIntervalMillis = null;
@@ -705,14 +743,110 @@ public class AggregateDao implements AggregateRepository {
             int adjustedTTL = GaugeValueDao.getAdjustedTTL(ttl, captureTime);
             RollupParams rollupParams = getRollupParams(agentRollup, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
+            PendingAggregateRollups.Bucket bucket = null;
+            if (rollupLevel == 1) {
+                bucket = pendingRollups.removeBucket(agentRollup, captureTime);
+            }
             for (String transactionType : rollupContent.getKeys()) {
-                rollupOne(rollupParams, transactionType, from, captureTime);
+                TransactionTypeRollup transactionTypeRollup = null;
+                if (bucket != null) {
+                    transactionTypeRollup = bucket.getTransactionTypeRollup(transactionType);
+                }
+                if (transactionTypeRollup == null) {
+                    rollupOne(rollupParams, transactionType, from, captureTime);
+                } else {
+                    rollupOneFromMemory(rollupParams, transactionType, from, captureTime,
+                            transactionTypeRollup);
+                }
             }
-            postRollup(agentRollup, rollupLevel, rollupContent, nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, session);
+            needsRollupIndex.postRollup(agentRollup, rollupLevel, rollupContent,
+                    nextRollupIntervalMillis, ttls);
         }
     }
 
+    // profiles are not held in memory by PendingAggregateRollups, so they are still rolled up from
+    // the level 0 aggregates
+    private void rollupOneFromMemory(RollupParams rollup, String transactionType, long from,
+            long captureTime, TransactionTypeRollup transactionTypeRollup) throws Exception {
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        MutableAggregate overallAggregate = transactionTypeRollup.getOverallAggregate();
+        futures.add(insertSummary(rollup, transactionType, null, captureTime,
+                overallAggregate.getTotalDurationNanos(), overallAggregate.getTransactionCount()));
+        futures.addAll(insertRollup(rollup, transactionType, null, captureTime, overallAggregate,
+                scratchBuffer));
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .from(from)
+                .to(captureTime)
+                .rollupLevel(rollup.rollupLevel() - 1)
+                .build();
+        futures.addAll(rollupThreadProfile(rollup, query, mainThreadProfileTable));
+        futures.addAll(rollupThreadProfile(rollup, query, auxThreadProfileTable));
+        for (Entry<String, MutableAggregate> entry : transactionTypeRollup
+                .getTransactionAggregates().entrySet()) {
+            String transactionName = entry.getKey();
+            MutableAggregate transactionAggregate = entry.getValue();
+            futures.add(insertSummary(rollup, transactionType, transactionName, captureTime,
+                    transactionAggregate.getTotalDurationNanos(),
+                    transactionAggregate.getTransactionCount()));
+            futures.addAll(insertRollup(rollup, transactionType, transactionName, captureTime,
+                    transactionAggregate, scratchBuffer));
+            query = ImmutableTransactionQuery.builder()
+                    .transactionType(transactionType)
+                    .transactionName(transactionName)
+                    .from(from)
+                    .to(captureTime)
+                    .rollupLevel(rollup.rollupLevel() - 1)
+                    .build();
+            futures.addAll(rollupThreadProfile(rollup, query, mainThreadProfileTable));
+            futures.addAll(rollupThreadProfile(rollup, query, auxThreadProfileTable));
+        }
+        Futures.allAsList(futures).get();
+    }
+
+    // inserts everything except for the summary, since the overall and transaction summary tables
+    // are rolled up separately when reading back from the prior rollup level
+    private List<ResultSetFuture> insertRollup(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, MutableAggregate aggregate,
+            ScratchBuffer scratchBuffer) throws IOException {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        if (aggregate.getErrorCount() > 0) {
+            futures.add(insertErrorSummary(rollup, transactionType, transactionName, captureTime,
+                    aggregate.getErrorCount(), aggregate.getTransactionCount()));
+        }
+        futures.add(insertOverview(rollup, transactionType, transactionName, captureTime,
+                aggregate));
+        futures.add(insertHistogram(rollup, transactionType, transactionName, captureTime,
+                aggregate.getTotalDurationNanos(), aggregate.getTransactionCount(),
+                aggregate.getDurationNanosHistogram(), scratchBuffer));
+        futures.add(insertThroughput(rollup, transactionType, transactionName, captureTime,
+                aggregate.getTransactionCount()));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            futures.addAll(insertQueries(queries.getSortedQueries(), rollup.rollupLevel(),
+                    rollup.agentRollup(), transactionType, transactionName, captureTime,
+                    rollup.adjustedTTL(), scratchBuffer));
+        }
+        futures.addAll(insertServiceCalls(aggregate.getServiceCallsProto(), rollup.rollupLevel(),
+                rollup.agentRollup(), transactionType, transactionName, captureTime,
+                rollup.adjustedTTL()));
+        futures.addAll(insertLogEvents(aggregate.getLogEventsProto(), rollup.rollupLevel(),
+                rollup.agentRollup(), transactionType, transactionName, captureTime,
+                rollup.adjustedTTL()));
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.add(insertProfile(rollup, transactionType, transactionName, captureTime,
+                    mainThreadProfileTable, mainThreadProfile));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.add(insertProfile(rollup, transactionType, transactionName, captureTime,
+                    auxThreadProfileTable, auxThreadProfile));
+        }
+        return futures;
+    }
+
     private void rollupOne(RollupParams rollup, String transactionType, long from, long to)
             throws Exception {
         ScratchBuffer scratchBuffer = new ScratchBuffer();
@@ -728,8 +862,9 @@ public class AggregateDao implements AggregateRepository {
         futures.addAll(rollupOverview(rollup, query));
         futures.addAll(rollupHistogram(rollup, query, scratchBuffer));
         futures.addAll(rollupThroughput(rollup, query));
-        futures.addAll(rollupQueries(rollup, query));
+        futures.addAll(rollupQueries(rollup, query, scratchBuffer));
         futures.addAll(rollupServiceCalls(rollup, query));
+        futures.addAll(rollupLogEvents(rollup, query));
         futures.addAll(rollupThreadProfile(rollup, query, mainThreadProfileTable));
         futures.addAll(rollupThreadProfile(rollup, query, auxThreadProfileTable));
 
@@ -746,8 +881,9 @@ public class AggregateDao implements AggregateRepository {
             futures.addAll(rollupOverview(rollup, query));
             futures.addAll(rollupHistogram(rollup, query, scratchBuffer));
             futures.addAll(rollupThroughput(rollup, query));
-            futures.addAll(rollupQueries(rollup, query));
+            futures.addAll(rollupQueries(rollup, query, scratchBuffer));
             futures.addAll(rollupServiceCalls(rollup, query));
+            futures.addAll(rollupLogEvents(rollup, query));
             futures.addAll(rollupThreadProfile(rollup, query, mainThreadProfileTable));
             futures.addAll(rollupThreadProfile(rollup, query, auxThreadProfileTable));
         }
@@ -767,16 +903,8 @@ public class AggregateDao implements AggregateRepository {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
-        BoundStatement boundStatement =
-                getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setDouble(i++, totalDurationNanos);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(insertSummary(rollup, query.transactionType(), null, query.to(),
+                totalDurationNanos, transactionCount));
     }
 
     private List<ResultSetFuture> rollupErrorSummary(RollupParams rollup, TransactionQuery query) {
@@ -790,23 +918,8 @@ public class AggregateDao implements AggregateRepository {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
-        BoundStatement boundStatement;
-        if (query.transactionName() == null) {
-            boundStatement = getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
-        } else {
-            boundStatement = getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel()).bind();
-        }
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        if (query.transactionName() != null) {
-            boundStatement.setString(i++, query.transactionName());
-        }
-        boundStatement.setLong(i++, errorCount);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(insertErrorSummary(rollup, query.transactionType(),
+                query.transactionName(), query.to(), errorCount, transactionCount));
     }
 
     private List<ResultSetFuture> rollupOverview(RollupParams rollup, TransactionQuery query)
@@ -816,71 +929,29 @@ public class AggregateDao implements AggregateRepository {
             // this probably shouldn't happen
             return ImmutableList.of();
         }
-        double totalDurationNanos = 0;
-        long transactionCount = 0;
-        boolean asyncTransactions = false;
-        List<MutableTimer> mainThreadRootTimers = Lists.newArrayList();
-        List<MutableTimer> auxThreadRootTimers = Lists.newArrayList();
-        List<MutableTimer> asyncTimers = Lists.newArrayList();
-        MutableThreadStats mainThreadStats = new MutableThreadStats();
-        MutableThreadStats auxThreadStats = new MutableThreadStats();
+        MutableAggregate aggregate = new MutableAggregate(0, 0);
         for (Row row : results) {
             int i = 0;
-            totalDurationNanos += row.getDouble(i++);
-            transactionCount += row.getLong(i++);
-            if (row.getBool(i++)) {
-                asyncTransactions = true;
-            }
-            List<Aggregate.Timer> toBeMergedMainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedMainThreadRootTimers, mainThreadRootTimers);
-            List<Aggregate.Timer> toBeMergedAuxThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedAuxThreadRootTimers, auxThreadRootTimers);
-            List<Aggregate.Timer> toBeMergedAsyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedAsyncTimers, asyncTimers);
-            mainThreadStats.addTotalCpuNanos(row.get(i++, Double.class));
-            mainThreadStats.addTotalBlockedNanos(row.get(i++, Double.class));
-            mainThreadStats.addTotalWaitedNanos(row.get(i++, Double.class));
-            mainThreadStats.addTotalAllocatedBytes(row.get(i++, Double.class));
-            auxThreadStats.addTotalCpuNanos(row.get(i++, Double.class));
-            auxThreadStats.addTotalBlockedNanos(row.get(i++, Double.class));
-            auxThreadStats.addTotalWaitedNanos(row.get(i++, Double.class));
-            auxThreadStats.addTotalAllocatedBytes(row.get(i++, Double.class));
-        }
-        BoundStatement boundStatement;
-        if (query.transactionName() == null) {
-            boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
-        } else {
-            boundStatement = getInsertTransactionPS(overviewTable, rollup.rollupLevel()).bind();
-        }
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        if (query.transactionName() != null) {
-            boundStatement.setString(i++, query.transactionName());
-        }
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setDouble(i++, totalDurationNanos);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBool(i++, asyncTransactions);
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
-        boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
-        boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
-        boundStatement.setDouble(i++, mainThreadStats.getTotalWaitedNanos());
-        boundStatement.setDouble(i++, mainThreadStats.getTotalAllocatedBytes());
-        boundStatement.setDouble(i++, auxThreadStats.getTotalCpuNanos());
-        boundStatement.setDouble(i++, auxThreadStats.getTotalBlockedNanos());
-        boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
-        boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+            aggregate.addTotalDurationNanos(row.getDouble(i++));
+            aggregate.addTransactionCount(row.getLong(i++));
+            aggregate.addAsyncTransactions(row.getBool(i++));
+            aggregate.mergeMainThreadRootTimers(
+                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser()));
+            aggregate.mergeAuxThreadRootTimers(
+                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser()));
+            aggregate.mergeAsyncTimers(
+                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser()));
+            aggregate.addMainThreadTotalCpuNanos(row.get(i++, Double.class));
+            aggregate.addMainThreadTotalBlockedNanos(row.get(i++, Double.class));
+            aggregate.addMainThreadTotalWaitedNanos(row.get(i++, Double.class));
+            aggregate.addMainThreadTotalAllocatedBytes(row.get(i++, Double.class));
+            aggregate.addAuxThreadTotalCpuNanos(row.get(i++, Double.class));
+            aggregate.addAuxThreadTotalBlockedNanos(row.get(i++, Double.class));
+            aggregate.addAuxThreadTotalWaitedNanos(row.get(i++, Double.class));
+            aggregate.addAuxThreadTotalAllocatedBytes(row.get(i++, Double.class));
+        }
+        return ImmutableList.of(insertOverview(rollup, query.transactionType(),
+                query.transactionName(), query.to(), aggregate));
     }
 
     private List<ResultSetFuture> rollupHistogram(RollupParams rollup, TransactionQuery query,
@@ -899,24 +970,9 @@ public class AggregateDao implements AggregateRepository {
             ByteBuffer bytes = checkNotNull(row.getBytes(2));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes)));
         }
-        BoundStatement boundStatement;
-        if (query.transactionName() == null) {
-            boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
-        } else {
-            boundStatement = getInsertTransactionPS(histogramTable, rollup.rollupLevel()).bind();
-        }
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        if (query.transactionName() != null) {
-            boundStatement.setString(i++, query.transactionName());
-        }
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setDouble(i++, totalDurationNanos);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(insertHistogram(rollup, query.transactionType(),
+                query.transactionName(), query.to(), totalDurationNanos, transactionCount,
+                durationNanosHistogram, scratchBuffer));
     }
 
     private List<ResultSetFuture> rollupThroughput(RollupParams rollup, TransactionQuery query) {
@@ -929,26 +985,12 @@ public class AggregateDao implements AggregateRepository {
         for (Row row : results) {
             transactionCount += row.getLong(0);
         }
-        BoundStatement boundStatement;
-        if (query.transactionName() == null) {
-            boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
-        } else {
-            boundStatement = getInsertTransactionPS(throughputTable, rollup.rollupLevel()).bind();
-        }
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        if (query.transactionName() != null) {
-            boundStatement.setString(i++, query.transactionName());
-        }
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(insertThroughput(rollup, query.transactionType(),
+                query.transactionName(), query.to(), transactionCount));
     }
 
-    private List<ResultSetFuture> rollupQueries(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+    private List<ResultSetFuture> rollupQueries(RollupParams rollup, TransactionQuery query,
+            ScratchBuffer scratchBuffer) throws Exception {
         ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, queryTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -963,16 +1005,18 @@ public class AggregateDao implements AggregateRepository {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
+            Aggregate.Histogram durationNanosHistogram = readHistogram(row, i++);
             collector.mergeQuery(queryType, truncatedQueryText, fullQueryTextSha1,
-                    totalDurationNanos, executionCount, hasTotalRows, totalRows);
+                    totalDurationNanos, executionCount, hasTotalRows, totalRows,
+                    durationNanosHistogram);
         }
         return insertQueries(collector.getSortedQueries(), rollup.rollupLevel(),
                 rollup.agentRollup(), query.transactionType(), query.transactionName(), query.to(),
-                rollup.adjustedTTL());
+                rollup.adjustedTTL(), scratchBuffer);
     }
 
     private List<ResultSetFuture> rollupServiceCalls(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws Exception {
         ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, serviceCallTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -985,13 +1029,34 @@ public class AggregateDao implements AggregateRepository {
             String serviceCallText = checkNotNull(row.getString(i++));
             double totalDurationNanos = row.getDouble(i++);
             long executionCount = row.getLong(i++);
+            Aggregate.Histogram durationNanosHistogram = readHistogram(row, i++);
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
-                    executionCount);
+                    executionCount, durationNanosHistogram);
         }
         return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollup(),
                 query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
     }
 
+    private List<ResultSetFuture> rollupLogEvents(RollupParams rollup, TransactionQuery query)
+            throws Exception {
+        ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, logEventTable);
+        if (results.isExhausted()) {
+            return ImmutableList.of();
+        }
+        LogEventCollector collector =
+                new LogEventCollector(ConfigDefaults.MAX_AGGREGATE_LOG_EVENTS, 0);
+        for (Row row : results) {
+            int i = 0;
+            String level = checkNotNull(row.getString(i++));
+            String loggerName = checkNotNull(row.getString(i++));
+            String message = checkNotNull(row.getString(i++));
+            long count = row.getLong(i++);
+            collector.mergeLogEvent(level, loggerName, message, count);
+        }
+        return insertLogEvents(collector.toProto(), rollup.rollupLevel(), rollup.agentRollup(),
+                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+    }
+
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
             Table table) throws InvalidProtocolBufferException {
         ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, table);
@@ -1003,22 +1068,8 @@ public class AggregateDao implements AggregateRepository {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(ByteString.copyFrom(bytes)));
         }
-        BoundStatement boundStatement;
-        if (query.transactionName() == null) {
-            boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
-        } else {
-            boundStatement = getInsertTransactionPS(table, rollup.rollupLevel()).bind();
-        }
-        int i = 0;
-        boundStatement.setString(i++, rollup.agentRollup());
-        boundStatement.setString(i++, query.transactionType());
-        if (query.transactionName() != null) {
-            boundStatement.setString(i++, query.transactionName());
-        }
-        boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
-        boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(insertProfile(rollup, query.transactionType(),
+                query.transactionName(), query.to(), table, profile));
     }
 
     private List<String> rollupTransactionSummary(RollupParams rollup, TransactionQuery query,
@@ -1042,20 +1093,10 @@ public class AggregateDao implements AggregateRepository {
             summary.totalDurationNanos += row.getDouble(1);
             summary.transactionCount += row.getLong(2);
         }
-        PreparedStatement preparedStatement =
-                getInsertTransactionPS(summaryTable, rollup.rollupLevel());
         for (Entry<String, MutableSummary> entry : summaries.entrySet()) {
             MutableSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
-            int i = 0;
-            boundStatement.setString(i++, rollup.agentRollup());
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            boundStatement.setString(i++, entry.getKey());
-            boundStatement.setDouble(i++, summary.totalDurationNanos);
-            boundStatement.setLong(i++, summary.transactionCount);
-            boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(insertSummary(rollup, query.transactionType(), entry.getKey(), query.to(),
+                    summary.totalDurationNanos, summary.transactionCount));
         }
         return ImmutableList.copyOf(summaries.keySet());
     }
@@ -1081,25 +1122,162 @@ public class AggregateDao implements AggregateRepository {
             summary.errorCount += row.getLong(1);
             summary.transactionCount += row.getLong(2);
         }
-        PreparedStatement preparedStatement =
-                getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<ResultSetFuture> futures = Lists.newArrayList();
         for (Entry<String, MutableErrorSummary> entry : summaries.entrySet()) {
             MutableErrorSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
-            int i = 0;
-            boundStatement.setString(i++, rollup.agentRollup());
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            boundStatement.setString(i++, entry.getKey());
-            boundStatement.setLong(i++, summary.errorCount);
-            boundStatement.setLong(i++, summary.transactionCount);
-            boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(insertErrorSummary(rollup, query.transactionType(), entry.getKey(),
+                    query.to(), summary.errorCount, summary.transactionCount));
         }
         return futures;
     }
 
+    private ResultSetFuture insertSummary(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, double totalDurationNanos,
+            long transactionCount) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(summaryTable, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setDouble(i++, totalDurationNanos);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
+    private ResultSetFuture insertErrorSummary(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, long errorCount,
+            long transactionCount) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setLong(i++, errorCount);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
+    private ResultSetFuture insertOverview(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, MutableAggregate aggregate)
+            throws IOException {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(overviewTable, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
+        boundStatement.setLong(i++, aggregate.getTransactionCount());
+        boundStatement.setBool(i++, aggregate.isAsyncTransactions());
+        boundStatement.setBytes(i++,
+                Messages.toByteBuffer(aggregate.getMainThreadRootTimersProto()));
+        boundStatement.setBytes(i++,
+                Messages.toByteBuffer(aggregate.getAuxThreadRootTimersProto()));
+        boundStatement.setBytes(i++, Messages.toByteBuffer(aggregate.getAsyncTimersProto()));
+        MutableThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
+        boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
+        boundStatement.setDouble(i++, mainThreadStats.getTotalWaitedNanos());
+        boundStatement.setDouble(i++, mainThreadStats.getTotalAllocatedBytes());
+        MutableThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        boundStatement.setDouble(i++, auxThreadStats.getTotalCpuNanos());
+        boundStatement.setDouble(i++, auxThreadStats.getTotalBlockedNanos());
+        boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
+        boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
+    private ResultSetFuture insertHistogram(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, double totalDurationNanos,
+            long transactionCount, LazyHistogram durationNanosHistogram,
+            ScratchBuffer scratchBuffer) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(histogramTable, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setDouble(i++, totalDurationNanos);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
+    private ResultSetFuture insertThroughput(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, long transactionCount) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(throughputTable, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
+    private ResultSetFuture insertProfile(RollupParams rollup, String transactionType,
+            @Nullable String transactionName, long captureTime, Table table,
+            MutableProfile profile) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
+        } else {
+            boundStatement = getInsertTransactionPS(table, rollup.rollupLevel()).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollup());
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
     private List<ResultSetFuture> storeOverallAggregate(String agentRollup, String transactionType,
             long captureTime, Aggregate aggregate, List<SharedQueryTextAndSha1> sharedQueries,
             int adjustedTTL) throws Exception {
@@ -1183,6 +1361,8 @@ public class AggregateDao implements AggregateRepository {
                 agentRollup, transactionType, null, captureTime, adjustedTTL));
         futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
                 agentRollup, transactionType, null, captureTime, adjustedTTL));
+        futures.addAll(insertLogEvents(aggregate.getLogEventList(), rollupLevel, agentRollup,
+                transactionType, null, captureTime, adjustedTTL));
         return futures;
     }
 
@@ -1276,6 +1456,8 @@ public class AggregateDao implements AggregateRepository {
                 agentRollup, transactionType, transactionName, captureTime, adjustedTTL));
         futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
                 agentRollup, transactionType, transactionName, captureTime, adjustedTTL));
+        futures.addAll(insertLogEvents(aggregate.getLogEventList(), rollupLevel, agentRollup,
+                transactionType, transactionName, captureTime, adjustedTTL));
         return futures;
     }
 
@@ -1330,6 +1512,7 @@ public class AggregateDao implements AggregateRepository {
                 } else {
                     boundStatement.setToNull(i++);
                 }
+                boundStatement.setBytes(i++, toByteBuffer(query.getDurationNanosHistogram()));
                 boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
             }
@@ -1339,7 +1522,8 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
             int rollupLevel, String agentRollup, String transactionType,
-            @Nullable String transactionName, long captureTime, int adjustedTTL) {
+            @Nullable String transactionName, long captureTime, int adjustedTTL,
+            ScratchBuffer scratchBuffer) {
         List<ResultSetFuture> futures = Lists.newArrayList();
         for (Entry<String, List<MutableQuery>> entry : map.entrySet()) {
             for (MutableQuery query : entry.getValue()) {
@@ -1366,6 +1550,8 @@ public class AggregateDao implements AggregateRepository {
                 } else {
                     boundStatement.setToNull(i++);
                 }
+                boundStatement.setBytes(i++,
+                        toByteBuffer(query.getDurationNanosHistogram().toProto(scratchBuffer)));
                 boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
             }
@@ -1397,6 +1583,7 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setString(i++, serviceCall.getText());
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
+                boundStatement.setBytes(i++, toByteBuffer(serviceCall.getDurationNanosHistogram()));
                 boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
             }
@@ -1404,6 +1591,34 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
+    private List<ResultSetFuture> insertLogEvents(List<Aggregate.LogEvent> logEvents,
+            int rollupLevel, String agentRollup, String transactionType,
+            @Nullable String transactionName, long captureTime, int adjustedTTL) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Aggregate.LogEvent logEvent : logEvents) {
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = getInsertOverallPS(logEventTable, rollupLevel).bind();
+            } else {
+                boundStatement = getInsertTransactionPS(logEventTable, rollupLevel).bind();
+            }
+            int i = 0;
+            boundStatement.setString(i++, agentRollup);
+            boundStatement.setString(i++, transactionType);
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, logEvent.getLevel());
+            boundStatement.setString(i++, logEvent.getLoggerName());
+            boundStatement.setString(i++, logEvent.getMessage());
+            boundStatement.setLong(i++, logEvent.getCount());
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
         return checkNotNull(insertOverallPS.get(table)).get(rollupLevel);
     }
@@ -1540,84 +1755,30 @@ public class AggregateDao implements AggregateRepository {
 
     private RollupParams getRollupParams(String agentRollup, int rollupLevel, int adjustedTTL)
             throws IOException {
-        ImmutableRollupParams.Builder rollupInfo = ImmutableRollupParams.builder()
+        AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(agentRollup);
+        return ImmutableRollupParams.builder()
                 .agentRollup(agentRollup)
                 .rollupLevel(rollupLevel)
-                .adjustedTTL(adjustedTTL);
-        AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(agentRollup);
+                .adjustedTTL(adjustedTTL)
+                .maxAggregateQueriesPerType(getMaxAggregateQueriesPerType(advancedConfig))
+                .maxAggregateServiceCallsPerType(getMaxAggregateServiceCallsPerType(advancedConfig))
+                .build();
+    }
+
+    private static int getMaxAggregateQueriesPerType(@Nullable AdvancedConfig advancedConfig) {
         if (advancedConfig != null && advancedConfig.hasMaxAggregateQueriesPerType()) {
-            rollupInfo.maxAggregateQueriesPerType(
-                    advancedConfig.getMaxAggregateQueriesPerType().getValue());
-        } else {
-            rollupInfo.maxAggregateQueriesPerType(ConfigDefaults.MAX_AGGREGATE_QUERIES_PER_TYPE);
-        }
-        if (advancedConfig != null && advancedConfig.hasMaxAggregateServiceCallsPerType()) {
-            rollupInfo.maxAggregateServiceCallsPerType(
-                    advancedConfig.getMaxAggregateServiceCallsPerType().getValue());
+            return advancedConfig.getMaxAggregateQueriesPerType().getValue();
         } else {
-            rollupInfo.maxAggregateServiceCallsPerType(
-                    ConfigDefaults.MAX_AGGREGATE_SERVICE_CALLS_PER_TYPE);
+            return ConfigDefaults.MAX_AGGREGATE_QUERIES_PER_TYPE;
         }
-        return rollupInfo.build();
     }
 
-    static List<NeedsRollup> getNeedsRollupList(String agentRollup, int rollupLevel,
-            List<PreparedStatement> readNeedsRollup, Session session) {
-        BoundStatement boundStatement = readNeedsRollup.get(rollupLevel - 1).bind();
-        boundStatement.setString(0, agentRollup);
-        ResultSet results = session.execute(boundStatement);
-        Map<Long, NeedsRollup> needsRollupMap = Maps.newLinkedHashMap();
-        for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            UUID uniqueness = row.getUUID(i++);
-            Set<String> keys = checkNotNull(row.getSet(i++, String.class));
-            NeedsRollup needsRollup = needsRollupMap.get(captureTime);
-            if (needsRollup == null) {
-                needsRollup = new NeedsRollup(captureTime);
-                needsRollupMap.put(captureTime, needsRollup);
-            }
-            needsRollup.keys.addAll(keys);
-            needsRollup.uniquenessKeysForDeletion.add(uniqueness);
-        }
-        if (needsRollupMap.isEmpty()) {
-            return ImmutableList.of();
-        }
-        List<NeedsRollup> needsRollupList = Lists.newArrayList(needsRollupMap.values());
-        // don't roll up the most recent time for each agent since it is likely still being added,
-        // this is mostly to avoid rolling up this data twice, but also currently the UI assumes
-        // when it finds a 1-min rollup it doesn't check for non-rolled up 1-min aggregates
-        needsRollupList.remove(needsRollupList.size() - 1);
-        return needsRollupList;
-    }
-
-    // it is important that the insert into next gauge_needs_rollup happens after present
-    // rollup and before deleting present rollup
-    // if insert before present rollup then possible for the next rollup to occur before
-    // present rollup has completed
-    // if insert after deleting present rollup then possible for error to occur in between
-    // and insert would never happen
-    static void postRollup(String agentRollup, int rollupLevel, NeedsRollup needsRollup,
-            @Nullable Long nextRollupIntervalMillis, List<PreparedStatement> insertNeedsRollup,
-            List<PreparedStatement> deleteNeedsRollup, Session session) {
-        if (nextRollupIntervalMillis != null) {
-            long rollupCaptureTime = Utils.getRollupCaptureTime(needsRollup.getCaptureTime(),
-                    nextRollupIntervalMillis);
-            BoundStatement boundStatement = insertNeedsRollup.get(rollupLevel).bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollup);
-            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setSet(i++, needsRollup.getKeys());
-            session.execute(boundStatement);
-        }
-        for (UUID uniqueness : needsRollup.getUniquenessKeysForDeletion()) {
-            BoundStatement boundStatement = deleteNeedsRollup.get(rollupLevel - 1).bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollup);
-            boundStatement.setTimestamp(i++, new Date(needsRollup.getCaptureTime()));
-            boundStatement.setUUID(i++, uniqueness);
-            session.execute(boundStatement);
+    private static int getMaxAggregateServiceCallsPerType(
+            @Nullable AdvancedConfig advancedConfig) {
+        if (advancedConfig != null && advancedConfig.hasMaxAggregateServiceCallsPerType()) {
+            return advancedConfig.getMaxAggregateServiceCallsPerType().getValue();
+        } else {
+            return ConfigDefaults.MAX_AGGREGATE_SERVICE_CALLS_PER_TYPE;
         }
     }
 
@@ -1643,6 +1804,38 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
+    private static void upgradeSchemaIfNeeded(Session session, KeyspaceMetadata keyspaceMetadata,
+            ServerConfigDao serverConfigDao, int count) throws JsonProcessingException {
+        Integer schemaVersion = serverConfigDao.read(SCHEMA_VERSION_KEY, Integer.class);
+        if (schemaVersion != null && schemaVersion >= SCHEMA_VERSION) {
+            return;
+        }
+        // tables that already exist are not altered by "create table if not exists"
+        for (Table table : ImmutableList.of(queryTable, serviceCallTable)) {
+            for (int i = 0; i < count; i++) {
+                addColumnIfMissing(session, keyspaceMetadata,
+                        getTableName(table.partialName(), false, i), "duration_nanos_histogram",
+                        "blob");
+                addColumnIfMissing(session, keyspaceMetadata,
+                        getTableName(table.partialName(), true, i), "duration_nanos_histogram",
+                        "blob");
+            }
+        }
+        serverConfigDao.write(SCHEMA_VERSION_KEY, SCHEMA_VERSION);
+    }
+
+    private static void addColumnIfMissing(Session session, KeyspaceMetadata keyspaceMetadata,
+            String tableName, String columnName, String columnType) {
+        TableMetadata tableMetadata = keyspaceMetadata.getTable(tableName);
+        if (tableMetadata == null) {
+            // table will be created with the column
+            return;
+        }
+        if (tableMetadata.getColumn(columnName) == null) {
+            session.execute("alter table " + tableName + " add " + columnName + " " + columnType);
+        }
+    }
+
     private static String createTablePS(Table table, boolean transaction, int i) {
         StringBuilder sb = new StringBuilder();
         sb.append("create table if not exists ");
@@ -1880,6 +2073,17 @@ public class AggregateDao implements AggregateRepository {
         return threadStats.build();
     }
 
+    // the histogram is null for rows written before per query and per service call histograms were
+    // captured
+    private static Aggregate.Histogram readHistogram(Row row, int index)
+            throws InvalidProtocolBufferException {
+        ByteBuffer bytes = row.getBytes(index);
+        if (bytes == null) {
+            return Aggregate.Histogram.getDefaultInstance();
+        }
+        return Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes));
+    }
+
     private static ByteBuffer toByteBuffer(AbstractMessage message) {
         return ByteBuffer.wrap(message.toByteString().toByteArray());
     }
@@ -1909,29 +2113,6 @@ public class AggregateDao implements AggregateRepository {
         int maxAggregateServiceCallsPerType();
     }
 
-    static class NeedsRollup {
-
-        private final long captureTime;
-        private final Set<String> keys = Sets.newHashSet(); // transaction types or gauge names
-        private final Set<UUID> uniquenessKeysForDeletion = Sets.newHashSet();
-
-        private NeedsRollup(long captureTime) {
-            this.captureTime = captureTime;
-        }
-
-        long getCaptureTime() {
-            return captureTime;
-        }
-
-        Set<String> getKeys() {
-            return keys;
-        }
-
-        Set<UUID> getUniquenessKeysForDeletion() {
-            return uniquenessKeysForDeletion;
-        }
-    }
-
     private static class MutableSummary {
         private double totalDurationNanos;
         private long transactionCount;
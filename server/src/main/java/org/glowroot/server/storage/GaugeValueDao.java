@@ -26,7 +26,6 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -36,7 +35,7 @@ import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 
 import org.glowroot.common.util.OnlyUsedByTests;
-import org.glowroot.server.storage.AggregateDao.NeedsRollup;
+import org.glowroot.server.storage.NeedsRollupIndex.NeedsRollup;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.GaugeValueRepository;
@@ -53,9 +52,6 @@ public class GaugeValueDao implements GaugeValueRepository {
     private static final String WITH_DTCS =
             "with compaction = { 'class' : 'DateTieredCompactionStrategy' }";
 
-    private static final String WITH_LCS =
-            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
-
     private final Session session;
     private final ConfigRepository configRepository;
 
@@ -66,9 +62,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final ImmutableList<PreparedStatement> readValuePS;
     private final ImmutableList<PreparedStatement> readValueForRollupPS;
 
-    private final List<PreparedStatement> insertNeedsRollup;
-    private final List<PreparedStatement> readNeedsRollup;
-    private final List<PreparedStatement> deleteNeedsRollup;
+    private final NeedsRollupIndex needsRollupIndex;
 
     public GaugeValueDao(Session session, ConfigRepository configRepository) {
         this.session = session;
@@ -101,26 +95,14 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.readValuePS = ImmutableList.copyOf(readValuePS);
         this.readValueForRollupPS = ImmutableList.copyOf(readValueForRollupPS);
 
-        List<PreparedStatement> insertNeedsRollup = Lists.newArrayList();
-        List<PreparedStatement> readNeedsRollup = Lists.newArrayList();
-        List<PreparedStatement> deleteNeedsRollup = Lists.newArrayList();
+        List<Long> needsRollupIntervalMillis = Lists.newArrayList();
         for (int i = 1; i <= count; i++) {
-            session.execute("create table if not exists gauge_needs_rollup_" + i
-                    + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
-                    + " gauge_names set<varchar>, primary key (agent_rollup, capture_time,"
-                    + " uniqueness)) " + WITH_LCS);
-            insertNeedsRollup.add(session.prepare("insert into gauge_needs_rollup_" + i
-                    + " (agent_rollup, capture_time, uniqueness, gauge_names) values"
-                    + " (?, ?, ?, ?)"));
-            // limit is just in case rollup falls way behind, to avoid massive memory consumption
-            readNeedsRollup.add(session.prepare("select capture_time, uniqueness, gauge_names"
-                    + " from gauge_needs_rollup_" + i + " where agent_rollup = ?"));
-            deleteNeedsRollup.add(session.prepare("delete from gauge_needs_rollup_" + i
-                    + " where agent_rollup = ? and capture_time = ? and uniqueness = ?"));
+            needsRollupIntervalMillis.add(configRepository.getRollupConfigs().get(i - 1)
+                    .intervalMillis());
         }
-        this.insertNeedsRollup = insertNeedsRollup;
-        this.readNeedsRollup = readNeedsRollup;
-        this.deleteNeedsRollup = deleteNeedsRollup;
+        List<Integer> ttls = getTTLs();
+        needsRollupIndex = new NeedsRollupIndex(session, "gauge", "gauge_names",
+                needsRollupIntervalMillis, ttls.subList(0, count));
     }
 
     @Override
@@ -150,15 +132,10 @@ public class GaugeValueDao implements GaugeValueRepository {
             futures.add(session.executeAsync(boundStatement));
             gaugeNameDao.maybeUpdateLastCaptureTime(agentId, gaugeName, futures);
         }
-        // insert into gauge_needs_rollup_1
+        // insert into gauge_needs_rollup_index_1
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
-            BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
-            boundStatement.setString(0, agentId);
-            boundStatement.setTimestamp(1, new Date(entry.getKey()));
-            boundStatement.setUUID(2, UUIDs.timeBased());
-            boundStatement.setSet(3, entry.getValue());
-            futures.add(session.executeAsync(boundStatement));
+            needsRollupIndex.insert(agentId, 1, entry.getKey(), entry.getValue(), ttl, futures);
         }
         Futures.allAsList(futures).get();
     }
@@ -198,13 +175,14 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int rollupLevel = 1; rollupLevel <= configRepository.getRollupConfigs()
                 .size(); rollupLevel++) {
             int ttl = ttls.get(rollupLevel);
-            rollupLevel(agentRollup, rollupLevel, ttl);
+            rollupLevel(agentRollup, rollupLevel, ttl, ttls);
         }
     }
 
-    private void rollupLevel(String agentRollup, int rollupLevel, int ttl) throws Exception {
+    private void rollupLevel(String agentRollup, int rollupLevel, int ttl, List<Integer> ttls)
+            throws Exception {
         List<NeedsRollup> needsRollupList =
-                AggregateDao.getNeedsRollupList(agentRollup, rollupLevel, readNeedsRollup, session);
+                needsRollupIndex.getNeedsRollupList(agentRollup, rollupLevel);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
         Long nextRollupIntervalMillis = null;
@@ -218,8 +196,8 @@ public class GaugeValueDao implements GaugeValueRepository {
                 int adjustedTTL = getAdjustedTTL(ttl, captureTime);
                 rollupOne(rollupLevel, agentRollup, gaugeName, from, captureTime, adjustedTTL);
             }
-            AggregateDao.postRollup(agentRollup, rollupLevel, needsRollup, nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, session);
+            needsRollupIndex.postRollup(agentRollup, rollupLevel, needsRollup,
+                    nextRollupIntervalMillis, ttls);
         }
     }
 
@@ -281,9 +259,7 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 0; i <= configRepository.getRollupConfigs().size(); i++) {
             session.execute("truncate gauge_value_rollup_" + i);
         }
-        for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
-            session.execute("truncate gauge_needs_rollup_" + i);
-        }
+        needsRollupIndex.truncateAll();
         session.execute("truncate gauge_name");
     }
 
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.storage.repo.Utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// this tracks which rollups still need to be performed (per agent rollup, rollup level and capture
+// time), replacing the old aggregate_needs_rollup_* and gauge_needs_rollup_* queue tables
+//
+// the pending rollups are tracked in memory and the rollup service only ever reads from memory,
+// the records in cassandra are only read back on startup in order to recover the pending rollups
+// from before the restart
+//
+// the records in cassandra are partitioned by time plus a shard derived from the agent rollup
+// (instead of by agent rollup alone), so the startup scan reads a bounded number of partitions,
+// while the writes for a given time are still spread over several partitions (instead of all agents
+// writing to a single hot partition)
+//
+// the records are never deleted, they are just marked as done and then expire by TTL along with
+// the data that they refer to, so the startup scan never has to skip over the tombstones that the
+// old queue tables accumulated on every rollup
+class NeedsRollupIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(NeedsRollupIndex.class);
+
+    private static final String WITH_DTCS =
+            "with compaction = { 'class' : 'DateTieredCompactionStrategy' }";
+
+    // partitions are at least this big so that the startup scan of the lower rollup levels (which
+    // have short rollup intervals) doesn't need to read too many partitions
+    private static final long MIN_PARTITION_MILLIS = HOURS.toMillis(1);
+
+    @VisibleForTesting
+    static final int SHARD_COUNT = 8;
+
+    private final Session session;
+
+    // index is rollupLevel - 1
+    private final ImmutableList<Long> partitionMillis;
+    private final ImmutableList<String> tableNames;
+    private final ImmutableList<PreparedStatement> insertPS;
+    private final ImmutableList<PreparedStatement> markDonePS;
+    private final ImmutableList<PreparedStatement> readPS;
+
+    private final PendingRollups pendingRollups = new PendingRollups();
+
+    // tableNamePrefix is "aggregate" or "gauge", keysColumnName is "transaction_types" or
+    // "gauge_names", intervalMillis is the rollup interval of each rollup level, and ttls is the
+    // TTL (in seconds) of the data that is read in order to perform the rollup of each rollup level
+    // (all indexed by rollupLevel - 1)
+    NeedsRollupIndex(Session session, String tableNamePrefix, String keysColumnName,
+            List<Long> intervalMillis, List<Integer> ttls) {
+        this.session = session;
+        List<Long> partitionMillis = Lists.newArrayList();
+        List<String> tableNames = Lists.newArrayList();
+        List<PreparedStatement> insertPS = Lists.newArrayList();
+        List<PreparedStatement> markDonePS = Lists.newArrayList();
+        List<PreparedStatement> readPS = Lists.newArrayList();
+        for (int i = 0; i < intervalMillis.size(); i++) {
+            String tableName = tableNamePrefix + "_needs_rollup_index_" + (i + 1);
+            session.execute("create table if not exists " + tableName
+                    + " (partition_time timestamp, shard int, capture_time timestamp, agent_rollup"
+                    + " varchar, " + keysColumnName + " set<varchar>, done boolean, primary key"
+                    + " ((partition_time, shard), capture_time, agent_rollup)) " + WITH_DTCS);
+            // update with collection append (instead of insert) so that no tombstone is created
+            // for the previous value of the collection
+            insertPS.add(session.prepare("update " + tableName + " using ttl ? set "
+                    + keysColumnName + " = " + keysColumnName + " + ?, done = false where"
+                    + " partition_time = ? and shard = ? and capture_time = ? and agent_rollup"
+                    + " = ?"));
+            markDonePS.add(session.prepare("update " + tableName + " using ttl ? set done = true"
+                    + " where partition_time = ? and shard = ? and capture_time = ? and"
+                    + " agent_rollup = ?"));
+            readPS.add(session.prepare("select capture_time, agent_rollup, " + keysColumnName
+                    + ", done from " + tableName + " where partition_time = ? and shard = ?"));
+            partitionMillis.add(Math.max(intervalMillis.get(i), MIN_PARTITION_MILLIS));
+            tableNames.add(tableName);
+        }
+        this.partitionMillis = ImmutableList.copyOf(partitionMillis);
+        this.tableNames = ImmutableList.copyOf(tableNames);
+        this.insertPS = ImmutableList.copyOf(insertPS);
+        this.markDonePS = ImmutableList.copyOf(markDonePS);
+        this.readPS = ImmutableList.copyOf(readPS);
+
+        KeyspaceMetadata keyspace = checkNotNull(
+                session.getCluster().getMetadata().getKeyspace(session.getLoggedKeyspace()));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < intervalMillis.size(); i++) {
+            int rollupLevel = i + 1;
+            String queueTableName = tableNamePrefix + "_needs_rollup_" + rollupLevel;
+            if (keyspace.getTable(queueTableName) != null) {
+                migrateFromQueueTable(queueTableName, keysColumnName, rollupLevel, ttls.get(i));
+            }
+            loadPendingRollups(rollupLevel, now - SECONDS.toMillis(ttls.get(i)), now);
+        }
+    }
+
+    // records that the given keys need to be rolled up at the given rollup level and capture time,
+    // the record is only written to cassandra for keys that are not already pending
+    //
+    // this must be called after all of the writes for the data that is to be rolled up have been
+    // added to futures, since the keys are only added to the in-memory pending rollups (and so only
+    // become visible to the rollup service) once all of those writes and the write of the record
+    // itself have completed successfully (if any of them fail, the keys are not added and the agent
+    // will retry)
+    void insert(String agentRollup, int rollupLevel, long captureTime, Set<String> keys, int ttl,
+            List<ResultSetFuture> futures) {
+        Set<String> notPendingKeys =
+                pendingRollups.getNotPending(agentRollup, rollupLevel, captureTime, keys);
+        if (notPendingKeys.isEmpty()) {
+            return;
+        }
+        BoundStatement boundStatement = insertPS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setInt(i++, GaugeValueDao.getAdjustedTTL(ttl, captureTime));
+        boundStatement.setSet(i++, notPendingKeys);
+        boundStatement.setTimestamp(i++,
+                new Date(getPartitionTime(captureTime, partitionMillis.get(rollupLevel - 1))));
+        boundStatement.setInt(i++, getShard(agentRollup));
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setString(i++, agentRollup);
+        futures.add(session.executeAsync(boundStatement));
+        ListenableFuture<List<ResultSet>> allFutures = Futures.allAsList(futures);
+        allFutures.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    allFutures.get();
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                    // insert was unsuccessful so it is important not to mark the keys as pending,
+                    // otherwise the retry would not write the record
+                    return;
+                }
+                pendingRollups.add(agentRollup, rollupLevel, captureTime, notPendingKeys);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    List<NeedsRollup> getNeedsRollupList(String agentRollup, int rollupLevel) {
+        return pendingRollups.getNeedsRollupList(agentRollup, rollupLevel);
+    }
+
+    // it is important that the insert into the next rollup level happens after present rollup and
+    // before marking present rollup done
+    // if insert before present rollup then possible for the next rollup to occur before present
+    // rollup has completed
+    // if insert after marking present rollup done then possible for error to occur in between and
+    // insert would never happen
+    //
+    // ttls is indexed by the rollup level of the data (so ttls.get(rollupLevel) is the TTL of the
+    // data that was just rolled up)
+    void postRollup(String agentRollup, int rollupLevel, NeedsRollup needsRollup,
+            @Nullable Long nextRollupIntervalMillis, List<Integer> ttls) throws Exception {
+        if (nextRollupIntervalMillis != null) {
+            long rollupCaptureTime = Utils.getRollupCaptureTime(needsRollup.getCaptureTime(),
+                    nextRollupIntervalMillis);
+            List<ResultSetFuture> futures = Lists.newArrayList();
+            insert(agentRollup, rollupLevel + 1, rollupCaptureTime, needsRollup.getKeys(),
+                    ttls.get(rollupLevel), futures);
+            for (ResultSetFuture future : futures) {
+                future.get();
+            }
+        }
+        // the record is only marked done once all of its keys have been rolled up, since keys
+        // can still be added (e.g. from aggregates that arrive late) after the needs rollup list
+        // was read
+        if (pendingRollups.remove(agentRollup, rollupLevel, needsRollup)) {
+            long captureTime = needsRollup.getCaptureTime();
+            BoundStatement boundStatement = markDonePS.get(rollupLevel - 1).bind();
+            int i = 0;
+            boundStatement.setInt(i++,
+                    GaugeValueDao.getAdjustedTTL(ttls.get(rollupLevel - 1), captureTime));
+            boundStatement.setTimestamp(i++,
+                    new Date(getPartitionTime(captureTime, partitionMillis.get(rollupLevel - 1))));
+            boundStatement.setInt(i++, getShard(agentRollup));
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, agentRollup);
+            session.execute(boundStatement);
+        }
+    }
+
+    @OnlyUsedByTests
+    void truncateAll() {
+        for (String tableName : tableNames) {
+            session.execute("truncate " + tableName);
+        }
+        pendingRollups.clear();
+    }
+
+    private void loadPendingRollups(int rollupLevel, long from, long to) {
+        long partitionMillis = this.partitionMillis.get(rollupLevel - 1);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        // one extra partition on the end since rollup capture times are rounded up to the end of
+        // their interval
+        for (long partitionTime : getPartitionTimes(from, to + partitionMillis, partitionMillis)) {
+            for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                BoundStatement boundStatement = readPS.get(rollupLevel - 1).bind();
+                boundStatement.setTimestamp(0, new Date(partitionTime));
+                boundStatement.setInt(1, shard);
+                futures.add(session.executeAsync(boundStatement));
+            }
+        }
+        int count = 0;
+        for (ResultSetFuture future : futures) {
+            ResultSet results = future.getUninterruptibly();
+            for (Row row : results) {
+                int i = 0;
+                long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+                String agentRollup = checkNotNull(row.getString(i++));
+                Set<String> keys = checkNotNull(row.getSet(i++, String.class));
+                boolean done = row.getBool(i++);
+                if (!done) {
+                    pendingRollups.add(agentRollup, rollupLevel, captureTime, keys);
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            logger.info("loaded {} pending rollups from {}", count,
+                    tableNames.get(rollupLevel - 1));
+        }
+    }
+
+    // the old queue tables are drained (on upgrade) and then dropped
+    //
+    // each row is only deleted from the old queue table after it has been written to the index,
+    // and the old queue table is only dropped once it is empty, so that nothing is lost if the
+    // server is stopped part way through the migration, or if servers that have not been upgraded
+    // yet are still writing to the old queue table
+    private void migrateFromQueueTable(String queueTableName, String keysColumnName,
+            int rollupLevel, int ttl) {
+        PreparedStatement deletePS = session.prepare("delete from " + queueTableName
+                + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+        while (true) {
+            ResultSet results = session.execute("select agent_rollup, capture_time, uniqueness, "
+                    + keysColumnName + " from " + queueTableName);
+            List<Row> rows = results.all();
+            if (rows.isEmpty()) {
+                break;
+            }
+            List<ResultSetFuture> futures = Lists.newArrayList();
+            for (Row row : rows) {
+                int i = 0;
+                String agentRollup = checkNotNull(row.getString(i++));
+                long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+                i++; // uniqueness
+                Set<String> keys = checkNotNull(row.getSet(i++, String.class));
+                insert(agentRollup, rollupLevel, captureTime, keys, ttl, futures);
+            }
+            Futures.getUnchecked(Futures.allAsList(futures));
+            futures = Lists.newArrayList();
+            for (Row row : rows) {
+                BoundStatement boundStatement = deletePS.bind();
+                boundStatement.setString(0, row.getString(0));
+                boundStatement.setTimestamp(1, row.getTimestamp(1));
+                boundStatement.setUUID(2, row.getUUID(2));
+                futures.add(session.executeAsync(boundStatement));
+            }
+            Futures.getUnchecked(Futures.allAsList(futures));
+            logger.info("migrated {} pending rollups from {}", rows.size(), queueTableName);
+        }
+        session.execute("drop table " + queueTableName);
+    }
+
+    @VisibleForTesting
+    static long getPartitionTime(long captureTime, long partitionMillis) {
+        return Utils.getRollupCaptureTime(captureTime, partitionMillis);
+    }
+
+    @VisibleForTesting
+    static int getShard(String agentRollup) {
+        // String.hashCode() is specified, so the shard is stable across server restarts
+        return Math.floorMod(agentRollup.hashCode(), SHARD_COUNT);
+    }
+
+    @VisibleForTesting
+    static List<Long> getPartitionTimes(long from, long to, long partitionMillis) {
+        List<Long> partitionTimes = Lists.newArrayList();
+        long partitionTime = getPartitionTime(from, partitionMillis);
+        long lastPartitionTime = getPartitionTime(to, partitionMillis);
+        while (partitionTime <= lastPartitionTime) {
+            partitionTimes.add(partitionTime);
+            partitionTime += partitionMillis;
+        }
+        return partitionTimes;
+    }
+
+    static class NeedsRollup {
+
+        private final long captureTime;
+        private final ImmutableSet<String> keys; // transaction types or gauge names
+
+        @VisibleForTesting
+        NeedsRollup(long captureTime, Set<String> keys) {
+            this.captureTime = captureTime;
+            this.keys = ImmutableSet.copyOf(keys);
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        ImmutableSet<String> getKeys() {
+            return keys;
+        }
+    }
+
+    @VisibleForTesting
+    static class PendingRollups {
+
+        // key is agent rollup, list index is rollupLevel - 1, map key is capture time
+        private final ConcurrentMap<String, List<NavigableMap<Long, Set<String>>>> pendingRollups =
+                Maps.newConcurrentMap();
+
+        // returns the keys that were not already pending
+        Set<String> add(String agentRollup, int rollupLevel, long captureTime, Set<String> keys) {
+            while (true) {
+                List<NavigableMap<Long, Set<String>>> rollupLevels = getRollupLevels(agentRollup);
+                synchronized (rollupLevels) {
+                    if (pendingRollups.get(agentRollup) != rollupLevels) {
+                        // rollupLevels was evicted concurrently by remove()
+                        continue;
+                    }
+                    NavigableMap<Long, Set<String>> pending =
+                            getPending(rollupLevels, rollupLevel);
+                    Set<String> pendingKeys = pending.get(captureTime);
+                    if (pendingKeys == null) {
+                        pendingKeys = Sets.newHashSet();
+                        pending.put(captureTime, pendingKeys);
+                    }
+                    Set<String> addedKeys = Sets.newHashSet(Sets.difference(keys, pendingKeys));
+                    pendingKeys.addAll(addedKeys);
+                    return addedKeys;
+                }
+            }
+        }
+
+        // returns the keys that are not already pending
+        Set<String> getNotPending(String agentRollup, int rollupLevel, long captureTime,
+                Set<String> keys) {
+            List<NavigableMap<Long, Set<String>>> rollupLevels = pendingRollups.get(agentRollup);
+            if (rollupLevels == null) {
+                return keys;
+            }
+            synchronized (rollupLevels) {
+                NavigableMap<Long, Set<String>> pending = getPending(rollupLevels, rollupLevel);
+                Set<String> pendingKeys = pending.get(captureTime);
+                if (pendingKeys == null) {
+                    return keys;
+                }
+                return ImmutableSet.copyOf(Sets.difference(keys, pendingKeys));
+            }
+        }
+
+        List<NeedsRollup> getNeedsRollupList(String agentRollup, int rollupLevel) {
+            List<NavigableMap<Long, Set<String>>> rollupLevels = pendingRollups.get(agentRollup);
+            if (rollupLevels == null) {
+                return ImmutableList.of();
+            }
+            synchronized (rollupLevels) {
+                NavigableMap<Long, Set<String>> pending = getPending(rollupLevels, rollupLevel);
+                if (pending.isEmpty()) {
+                    return ImmutableList.of();
+                }
+                List<NeedsRollup> needsRollupList = Lists.newArrayList();
+                // don't roll up the most recent time for each agent since it is likely still being
+                // added, this is mostly to avoid rolling up this data twice, but also currently the
+                // UI assumes when it finds a 1-min rollup it doesn't check for non-rolled up 1-min
+                // aggregates
+                for (Entry<Long, Set<String>> entry : pending.headMap(pending.lastKey())
+                        .entrySet()) {
+                    needsRollupList.add(new NeedsRollup(entry.getKey(), entry.getValue()));
+                }
+                return needsRollupList;
+            }
+        }
+
+        // returns true if there are no more keys pending for the capture time
+        boolean remove(String agentRollup, int rollupLevel, NeedsRollup needsRollup) {
+            List<NavigableMap<Long, Set<String>>> rollupLevels = pendingRollups.get(agentRollup);
+            if (rollupLevels == null) {
+                return true;
+            }
+            synchronized (rollupLevels) {
+                NavigableMap<Long, Set<String>> pending = getPending(rollupLevels, rollupLevel);
+                Set<String> pendingKeys = pending.get(needsRollup.getCaptureTime());
+                if (pendingKeys == null) {
+                    return true;
+                }
+                pendingKeys.removeAll(needsRollup.getKeys());
+                if (!pendingKeys.isEmpty()) {
+                    return false;
+                }
+                pending.remove(needsRollup.getCaptureTime());
+                if (isEmpty(rollupLevels)) {
+                    // evict, so that agent rollups that are no longer reporting are not retained
+                    pendingRollups.remove(agentRollup, rollupLevels);
+                }
+                return true;
+            }
+        }
+
+        @VisibleForTesting
+        boolean isTracked(String agentRollup) {
+            return pendingRollups.containsKey(agentRollup);
+        }
+
+        void clear() {
+            pendingRollups.clear();
+        }
+
+        private List<NavigableMap<Long, Set<String>>> getRollupLevels(String agentRollup) {
+            List<NavigableMap<Long, Set<String>>> rollupLevels = pendingRollups.get(agentRollup);
+            if (rollupLevels == null) {
+                rollupLevels = Lists.newArrayList();
+                List<NavigableMap<Long, Set<String>>> existing =
+                        pendingRollups.putIfAbsent(agentRollup, rollupLevels);
+                if (existing != null) {
+                    rollupLevels = existing;
+                }
+            }
+            return rollupLevels;
+        }
+
+        private static boolean isEmpty(List<NavigableMap<Long, Set<String>>> rollupLevels) {
+            for (NavigableMap<Long, Set<String>> pending : rollupLevels) {
+                if (!pending.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static NavigableMap<Long, Set<String>> getPending(
+                List<NavigableMap<Long, Set<String>>> rollupLevels, int rollupLevel) {
+            while (rollupLevels.size() < rollupLevel) {
+                rollupLevels.add(Maps.<Long, Set<String>>newTreeMap());
+            }
+            return rollupLevels.get(rollupLevel - 1);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.glowroot.server.storage.AggregateDao.SharedQueryTextAndSha1;
+import org.glowroot.storage.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
+
+// this holds the level 1 rollup for each agent in memory, merging each level 0 aggregate into it as
+// it is received, so that the level 1 rollup can be stored without reading back all of the level 0
+// aggregates from cassandra
+//
+// the level 0 read back is still used (for recovery) whenever it is possible that a bucket did not
+// see all of its level 0 aggregates, e.g. the first bucket for each agent after server restart, or
+// aggregates that arrive after their bucket has already been rolled up, and also whenever it is
+// possible that a bucket saw some of its level 0 aggregates more than once (agent retries and agent
+// spool replays), since the level 0 read back is idempotent but merging in memory is not
+//
+// profiles are not held in memory (they are by far the largest part of the aggregates), and are
+// always rolled up from the level 0 aggregates
+class PendingAggregateRollups {
+
+    // buckets are normally rolled up within a couple of minutes after the end of their interval
+    // (so there is normally the current bucket plus at most one bucket waiting to be rolled up),
+    // this is just to bound memory if rollups fall behind, or if an agent stops reporting (since
+    // the most recent bucket for each agent is never rolled up until a later one arrives)
+    @VisibleForTesting
+    static final int MAX_PENDING_BUCKETS_PER_AGENT_ROLLUP = 3;
+
+    private final ConcurrentMap<String, AgentRollupBuckets> agentRollupBuckets =
+            Maps.newConcurrentMap();
+
+    // returns null if the bucket must be rolled up from the level 0 aggregates
+    @Nullable
+    Bucket getOrCreateBucket(String agentRollup, long rollupCaptureTime,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType) {
+        AgentRollupBuckets buckets = agentRollupBuckets.get(agentRollup);
+        if (buckets == null) {
+            buckets = new AgentRollupBuckets(rollupCaptureTime);
+            AgentRollupBuckets existing = agentRollupBuckets.putIfAbsent(agentRollup, buckets);
+            if (existing != null) {
+                buckets = existing;
+            }
+        }
+        return buckets.getOrCreateBucket(rollupCaptureTime, maxAggregateQueriesPerType,
+                maxAggregateServiceCallsPerType);
+    }
+
+    // once removed, any further aggregates for the bucket's interval (which would only be received
+    // in the case of agent retries) will be rolled up from the level 0 aggregates
+    //
+    // returns null if the bucket must be rolled up from the level 0 aggregates
+    @Nullable
+    Bucket removeBucket(String agentRollup, long rollupCaptureTime) {
+        AgentRollupBuckets buckets = agentRollupBuckets.get(agentRollup);
+        if (buckets == null) {
+            return null;
+        }
+        return buckets.removeBucket(rollupCaptureTime);
+    }
+
+    private static class AgentRollupBuckets {
+
+        // the first bucket received after server startup is not tracked since the server may
+        // have been down during part of its interval
+        private final long initialRollupCaptureTime;
+
+        // buckets at or before this capture time have already been rolled up (or evicted)
+        private long removedUpToRollupCaptureTime;
+
+        private final NavigableMap<Long, Bucket> buckets = Maps.newTreeMap();
+
+        private AgentRollupBuckets(long initialRollupCaptureTime) {
+            this.initialRollupCaptureTime = initialRollupCaptureTime;
+            removedUpToRollupCaptureTime = initialRollupCaptureTime;
+        }
+
+        private synchronized @Nullable Bucket getOrCreateBucket(long rollupCaptureTime,
+                int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType) {
+            Bucket bucket = buckets.get(rollupCaptureTime);
+            if (bucket != null) {
+                return bucket;
+            }
+            if (rollupCaptureTime <= initialRollupCaptureTime
+                    || rollupCaptureTime <= removedUpToRollupCaptureTime) {
+                return null;
+            }
+            bucket = new Bucket(maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+            buckets.put(rollupCaptureTime, bucket);
+            while (buckets.size() > MAX_PENDING_BUCKETS_PER_AGENT_ROLLUP) {
+                Map.Entry<Long, Bucket> eldest = buckets.pollFirstEntry();
+                eldest.getValue().close();
+                removedUpToRollupCaptureTime =
+                        Math.max(removedUpToRollupCaptureTime, eldest.getKey());
+            }
+            return bucket;
+        }
+
+        private synchronized @Nullable Bucket removeBucket(long rollupCaptureTime) {
+            removedUpToRollupCaptureTime =
+                    Math.max(removedUpToRollupCaptureTime, rollupCaptureTime);
+            Bucket bucket = buckets.remove(rollupCaptureTime);
+            if (bucket == null || !bucket.close()) {
+                return null;
+            }
+            return bucket;
+        }
+    }
+
+    static class Bucket {
+
+        private final int maxAggregateQueriesPerType;
+        private final int maxAggregateServiceCallsPerType;
+
+        private final Map<String, TransactionTypeRollup> transactionTypeRollups =
+                Maps.newHashMap();
+
+        // level 0 capture times that have already been merged into this bucket
+        private final Set<Long> mergedCaptureTimes = Sets.newHashSet();
+
+        private boolean valid = true;
+        private boolean closed;
+
+        private Bucket(int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType) {
+            this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+            this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        }
+
+        // returns false if the bucket has already been closed, in which case the aggregates must be
+        // rolled up from the level 0 aggregates
+        synchronized boolean merge(long captureTime,
+                Map<String, AggregatesByType> aggregatesByTransactionType,
+                List<SharedQueryTextAndSha1> sharedQueries) throws Exception {
+            if (closed) {
+                return false;
+            }
+            if (!valid) {
+                return true;
+            }
+            if (!mergedCaptureTimes.add(captureTime)) {
+                // the same level 0 aggregates were received again (agent retry after the prior
+                // attempt was stored but the response was lost, or agent spool replay), these
+                // overwrite the prior level 0 aggregates, so fall back to the level 0 read back
+                invalidate();
+                return true;
+            }
+            // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
+            for (AggregatesByType aggregatesByType : aggregatesByTransactionType.values()) {
+                if (hasNonSharedQueryText(aggregatesByType)) {
+                    invalidate();
+                    return true;
+                }
+            }
+            // END TEMPORARY
+            for (Map.Entry<String, AggregatesByType> entry : aggregatesByTransactionType
+                    .entrySet()) {
+                String transactionType = entry.getKey();
+                AggregatesByType aggregatesByType = entry.getValue();
+                TransactionTypeRollup transactionTypeRollup =
+                        transactionTypeRollups.get(transactionType);
+                if (transactionTypeRollup == null) {
+                    transactionTypeRollup = new TransactionTypeRollup(maxAggregateQueriesPerType,
+                            maxAggregateServiceCallsPerType);
+                    transactionTypeRollups.put(transactionType, transactionTypeRollup);
+                }
+                mergeAggregate(transactionTypeRollup.overallAggregate,
+                        aggregatesByType.getOverallAggregate(), sharedQueries);
+                for (TransactionAggregate transactionAggregate : aggregatesByType
+                        .getTransactionAggregateList()) {
+                    mergeAggregate(transactionTypeRollup.getTransactionAggregate(
+                            transactionAggregate.getTransactionName()),
+                            transactionAggregate.getAggregate(), sharedQueries);
+                }
+            }
+            return true;
+        }
+
+        // this is called when storing the level 0 aggregates fails after they have already been
+        // merged into this bucket, since the agent will retry sending them
+        synchronized void invalidate() {
+            valid = false;
+            transactionTypeRollups.clear();
+            mergedCaptureTimes.clear();
+        }
+
+        synchronized @Nullable TransactionTypeRollup getTransactionTypeRollup(
+                String transactionType) {
+            return transactionTypeRollups.get(transactionType);
+        }
+
+        // returns true if the bucket was valid when it was closed
+        private synchronized boolean close() {
+            closed = true;
+            return valid;
+        }
+    }
+
+    static class TransactionTypeRollup {
+
+        private final MutableAggregate overallAggregate;
+        private final Map<String, MutableAggregate> transactionAggregates = Maps.newHashMap();
+
+        private final int maxAggregateQueriesPerType;
+        private final int maxAggregateServiceCallsPerType;
+
+        private TransactionTypeRollup(int maxAggregateQueriesPerType,
+                int maxAggregateServiceCallsPerType) {
+            overallAggregate =
+                    new MutableAggregate(maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+            this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+            this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        }
+
+        MutableAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, MutableAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        private MutableAggregate getTransactionAggregate(String transactionName) {
+            MutableAggregate aggregate = transactionAggregates.get(transactionName);
+            if (aggregate == null) {
+                aggregate = new MutableAggregate(maxAggregateQueriesPerType,
+                        maxAggregateServiceCallsPerType);
+                transactionAggregates.put(transactionName, aggregate);
+            }
+            return aggregate;
+        }
+    }
+
+    private static boolean hasNonSharedQueryText(AggregatesByType aggregatesByType) {
+        if (hasNonSharedQueryText(aggregatesByType.getOverallAggregate())) {
+            return true;
+        }
+        for (TransactionAggregate transactionAggregate : aggregatesByType
+                .getTransactionAggregateList()) {
+            if (hasNonSharedQueryText(transactionAggregate.getAggregate())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasNonSharedQueryText(Aggregate aggregate) {
+        for (QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                if (!query.getQueryText().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // this mirrors the merging done by the level 0 read back in AggregateDao (except for profiles)
+    private static void mergeAggregate(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<SharedQueryTextAndSha1> sharedQueries) throws Exception {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mergedAggregate.mergeMainThreadStats(
+                aggregate.hasMainThreadStats() ? aggregate.getMainThreadStats() : null);
+        mergedAggregate.mergeAuxThreadStats(
+                aggregate.hasAuxThreadStats() ? aggregate.getAuxThreadStats() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                SharedQueryTextAndSha1 sharedQuery =
+                        sharedQueries.get(query.getSharedQueryTextIndex());
+                mergedAggregate.mergeQuery(queriesByType.getType(),
+                        sharedQuery.truncatedQueryText(),
+                        Strings.emptyToNull(sharedQuery.fullQueryTextSha1()),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue(),
+                        query.getDurationNanosHistogram());
+            }
+        }
+        List<Aggregate.ServiceCallsByType> serviceCalls = aggregate.getServiceCallsByTypeList();
+        if (!serviceCalls.isEmpty()) {
+            mergedAggregate.mergeServiceCalls(serviceCalls);
+        }
+        List<Aggregate.LogEvent> logEvents = aggregate.getLogEventList();
+        if (!logEvents.isEmpty()) {
+            mergedAggregate.mergeLogEvents(logEvents);
+        }
+        // profiles are intentionally not merged here, see comment at top of class
+    }
+}
@@ -65,9 +65,6 @@ public class RollupService implements Runnable {
             try {
                 Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
                 for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-                    // rollup one agent at a time, mostly to avoid single large query on
-                    // gauge_needs_rollup_1 that times out due to use of Cassandra queue
-                    // anti-pattern (and lots of tombstones)
                     aggregateDao.rollup(agentRollup.name());
                     gaugeValueDao.rollup(agentRollup.name());
                 }
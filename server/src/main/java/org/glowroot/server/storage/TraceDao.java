@@ -35,6 +35,10 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -51,6 +55,7 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.Styles;
 import org.glowroot.server.util.Messages;
+import org.glowroot.storage.repo.AgentRepository.AgentRollup;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ImmutableErrorMessageCount;
 import org.glowroot.storage.repo.ImmutableErrorMessagePoint;
@@ -66,6 +71,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class TraceDao implements TraceRepository {
 
@@ -73,6 +79,7 @@ public class TraceDao implements TraceRepository {
             "with compaction = { 'class' : 'DateTieredCompactionStrategy' }";
 
     private final Session session;
+    private final AgentDao agentDao;
     private final ConfigRepository configRepository;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
@@ -115,8 +122,19 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
-    public TraceDao(Session session, ConfigRepository configRepository) {
+    // new agents can take up to a minute to show up in the agent rollup trace point queries
+    private final LoadingCache<String, List<String>> agentIdsCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, MINUTES)
+            .build(new CacheLoader<String, List<String>>() {
+                @Override
+                public List<String> load(String agentRollup) throws Exception {
+                    return readAgentIds(agentRollup);
+                }
+            });
+
+    public TraceDao(Session session, AgentDao agentDao, ConfigRepository configRepository) {
         this.session = session;
+        this.agentDao = agentDao;
         this.configRepository = configRepository;
         traceAttributeNameDao = new TraceAttributeNameDao(session, configRepository);
 
@@ -337,196 +355,198 @@ public class TraceDao implements TraceRepository {
         }
         // END TEMPORARY
 
-        // unlike aggregates and gauge values, traces can get written to server rollups immediately
-        List<String> agentRollups = AgentRollups.getAgentRollups(agentId);
-
         List<ResultSetFuture> futures = Lists.newArrayList();
         int adjustedTTL = GaugeValueDao.getAdjustedTTL(getTTL(), header.getCaptureTime());
-        for (String agentRollup : agentRollups) {
-            List<Trace.Attribute> attributes = header.getAttributeList();
-            if (header.getSlow()) {
-                BoundStatement boundStatement = insertOverallSlowPoint.bind();
-                int i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
-                boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setLong(i++, header.getDurationNanos());
-                boundStatement.setBool(i++, header.hasError());
-                boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
-                if (attributes.isEmpty()) {
-                    boundStatement.setToNull(i++);
-                } else {
-                    boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
-                }
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+        // the trace points are only written once, under the agent id, and are read back for agent
+        // rollups by merging the trace points of all of the agents under the agent rollup, which
+        // avoids writing a copy of every trace point for each level of the agent rollup hierarchy
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (header.getSlow()) {
+            BoundStatement boundStatement = insertOverallSlowPoint.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setLong(i++, header.getDurationNanos());
+            boundStatement.setBool(i++, header.hasError());
+            boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+            if (attributes.isEmpty()) {
+                boundStatement.setToNull(i++);
+            } else {
+                boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+            }
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertTransactionSlowPoint.bind();
-                i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setString(i++, header.getTransactionName());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
-                boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setLong(i++, header.getDurationNanos());
-                boundStatement.setBool(i++, header.hasError());
-                boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
-                if (attributes.isEmpty()) {
-                    boundStatement.setToNull(i++);
-                } else {
-                    boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
-                }
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+            boundStatement = insertTransactionSlowPoint.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setLong(i++, header.getDurationNanos());
+            boundStatement.setBool(i++, header.hasError());
+            boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+            if (attributes.isEmpty()) {
+                boundStatement.setToNull(i++);
+            } else {
+                boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+            }
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertOverallSlowCount.bind();
-                i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
-                boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+            boundStatement = insertOverallSlowCount.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertTransactionSlowCount.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertTransactionSlowCount.bind();
+            if (priorHeader != null) {
+                boundStatement = deletePartialOverallSlowPoint.bind();
                 i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setString(i++, header.getTransactionName());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
-
-                if (priorHeader != null) {
-                    boundStatement = deletePartialOverallSlowPoint.bind();
-                    i = 0;
-                    boundStatement.setString(i++, agentRollup);
-                    boundStatement.setString(i++, priorHeader.getTransactionType());
-                    boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
-                    boundStatement.setString(i++, agentId);
-                    boundStatement.setString(i++, traceId);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialTransactionSlowPoint.bind();
-                    i = 0;
-                    boundStatement.setString(i++, agentRollup);
-                    boundStatement.setString(i++, priorHeader.getTransactionType());
-                    boundStatement.setString(i++, priorHeader.getTransactionName());
-                    boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
-                    boundStatement.setString(i++, agentId);
-                    boundStatement.setString(i++, traceId);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialOverallSlowCount.bind();
-                    i = 0;
-                    boundStatement.setString(i++, agentRollup);
-                    boundStatement.setString(i++, priorHeader.getTransactionType());
-                    boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
-                    boundStatement.setString(i++, agentId);
-                    boundStatement.setString(i++, traceId);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialTransactionSlowCount.bind();
-                    i = 0;
-                    boundStatement.setString(i++, agentRollup);
-                    boundStatement.setString(i++, priorHeader.getTransactionType());
-                    boundStatement.setString(i++, priorHeader.getTransactionName());
-                    boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
-                    boundStatement.setString(i++, agentId);
-                    boundStatement.setString(i++, traceId);
-                    futures.add(session.executeAsync(boundStatement));
-                }
-            }
-            // seems unnecessary to insert error info for partial traces
-            // and this avoids having to clean up partial trace data when trace is complete
-            if (header.hasError() && !header.getPartial()) {
-                BoundStatement boundStatement = insertOverallErrorMessage.bind();
-                int i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+                boundStatement.setString(i++, priorHeader.getTransactionType());
+                boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
-                boundStatement.setString(i++, header.getError().getMessage());
-                boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertTransactionErrorMessage.bind();
+                boundStatement = deletePartialTransactionSlowPoint.bind();
                 i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setString(i++, header.getTransactionName());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setString(i++, header.getError().getMessage());
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertOverallErrorPoint.bind();
-                i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+                boundStatement.setString(i++, priorHeader.getTransactionType());
+                boundStatement.setString(i++, priorHeader.getTransactionName());
+                boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
-                boundStatement.setLong(i++, header.getDurationNanos());
-                boundStatement.setString(i++, header.getError().getMessage());
-                boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
-                if (attributes.isEmpty()) {
-                    boundStatement.setToNull(i++);
-                } else {
-                    boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
-                }
-                boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertTransactionErrorPoint.bind();
+                boundStatement = deletePartialOverallSlowCount.bind();
                 i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setString(i++, header.getTransactionName());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setLong(i++, header.getDurationNanos());
-                boundStatement.setString(i++, header.getError().getMessage());
-                boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
-                if (attributes.isEmpty()) {
-                    boundStatement.setToNull(i++);
-                } else {
-                    boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
-                }
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertOverallErrorCount.bind();
-                i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+                boundStatement.setString(i++, priorHeader.getTransactionType());
+                boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
-                boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
 
-                boundStatement = insertTransactionErrorCount.bind();
+                boundStatement = deletePartialTransactionSlowCount.bind();
                 i = 0;
-                boundStatement.setString(i++, agentRollup);
-                boundStatement.setString(i++, header.getTransactionType());
-                boundStatement.setString(i++, header.getTransactionName());
-                boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+                boundStatement.setString(i++, agentId);
+                boundStatement.setString(i++, priorHeader.getTransactionType());
+                boundStatement.setString(i++, priorHeader.getTransactionName());
+                boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
-                boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
             }
+        }
+        // seems unnecessary to insert error info for partial traces
+        // and this avoids having to clean up partial trace data when trace is complete
+        if (header.hasError() && !header.getPartial()) {
+            BoundStatement boundStatement = insertOverallErrorMessage.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setString(i++, header.getError().getMessage());
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertTransactionErrorMessage.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setString(i++, header.getError().getMessage());
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertOverallErrorPoint.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setLong(i++, header.getDurationNanos());
+            boundStatement.setString(i++, header.getError().getMessage());
+            boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+            if (attributes.isEmpty()) {
+                boundStatement.setToNull(i++);
+            } else {
+                boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+            }
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertTransactionErrorPoint.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setLong(i++, header.getDurationNanos());
+            boundStatement.setString(i++, header.getError().getMessage());
+            boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+            if (attributes.isEmpty()) {
+                boundStatement.setToNull(i++);
+            } else {
+                boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+            }
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertOverallErrorCount.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+
+            boundStatement = insertTransactionErrorCount.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        // trace attribute names are still tracked per agent rollup, but these are (cached) updates
+        // to a small table
+        for (String agentRollup : AgentRollups.getAgentRollups(agentId)) {
             for (Trace.Attribute attributeName : attributes) {
                 traceAttributeNameDao.maybeUpdateLastCaptureTime(agentRollup,
                         header.getTransactionType(), attributeName.getName(), futures);
@@ -605,126 +625,114 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollup, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
+            TracePointFilter filter, int limit) throws Exception {
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            BoundStatement boundStatement = readOverallSlowPoint.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setTimestamp(2, new Date(query.from()));
-            boundStatement.setTimestamp(3, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
-        } else {
-            BoundStatement boundStatement = readTransactionSlowPoint.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setString(2, transactionName);
-            boundStatement.setTimestamp(3, new Date(query.from()));
-            boundStatement.setTimestamp(4, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentId : agentIdsCache.get(agentRollup)) {
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = readOverallSlowPoint.bind();
+            } else {
+                boundStatement = readTransactionSlowPoint.bind();
+            }
+            bindQuery(boundStatement, agentId, query);
+            futures.add(session.executeAsync(boundStatement));
         }
+        return processPoints(futures, filter, limit, false);
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollup, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
+            TracePointFilter filter, int limit) throws Exception {
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            BoundStatement boundStatement = readOverallErrorPoint.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setTimestamp(2, new Date(query.from()));
-            boundStatement.setTimestamp(3, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
-        } else {
-            BoundStatement boundStatement = readTransactionErrorPoint.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setString(2, transactionName);
-            boundStatement.setTimestamp(3, new Date(query.from()));
-            boundStatement.setTimestamp(4, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentId : agentIdsCache.get(agentRollup)) {
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = readOverallErrorPoint.bind();
+            } else {
+                boundStatement = readTransactionErrorPoint.bind();
+            }
+            bindQuery(boundStatement, agentId, query);
+            futures.add(session.executeAsync(boundStatement));
         }
+        return processPoints(futures, filter, limit, true);
     }
 
     @Override
-    public long readSlowCount(String agentRollup, TraceQuery query) {
+    public long readSlowCount(String agentRollup, TraceQuery query) throws Exception {
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollup, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollup, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentId : agentIdsCache.get(agentRollup)) {
+            if (transactionName == null) {
+                futures.add(session.executeAsync(
+                        "select count(*) from trace_tt_slow_count where agent_rollup = ?"
+                                + " and transaction_type = ? and capture_time > ?"
+                                + " and capture_time <= ?",
+                        agentId, query.transactionType(), query.from(), query.to()));
+            } else {
+                futures.add(session.executeAsync(
+                        "select count(*) from trace_tn_slow_count where agent_rollup = ?"
+                                + " and transaction_type = ? and transaction_name = ?"
+                                + " and capture_time > ? and capture_time <= ?",
+                        agentId, query.transactionType(), transactionName, query.from(),
+                        query.to()));
+            }
         }
+        return sumCounts(futures);
     }
 
     @Override
-    public long readErrorCount(String agentRollup, TraceQuery query) {
+    public long readErrorCount(String agentRollup, TraceQuery query) throws Exception {
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollup, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollup, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentId : agentIdsCache.get(agentRollup)) {
+            if (transactionName == null) {
+                futures.add(session.executeAsync(
+                        "select count(*) from trace_tt_error_count where agent_rollup = ?"
+                                + " and transaction_type = ? and capture_time > ?"
+                                + " and capture_time <= ?",
+                        agentId, query.transactionType(), query.from(), query.to()));
+            } else {
+                futures.add(session.executeAsync(
+                        "select count(*) from trace_tn_error_count where agent_rollup = ?"
+                                + " and transaction_type = ? and transaction_name = ?"
+                                + " and capture_time > ? and capture_time <= ?",
+                        agentId, query.transactionType(), transactionName, query.from(),
+                        query.to()));
+            }
         }
+        return sumCounts(futures);
     }
 
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollup, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setTimestamp(2, new Date(query.from()));
-            boundStatement.setTimestamp(3, new Date(query.to()));
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            boundStatement.setString(0, agentRollup);
-            boundStatement.setString(1, query.transactionType());
-            boundStatement.setString(2, transactionName);
-            boundStatement.setTimestamp(3, new Date(query.from()));
-            boundStatement.setTimestamp(4, new Date(query.to()));
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentId : agentIdsCache.get(agentRollup)) {
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = readOverallErrorMessage.bind();
+            } else {
+                boundStatement = readTransactionErrorMessage.bind();
+            }
+            bindQuery(boundStatement, agentId, query);
+            futures.add(session.executeAsync(boundStatement));
         }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
+        Map<Long, MutableLong> pointCounts = Maps.newHashMap();
         Map<String, MutableLong> messageCounts = Maps.newHashMap();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
+        for (ResultSetFuture future : futures) {
+            for (Row row : future.get()) {
+                long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                String errorMessage = checkNotNull(row.getString(1));
+                if (!matches(filter, errorMessage)) {
+                    continue;
+                }
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+                pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
+                messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
             }
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
         }
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
@@ -734,7 +742,7 @@ public class TraceDao implements TraceRepository {
                 .collect(Collectors.<ErrorMessagePoint>toList());
         List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessageCount.of(e.getKey(), e.getValue().value))
-                // points above are already ordered by cassandra, but need to reverse sort counts
+                // points above are sorted by capture time, counts are reverse sorted by count
                 .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
                 // explicit type on this line is needed for Checker Framework
                 // see https://github.com/typetools/checker-framework/issues/531
@@ -850,9 +858,87 @@ public class TraceDao implements TraceRepository {
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
+    // agent_rollup (in the trace point tables) is always an agent id, so the agent ids under an
+    // agent rollup are queried separately and then merged
+    //
+    // the agent rollup itself is included if it is also an agent id, e.g. agent ids "a" and "a/b"
+    // are both under agent rollup "a"
+    private List<String> readAgentIds(String agentRollup) {
+        List<String> agentIds = Lists.newArrayList();
+        String prefix = agentRollup + "/";
+        for (AgentRollup rollup : agentDao.readAgentRollups()) {
+            String name = rollup.name();
+            if (rollup.leaf() && (name.equals(agentRollup) || name.startsWith(prefix))) {
+                agentIds.add(name);
+            }
+        }
+        if (agentIds.isEmpty()) {
+            // e.g. agent whose agent_rollup record has not been written yet
+            return ImmutableList.of(agentRollup);
+        }
+        return agentIds;
+    }
+
+    private static void bindQuery(BoundStatement boundStatement, String agentId,
+            TraceQuery query) {
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, query.transactionType());
+        String transactionName = query.transactionName();
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(query.from()));
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+    }
+
+    private static long sumCounts(List<ResultSetFuture> futures) throws Exception {
+        long count = 0;
+        for (ResultSetFuture future : futures) {
+            count += future.get().one().getLong(0);
+        }
+        return count;
+    }
+
+    private static Result<TracePoint> processPoints(List<ResultSetFuture> futures,
+            TracePointFilter filter, int limit, boolean errorPoints) throws Exception {
         List<TracePoint> tracePoints = Lists.newArrayList();
+        for (ResultSetFuture future : futures) {
+            processPoints(future.get(), filter, errorPoints, tracePoints);
+        }
+        if (futures.size() > 1) {
+            // rows are only in order by capture time within each agent id (and sort is stable, so
+            // the order of the duplicates below is preserved)
+            tracePoints.sort(Comparator.comparingLong(TracePoint::captureTime));
+        }
+        // remove duplicates (partially stored traces) since there is (small) window between updated
+        // insert (with new capture time) and the delete of prior insert (with prior capture time)
+        Set<TraceKey> traceKeys = Sets.newHashSet();
+        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
+        while (i.hasPrevious()) {
+            TracePoint trace = i.previous();
+            TraceKey traceKey = ImmutableTraceKey.of(trace.agentId(), trace.traceId());
+            if (!traceKeys.add(traceKey)) {
+                i.remove();
+            }
+        }
+        // apply limit and re-sort if needed
+        if (tracePoints.size() > limit) {
+            tracePoints = tracePoints.stream()
+                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
+                    .limit(limit)
+                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                    // explicit type on this line is needed for Checker Framework
+                    // see https://github.com/typetools/checker-framework/issues/531
+                    .collect(Collectors.<TracePoint>toList());
+            return new Result<>(tracePoints, true);
+        } else {
+            return new Result<>(tracePoints, false);
+        }
+    }
+
+    private static void processPoints(ResultSet results, TracePointFilter filter,
+            boolean errorPoints, List<TracePoint> tracePoints) throws IOException {
         for (Row row : results) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -884,30 +970,6 @@ public class TraceDao implements TraceRepository {
                         .build());
             }
         }
-        // remove duplicates (partially stored traces) since there is (small) window between updated
-        // insert (with new capture time) and the delete of prior insert (with prior capture time)
-        Set<TraceKey> traceKeys = Sets.newHashSet();
-        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
-        while (i.hasPrevious()) {
-            TracePoint trace = i.previous();
-            TraceKey traceKey = ImmutableTraceKey.of(trace.agentId(), trace.traceId());
-            if (!traceKeys.add(traceKey)) {
-                i.remove();
-            }
-        }
-        // apply limit and re-sort if needed
-        if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
-                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
-                    .limit(limit)
-                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
-        } else {
-            return new Result<>(tracePoints, false);
-        }
     }
 
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
@@ -15,6 +15,8 @@
  */
 package org.glowroot.server;
 
+import java.io.File;
+
 import com.google.common.collect.ImmutableList;
 import org.junit.Rule;
 import org.junit.Test;
@@ -22,6 +24,7 @@ import org.junit.rules.ExpectedException;
 
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpRequest.MBeanDumpKind;
 
 public class DownstreamServiceNotConnectedTest {
@@ -54,6 +57,13 @@ public class DownstreamServiceNotConnectedTest {
         downstreamService.heapDump("a", "dummy");
     }
 
+    @Test
+    public void shouldThrowAgentNotConnectExceptionOnHeapDumpAndTransfer() throws Exception {
+        thrown.expect(AgentNotConnectedException.class);
+        downstreamService.heapDumpAndTransfer("a", HeapDumpRequest.getDefaultInstance(),
+                new File("dummy"), 30);
+    }
+
     @Test
     public void shouldThrowAgentNotConnectExceptionOnGc() throws Exception {
         thrown.expect(AgentNotConnectedException.class);
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LiveJvmServiceImplTest {
+
+    @Rule
+    public TemporaryFolder heapDumpDir = new TemporaryFolder();
+
+    @Test
+    public void shouldDeleteOldestHeapDumpsAcrossAgents() throws Exception {
+        // given
+        File agentDir1 = heapDumpDir.newFolder("agent1");
+        File agentDir2 = heapDumpDir.newFolder("agent2");
+        File file1 = createHeapDump(agentDir1, "heap-dump-20160101-000000.hprof.gz", 1000);
+        File file2 = createHeapDump(agentDir2, "heap-dump-20160102-000000.hprof.gz", 2000);
+        File file3 = createHeapDump(agentDir1, "heap-dump-20160103-000000.hprof.gz", 3000);
+        File file4 = createHeapDump(agentDir2, "heap-dump-20160104-000000.hprof.gz", 4000);
+        // when
+        LiveJvmServiceImpl.deleteOldestTransferredHeapDumps(heapDumpDir.getRoot(), 250, file4);
+        // then
+        assertThat(file1.exists()).isFalse();
+        assertThat(file2.exists()).isFalse();
+        assertThat(file3.exists()).isTrue();
+        assertThat(file4.exists()).isTrue();
+    }
+
+    @Test
+    public void shouldNotDeleteJustTransferredHeapDump() throws Exception {
+        // given
+        File agentDir = heapDumpDir.newFolder("agent");
+        File file1 = createHeapDump(agentDir, "heap-dump-20160101-000000.hprof.gz", 1000);
+        File file2 = createHeapDump(agentDir, "heap-dump-20160102-000000.hprof.gz", 2000);
+        // when
+        LiveJvmServiceImpl.deleteOldestTransferredHeapDumps(heapDumpDir.getRoot(), 50, file1);
+        // then
+        assertThat(file1.exists()).isTrue();
+        assertThat(file2.exists()).isFalse();
+    }
+
+    @Test
+    public void shouldNotDeleteOtherFiles() throws Exception {
+        // given
+        File agentDir = heapDumpDir.newFolder("agent");
+        File other = createHeapDump(agentDir, "other.txt", 1000);
+        File file = createHeapDump(agentDir, "heap-dump-20160102-000000.hprof.gz", 2000);
+        // when
+        LiveJvmServiceImpl.deleteOldestTransferredHeapDumps(heapDumpDir.getRoot(), 0, file);
+        // then
+        assertThat(other.exists()).isTrue();
+        assertThat(file.exists()).isTrue();
+    }
+
+    private static File createHeapDump(File dir, String name, long lastModified)
+            throws IOException {
+        File file = new File(dir, name);
+        Files.write(new byte[100], file);
+        assertThat(file.setLastModified(lastModified)).isTrue();
+        return file;
+    }
+}
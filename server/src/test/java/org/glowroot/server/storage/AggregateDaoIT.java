@@ -86,7 +86,8 @@ public class AggregateDaoIT {
         agentDao.setConfigRepository(configRepository);
         serverConfigDao.setConfigRepository(configRepository);
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
-        aggregateDao = new AggregateDao(session, transactionTypeDao, configRepository);
+        aggregateDao = new AggregateDao(session, keyspace, serverConfigDao, transactionTypeDao,
+                configRepository);
     }
 
     @AfterClass
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
+import com.google.common.collect.ImmutableList;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.Query;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDaoSchemaUpgradeIT {
+
+    private static final String KEYSPACE = "glowroot_upgrade_unit_tests";
+
+    private static Cluster cluster;
+    private static Session session;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Cluster.builder().addContactPoint("127.0.0.1")
+                // long read timeout is sometimes needed on slow travis ci machines
+                .withSocketOptions(new SocketOptions().setReadTimeoutMillis(30000))
+                .build();
+        session = cluster.newSession();
+        session.execute("drop keyspace if exists " + KEYSPACE);
+        session.execute("create keyspace " + KEYSPACE + " with replication ="
+                + " { 'class' : 'SimpleStrategy', 'replication_factor' : 1 }");
+        session.execute("use " + KEYSPACE);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        session.execute("drop keyspace if exists " + KEYSPACE);
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Test
+    public void shouldAddHistogramColumnToPreExistingQueryTable() throws Exception {
+        // given
+        // query table as created prior to duration_nanos_histogram
+        session.execute("create table aggregate_tt_query_rollup_0 (agent_rollup varchar,"
+                + " transaction_type varchar, capture_time timestamp, query_type varchar,"
+                + " truncated_query_text varchar, full_query_text_sha1 varchar,"
+                + " total_duration_nanos double, execution_count bigint, total_rows bigint,"
+                + " primary key ((agent_rollup, transaction_type), capture_time, query_type,"
+                + " truncated_query_text, full_query_text_sha1))");
+        session.execute("insert into aggregate_tt_query_rollup_0 (agent_rollup,"
+                + " transaction_type, capture_time, query_type, truncated_query_text,"
+                + " full_query_text_sha1, total_duration_nanos, execution_count, total_rows)"
+                + " values ('one', 'tt1', 60000, 'sqlo', 'select 1', '', 7, 2, 5)");
+
+        // when
+        AggregateDao aggregateDao = createAggregateDao();
+
+        // then
+        assertThat(getKeyspaceMetadata().getTable("aggregate_tt_query_rollup_0")
+                .getColumn("duration_nanos_histogram")).isNotNull();
+
+        // and when
+        LazyHistogram histogram = new LazyHistogram();
+        histogram.add(11);
+        aggregateDao.store("one", 120000, ImmutableList.of(AggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTotalDurationNanos(11)
+                        .setTransactionCount(1)
+                        .addQueriesByType(QueriesByType.newBuilder()
+                                .setType("sqlo")
+                                .addQuery(Query.newBuilder()
+                                        .setSharedQueryTextIndex(0)
+                                        .setTotalDurationNanos(11)
+                                        .setExecutionCount(1)
+                                        .setDurationNanosHistogram(
+                                                histogram.toProto(new ScratchBuffer())))))
+                .build()), ImmutableList.of("select 1"));
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(0)
+                .build();
+        QueryCollector queryCollector = new QueryCollector(1000, 0);
+        aggregateDao.mergeQueriesInto("one", query, queryCollector);
+
+        // then
+        Map<String, List<MutableQuery>> queries = queryCollector.getSortedQueries();
+        MutableQuery mergedQuery = queries.get("sqlo").get(0);
+        assertThat(mergedQuery.getTotalDurationNanos()).isEqualTo(18);
+        assertThat(mergedQuery.getExecutionCount()).isEqualTo(3);
+        // the row stored prior to the upgrade has no histogram
+        assertThat(mergedQuery.getDurationNanosHistogram().getCount()).isEqualTo(1);
+
+        // and when upgrade has already been performed
+        createAggregateDao();
+        // then (no exception)
+    }
+
+    private static AggregateDao createAggregateDao() throws Exception {
+        ServerConfigDao serverConfigDao = new ServerConfigDao(session);
+        AgentDao agentDao = new AgentDao(session);
+        KeyspaceMetadata keyspace = getKeyspaceMetadata();
+        UserDao userDao = new UserDao(session, keyspace);
+        RoleDao roleDao = new RoleDao(session, keyspace);
+        ConfigRepository configRepository =
+                new ConfigRepositoryImpl(serverConfigDao, agentDao, userDao, roleDao);
+        agentDao.setConfigRepository(configRepository);
+        serverConfigDao.setConfigRepository(configRepository);
+        TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
+        return new AggregateDao(session, keyspace, serverConfigDao, transactionTypeDao,
+                configRepository);
+    }
+
+    private static KeyspaceMetadata getKeyspaceMetadata() {
+        return cluster.getMetadata().getKeyspace(KEYSPACE);
+    }
+}
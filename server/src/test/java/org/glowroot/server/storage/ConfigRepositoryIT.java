@@ -220,6 +220,7 @@ public class ConfigRepositoryIT {
                 .setMaxTraceEntriesPerTransaction(OptionalInt32.newBuilder().setValue(5))
                 .setMaxStackTraceSamplesPerTransaction(OptionalInt32.newBuilder().setValue(6))
                 .setMbeanGaugeNotFoundDelaySeconds(OptionalInt32.newBuilder().setValue(7))
+                .setMaxStackTraceDepth(OptionalInt32.newBuilder().setValue(8))
                 .build();
 
         // when
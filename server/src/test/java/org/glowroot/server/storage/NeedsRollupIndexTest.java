@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import org.glowroot.server.storage.NeedsRollupIndex.NeedsRollup;
+import org.glowroot.server.storage.NeedsRollupIndex.PendingRollups;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NeedsRollupIndexTest {
+
+    @Test
+    public void shouldNotReturnMostRecent() {
+        // given
+        PendingRollups pendingRollups = new PendingRollups();
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web"));
+        pendingRollups.add("a", 1, 600000, ImmutableSet.of("Web"));
+        // when
+        List<NeedsRollup> needsRollupList = pendingRollups.getNeedsRollupList("a", 1);
+        // then
+        assertThat(needsRollupList).hasSize(1);
+        assertThat(needsRollupList.get(0).getCaptureTime()).isEqualTo(300000);
+        assertThat(needsRollupList.get(0).getKeys()).containsExactly("Web");
+        assertThat(pendingRollups.getNeedsRollupList("a", 2)).isEmpty();
+        assertThat(pendingRollups.getNeedsRollupList("b", 1)).isEmpty();
+    }
+
+    @Test
+    public void shouldOnlyAddKeysThatAreNotAlreadyPending() {
+        // given
+        PendingRollups pendingRollups = new PendingRollups();
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web"));
+        // when
+        // then
+        assertThat(pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web", "Background")))
+                .containsExactly("Background");
+        assertThat(pendingRollups.add("a", 2, 300000, ImmutableSet.of("Web")))
+                .containsExactly("Web");
+    }
+
+    @Test
+    public void shouldRemoveOnlyRolledUpKeys() {
+        // given
+        PendingRollups pendingRollups = new PendingRollups();
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web"));
+        pendingRollups.add("a", 1, 600000, ImmutableSet.of("Web"));
+        NeedsRollup needsRollup = pendingRollups.getNeedsRollupList("a", 1).get(0);
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Background"));
+        // when
+        boolean done = pendingRollups.remove("a", 1, needsRollup);
+        // then
+        assertThat(done).isFalse();
+        needsRollup = pendingRollups.getNeedsRollupList("a", 1).get(0);
+        assertThat(needsRollup.getKeys()).containsExactly("Background");
+        assertThat(pendingRollups.remove("a", 1, needsRollup)).isTrue();
+        assertThat(pendingRollups.getNeedsRollupList("a", 1)).isEmpty();
+    }
+
+    @Test
+    public void shouldGetNotPendingKeysWithoutAdding() {
+        // given
+        PendingRollups pendingRollups = new PendingRollups();
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web"));
+        // when
+        // then
+        assertThat(pendingRollups.getNotPending("a", 1, 300000,
+                ImmutableSet.of("Web", "Background"))).containsExactly("Background");
+        assertThat(pendingRollups.getNotPending("a", 1, 300000,
+                ImmutableSet.of("Web", "Background"))).containsExactly("Background");
+        assertThat(pendingRollups.getNotPending("b", 1, 300000, ImmutableSet.of("Web")))
+                .containsExactly("Web");
+        assertThat(pendingRollups.isTracked("b")).isFalse();
+    }
+
+    @Test
+    public void shouldEvictAgentRollupOnceNothingIsPending() {
+        // given
+        PendingRollups pendingRollups = new PendingRollups();
+        pendingRollups.add("a", 1, 300000, ImmutableSet.of("Web"));
+        pendingRollups.add("a", 1, 600000, ImmutableSet.of("Web"));
+        pendingRollups.add("a", 2, 900000, ImmutableSet.of("Web"));
+        NeedsRollup needsRollup = pendingRollups.getNeedsRollupList("a", 1).get(0);
+        pendingRollups.remove("a", 1, needsRollup);
+        pendingRollups.add("a", 1, 600000, ImmutableSet.of("Background"));
+        // when
+        pendingRollups.remove("a", 1,
+                new NeedsRollup(600000, ImmutableSet.of("Web", "Background")));
+        // then
+        assertThat(pendingRollups.isTracked("a")).isTrue();
+        // when
+        pendingRollups.remove("a", 2, new NeedsRollup(900000, ImmutableSet.of("Web")));
+        // then
+        assertThat(pendingRollups.isTracked("a")).isFalse();
+        assertThat(pendingRollups.add("a", 1, 1200000, ImmutableSet.of("Web")))
+                .containsExactly("Web");
+        assertThat(pendingRollups.isTracked("a")).isTrue();
+    }
+
+    @Test
+    public void shouldSpreadAgentRollupsOverShards() {
+        // when
+        Set<Integer> shards = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            int shard = NeedsRollupIndex.getShard("agent-" + i);
+            assertThat(shard).isBetween(0, NeedsRollupIndex.SHARD_COUNT - 1);
+            shards.add(shard);
+        }
+        // then
+        assertThat(shards).hasSize(NeedsRollupIndex.SHARD_COUNT);
+        assertThat(NeedsRollupIndex.getShard("agent-1"))
+                .isEqualTo(NeedsRollupIndex.getShard("agent-1"));
+    }
+
+    @Test
+    public void shouldGetPartitionTimes() {
+        // when
+        List<Long> partitionTimes = NeedsRollupIndex.getPartitionTimes(1, 7200001, 3600000);
+        // then
+        assertThat(partitionTimes).containsExactly(3600000L, 7200000L, 10800000L);
+    }
+}
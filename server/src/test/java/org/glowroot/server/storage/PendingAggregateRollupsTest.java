@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import org.glowroot.server.storage.AggregateDao.SharedQueryTextAndSha1;
+import org.glowroot.server.storage.PendingAggregateRollups.Bucket;
+import org.glowroot.server.storage.PendingAggregateRollups.TransactionTypeRollup;
+import org.glowroot.storage.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PendingAggregateRollupsTest {
+
+    private static final List<SharedQueryTextAndSha1> NO_SHARED_QUERIES = ImmutableList.of();
+
+    @Test
+    public void shouldNotTrackFirstBucketAfterStartup() {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        // when
+        Bucket bucket = pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        // then
+        assertThat(bucket).isNull();
+    }
+
+    @Test
+    public void shouldMergeAggregates() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        // when
+        for (int i = 0; i < 5; i++) {
+            Bucket bucket = pendingRollups.getOrCreateBucket("a", 600000, 500, 500);
+            assertThat(bucket).isNotNull();
+            assertThat(bucket.merge(360000 + 60000 * i, createAggregates("Web", "abc"),
+                    NO_SHARED_QUERIES)).isTrue();
+        }
+        // then
+        Bucket bucket = pendingRollups.removeBucket("a", 600000);
+        assertThat(bucket).isNotNull();
+        TransactionTypeRollup transactionTypeRollup = bucket.getTransactionTypeRollup("Web");
+        MutableAggregate overallAggregate = transactionTypeRollup.getOverallAggregate();
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(5000);
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(5);
+        assertThat(overallAggregate.getErrorCount()).isEqualTo(5);
+        assertThat(overallAggregate.getDurationNanosHistogram().getValueAtPercentile(50))
+                .isEqualTo(1000);
+        Map<String, MutableAggregate> transactionAggregates =
+                transactionTypeRollup.getTransactionAggregates();
+        assertThat(transactionAggregates).containsOnlyKeys("abc");
+        assertThat(transactionAggregates.get("abc").getTransactionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldNotTrackBucketAfterRemoval() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        Bucket bucket = pendingRollups.getOrCreateBucket("a", 600000, 500, 500);
+        bucket.merge(360000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        pendingRollups.removeBucket("a", 600000);
+        // when
+        boolean merged = bucket.merge(420000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        // then
+        assertThat(merged).isFalse();
+        assertThat(pendingRollups.getOrCreateBucket("a", 600000, 500, 500)).isNull();
+        assertThat(pendingRollups.getOrCreateBucket("a", 900000, 500, 500)).isNotNull();
+    }
+
+    @Test
+    public void shouldNotReturnInvalidatedBucket() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        Bucket bucket = pendingRollups.getOrCreateBucket("a", 600000, 500, 500);
+        bucket.merge(360000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        // when
+        bucket.invalidate();
+        // then
+        assertThat(pendingRollups.removeBucket("a", 600000)).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnBucketThatReceivedSameCaptureTimeTwice() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        Bucket bucket = pendingRollups.getOrCreateBucket("a", 600000, 500, 500);
+        bucket.merge(360000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        bucket.merge(420000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        // when
+        boolean merged = bucket.merge(360000, createAggregates("Web", "abc"), NO_SHARED_QUERIES);
+        // then
+        assertThat(merged).isTrue();
+        assertThat(pendingRollups.removeBucket("a", 600000)).isNull();
+    }
+
+    @Test
+    public void shouldNotMergeProfiles() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        Bucket bucket = pendingRollups.getOrCreateBucket("a", 600000, 500, 500);
+        Map<String, AggregatesByType> aggregates = createAggregates("Web", "abc");
+        AggregatesByType aggregatesByType = aggregates.get("Web");
+        aggregatesByType = aggregatesByType.toBuilder()
+                .setOverallAggregate(aggregatesByType.getOverallAggregate().toBuilder()
+                        .setMainThreadProfile(Profile.newBuilder()
+                                .addPackageName("java.lang")
+                                .addClassName("Object")
+                                .addMethodName("wait")
+                                .addFileName("Object.java")
+                                .addNode(Profile.ProfileNode.newBuilder()
+                                        .setSampleCount(1))))
+                .build();
+        // when
+        bucket.merge(360000, ImmutableMap.of("Web", aggregatesByType), NO_SHARED_QUERIES);
+        // then
+        bucket = pendingRollups.removeBucket("a", 600000);
+        assertThat(bucket).isNotNull();
+        MutableAggregate overallAggregate =
+                bucket.getTransactionTypeRollup("Web").getOverallAggregate();
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(1);
+        assertThat(overallAggregate.getMainThreadProfile()).isNull();
+    }
+
+    @Test
+    public void shouldEvictOldestBucket() throws Exception {
+        // given
+        PendingAggregateRollups pendingRollups = new PendingAggregateRollups();
+        pendingRollups.getOrCreateBucket("a", 300000, 500, 500);
+        // when
+        for (int i = 0; i <= PendingAggregateRollups.MAX_PENDING_BUCKETS_PER_AGENT_ROLLUP; i++) {
+            pendingRollups.getOrCreateBucket("a", 600000 + 300000 * i, 500, 500);
+        }
+        // then
+        assertThat(pendingRollups.removeBucket("a", 600000)).isNull();
+        assertThat(pendingRollups.removeBucket("a", 900000)).isNotNull();
+    }
+
+    private static Map<String, AggregatesByType> createAggregates(String transactionType,
+            String transactionName) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000)
+                .setTransactionCount(1)
+                .setErrorCount(1)
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(1000))
+                .build();
+        AggregatesByType aggregatesByType = AggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionName(transactionName)
+                        .setAggregate(aggregate))
+                .build();
+        return ImmutableMap.of(transactionType, aggregatesByType);
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.glowroot.server.storage;
 
+import java.util.UUID;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
 import org.junit.AfterClass;
@@ -30,6 +32,8 @@ import org.glowroot.storage.config.ImmutableServerStorageConfig;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ImmutableTraceQuery;
 import org.glowroot.storage.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.SystemInfo;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -43,6 +47,7 @@ public class TraceDaoIT {
 
     private static Cluster cluster;
     private static Session session;
+    private static AgentDao agentDao;
     private static TraceDao traceDao;
 
     @BeforeClass
@@ -57,7 +62,8 @@ public class TraceDaoIT {
         ConfigRepository configRepository = mock(ConfigRepository.class);
         when(configRepository.getStorageConfig())
                 .thenReturn(ImmutableServerStorageConfig.builder().build());
-        traceDao = new TraceDao(session, configRepository);
+        agentDao = new AgentDao(session);
+        traceDao = new TraceDao(session, agentDao, configRepository);
     }
 
     @AfterClass
@@ -267,4 +273,52 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadTracesAcrossAgentsInAgentRollup() throws Exception {
+        // given
+        // unique agent rollup since cassandra data is retained across test runs
+        String agentRollup = UUID.randomUUID().toString();
+        String agentId1 = agentRollup + "/one";
+        String agentId2 = agentRollup + "/two";
+        agentDao.store(agentId1, SystemInfo.getDefaultInstance(),
+                AgentConfig.getDefaultInstance());
+        agentDao.store(agentId2, SystemInfo.getDefaultInstance(),
+                AgentConfig.getDefaultInstance());
+        Trace trace1 = createTrace(11);
+        Trace trace2 = createTrace(21);
+        Trace trace3 = createTrace(31);
+        traceDao.store(agentId1, trace1);
+        traceDao.store(agentId2, trace2);
+        traceDao.store(agentId1, trace3);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .build();
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(agentRollup, query, filter, 10);
+        // then
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).agentId()).isEqualTo(agentId1);
+        assertThat(queryResult.records().get(0).traceId()).isEqualTo(trace1.getId());
+        assertThat(queryResult.records().get(1).agentId()).isEqualTo(agentId2);
+        assertThat(queryResult.records().get(1).traceId()).isEqualTo(trace2.getId());
+        assertThat(queryResult.records().get(2).agentId()).isEqualTo(agentId1);
+        assertThat(queryResult.records().get(2).traceId()).isEqualTo(trace3.getId());
+        assertThat(traceDao.readSlowCount(agentRollup, query)).isEqualTo(3);
+        assertThat(traceDao.readSlowCount(agentId2, query)).isEqualTo(1);
+    }
+
+    private static Trace createTrace(long captureTime) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(captureTime))
+                .build();
+    }
 }
@@ -20,4 +20,6 @@ public interface ConfigDefaults {
     int MAX_AGGREGATE_TRANSACTIONS_PER_TYPE = 500;
     int MAX_AGGREGATE_QUERIES_PER_TYPE = 500;
     int MAX_AGGREGATE_SERVICE_CALLS_PER_TYPE = 500;
+    // not configurable (yet), log events are only captured when enabled in the logger plugin
+    int MAX_AGGREGATE_LOG_EVENTS = 500;
 }
@@ -26,6 +26,7 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -90,6 +91,10 @@ public interface AggregateRepository {
     void mergeServiceCallsInto(String agentRollup, TransactionQuery query,
             ServiceCallCollector collector) throws Exception;
 
+    // query.from() is non-inclusive
+    void mergeLogEventsInto(String agentRollup, TransactionQuery query,
+            LogEventCollector collector) throws Exception;
+
     // query.from() is non-inclusive
     void mergeMainThreadProfilesInto(String agentRollup, TransactionQuery query,
             ProfileCollector collector) throws Exception;
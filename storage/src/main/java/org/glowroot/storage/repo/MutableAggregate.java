@@ -31,10 +31,12 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.Styles;
+import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
@@ -56,6 +58,7 @@ public class MutableAggregate {
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
+    private @MonotonicNonNull LogEventCollector logEvents;
     private @MonotonicNonNull MutableProfile mainThreadProfile;
     private @MonotonicNonNull MutableProfile auxThreadProfile;
 
@@ -119,6 +122,14 @@ public class MutableAggregate {
         }
     }
 
+    public List<Aggregate.LogEvent> getLogEventsProto() {
+        if (logEvents == null) {
+            return ImmutableList.of();
+        } else {
+            return logEvents.toProto();
+        }
+    }
+
     public @Nullable MutableProfile getMainThreadProfile() {
         return mainThreadProfile;
     }
@@ -243,22 +254,30 @@ public class MutableAggregate {
 
     public void mergeQuery(String queryType, String truncatedQueryText,
             @Nullable String fullQueryTextSha1, double totalDurationNanos, long executionCount,
-            boolean hasTotalRows, long totalRows) {
+            boolean hasTotalRows, long totalRows, Aggregate.Histogram durationNanosHistogram)
+            throws DataFormatException {
         if (queries == null) {
             queries = new QueryCollector(maxAggregateQueriesPerType, 0);
         }
         queries.mergeQuery(queryType, truncatedQueryText, fullQueryTextSha1, totalDurationNanos,
-                executionCount, hasTotalRows, totalRows);
+                executionCount, hasTotalRows, totalRows, durationNanosHistogram);
     }
 
     public void mergeServiceCalls(List<Aggregate.ServiceCallsByType> toBeMergedServiceCalls)
-            throws IOException {
+            throws DataFormatException {
         if (serviceCalls == null) {
             serviceCalls = new ServiceCallCollector(maxAggregateServiceCallsPerType, 0);
         }
         serviceCalls.mergeServiceCalls(toBeMergedServiceCalls);
     }
 
+    public void mergeLogEvents(List<Aggregate.LogEvent> toBeMergedLogEvents) {
+        if (logEvents == null) {
+            logEvents = new LogEventCollector(ConfigDefaults.MAX_AGGREGATE_LOG_EVENTS, 0);
+        }
+        logEvents.mergeLogEvents(toBeMergedLogEvents);
+    }
+
     public void mergeMainThreadProfile(Profile toBeMergedProfile) throws IOException {
         if (mainThreadProfile == null) {
             mainThreadProfile = new MutableProfile();
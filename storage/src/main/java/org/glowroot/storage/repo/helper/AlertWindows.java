@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.model.LazyHistogram;
+
+// sliding window state for alert evaluation, so that each alert can be evaluated from the incoming
+// aggregates and gauge values, instead of re-reading the whole alert time period from storage after
+// every upload
+//
+// values are keyed by capture time and then by agent id, so that re-sending the same values (e.g.
+// agent retrying after a failed upload) replaces the prior values instead of double counting them
+//
+// this applies to both the values read back from storage when the window is created and the
+// incoming values, so windows for parent agent rollups are read back per agent id as well
+class AlertWindows {
+
+    private AlertWindows() {}
+
+    static class TransactionWindow {
+
+        private final NavigableMap<Long, Map<String, TransactionValue>> values = Maps.newTreeMap();
+
+        synchronized void put(long captureTime, String agentId, long transactionCount,
+                LazyHistogram durationNanosHistogram) {
+            getValuesAt(values, captureTime)
+                    .put(agentId, new TransactionValue(transactionCount, durationNanosHistogram));
+        }
+
+        // from and to are both INCLUSIVE, returns the total transaction count
+        synchronized long mergeInto(long from, long to, LazyHistogram durationNanosHistogram) {
+            // values before from will never be needed again
+            values.headMap(from).clear();
+            long transactionCount = 0;
+            for (Map<String, TransactionValue> valuesAt : values.headMap(to, true).values()) {
+                for (TransactionValue value : valuesAt.values()) {
+                    transactionCount += value.transactionCount;
+                    durationNanosHistogram.merge(value.durationNanosHistogram);
+                }
+            }
+            return transactionCount;
+        }
+    }
+
+    static class GaugeWindow {
+
+        private final NavigableMap<Long, Map<String, GaugeValue>> values = Maps.newTreeMap();
+
+        synchronized void put(long captureTime, String agentId, double value, long weight) {
+            getValuesAt(values, captureTime).put(agentId, new GaugeValue(value * weight, weight));
+        }
+
+        // from and to are both INCLUSIVE, returns null if there are no gauge values
+        synchronized @Nullable Double getAverage(long from, long to) {
+            // values before from will never be needed again
+            values.headMap(from).clear();
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (Map<String, GaugeValue> valuesAt : values.headMap(to, true).values()) {
+                for (GaugeValue value : valuesAt.values()) {
+                    totalWeightedValue += value.weightedValue;
+                    totalWeight += value.weight;
+                }
+            }
+            if (totalWeight == 0) {
+                return null;
+            }
+            return totalWeightedValue / totalWeight;
+        }
+    }
+
+    private static <V> Map<String, V> getValuesAt(NavigableMap<Long, Map<String, V>> values,
+            long captureTime) {
+        Map<String, V> valuesAt = values.get(captureTime);
+        if (valuesAt == null) {
+            valuesAt = Maps.newHashMap();
+            values.put(captureTime, valuesAt);
+        }
+        return valuesAt;
+    }
+
+    private static class TransactionValue {
+
+        private final long transactionCount;
+        private final LazyHistogram durationNanosHistogram;
+
+        private TransactionValue(long transactionCount, LazyHistogram durationNanosHistogram) {
+            this.transactionCount = transactionCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+
+    private static class GaugeValue {
+
+        private final double weightedValue;
+        private final long weight;
+
+        private GaugeValue(double weightedValue, long weight) {
+            this.weightedValue = weightedValue;
+            this.weight = weight;
+        }
+    }
+}
@@ -17,8 +17,10 @@ package org.glowroot.storage.repo.helper;
 
 import java.net.InetAddress;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
@@ -30,27 +32,42 @@ import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common.util.Versions;
 import org.glowroot.storage.config.SmtpConfig;
+import org.glowroot.storage.repo.AgentRepository;
+import org.glowroot.storage.repo.AgentRepository.AgentRollup;
 import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.GaugeValueRepository.Gauge;
 import org.glowroot.storage.repo.TriggeredAlertRepository;
 import org.glowroot.storage.repo.Utils;
+import org.glowroot.storage.repo.helper.AlertWindows.GaugeWindow;
+import org.glowroot.storage.repo.helper.AlertWindows.TransactionWindow;
 import org.glowroot.storage.util.AgentRollups;
 import org.glowroot.storage.util.Encryption;
 import org.glowroot.storage.util.MailService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -59,17 +76,26 @@ public class AlertingService {
     private static final Logger logger = LoggerFactory.getLogger(AlertingService.class);
 
     private final ConfigRepository configRepository;
+    private final AgentRepository agentRepository;
     private final TriggeredAlertRepository triggeredAlertRepository;
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final RollupLevelService rollupLevelService;
     private final MailService mailService;
 
-    public AlertingService(ConfigRepository configRepository,
+    // windows expire if not accessed for a while (e.g. alert config deleted or changed, or agent no
+    // longer reporting), in which case they are read back from storage if needed again
+    private final Cache<AlertKey, TransactionWindow> transactionWindows =
+            CacheBuilder.newBuilder().expireAfterAccess(1, HOURS).build();
+    private final Cache<AlertKey, GaugeWindow> gaugeWindows =
+            CacheBuilder.newBuilder().expireAfterAccess(1, HOURS).build();
+
+    public AlertingService(ConfigRepository configRepository, AgentRepository agentRepository,
             TriggeredAlertRepository triggeredAlertRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
             RollupLevelService rollupLevelService, MailService mailService) {
         this.configRepository = configRepository;
+        this.agentRepository = agentRepository;
         this.triggeredAlertRepository = triggeredAlertRepository;
         this.aggregateRepository = aggregateRepository;
         this.gaugeValueRepository = gaugeValueRepository;
@@ -77,11 +103,22 @@ public class AlertingService {
         this.mailService = mailService;
     }
 
-    public void checkTransactionAlerts(String agentId, final long endTime,
+    public void checkTransactionAlerts(final String agentId, final long captureTime,
+            List<AggregatesByType> aggregatesByTypeList,
             @Nullable Class<? extends Exception> retryOnceOnException) throws Exception {
         if (configRepository.getSmtpConfig().host().isEmpty()) {
             return;
         }
+        final Map<String, Aggregate> overallAggregates = Maps.newHashMap();
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            // TEMPORARY UNTIL ROLL OUT AGENT 0.9.0
+            if (transactionType.equals("Servlet")) {
+                transactionType = "Web";
+            }
+            // END TEMPORARY
+            overallAggregates.put(transactionType, aggregatesByType.getOverallAggregate());
+        }
         for (final String agentRollup : AgentRollups.getAgentRollups(agentId)) {
             for (final AlertConfig alertConfig : configRepository.getAlertConfigs(agentRollup)) {
                 if (alertConfig.getKind() != AlertKind.TRANSACTION) {
@@ -90,18 +127,35 @@ public class AlertingService {
                 retryOnceOnException(new Retryable() {
                     @Override
                     public void execute() throws Exception {
-                        checkTransactionAlert(agentRollup, alertConfig, endTime);
+                        checkTransactionAlert(agentRollup, agentId, alertConfig, captureTime,
+                                overallAggregates.get(alertConfig.getTransactionType()));
                     }
                 }, retryOnceOnException);
             }
         }
     }
 
-    public void checkGaugeAlerts(String agentId, final long endTime,
+    public void checkGaugeAlerts(final String agentId, List<GaugeValue> gaugeValues,
             @Nullable Class<? extends Exception> retryOnceOnException) throws Exception {
         if (configRepository.getSmtpConfig().host().isEmpty()) {
             return;
         }
+        long maxCaptureTime = 0;
+        final ListMultimap<String, GaugeValue> gaugeValuesByName = ArrayListMultimap.create();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+            String gaugeName = gaugeValue.getGaugeName();
+            // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
+            int index = gaugeName.lastIndexOf(':');
+            if (index != -1) {
+                String mbeanObjectName = gaugeName.substring(0, index);
+                String mbeanAttributeName = gaugeName.substring(index + 1);
+                gaugeName = mbeanObjectName + ':' + mbeanAttributeName.replace('/', '.');
+            }
+            // END TEMPORARY
+            gaugeValuesByName.put(gaugeName, gaugeValue);
+        }
+        final long endTime = maxCaptureTime;
         for (final String agentRollup : AgentRollups.getAgentRollups(agentId)) {
             for (final AlertConfig alertConfig : configRepository.getAlertConfigs(agentRollup)) {
                 if (alertConfig.getKind() != AlertKind.GAUGE) {
@@ -110,14 +164,16 @@ public class AlertingService {
                 retryOnceOnException(new Retryable() {
                     @Override
                     public void execute() throws Exception {
-                        checkGaugeAlert(agentRollup, alertConfig, endTime);
+                        checkGaugeAlert(agentRollup, agentId, alertConfig, endTime,
+                                gaugeValuesByName.get(alertConfig.getGaugeName()));
                     }
                 }, retryOnceOnException);
             }
         }
     }
 
-    private void checkTransactionAlert(String agentRollup, AlertConfig alertConfig, long endTime)
+    private void checkTransactionAlert(final String agentRollup, String agentId,
+            final AlertConfig alertConfig, long endTime, @Nullable Aggregate overallAggregate)
             throws Exception {
         // validate config
         if (!alertConfig.hasTransactionPercentile()) {
@@ -142,26 +198,29 @@ public class AlertingService {
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         // don't want to include the aggregate at startTime, so add 1
         startTime++;
-        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(agentRollup,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(alertConfig.getTransactionType())
-                                .from(startTime)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
-        long transactionCount = 0;
-        LazyHistogram durationNanosHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : percentileAggregates) {
-            transactionCount += aggregate.transactionCount();
-            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
+        final long from = startTime;
+        final long to = endTime;
+        String version = Versions.getVersion(alertConfig);
+        AlertKey alertKey = ImmutableAlertKey.of(agentRollup, version);
+        TransactionWindow window = transactionWindows.get(alertKey,
+                new Callable<TransactionWindow>() {
+                    @Override
+                    public TransactionWindow call() throws Exception {
+                        return readTransactionWindow(agentRollup, alertConfig, from, to);
+                    }
+                });
+        if (overallAggregate != null) {
+            // when the window was just read from storage above, it already includes this
+            // aggregate, in which case this just replaces it
+            window.put(endTime, agentId, overallAggregate.getTransactionCount(),
+                    new LazyHistogram(overallAggregate.getDurationNanosHistogram()));
         }
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
+        long transactionCount = window.mergeInto(startTime, endTime, durationNanosHistogram);
         if (transactionCount < minTransactionCount) {
             // don't clear existing triggered alert
             return;
         }
-        String version = Versions.getVersion(alertConfig);
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentRollup, version);
         long valueAtPercentile = durationNanosHistogram.getValueAtPercentile(percentile);
         boolean currentlyTriggered = valueAtPercentile >= MILLISECONDS.toNanos(thresholdMillis);
@@ -176,7 +235,8 @@ public class AlertingService {
         }
     }
 
-    private void checkGaugeAlert(String agentRollup, AlertConfig alertConfig, long endTime)
+    private void checkGaugeAlert(final String agentRollup, String agentId,
+            final AlertConfig alertConfig, long endTime, List<GaugeValue> gaugeValues)
             throws Exception {
         if (!alertConfig.hasGaugeThreshold()) {
             // AlertConfig has nice toString() from immutables
@@ -187,20 +247,26 @@ public class AlertingService {
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         // don't want to include the aggregate at startTime, so add 1
         startTime++;
-        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollup,
-                alertConfig.getGaugeName(), startTime, endTime, rollupLevel);
-        if (gaugeValues.isEmpty()) {
-            return;
-        }
-        double totalWeightedValue = 0;
-        long totalWeight = 0;
+        final long from = startTime;
+        final long to = endTime;
+        String version = Versions.getVersion(alertConfig);
+        GaugeWindow window = gaugeWindows.get(ImmutableAlertKey.of(agentRollup, version),
+                new Callable<GaugeWindow>() {
+                    @Override
+                    public GaugeWindow call() throws Exception {
+                        return readGaugeWindow(agentRollup, alertConfig, from, to);
+                    }
+                });
         for (GaugeValue gaugeValue : gaugeValues) {
-            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
-            totalWeight += gaugeValue.getWeight();
+            // when the window was just read from storage above, it already includes these gauge
+            // values, in which case this just replaces them
+            window.put(gaugeValue.getCaptureTime(), agentId, gaugeValue.getValue(),
+                    gaugeValue.getWeight());
+        }
+        Double average = window.getAverage(startTime, endTime);
+        if (average == null) {
+            return;
         }
-        double average = totalWeightedValue / totalWeight;
-        String version = Versions.getVersion(alertConfig);
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentRollup, version);
         boolean currentlyTriggered = average >= threshold;
         if (previouslyTriggered && !currentlyTriggered) {
@@ -212,6 +278,88 @@ public class AlertingService {
         }
     }
 
+    // this is only needed the first time an alert is evaluated (including after restart or after
+    // the alert config is changed), after that the window is updated from the incoming aggregates
+    //
+    // the window is read back per agent id (even when evaluating an alert for a parent agent
+    // rollup), since the incoming aggregates are put into the window by agent id
+    private TransactionWindow readTransactionWindow(String agentRollup, AlertConfig alertConfig,
+            long startTime, long endTime) throws Exception {
+        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
+        TransactionWindow window = new TransactionWindow();
+        for (String agentId : getAgentIds(agentRollup)) {
+            // the tail of the window after the last completed rollup is read from the finer
+            // rollup levels, otherwise it would not be seen until the next rollup
+            long revisedFrom = startTime;
+            for (int level = rollupLevel; level >= 0; level--) {
+                List<PercentileAggregate> percentileAggregates =
+                        aggregateRepository.readPercentileAggregates(agentId,
+                                ImmutableTransactionQuery.builder()
+                                        .transactionType(alertConfig.getTransactionType())
+                                        .from(revisedFrom)
+                                        .to(endTime)
+                                        .rollupLevel(level)
+                                        .build());
+                long lastRolledUpTime = 0;
+                for (PercentileAggregate aggregate : percentileAggregates) {
+                    window.put(aggregate.captureTime(), agentId, aggregate.transactionCount(),
+                            new LazyHistogram(aggregate.durationNanosHistogram()));
+                    lastRolledUpTime = Math.max(lastRolledUpTime, aggregate.captureTime());
+                }
+                revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
+                if (revisedFrom > endTime) {
+                    break;
+                }
+            }
+        }
+        return window;
+    }
+
+    // this is only needed the first time an alert is evaluated (including after restart or after
+    // the alert config is changed), after that the window is updated from the incoming gauge values
+    //
+    // see comment above about reading back per agent id
+    private GaugeWindow readGaugeWindow(String agentRollup, AlertConfig alertConfig,
+            long startTime, long endTime) throws Exception {
+        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
+        GaugeWindow window = new GaugeWindow();
+        for (String agentId : getAgentIds(agentRollup)) {
+            // see comment above about reading the tail of the window from the finer rollup levels
+            long revisedFrom = startTime;
+            for (int level = rollupLevel; level >= 0; level--) {
+                List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentId,
+                        alertConfig.getGaugeName(), revisedFrom, endTime, level);
+                long lastRolledUpTime = 0;
+                for (GaugeValue gaugeValue : gaugeValues) {
+                    window.put(gaugeValue.getCaptureTime(), agentId, gaugeValue.getValue(),
+                            gaugeValue.getWeight());
+                    lastRolledUpTime = Math.max(lastRolledUpTime, gaugeValue.getCaptureTime());
+                }
+                revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
+                if (revisedFrom > endTime) {
+                    break;
+                }
+            }
+        }
+        return window;
+    }
+
+    // returns the agent ids (leaf agent rollups) that roll up into the given agent rollup
+    private List<String> getAgentIds(String agentRollup) throws Exception {
+        List<String> agentIds = Lists.newArrayList();
+        for (AgentRollup rollup : agentRepository.readAgentRollups()) {
+            if (rollup.leaf() && (rollup.name().equals(agentRollup)
+                    || rollup.name().startsWith(agentRollup + '/'))) {
+                agentIds.add(rollup.name());
+            }
+        }
+        if (agentIds.isEmpty()) {
+            // e.g. agent that has just connected for the first time
+            agentIds.add(agentRollup);
+        }
+        return agentIds;
+    }
+
     private void sendTransactionAlert(String agentRollup, AlertConfig alertConfig,
             double percentile, long valueAtPercentile, long transactionCount, boolean ok)
             throws Exception {
@@ -341,6 +489,13 @@ public class AlertingService {
         }
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AlertKey {
+        String agentRollup();
+        String alertConfigVersion();
+    }
+
     private interface Retryable {
         void execute() throws Exception;
     }
@@ -25,6 +25,7 @@ import org.junit.Test;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.storage.config.ImmutableSmtpConfig;
@@ -41,18 +42,31 @@ import org.glowroot.storage.util.Encryption;
 import org.glowroot.storage.util.MailService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AlertingServiceTest {
 
     private static final String AGENT_ID = "";
 
+    private static final String GAUGE_NAME =
+            "java.lang:type=GarbageCollector,name=ConcurrentMarkSweep:CollectionTime[counter]";
+
     private ConfigRepository configRepository;
     private AgentRepository agentRepository;
     private TriggeredAlertRepository triggeredAlertRepository;
@@ -90,10 +104,11 @@ public class AlertingServiceTest {
         // given
         setupForTransaction(1000000);
         AlertingService alertingService = new AlertingService(configRepository,
-                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
-                rollupLevelService, mailService);
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
         // when
-        alertingService.checkTransactionAlerts("", 120000, null);
+        alertingService.checkTransactionAlerts("", 120000, ImmutableList.<AggregatesByType>of(),
+                null);
         // then
         assertThat(mailService.getMessage()).isNotNull();
     }
@@ -103,10 +118,11 @@ public class AlertingServiceTest {
         // given
         setupForTransaction(999000);
         AlertingService alertingService = new AlertingService(configRepository,
-                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
-                rollupLevelService, mailService);
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
         // when
-        alertingService.checkTransactionAlerts("", 120000, null);
+        alertingService.checkTransactionAlerts("", 120000, ImmutableList.<AggregatesByType>of(),
+                null);
         // then
         assertThat(mailService.getMessage()).isNull();
     }
@@ -116,25 +132,159 @@ public class AlertingServiceTest {
         // given
         setupForGauge(500);
         AlertingService alertingService = new AlertingService(configRepository,
-                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
-                rollupLevelService, mailService);
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
         // when
-        alertingService.checkGaugeAlerts("", 120000, null);
+        alertingService.checkGaugeAlerts("", ImmutableList.of(gaugeValue(120000, 500)), null);
         // then
         assertThat(mailService.getMessage()).isNotNull();
         assertThat(((String) mailService.getMessage().getContent()).trim())
                 .isEqualTo("Average over the last 1 minutes was 500.0 milliseconds per second.");
     }
 
+    @Test
+    public void shouldEvaluateTransactionAlertFromIncomingAggregate() throws Exception {
+        // given
+        setupForTransaction(999000);
+        AlertingService alertingService = new AlertingService(configRepository,
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
+        alertingService.checkTransactionAlerts("", 120000, ImmutableList.<AggregatesByType>of(),
+                null);
+        // when
+        alertingService.checkTransactionAlerts("", 150000,
+                ImmutableList.of(aggregatesByType("tt", 1000000, 2000000, 3000000)), null);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+        verify(aggregateRepository, times(1)).readPercentileAggregates(eq(AGENT_ID),
+                any(TransactionQuery.class));
+    }
+
+    @Test
+    public void shouldEvaluateGaugeAlertFromIncomingGaugeValues() throws Exception {
+        // given
+        setupForGauge(400);
+        AlertingService alertingService = new AlertingService(configRepository,
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
+        alertingService.checkGaugeAlerts("", ImmutableList.of(gaugeValue(120000, 400)), null);
+        // when
+        alertingService.checkGaugeAlerts("", ImmutableList.of(gaugeValue(150000, 600),
+                gaugeValue(170000, 600)), null);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+        assertThat(((String) mailService.getMessage().getContent()).trim()).isEqualTo(
+                "Average over the last 1 minutes was 533.3333333333334 milliseconds per second.");
+        verify(gaugeValueRepository, times(1)).readGaugeValues(eq(AGENT_ID), anyString(),
+                anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void shouldEvaluateGaugeAlertForParentAgentRollup() throws Exception {
+        // given
+        when(agentRepository.readAgentRollups()).thenReturn(ImmutableList.<AgentRollup>of(
+                ImmutableAgentRollup.of("g", false), ImmutableAgentRollup.of("g/a1", true),
+                ImmutableAgentRollup.of("g/a2", true), ImmutableAgentRollup.of("h/a3", true)));
+        setupForGauge("g", 500);
+        when(gaugeValueRepository.readGaugeValues("g/a1", GAUGE_NAME, 60001, 120000, 0))
+                .thenReturn(ImmutableList.of(gaugeValue(120000, 400)));
+        when(gaugeValueRepository.readGaugeValues("g/a2", GAUGE_NAME, 60001, 120000, 0))
+                .thenReturn(ImmutableList.of(gaugeValue(120000, 400)));
+        AlertingService alertingService = new AlertingService(configRepository,
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
+        // agent retry of a gauge value that was already stored (and so is also read back)
+        alertingService.checkGaugeAlerts("g/a1", ImmutableList.of(gaugeValue(120000, 400)),
+                null);
+        assertThat(mailService.getMessage()).isNull();
+        // when
+        alertingService.checkGaugeAlerts("g/a2", ImmutableList.of(gaugeValue(150000, 700)),
+                null);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+        assertThat(((String) mailService.getMessage().getContent()).trim())
+                .isEqualTo("Average over the last 1 minutes was 500.0 milliseconds per second.");
+        verify(gaugeValueRepository, times(1)).readGaugeValues(eq("g/a1"), anyString(),
+                anyLong(), anyLong(), anyInt());
+        verify(gaugeValueRepository, times(1)).readGaugeValues(eq("g/a2"), anyString(),
+                anyLong(), anyLong(), anyInt());
+        verify(gaugeValueRepository, never()).readGaugeValues(eq("g"), anyString(),
+                anyLong(), anyLong(), anyInt());
+        verify(gaugeValueRepository, never()).readGaugeValues(eq("h/a3"), anyString(),
+                anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void shouldReadTransactionWindowTailAfterLastRollup() throws Exception {
+        // given
+        AlertConfig alertConfig = AlertConfig.newBuilder()
+                .setKind(AlertKind.TRANSACTION)
+                .setTransactionType("tt")
+                .setTransactionPercentile(OptionalDouble.newBuilder()
+                        .setValue(95.0))
+                .setTransactionThresholdMillis(OptionalInt32.newBuilder()
+                        .setValue(1))
+                .setTimePeriodSeconds(60)
+                .setMinTransactionCount(OptionalInt32.newBuilder()
+                        .setValue(2))
+                .setGaugeName("")
+                .addEmailAddress("to@example.org")
+                .build();
+        when(configRepository.getAlertConfigs(AGENT_ID))
+                .thenReturn(ImmutableList.of(alertConfig));
+        when(rollupLevelService.getRollupLevelForView(60001, 120000)).thenReturn(1);
+        // the window straddles the last completed level 1 rollup (at 90000), the rest of the
+        // window is only available at level 0
+        when(aggregateRepository.readPercentileAggregates(AGENT_ID,
+                transactionQuery(60001, 120000, 1)))
+                        .thenReturn(ImmutableList.of(percentileAggregate(90000, 1000000)));
+        when(aggregateRepository.readPercentileAggregates(AGENT_ID,
+                transactionQuery(90001, 120000, 0)))
+                        .thenReturn(ImmutableList.of(percentileAggregate(120000, 1000000)));
+        AlertingService alertingService = new AlertingService(configRepository,
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
+        // when
+        alertingService.checkTransactionAlerts("", 120000, ImmutableList.<AggregatesByType>of(),
+                null);
+        // then
+        // min transaction count is only reached if both rollup levels are included
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
+    @Test
+    public void shouldReadGaugeWindowTailAfterLastRollup() throws Exception {
+        // given
+        setupForGauge(400);
+        when(rollupLevelService.getRollupLevelForView(60001, 120000)).thenReturn(1);
+        when(gaugeValueRepository.readGaugeValues(AGENT_ID, GAUGE_NAME, 60001, 120000, 1))
+                .thenReturn(ImmutableList.of(gaugeValue(90000, 400)));
+        when(gaugeValueRepository.readGaugeValues(AGENT_ID, GAUGE_NAME, 90001, 120000, 0))
+                .thenReturn(ImmutableList.of(gaugeValue(105000, 600)));
+        AlertingService alertingService = new AlertingService(configRepository,
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
+        // when
+        alertingService.checkGaugeAlerts("", ImmutableList.of(gaugeValue(120000, 500)), null);
+        // then
+        // threshold is only reached if the level 0 value after the last rollup is included
+        assertThat(mailService.getMessage()).isNotNull();
+        assertThat(((String) mailService.getMessage().getContent()).trim())
+                .isEqualTo("Average over the last 1 minutes was 500.0 milliseconds per second.");
+        verify(gaugeValueRepository, never()).readGaugeValues(AGENT_ID, GAUGE_NAME, 60001,
+                120000, 0);
+    }
+
     @Test
     public void shouldNotSendMailForGaugeAlert() throws Exception {
         // given
         setupForGauge(499);
         AlertingService alertingService = new AlertingService(configRepository,
-                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
-                rollupLevelService, mailService);
+                agentRepository, triggeredAlertRepository, aggregateRepository,
+                gaugeValueRepository, rollupLevelService, mailService);
         // when
-        alertingService.checkTransactionAlerts("", 120000, null);
+        alertingService.checkTransactionAlerts("", 120000, ImmutableList.<AggregatesByType>of(),
+                null);
         // then
         assertThat(mailService.getMessage()).isNull();
     }
@@ -211,11 +361,37 @@ public class AlertingServiceTest {
                 .thenReturn(ImmutableList.of(aggregate));
     }
 
+    private static TransactionQuery transactionQuery(long from, long to, int rollupLevel) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("tt")
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
+    }
+
+    private static PercentileAggregate percentileAggregate(long captureTime,
+            long... histogramValues) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (long histogramValue : histogramValues) {
+            lazyHistogram.add(histogramValue);
+        }
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(1000000)
+                .transactionCount(histogramValues.length)
+                .durationNanosHistogram(lazyHistogram.toProto(new ScratchBuffer()))
+                .build();
+    }
+
     private void setupForGauge(double value) throws Exception {
+        setupForGauge(AGENT_ID, value);
+    }
+
+    private void setupForGauge(String agentRollup, double value) throws Exception {
         AlertConfig alertConfig = AlertConfig.newBuilder()
                 .setKind(AlertKind.GAUGE)
-                .setGaugeName("java.lang:type=GarbageCollector,name=ConcurrentMarkSweep"
-                        + ":CollectionTime[counter]")
+                .setGaugeName(GAUGE_NAME)
                 .setGaugeThreshold(OptionalDouble.newBuilder()
                         .setValue(500.0))
                 .setTimePeriodSeconds(60)
@@ -230,11 +406,33 @@ public class AlertingServiceTest {
                 .setValue(value)
                 .setWeight(1)
                 .build();
-        when(configRepository.getAlertConfigs(AGENT_ID))
+        when(configRepository.getAlertConfigs(agentRollup))
                 .thenReturn(ImmutableList.of(alertConfig));
-        when(gaugeValueRepository.readGaugeValues(AGENT_ID,
-                "java.lang:type=GarbageCollector,name=ConcurrentMarkSweep:CollectionTime[counter]",
-                60001, 120000, 0)).thenReturn(ImmutableList.of(gaugeValue));
+        when(gaugeValueRepository.readGaugeValues(agentRollup, GAUGE_NAME, 60001, 120000, 0))
+                .thenReturn(ImmutableList.of(gaugeValue));
+    }
+
+    private static GaugeValue gaugeValue(long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_NAME)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+
+    private static AggregatesByType aggregatesByType(String transactionType,
+            long... histogramValues) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (long histogramValue : histogramValues) {
+            lazyHistogram.add(histogramValue);
+        }
+        return AggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(histogramValues.length)
+                        .setDurationNanosHistogram(lazyHistogram.toProto(new ScratchBuffer())))
+                .build();
     }
 
     static class MockMailService extends MailService {
@@ -51,7 +51,8 @@ glowroot.controller('JvmHeapDumpCtrl', [
 
     $scope.heapDump = function (deferred) {
       var postData = {
-        directory: $scope.page.directory
+        directory: $scope.page.directory,
+        transfer: $scope.page.transfer
       };
       $scope.availableDiskSpaceBytes = undefined;
       $scope.heapDumpResponse = false;
@@ -60,7 +61,13 @@ glowroot.controller('JvmHeapDumpCtrl', [
             if (data.error) {
               deferred.reject(data.error);
             } else {
-              deferred.resolve('Heap dump created');
+              if (data.transferredFileName) {
+                deferred.resolve('Heap dump created and transferred');
+                $scope.heapDumpDownloadUrl = 'export/heap-dump?agent-id=' + encodeURIComponent($scope.agentId)
+                    + '&file-name=' + encodeURIComponent(data.transferredFileName);
+              } else {
+                deferred.resolve('Heap dump created');
+              }
               $scope.heapDumpResponse = data;
             }
           })
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* global glowroot, angular */
+
+glowroot.controller('TransactionLogEventsCtrl', [
+  '$scope',
+  '$http',
+  '$location',
+  'locationChanges',
+  'queryStrings',
+  'httpErrors',
+  function ($scope, $http, $location, locationChanges, queryStrings, httpErrors) {
+
+    $scope.$parent.activeTabItem = 'logEvents';
+
+    if ($scope.hideMainContent()) {
+      return;
+    }
+
+    $scope.showLogEvents = false;
+    $scope.showSpinner = 0;
+
+    $scope.$watchGroup(['range.chartFrom', 'range.chartTo', 'range.chartRefresh'], function () {
+      refreshData();
+    });
+
+    $scope.$watch('level', function () {
+      if ($scope.level) {
+        $location.search('level', $scope.level);
+      } else {
+        $location.search('level', null);
+      }
+    });
+
+    locationChanges.on($scope, function () {
+      $scope.level = $location.search().level;
+    });
+
+    function refreshData() {
+      var query = {
+        agentRollup: $scope.agentRollup,
+        transactionType: $scope.transactionType,
+        transactionName: $scope.transactionName,
+        from: $scope.range.chartFrom,
+        to: $scope.range.chartTo
+      };
+
+      $scope.showSpinner++;
+      $http.get('backend/transaction/log-events' + queryStrings.encodeObject(query))
+          .success(function (data) {
+            $scope.showSpinner--;
+            $scope.showLogEvents = data.length;
+            $scope.logEvents = data;
+            var levels = {};
+            angular.forEach($scope.logEvents, function (logEvent) {
+              levels[logEvent.level] = true;
+            });
+            $scope.levels = Object.keys(levels);
+            $scope.levels.sort();
+            if ($scope.level && $scope.levels.indexOf($scope.level) === -1) {
+              $scope.levels.push($scope.level);
+            }
+          })
+          .error(function (data, status) {
+            $scope.showSpinner--;
+            httpErrors.handler($scope)(data, status);
+          });
+    }
+  }
+]);
@@ -93,6 +93,8 @@ glowroot.controller('TransactionQueriesCtrl', [
         $scope.sortAttr = '-executionCount';
       } else if ($scope.sortAttribute === 'time-per-execution') {
         $scope.sortAttr = '-timePerExecution';
+      } else if ($scope.sortAttribute === 'p99-transaction-average') {
+        $scope.sortAttr = '-p99TransactionAverageTime';
       } else if ($scope.sortAttribute === 'rows-per-execution') {
         $scope.sortAttr = '-rowsPerExecution';
       }
@@ -304,6 +306,9 @@ glowroot.controller('TransactionQueriesCtrl', [
             var queryTypes = {};
             angular.forEach($scope.queries, function (query) {
               query.timePerExecution = query.totalDurationNanos / (1000000 * query.executionCount);
+              if (query.p99TransactionAverageDurationNanos !== undefined) {
+                query.p99TransactionAverageTime = query.p99TransactionAverageDurationNanos / 1000000;
+              }
               if (query.totalRows !== undefined) {
                 query.rowsPerExecution = query.totalRows / query.executionCount;
               }
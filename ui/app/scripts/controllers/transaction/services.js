@@ -87,6 +87,8 @@ glowroot.controller('TransactionServicesCtrl', [
         $scope.sortAttr = '-executionCount';
       } else if ($scope.sortAttribute === 'time-per-execution') {
         $scope.sortAttr = '-timePerExecution';
+      } else if ($scope.sortAttribute === 'p99-transaction-average') {
+        $scope.sortAttr = '-p99TransactionAverageTime';
       }
       $scope.type = $location.search().type;
     });
@@ -115,6 +117,9 @@ glowroot.controller('TransactionServicesCtrl', [
             var types = {};
             angular.forEach($scope.serviceCalls, function (serviceCall) {
               serviceCall.timePerExecution = serviceCall.totalDurationNanos / (1000000 * serviceCall.executionCount);
+              if (serviceCall.p99TransactionAverageDurationNanos !== undefined) {
+                serviceCall.p99TransactionAverageTime = serviceCall.p99TransactionAverageDurationNanos / 1000000;
+              }
               if (types[serviceCall.type] === undefined) {
                 types[serviceCall.type] = 0;
               }
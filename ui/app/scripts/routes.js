@@ -176,6 +176,15 @@ glowroot.config([
         }
       }
     });
+    $stateProvider.state('transaction.detail.logEvents', {
+      url: '/log-events?agent-id&transaction-type&transaction-name',
+      views: {
+        'main@transaction': {
+          templateUrl: 'views/transaction/log-events.html',
+          controller: 'TransactionLogEventsCtrl'
+        }
+      }
+    });
     $stateProvider.state('transaction.detail.threadProfile', {
       url: '/thread-profile?agent-id&transaction-type&transaction-name',
       views: {
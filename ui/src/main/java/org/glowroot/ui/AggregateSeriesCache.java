@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches the stored aggregate series that are read for the transaction charts, so that repeated
+// refreshes of the same chart only need to read the aggregates that were stored since the last
+// refresh
+//
+// only aggregates that are older than the stable horizon of their rollup level are cached since
+// more recent aggregates (and rollups) may still be in the process of being stored, and cached
+// series are re-read from scratch after MAX_SERIES_AGE_MILLIS in case aggregates arrive late (e.g.
+// from an agent that was temporarily disconnected)
+//
+// the stable horizon of rollup level 0 is STABLE_MILLIS, and each higher rollup level adds the
+// rollup interval of the level below it plus ROLLUP_DELAY_MILLIS, since the rollup for a given
+// capture time is not stored until an aggregate for a later interval of the level below has been
+// stored (the most recent capture time is never rolled up), and then the rollup service has run
+abstract class AggregateSeriesCache<T> {
+
+    @VisibleForTesting
+    static final long STABLE_MILLIS = MINUTES.toMillis(5);
+
+    // the rollup service runs once a minute, this also allows for the time that it takes to run
+    @VisibleForTesting
+    static final long ROLLUP_DELAY_MILLIS = MINUTES.toMillis(2);
+
+    @VisibleForTesting
+    static final long MAX_SERIES_AGE_MILLIS = MINUTES.toMillis(30);
+
+    // this is the total number of cached aggregates across all series
+    private static final int MAX_CACHED_AGGREGATES = 10000;
+
+    private final Clock clock;
+
+    // index is rollup level
+    private final ImmutableList<Long> stableMillis;
+
+    private final Cache<SeriesKey, Series<T>> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_AGGREGATES)
+            .weigher(new Weigher<SeriesKey, Series<T>>() {
+                @Override
+                public int weigh(SeriesKey key, Series<T> series) {
+                    return series.aggregates.size();
+                }
+            })
+            .build();
+
+    AggregateSeriesCache(List<RollupConfig> rollupConfigs, Clock clock) {
+        this.clock = clock;
+        stableMillis = getStableMillis(rollupConfigs);
+    }
+
+    // query.from() is INCLUSIVE
+    List<T> read(String agentRollup, TransactionQuery query) throws Exception {
+        long currentTime = clock.currentTimeMillis();
+        long stableTo = currentTime - stableMillis.get(query.rollupLevel());
+        SeriesKey key = ImmutableSeriesKey.of(agentRollup, query.transactionType(),
+                query.transactionName(), query.rollupLevel());
+        Series<T> series = cache.getIfPresent(key);
+        if (series == null || query.from() < series.from
+                || currentTime - series.createdTime > MAX_SERIES_AGE_MILLIS) {
+            List<T> aggregates = readFromRepository(agentRollup, query);
+            cache(key, query.from(), Math.min(query.to(), stableTo), aggregates, currentTime);
+            return aggregates;
+        }
+        List<T> aggregates = Lists.newArrayList();
+        for (T aggregate : series.aggregates) {
+            long captureTime = getCaptureTime(aggregate);
+            if (captureTime >= query.from() && captureTime <= query.to()) {
+                aggregates.add(aggregate);
+            }
+        }
+        if (query.to() <= series.to) {
+            return aggregates;
+        }
+        List<T> deltaAggregates = readFromRepository(agentRollup,
+                ImmutableTransactionQuery.builder()
+                        .copyFrom(query)
+                        .from(Math.max(query.from(), series.to + 1))
+                        .build());
+        aggregates.addAll(deltaAggregates);
+        stableTo = Math.min(query.to(), stableTo);
+        if (stableTo > series.to) {
+            // the cached series slides forward along with the chart
+            cache(key, query.from(), stableTo, aggregates, series.createdTime);
+        }
+        return aggregates;
+    }
+
+    abstract List<T> readFromRepository(String agentRollup, TransactionQuery query)
+            throws Exception;
+
+    abstract long getCaptureTime(T aggregate);
+
+    private void cache(SeriesKey key, long from, long to, List<T> aggregates, long createdTime) {
+        if (to < from) {
+            return;
+        }
+        List<T> stableAggregates = Lists.newArrayList();
+        for (T aggregate : aggregates) {
+            if (getCaptureTime(aggregate) <= to) {
+                stableAggregates.add(aggregate);
+            }
+        }
+        cache.put(key, new Series<T>(from, to, stableAggregates, createdTime));
+    }
+
+    @VisibleForTesting
+    static ImmutableList<Long> getStableMillis(List<RollupConfig> rollupConfigs) {
+        List<Long> stableMillis = Lists.newArrayList();
+        long millis = STABLE_MILLIS;
+        stableMillis.add(millis);
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            millis += rollupConfigs.get(i - 1).intervalMillis() + ROLLUP_DELAY_MILLIS;
+            stableMillis.add(millis);
+        }
+        return ImmutableList.copyOf(stableMillis);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SeriesKey {
+        String agentRollup();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    private static class Series<T> {
+
+        // from and to are both INCLUSIVE
+        private final long from;
+        private final long to;
+        private final ImmutableList<T> aggregates;
+        private final long createdTime;
+
+        private Series(long from, long to, List<T> aggregates, long createdTime) {
+            this.from = from;
+            this.to = to;
+            this.aggregates = ImmutableList.copyOf(aggregates);
+            this.createdTime = createdTime;
+        }
+    }
+}
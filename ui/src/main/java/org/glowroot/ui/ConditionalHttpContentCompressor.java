@@ -28,7 +28,8 @@ class ConditionalHttpContentCompressor extends HttpContentCompressor {
     protected @Nullable Result beginEncode(HttpResponse response, String acceptEncoding)
             throws Exception {
         String contentType = response.headers().getAsString(HttpHeaderNames.CONTENT_TYPE);
-        if (contentType != null && contentType.equals(MediaType.ZIP.toString())) {
+        if (contentType != null && (contentType.equals(MediaType.ZIP.toString())
+                || contentType.equals(MediaType.GZIP.toString()))) {
             // don't compress already zipped content
             return null;
         }
@@ -383,6 +383,7 @@ class ConfigJsonService {
         abstract int maxAggregateServiceCallsPerType();
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxStackTraceSamplesPerTransaction();
+        abstract int maxStackTraceDepth();
         abstract int mbeanGaugeNotFoundDelaySeconds();
         abstract String version();
 
@@ -396,6 +397,7 @@ class ConfigJsonService {
                     .setMaxAggregateServiceCallsPerType(of(maxAggregateServiceCallsPerType()))
                     .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                     .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
+                    .setMaxStackTraceDepth(of(maxStackTraceDepth()))
                     .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                     .build();
         }
@@ -414,6 +416,7 @@ class ConfigJsonService {
                             config.getMaxTraceEntriesPerTransaction().getValue())
                     .maxStackTraceSamplesPerTransaction(
                             config.getMaxStackTraceSamplesPerTransaction().getValue())
+                    .maxStackTraceDepth(config.getMaxStackTraceDepth().getValue())
                     .mbeanGaugeNotFoundDelaySeconds(
                             config.getMbeanGaugeNotFoundDelaySeconds().getValue())
                     .version(Versions.getVersion(config))
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.File;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.MediaType;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.stream.ChunkedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.live.LiveJvmService;
+import org.glowroot.ui.HttpSessionManager.Authentication;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+// downloads heap dumps that have been transferred from the agent to glowroot server
+class HeapDumpDownloadHttpService implements HttpService {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(HeapDumpDownloadHttpService.class);
+
+    private final @Nullable LiveJvmService liveJvmService;
+
+    HeapDumpDownloadHttpService(@Nullable LiveJvmService liveJvmService) {
+        this.liveJvmService = liveJvmService;
+    }
+
+    @Override
+    public String getPermission() {
+        return "agent:tool:heapDump";
+    }
+
+    @Override
+    public @Nullable FullHttpResponse handleRequest(ChannelHandlerContext ctx, HttpRequest request,
+            Authentication authentication) throws Exception {
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        List<String> agentIds = decoder.parameters().get("agent-id");
+        if (agentIds == null) {
+            agentIds = ImmutableList.of("");
+        }
+        String agentId = agentIds.get(0);
+        List<String> fileNames = decoder.parameters().get("file-name");
+        checkNotNull(fileNames, "Missing file name in query string: %s", request.uri());
+        String fileName = fileNames.get(0);
+        File file = null;
+        if (liveJvmService != null) {
+            file = liveJvmService.getTransferredHeapDumpFile(agentId, fileName);
+        }
+        if (file == null) {
+            logger.warn("no heap dump found for file name: {}", fileName);
+            return new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND);
+        }
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, file.length());
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.GZIP.toString());
+        response.headers().set("Content-Disposition", "attachment; filename=" + fileName);
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive && !request.protocolVersion().isKeepAliveDefault()) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        HttpServices.preventCaching(response);
+        ctx.write(response);
+        // the file is streamed from disk in chunks
+        ChannelFuture future = ctx.write(new HttpChunkedInput(new ChunkedFile(file)));
+        HttpServices.addErrorListener(future);
+        if (!keepAlive) {
+            HttpServices.addCloseListener(future);
+        }
+        // return null to indicate streaming
+        return null;
+    }
+}
@@ -178,7 +178,12 @@ class JvmJsonService {
         checkNotNull(liveJvmService);
         HeapDumpFileInfo heapDumpFileInfo;
         try {
-            heapDumpFileInfo = liveJvmService.heapDump(agentId, request.directory());
+            if (request.transfer()) {
+                heapDumpFileInfo =
+                        liveJvmService.heapDumpAndTransfer(agentId, request.directory());
+            } else {
+                heapDumpFileInfo = liveJvmService.heapDump(agentId, request.directory());
+            }
         } catch (IOException e) {
             logger.debug(e.getMessage(), e);
             return buildErrorResponse(e);
@@ -188,6 +193,12 @@ class JvmJsonService {
         jg.writeStartObject();
         jg.writeStringField("filePath", heapDumpFileInfo.getFilePath());
         jg.writeNumberField("fileSizeBytes", heapDumpFileInfo.getFileSizeBytes());
+        String transferredFileName = heapDumpFileInfo.getTransferredFileName();
+        if (!transferredFileName.isEmpty()) {
+            jg.writeStringField("transferredFileName", transferredFileName);
+            jg.writeNumberField("transferredFileSizeBytes",
+                    heapDumpFileInfo.getTransferredFileSizeBytes());
+        }
         jg.writeEndObject();
         jg.close();
         return sw.toString();
@@ -383,8 +394,13 @@ class JvmJsonService {
     }
 
     @Value.Immutable
-    interface HeapDumpRequest {
-        String directory();
+    abstract static class HeapDumpRequest {
+        abstract String directory();
+        // only used by glowroot server
+        @Value.Default
+        boolean transfer() {
+            return false;
+        }
     }
 
     @Value.Immutable
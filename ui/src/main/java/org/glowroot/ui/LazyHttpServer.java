@@ -41,6 +41,7 @@ class LazyHttpServer {
     private final TraceDetailHttpService traceDetailHttpService;
     private final TraceExportHttpService traceExportHttpService;
     private final GlowrootLogHttpService glowrootLogHttpService;
+    private final HeapDumpDownloadHttpService heapDumpDownloadHttpService;
     private final List<Object> jsonServices;
     private final int numWorkerThreads;
 
@@ -50,7 +51,8 @@ class LazyHttpServer {
             IndexHtmlHttpService indexHtmlHttpService, LayoutHttpService layoutHttpService,
             LayoutService layoutService, TraceDetailHttpService traceDetailHttpService,
             TraceExportHttpService traceExportHttpService,
-            GlowrootLogHttpService glowrootLogHttpService, List<Object> jsonServices,
+            GlowrootLogHttpService glowrootLogHttpService,
+            HeapDumpDownloadHttpService heapDumpDownloadHttpService, List<Object> jsonServices,
             int numWorkerThreads) {
         this.bindAddress = bindAddress;
         this.port = port;
@@ -61,6 +63,7 @@ class LazyHttpServer {
         this.traceDetailHttpService = traceDetailHttpService;
         this.traceExportHttpService = traceExportHttpService;
         this.glowrootLogHttpService = glowrootLogHttpService;
+        this.heapDumpDownloadHttpService = heapDumpDownloadHttpService;
         this.jsonServices = jsonServices;
         this.numWorkerThreads = numWorkerThreads;
     }
@@ -109,6 +112,7 @@ class LazyHttpServer {
         // export service is not bound under /backend since the export url is visible to users
         // as the download url for the export file
         httpServices.put(Pattern.compile("^/export/trace$"), traceExportHttpService);
+        httpServices.put(Pattern.compile("^/export/heap-dump$"), heapDumpDownloadHttpService);
         httpServices.put(Pattern.compile("^/backend/trace/entries$"), traceDetailHttpService);
         httpServices.put(Pattern.compile("^/backend/trace/main-thread-profile$"),
                 traceDetailHttpService);
@@ -33,6 +33,7 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.LogEventCollector;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -48,6 +49,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.MutableAggregate;
 import org.glowroot.storage.repo.Utils;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -60,13 +62,53 @@ class TransactionCommonService {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
-    TransactionCommonService(AggregateRepository aggregateRepository,
+    private final AggregateSeriesCache<OverviewAggregate> overviewAggregateCache;
+    private final AggregateSeriesCache<PercentileAggregate> percentileAggregateCache;
+    private final AggregateSeriesCache<ThroughputAggregate> throughputAggregateCache;
+
+    TransactionCommonService(final AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
             Clock clock) {
         this.aggregateRepository = aggregateRepository;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        overviewAggregateCache = new AggregateSeriesCache<OverviewAggregate>(rollupConfigs, clock) {
+            @Override
+            List<OverviewAggregate> readFromRepository(String agentRollup,
+                    TransactionQuery query) throws Exception {
+                return aggregateRepository.readOverviewAggregates(agentRollup, query);
+            }
+            @Override
+            long getCaptureTime(OverviewAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
+        percentileAggregateCache =
+                new AggregateSeriesCache<PercentileAggregate>(rollupConfigs, clock) {
+            @Override
+            List<PercentileAggregate> readFromRepository(String agentRollup,
+                    TransactionQuery query) throws Exception {
+                return aggregateRepository.readPercentileAggregates(agentRollup, query);
+            }
+            @Override
+            long getCaptureTime(PercentileAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
+        throughputAggregateCache =
+                new AggregateSeriesCache<ThroughputAggregate>(rollupConfigs, clock) {
+            @Override
+            List<ThroughputAggregate> readFromRepository(String agentRollup,
+                    TransactionQuery query) throws Exception {
+                return aggregateRepository.readThroughputAggregates(agentRollup, query);
+            }
+            @Override
+            long getCaptureTime(ThroughputAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
     }
 
     // query.from() is non-inclusive
@@ -128,7 +170,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollup, revisedQuery);
+                overviewAggregateCache.read(agentRollup, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -176,7 +218,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollup, revisedQuery);
+                percentileAggregateCache.read(agentRollup, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -224,7 +266,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollup, revisedQuery);
+                throughputAggregateCache.read(agentRollup, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -326,6 +368,31 @@ class TransactionCommonService {
         return serviceCallCollector.toProto();
     }
 
+    // query.from() is non-inclusive
+    List<Aggregate.LogEvent> getMergedLogEvents(String agentRollup, TransactionQuery query)
+            throws Exception {
+        LogEventCollector logEventCollector =
+                new LogEventCollector(ConfigDefaults.MAX_AGGREGATE_LOG_EVENTS, 0);
+        long revisedFrom = query.from();
+        long revisedTo =
+                liveAggregateRepository.mergeInLogEvents(agentRollup, query, logEventCollector);
+        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
+            TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(revisedFrom)
+                    .to(revisedTo)
+                    .rollupLevel(rollupLevel)
+                    .build();
+            aggregateRepository.mergeLogEventsInto(agentRollup, revisedQuery, logEventCollector);
+            long lastRolledUpTime = logEventCollector.getLastCaptureTime();
+            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
+            if (revisedFrom > revisedTo) {
+                break;
+            }
+        }
+        return logEventCollector.toProto();
+    }
+
     // query.from() is non-inclusive
     MutableProfile getMergedProfile(String agentRollup, TransactionQuery query, boolean auxiliary,
             List<String> includes, List<String> excludes, double truncateBranchPercentage)
@@ -34,6 +34,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.io.CharStreams;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
 import org.immutables.value.Value;
 
 import org.glowroot.common.live.ImmutableOverallQuery;
@@ -184,6 +185,8 @@ class TransactionJsonService {
                         .totalDurationNanos(loopQuery.getTotalDurationNanos())
                         .executionCount(loopQuery.getExecutionCount())
                         .totalRows(loopQuery.hasTotalRows() ? loopQuery.getTotalRows() : null)
+                        .p99TransactionAverageDurationNanos(
+                                getP99DurationNanos(loopQuery.getDurationNanosHistogram()))
                         .build());
             }
         }
@@ -231,6 +234,8 @@ class TransactionJsonService {
                         .text(aggServiceCall.getText())
                         .totalDurationNanos(aggServiceCall.getTotalDurationNanos())
                         .executionCount(aggServiceCall.getExecutionCount())
+                        .p99TransactionAverageDurationNanos(getP99DurationNanos(
+                                new LazyHistogram(aggServiceCall.getDurationNanosHistogram())))
                         .build());
             }
         }
@@ -252,6 +257,36 @@ class TransactionJsonService {
         return sb.toString();
     }
 
+    @GET(path = "/backend/transaction/log-events",
+            permission = "agent:view:transaction:logEvents")
+    String getLogEvents(@BindAgentRollup String agentRollup,
+            @BindRequest TransactionDataRequest request) throws Exception {
+        TransactionQuery query = toQuery(request);
+        List<Aggregate.LogEvent> aggLogEvents =
+                transactionCommonService.getMergedLogEvents(agentRollup, query);
+        List<LogEvent> logEventList = Lists.newArrayList();
+        for (Aggregate.LogEvent aggLogEvent : aggLogEvents) {
+            logEventList.add(ImmutableLogEvent.builder()
+                    .level(aggLogEvent.getLevel())
+                    .loggerName(aggLogEvent.getLoggerName())
+                    .message(aggLogEvent.getMessage())
+                    .count(aggLogEvent.getCount())
+                    .build());
+        }
+        Collections.sort(logEventList, new Comparator<LogEvent>() {
+            @Override
+            public int compare(LogEvent left, LogEvent right) {
+                // sort descending
+                return Longs.compare(right.count(), left.count());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeObject(logEventList);
+        jg.close();
+        return sb.toString();
+    }
+
     @GET(path = "/backend/transaction/profile", permission = "agent:view:transaction:profile")
     String getProfile(@BindAgentRollup String agentRollup,
             @BindRequest TransactionProfileRequest request) throws Exception {
@@ -567,6 +602,17 @@ class TransactionJsonService {
         return timerNames;
     }
 
+    // histogram is empty for aggregates that were stored before per query and per service call
+    // histograms were captured
+    // the query and service call histograms hold one value per transaction (the average duration
+    // per execution within that transaction), not one value per execution
+    private static @Nullable Long getP99DurationNanos(LazyHistogram durationNanosHistogram) {
+        if (durationNanosHistogram.getCount() == 0) {
+            return null;
+        }
+        return durationNanosHistogram.getValueAtPercentile(99);
+    }
+
     private static class StackedPoint {
 
         private final OverviewAggregate overviewAggregate;
@@ -693,6 +739,8 @@ class TransactionJsonService {
         long executionCount();
         @Nullable
         Long totalRows();
+        @Nullable
+        Long p99TransactionAverageDurationNanos();
     }
 
     @Value.Immutable
@@ -701,6 +749,16 @@ class TransactionJsonService {
         String text();
         double totalDurationNanos();
         long executionCount();
+        @Nullable
+        Long p99TransactionAverageDurationNanos();
+    }
+
+    @Value.Immutable
+    interface LogEvent {
+        String level();
+        String loggerName();
+        String message();
+        long count();
     }
 
     @Value.Immutable
@@ -85,6 +85,8 @@ public class UiModule {
         TraceExportHttpService traceExportHttpService =
                 new TraceExportHttpService(traceCommonService, version);
         GlowrootLogHttpService glowrootLogHttpService = new GlowrootLogHttpService(logDir);
+        HeapDumpDownloadHttpService heapDumpDownloadHttpService =
+                new HeapDumpDownloadHttpService(liveJvmService);
         ErrorCommonService errorCommonService =
                 new ErrorCommonService(aggregateRepository, liveAggregateRepository);
         ErrorJsonService errorJsonService = new ErrorJsonService(errorCommonService,
@@ -120,7 +122,8 @@ public class UiModule {
         int port = configRepository.getWebConfig().port();
         LazyHttpServer lazyHttpServer = new LazyHttpServer(bindAddress, port, httpSessionManager,
                 indexHtmlHttpService, layoutHttpService, layoutService, traceDetailHttpService,
-                traceExportHttpService, glowrootLogHttpService, jsonServices, numWorkerThreads);
+                traceExportHttpService, glowrootLogHttpService, heapDumpDownloadHttpService,
+                jsonServices, numWorkerThreads);
 
         lazyHttpServer.init(adminJsonService);
         return new UiModule(lazyHttpServer);
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSeriesCacheTest {
+
+    private static final long START = MINUTES.toMillis(1000);
+
+    private long currentTime;
+    // level 1 rollups are only stored up to this capture time
+    private long rolledUpTo;
+    private List<TransactionQuery> repositoryQueries;
+    private AggregateSeriesCache<Long> cache;
+
+    @Before
+    public void beforeEach() {
+        currentTime = START + MINUTES.toMillis(60);
+        repositoryQueries = Lists.newArrayList();
+        Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return currentTime;
+            }
+        };
+        rolledUpTo = currentTime;
+        // there is a stored aggregate every minute, and a stored level 1 rollup every 5 minutes
+        // (up to rolledUpTo)
+        cache = new AggregateSeriesCache<Long>(RollupConfig.buildRollupConfigs(), clock) {
+            @Override
+            List<Long> readFromRepository(String agentRollup, TransactionQuery query) {
+                repositoryQueries.add(query);
+                long intervalMillis = MINUTES.toMillis(query.rollupLevel() == 0 ? 1 : 5);
+                long to = query.rollupLevel() == 0 ? query.to() : Math.min(query.to(), rolledUpTo);
+                List<Long> aggregates = Lists.newArrayList();
+                long from = (long) Math.ceil(query.from() / (double) intervalMillis)
+                        * intervalMillis;
+                for (long captureTime = from; captureTime <= to; captureTime += intervalMillis) {
+                    aggregates.add(captureTime);
+                }
+                return aggregates;
+            }
+            @Override
+            long getCaptureTime(Long aggregate) {
+                return aggregate;
+            }
+        };
+    }
+
+    @Test
+    public void shouldOnlyReadDeltaOnRefresh() throws Exception {
+        // given
+        cache.read("a", query(START, currentTime));
+        currentTime += MINUTES.toMillis(1);
+        // when
+        List<Long> aggregates = cache.read("a", query(START + MINUTES.toMillis(1), currentTime));
+        // then
+        assertThat(aggregates).hasSize(61);
+        assertThat(aggregates.get(0)).isEqualTo(START + MINUTES.toMillis(1));
+        assertThat(aggregates.get(60)).isEqualTo(currentTime);
+        assertThat(repositoryQueries).hasSize(2);
+        TransactionQuery deltaQuery = repositoryQueries.get(1);
+        assertThat(deltaQuery.from())
+                .isEqualTo(START + MINUTES.toMillis(60) - AggregateSeriesCache.STABLE_MILLIS + 1);
+        assertThat(deltaQuery.to()).isEqualTo(currentTime);
+    }
+
+    @Test
+    public void shouldReadFromRepositoryWhenFromIsBeforeCachedSeries() throws Exception {
+        // given
+        cache.read("a", query(START, currentTime));
+        // when
+        List<Long> aggregates = cache.read("a", query(START - MINUTES.toMillis(10), currentTime));
+        // then
+        assertThat(aggregates).hasSize(71);
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(START - MINUTES.toMillis(10));
+    }
+
+    @Test
+    public void shouldReadFromRepositoryAfterMaxSeriesAge() throws Exception {
+        // given
+        cache.read("a", query(START, currentTime));
+        currentTime += AggregateSeriesCache.MAX_SERIES_AGE_MILLIS + 1;
+        // when
+        cache.read("a", query(START, currentTime));
+        // then
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(START);
+    }
+
+    @Test
+    public void shouldNotShareSeriesAcrossTransactionNames() throws Exception {
+        // given
+        cache.read("a", query(START, currentTime));
+        // when
+        cache.read("a", ImmutableTransactionQuery.builder()
+                .copyFrom(query(START, currentTime))
+                .transactionName("abc")
+                .build());
+        // then
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(START);
+    }
+
+    @Test
+    public void shouldNotCacheRollupThatHasNotBeenStoredYet() throws Exception {
+        // given
+        // the two most recent level 1 rollups have not been stored yet
+        rolledUpTo = currentTime - MINUTES.toMillis(10);
+        cache.read("a", query(START, currentTime, 1));
+        currentTime += MINUTES.toMillis(5);
+        rolledUpTo = currentTime - MINUTES.toMillis(5);
+        // when
+        List<Long> aggregates = cache.read("a", query(START, currentTime, 1));
+        // then
+        assertThat(aggregates).hasSize(13);
+        assertThat(aggregates.get(11)).isEqualTo(START + MINUTES.toMillis(55));
+        assertThat(aggregates.get(12)).isEqualTo(START + MINUTES.toMillis(60));
+        assertThat(repositoryQueries).hasSize(2);
+    }
+
+    @Test
+    public void shouldAddRollupIntervalAndDelayForEachRollupLevel() {
+        // when
+        List<Long> stableMillis =
+                AggregateSeriesCache.getStableMillis(RollupConfig.buildRollupConfigs());
+        // then
+        assertThat(stableMillis).containsExactly(MINUTES.toMillis(5), MINUTES.toMillis(8),
+                MINUTES.toMillis(15), MINUTES.toMillis(47));
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return query(from, to, 0);
+    }
+
+    private static TransactionQuery query(long from, long to, int rollupLevel) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
+    }
+}